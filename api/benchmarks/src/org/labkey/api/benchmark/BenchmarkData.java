@@ -0,0 +1,55 @@
+package org.labkey.api.benchmark;
+
+import org.labkey.api.collections.CaseInsensitiveHashMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Synthetic, deterministic rows shared by the benchmarks, so nothing needs a database or a running server
+ */
+class BenchmarkData
+{
+    static final List<String> COLUMNS = Arrays.asList("RowId", "Name", "Created", "Measure", "Flag", "Category", "Comment");
+
+    static List<Map<String, Object>> createRows(int count)
+    {
+        List<Map<String, Object>> rows = new ArrayList<>(count);
+
+        for (int i = 0; i < count; i++)
+        {
+            Map<String, Object> row = new CaseInsensitiveHashMap<>();
+            row.put("RowId", i);
+            row.put("Name", "S-" + i);
+            row.put("Created", new java.sql.Timestamp(1_600_000_000_000L + i * 60_000L));
+            row.put("Measure", i % 11 == 0 ? null : i * 1.5);
+            row.put("Flag", i % 2 == 0);
+            row.put("Category", "Category" + (i % 20));
+            row.put("Comment", i % 5 == 0 ? "Comment with\ttab and \"quotes\" for row " + i : null);
+            rows.add(row);
+        }
+
+        return rows;
+    }
+
+    // Same rows rendered as text, all values as strings, as they'd arrive in an uploaded file
+    static String createTsv(int count)
+    {
+        StringBuilder tsv = new StringBuilder(count * 80);
+        tsv.append("RowId\tName\tCreated\tMeasure\tFlag\tCategory\n");
+
+        for (int i = 0; i < count; i++)
+        {
+            tsv.append(i).append('\t')
+                .append("S-").append(i).append('\t')
+                .append("2020-09-13 12:").append(String.format("%02d", i % 60)).append('\t')
+                .append(i % 11 == 0 ? "" : String.valueOf(i * 1.5)).append('\t')
+                .append(i % 2 == 0).append('\t')
+                .append("Category").append(i % 20).append('\n');
+        }
+
+        return tsv.toString();
+    }
+}
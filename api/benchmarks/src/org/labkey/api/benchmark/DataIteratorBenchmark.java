@@ -0,0 +1,81 @@
+package org.labkey.api.benchmark;
+
+import org.labkey.api.data.JdbcType;
+import org.labkey.api.dataiterator.DataIterator;
+import org.labkey.api.dataiterator.DataIteratorContext;
+import org.labkey.api.dataiterator.ListofMapsDataIterator;
+import org.labkey.api.dataiterator.SimpleTranslator;
+import org.labkey.api.iterator.CloseableIterator;
+import org.labkey.api.reader.TabLoader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The front of the import pipeline: parsing uploaded text with TabLoader and converting string values to column types
+ * with SimpleTranslator
+ */
+@State(Scope.Benchmark)
+public class DataIteratorBenchmark extends AbstractBenchmark
+{
+    private static final List<String> TSV_COLUMNS = List.of("RowId", "Name", "Created", "Measure", "Flag", "Category");
+    private static final JdbcType[] TSV_TYPES = {JdbcType.INTEGER, JdbcType.VARCHAR, JdbcType.TIMESTAMP, JdbcType.DOUBLE, JdbcType.BOOLEAN, JdbcType.VARCHAR};
+
+    @Param({"10000"})
+    public int rows;
+
+    private String _tsv;
+    private List<Map<String, Object>> _stringRows;
+
+    @Setup
+    public void setup() throws IOException
+    {
+        _tsv = BenchmarkData.createTsv(rows);
+
+        // Untyped, all-string rows for the conversion benchmark, so it measures conversion only
+        TabLoader loader = new TabLoader(_tsv, true);
+        loader.setInferTypes(false);
+        _stringRows = loader.load();
+    }
+
+    @Benchmark
+    public void tabLoaderParse(Blackhole bh) throws IOException
+    {
+        TabLoader loader = new TabLoader(_tsv, true);
+
+        try (CloseableIterator<Map<String, Object>> iter = loader.iterator())
+        {
+            while (iter.hasNext())
+                bh.consume(iter.next());
+        }
+    }
+
+    @Benchmark
+    public void simpleTranslatorConvert(Blackhole bh) throws Exception
+    {
+        DataIteratorContext context = new DataIteratorContext();
+        ListofMapsDataIterator source = new ListofMapsDataIterator(new LinkedHashSet<>(TSV_COLUMNS), _stringRows);
+        SimpleTranslator translator = new SimpleTranslator(source, context);
+
+        // Index 0 is the row number
+        for (int i = 0; i < TSV_COLUMNS.size(); i++)
+            translator.addConvertColumn(TSV_COLUMNS.get(i), i + 1, TSV_TYPES[i], null, false);
+
+        try (DataIterator it = translator)
+        {
+            while (it.next())
+            {
+                for (int i = 1; i <= TSV_COLUMNS.size(); i++)
+                    bh.consume(it.get(i));
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package org.labkey.api.benchmark;
+
+import org.labkey.api.collections.ArrayListMap;
+import org.labkey.api.collections.CaseInsensitiveHashMap;
+import org.labkey.api.collections.ResultSetRowMapFactory;
+import org.labkey.api.collections.RowMap;
+import org.labkey.api.data.CachedResultSets;
+import org.labkey.api.data.ResultSetWrapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-row map construction and column access: ArrayListMap (what selectors hand out) vs. CaseInsensitiveHashMap
+ * (what most update code builds), plus ResultSetRowMapFactory reading an entire ResultSet
+ */
+@State(Scope.Benchmark)
+public class RowMapBenchmark extends AbstractBenchmark
+{
+    @Param({"1000"})
+    public int rows;
+
+    private List<Map<String, Object>> _hashMaps;
+    private List<Map<String, Object>> _arrayListMaps;
+    private String[] _lookupNames;
+
+    @Setup
+    public void setup()
+    {
+        _hashMaps = BenchmarkData.createRows(rows);
+        _arrayListMaps = new ArrayList<>(rows);
+        ArrayListMap.FindMap<String> findMap = new ArrayListMap.FindMap<>(new CaseInsensitiveHashMap<>());
+
+        for (Map<String, Object> row : _hashMaps)
+        {
+            ArrayListMap<String, Object> map = new ArrayListMap<>(findMap, BenchmarkData.COLUMNS.size());
+
+            for (String column : BenchmarkData.COLUMNS)
+                map.put(column, row.get(column));
+
+            _arrayListMaps.add(map);
+        }
+
+        // Mixed case, as in code that doesn't know the exact column name casing
+        _lookupNames = BenchmarkData.COLUMNS.stream().map(String::toLowerCase).toArray(String[]::new);
+    }
+
+    @Benchmark
+    public void arrayListMapGet(Blackhole bh)
+    {
+        for (Map<String, Object> row : _arrayListMaps)
+            for (String name : _lookupNames)
+                bh.consume(row.get(name));
+    }
+
+    @Benchmark
+    public void caseInsensitiveHashMapGet(Blackhole bh)
+    {
+        for (Map<String, Object> row : _hashMaps)
+            for (String name : _lookupNames)
+                bh.consume(row.get(name));
+    }
+
+    @Benchmark
+    public void caseInsensitiveHashMapCopy(Blackhole bh)
+    {
+        for (Map<String, Object> row : _hashMaps)
+            bh.consume(new CaseInsensitiveHashMap<>(row));
+    }
+
+    @Benchmark
+    public void resultSetRowMapFactory(Blackhole bh) throws SQLException
+    {
+        // Wrap so the factory reads column values via JDBC getters instead of handing back the cached RowMaps
+        try (ResultSet rs = new ResultSetWrapper(CachedResultSets.create(_hashMaps, BenchmarkData.COLUMNS)))
+        {
+            ResultSetRowMapFactory factory = ResultSetRowMapFactory.create(rs);
+
+            while (rs.next())
+            {
+                RowMap<Object> map = factory.getRowMap(rs);
+                bh.consume(map);
+            }
+        }
+    }
+}
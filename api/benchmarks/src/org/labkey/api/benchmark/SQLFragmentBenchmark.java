@@ -0,0 +1,75 @@
+package org.labkey.api.benchmark;
+
+import org.labkey.api.data.SQLFragment;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Building SQLFragments the way generated select SQL does: many small appends, parameters, and nested fragments
+ */
+@State(Scope.Benchmark)
+public class SQLFragmentBenchmark extends AbstractBenchmark
+{
+    @Param({"10", "100"})
+    public int columns;
+
+    private List<String> _columnNames;
+
+    @Setup
+    public void setup()
+    {
+        _columnNames = new ArrayList<>(columns);
+
+        for (int i = 0; i < columns; i++)
+            _columnNames.add("Column" + i);
+    }
+
+    @Benchmark
+    public String buildSelect()
+    {
+        SQLFragment select = new SQLFragment("SELECT ");
+        String sep = "";
+
+        for (String name : _columnNames)
+        {
+            select.append(sep).append("x.").append(name);
+            sep = ", ";
+        }
+
+        select.append("\nFROM ");
+        select.append(buildInner());
+        select.append(" x\nWHERE x.Column0 = ?").add(42);
+
+        return select.getSQL();
+    }
+
+    @Benchmark
+    public List<Object> buildWithParams()
+    {
+        SQLFragment sql = new SQLFragment("SELECT * FROM test.Data WHERE ");
+        String sep = "";
+
+        for (int i = 0; i < columns; i++)
+        {
+            sql.append(sep).append(_columnNames.get(i)).append(" = ?").add(i);
+            sep = " AND ";
+        }
+
+        return new SQLFragment(sql).getParams();
+    }
+
+    private SQLFragment buildInner()
+    {
+        SQLFragment inner = new SQLFragment("(SELECT * FROM test.Data WHERE Container = ?", "00000000-0000-0000-0000-000000000000");
+        inner.append(" AND Created > ?").add(new java.sql.Timestamp(0));
+        inner.append(")");
+
+        return inner;
+    }
+}
@@ -0,0 +1,76 @@
+package org.labkey.api.benchmark;
+
+import org.labkey.api.data.CompareType;
+import org.labkey.api.data.SQLFragment;
+import org.labkey.api.data.SimpleFilter;
+import org.labkey.api.data.dialect.MockSqlDialect;
+import org.labkey.api.data.dialect.SqlDialect;
+import org.labkey.api.query.FieldKey;
+import org.labkey.api.util.URLHelper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * SQL generation for typical grid filters: comparisons, IN clauses, and string matching
+ */
+@State(Scope.Benchmark)
+public class SimpleFilterBenchmark extends AbstractBenchmark
+{
+    @Param({"10", "1000"})
+    public int inClauseSize;
+
+    private final SqlDialect _dialect = new MockSqlDialect();
+    private List<Integer> _inValues;
+    private URLHelper _url;
+
+    @Setup
+    public void setup()
+    {
+        _inValues = new ArrayList<>(inClauseSize);
+
+        for (int i = 0; i < inClauseSize; i++)
+            _inValues.add(i);
+
+        _url = new URLHelper(false);
+        _url.addParameter("query.RowId~gt", "100");
+        _url.addParameter("query.Name~startswith", "S-1");
+        _url.addParameter("query.Category~in", "Category1;Category2;Category3");
+    }
+
+    @Benchmark
+    public SQLFragment compareClauses()
+    {
+        SimpleFilter filter = new SimpleFilter();
+        filter.addCondition(FieldKey.fromParts("RowId"), 100, CompareType.GT);
+        filter.addCondition(FieldKey.fromParts("Name"), "S-1", CompareType.STARTS_WITH);
+        filter.addCondition(FieldKey.fromParts("Category"), "Category", CompareType.CONTAINS);
+        filter.addCondition(FieldKey.fromParts("Measure"), null, CompareType.NONBLANK);
+        filter.addCondition(FieldKey.fromParts("Lookup", "Name"), "Foo", CompareType.NEQ_OR_NULL);
+
+        return filter.getSQLFragment(_dialect);
+    }
+
+    @Benchmark
+    public SQLFragment inClause()
+    {
+        SimpleFilter filter = new SimpleFilter();
+        filter.addInClause(FieldKey.fromParts("RowId"), _inValues);
+
+        return filter.getSQLFragment(_dialect);
+    }
+
+    @Benchmark
+    public SQLFragment urlFilterParsing()
+    {
+        SimpleFilter filter = new SimpleFilter();
+        filter.addUrlFilters(_url, "query");
+
+        return filter.getSQLFragment(_dialect);
+    }
+}
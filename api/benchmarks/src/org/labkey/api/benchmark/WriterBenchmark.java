@@ -0,0 +1,65 @@
+package org.labkey.api.benchmark;
+
+import org.labkey.api.action.ApiJsonWriter;
+import org.labkey.api.data.TSVMapWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Export-side serialization of rows to TSV and to JSON (as written by the selectRows-style API responses)
+ */
+@State(Scope.Benchmark)
+public class WriterBenchmark extends AbstractBenchmark
+{
+    @Param({"10000"})
+    public int rows;
+
+    private List<Map<String, Object>> _rows;
+
+    @Setup
+    public void setup()
+    {
+        _rows = BenchmarkData.createRows(rows);
+    }
+
+    @Benchmark
+    public int tsvWriter() throws IOException
+    {
+        StringBuilder sb = new StringBuilder();
+
+        try (TSVMapWriter writer = new TSVMapWriter(BenchmarkData.COLUMNS, _rows))
+        {
+            writer.write(sb);
+        }
+
+        return sb.length();
+    }
+
+    @Benchmark
+    public int jsonWriter() throws IOException
+    {
+        StringWriter out = new StringWriter();
+        ApiJsonWriter writer = new ApiJsonWriter(out);
+
+        writer.startResponse();
+        writer.writeProperty("rowCount", _rows.size());
+        writer.startList("rows");
+
+        for (Map<String, Object> row : _rows)
+            writer.writeListEntry(row);
+
+        writer.endList();
+        writer.endResponse();
+        writer.close();
+
+        return out.getBuffer().length();
+    }
+}
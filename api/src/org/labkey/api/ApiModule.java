@@ -25,26 +25,34 @@ import org.labkey.api.attachments.AttachmentService;
 import org.labkey.api.attachments.LookAndFeelResourceType;
 import org.labkey.api.attachments.SecureDocumentType;
 import org.labkey.api.cache.BlockingCache;
+import org.labkey.api.cache.WeightTracker;
+import org.labkey.api.cache.twolevel.TwoLevelCacheProvider;
 import org.labkey.api.collections.ArrayListMap;
 import org.labkey.api.collections.CaseInsensitiveHashMap;
 import org.labkey.api.collections.CaseInsensitiveHashSet;
 import org.labkey.api.collections.CaseInsensitiveMapWrapper;
 import org.labkey.api.collections.CollectionUtils;
 import org.labkey.api.collections.LabKeyCollectors;
+import org.labkey.api.collections.RoaringBitSet;
 import org.labkey.api.collections.Sampler;
 import org.labkey.api.collections.SwapQueue;
 import org.labkey.api.compliance.ComplianceService;
 import org.labkey.api.data.*;
 import org.labkey.api.data.dialect.ParameterSubstitutionTest;
 import org.labkey.api.data.dialect.StandardDialectStringHandler;
+import org.labkey.api.data.statistics.ColumnSummary;
+import org.labkey.api.data.statistics.HyperLogLog;
+import org.labkey.api.data.statistics.TDigest;
 import org.labkey.api.dataiterator.CachingDataIterator;
 import org.labkey.api.dataiterator.DataIteratorUtil;
 import org.labkey.api.dataiterator.DiskCachingDataIterator;
 import org.labkey.api.dataiterator.ExistingRecordDataIterator;
 import org.labkey.api.dataiterator.GenerateUniqueDataIterator;
+import org.labkey.api.dataiterator.ParallelDataIterator;
 import org.labkey.api.dataiterator.RemoveDuplicatesDataIterator;
 import org.labkey.api.dataiterator.ResultSetDataIterator;
 import org.labkey.api.dataiterator.SimpleTranslator;
+import org.labkey.api.dataiterator.SpillStore;
 import org.labkey.api.dataiterator.StatementDataIterator;
 import org.labkey.api.files.FileSystemWatcherImpl;
 import org.labkey.api.iterator.MarkableIterator;
@@ -140,12 +148,14 @@ public class ApiModule extends CodeOnlyModule
             ArrayListMap.TestCase.class,
             BooleanFormat.TestCase.class,
             BuilderObjectFactory.TestCase.class,
+            CachedResultSets.ColumnarTestCase.class,
             CachingDataIterator.ScrollTestCase.class,
             CaseInsensitiveHashMap.TestCase.class,
             CaseInsensitiveHashSet.TestCase.class,
             CaseInsensitiveMapWrapper.TestCase.class,
             ChecksumUtil.TestCase.class,
             CollectionUtils.TestCase.class,
+            ColumnSummary.TestCase.class,
             Compress.TestCase.class,
             Constants.TestCase.class,
             ConvertHelper.TestCase.class,
@@ -164,12 +174,14 @@ public class ApiModule extends CodeOnlyModule
             FileUtil.TestCase.class,
             GenerateUniqueDataIterator.TestCase.class,
             HelpTopic.TestCase.class,
+            HyperLogLog.TestCase.class,
             InlineInClauseGenerator.TestCase.class,
             JavaVersion.TestCase.class,
             JSONDataLoader.HeaderMatchTest.class,
             JSONDataLoader.MetadataTest.class,
             JSONDataLoader.RowTest.class,
             JsonTest.class,
+            KeysetCursor.TestCase.class,
             MarkableIterator.TestCase.class,
             MaterializedQueryHelper.TestCase.class,
             MemTracker.TestCase.class,
@@ -184,6 +196,7 @@ public class ApiModule extends CodeOnlyModule
             RemoveDuplicatesDataIterator.DeDuplicateTestCase.class,
             ReplacedRunFilter.TestCase.class,
             ResultSetUtil.TestCase.class,
+            RoaringBitSet.TestCase.class,
             RReport.TestCase.class,
             Sampler.TestCase.class,
             SchemaKey.TestCase.class,
@@ -191,16 +204,20 @@ public class ApiModule extends CodeOnlyModule
             SimpleFilter.BetweenClauseTestCase.class,
             SimpleFilter.FilterTestCase.class,
             SimpleFilter.InClauseTestCase.class,
+            SpillStore.TestCase.class,
             SqlScanner.TestCase.class,
             StringExpressionFactory.TestCase.class,
             StringUtilsLabKey.TestCase.class,
             SubfolderWriter.TestCase.class,
             SwapQueue.TestCase.class,
             TabLoader.HeaderMatchTest.class,
+            TDigest.TestCase.class,
             TidyUtil.TestCase.class,
             TSVMapWriter.Tests.class,
             TSVWriter.TestCase.class,
-            ValidEmail.TestCase.class
+            TwoLevelCacheProvider.TestCase.class,
+            ValidEmail.TestCase.class,
+            WeightTracker.TestCase.class
         );
     }
 
@@ -249,11 +266,14 @@ public class ApiModule extends CodeOnlyModule
             MarkdownService.TestCase.class,
             MimeMap.TestCase.class,
             ModuleHtmlView.TestCase.class,
+            NameGenerator.TestCase.class,
             ModuleXml.TestCase.class,
             NestedGroupsTest.class,
+            ParallelDataIterator.TestCase.class,
             ParameterSubstitutionTest.class,
             Portal.TestCase.class,
             PropertyManager.TestCase.class,
+            QueryResultCache.TestCase.class,
             //RateLimiter.TestCase.class,
             ResultSetDataIterator.TestCase.class,
             ResultSetSelectorTestCase.class,
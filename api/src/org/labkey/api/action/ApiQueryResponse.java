@@ -25,11 +25,13 @@ import org.labkey.api.data.DataRegion;
 import org.labkey.api.data.DetailsColumn;
 import org.labkey.api.data.DisplayColumn;
 import org.labkey.api.data.JsonWriter;
+import org.labkey.api.data.KeysetCursor;
 import org.labkey.api.data.LookupColumn;
 import org.labkey.api.data.MVDisplayColumn;
 import org.labkey.api.data.MvUtil;
 import org.labkey.api.data.RenderContext;
 import org.labkey.api.data.Results;
+import org.labkey.api.data.Sort;
 import org.labkey.api.data.TableInfo;
 import org.labkey.api.data.UpdateColumn;
 import org.labkey.api.exp.PropertyColumn;
@@ -84,6 +86,7 @@ public class ApiQueryResponse implements ApiResponse
     private boolean _includeDisplayValues;
     private List<FieldKey> _columnFilter;
     private boolean _includeMetaData;
+    private String _nextCursor = null;
 
     // TODO: This is silly... switch to builder pattern, or at least a constructor that takes reasonable strategies
     public ApiQueryResponse(QueryView view, boolean schemaEditable, boolean includeLookupInfo,
@@ -168,8 +171,17 @@ public class ApiQueryResponse implements ApiResponse
             }
 
             long rowCount = _rowCount > 0 ? _rowCount : _offset + _numRespRows;
+            if (_dataRegion.isTotalRowsEstimated())
+            {
+                // Statistics can lag behind the table; never report fewer rows than we've already seen
+                rowCount = Math.max(rowCount, _offset + _numRespRows);
+                writer.writeProperty("rowCountEstimated", true);
+            }
             writer.writeProperty("rowCount", rowCount);
 
+            if (null != _nextCursor)
+                writer.writeProperty("nextCursor", _nextCursor);
+
             if (_includeMetaData)
             {
                 // messages, but only if metadata is requested
@@ -517,6 +529,11 @@ public class ApiQueryResponse implements ApiResponse
                 ++_numRespRows;
             }
             complete = results.isComplete();
+
+            // With keyset pagination the next page starts after the last row written
+            Sort keysetSort = _ctx.getKeysetSort();
+            if (!complete && null != keysetSort && _numRespRows > 0)
+                _nextCursor = KeysetCursor.create(keysetSort, _ctx::get).encode();
         }
         writer.endList();
         return complete;
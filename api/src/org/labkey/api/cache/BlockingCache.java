@@ -15,19 +15,27 @@
  */
 package org.labkey.api.cache;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.labkey.api.util.Filter;
+import org.labkey.api.util.HeartBeat;
+import org.labkey.api.util.JobRunner;
 
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongSupplier;
 
 /**
  * This is a decorator for any Cache instance, it will provide for synchronizing object load
@@ -37,6 +45,11 @@ import java.util.concurrent.atomic.AtomicInteger;
  */
 public class BlockingCache<K, V> implements Cache<K, V>
 {
+    private static final Logger LOG = LogManager.getLogger(BlockingCache.class);
+
+    // Wait at least this long before retrying a background refresh that failed
+    private static final long REFRESH_RETRY_DELAY = CacheManager.MINUTE;
+
     protected final Cache<K, Wrapper<V>> _cache;
     protected final CacheLoader<K, V> _loader;
     protected CacheTimeChooser<K> _cacheTimeChooser;
@@ -45,6 +58,10 @@ public class BlockingCache<K, V> implements Cache<K, V>
      * Note that we will NOT timeout the thread that is doing the load, but this can still help reduce deadlocks
      */
     protected final long _timeout;
+    /** Fraction of an entry's TTL after which get() starts a background reload; 0 means refresh-ahead is off */
+    private volatile double _refreshAheadFraction = 0;
+    /** Clock used to schedule refresh-ahead; tests substitute their own */
+    private LongSupplier _clock = HeartBeat::currentTimeMillis;
 
     public static final Object UNINITIALIZED = new Object() {public String toString() { return "UNINITIALIZED";}};
 
@@ -73,6 +90,125 @@ public class BlockingCache<K, V> implements Cache<K, V>
     }
 
 
+    /**
+     * Turn on refresh-ahead. Once an entry is older than fraction * its TTL, the next get() returns the current value and
+     * queues a single background reload using the loader that loaded the entry; the reloaded value replaces the entry
+     * (and restarts its TTL) when it's ready. Readers never wait on these reloads, so expensive entries don't all expire
+     * in front of callers. Entries cached without a TTL, or stored via put(), are never refreshed. A reload that throws,
+     * or that returns null in place of a non-null value, leaves the current value to expire normally. Loaders must not
+     * depend on the calling thread's state (transaction, request, etc.), since refreshes run on a background thread with
+     * the argument of the triggering get().
+     */
+    public void setRefreshAhead(double fraction)
+    {
+        if (fraction <= 0 || fraction >= 1)
+            throw new IllegalArgumentException("Refresh-ahead fraction must be greater than 0 and less than 1: " + fraction);
+
+        _refreshAheadFraction = fraction;
+    }
+
+
+    // For testing
+    void setClock(LongSupplier clock)
+    {
+        _clock = clock;
+    }
+
+
+    // Created on first use, so processes that never refresh ahead don't start the threads
+    private static class RefreshRunner
+    {
+        private static final JobRunner INSTANCE = new JobRunner("BlockingCache refresh", 2);
+    }
+
+
+    private long getRefreshAt(@Nullable Long timeToLive)
+    {
+        double fraction = _refreshAheadFraction;
+
+        if (0 == fraction)
+            return Long.MAX_VALUE;
+
+        long ttl = null != timeToLive ? timeToLive : _cache.getTrackingCache().getDefaultExpires();
+
+        return ttl <= 0 ? Long.MAX_VALUE : _clock.getAsLong() + (long)(ttl * fraction);
+    }
+
+
+    // Call while holding w's lock
+    private void refreshAheadIfDue(@NotNull K key, @Nullable Object argument, Wrapper<V> w)
+    {
+        if (_refreshAheadFraction > 0 && null != w.loader && !w.refreshing && _clock.getAsLong() >= w.refreshAt)
+        {
+            // Single flight: the flag stays set until this wrapper is replaced or the reload fails
+            w.refreshing = true;
+            @SuppressWarnings("unchecked")
+            CacheLoader<K, V> loader = (CacheLoader<K, V>)w.loader;
+            RefreshRunner.INSTANCE.execute(() -> refreshAhead(key, argument, loader, w));
+        }
+    }
+
+
+    private void refreshAhead(@NotNull K key, @Nullable Object argument, CacheLoader<K, V> loader, Wrapper<V> stale)
+    {
+        Stats stats = _cache.getTrackingCache().getStats();
+        long start = System.nanoTime();
+
+        try
+        {
+            V value = loader.load(key, argument);
+            CacheManager.validate(loader, value);
+
+            // Some loaders report failure by returning null (e.g., SchemaTableInfoCache); don't replace a good value with it
+            if (null == value)
+            {
+                synchronized (stale.getLockObject())
+                {
+                    if (null != stale.getValue())
+                        throw new IllegalStateException("Loader returned null");
+                }
+            }
+
+            Wrapper<V> fresh = createWrapper();
+            synchronized (fresh.getLockObject())
+            {
+                fresh.setValue(value);
+                fresh.loader = loader;
+                fresh.timeToLive = stale.timeToLive;
+                fresh.refreshAt = getRefreshAt(fresh.timeToLive);
+            }
+
+            synchronized (_cache)
+            {
+                // Don't resurrect an entry that was removed or replaced while we were loading
+                if (_cache.get(key) == stale)
+                {
+                    if (null == fresh.timeToLive)
+                        _cache.put(key, fresh);
+                    else
+                        _cache.put(key, fresh, fresh.timeToLive);
+                }
+            }
+
+            long elapsed = System.nanoTime() - start;
+            stats.refreshes.incrementAndGet();
+            stats.refresh_nanos.addAndGet(elapsed);
+            stats.max_refresh_nanos.accumulateAndGet(elapsed, Math::max);
+        }
+        catch (RuntimeException e)
+        {
+            stats.refresh_failures.incrementAndGet();
+            LOG.warn("Background refresh of \"" + key + "\" in " + _cache.getTrackingCache().getDebugName() + " failed; keeping the current value", e);
+
+            synchronized (stale.getLockObject())
+            {
+                stale.refreshing = false;
+                stale.refreshAt = _clock.getAsLong() + REFRESH_RETRY_DELAY;
+            }
+        }
+    }
+
+
     protected Wrapper<V> createWrapper()
     {
         return new Wrapper<>();
@@ -94,6 +230,13 @@ public class BlockingCache<K, V> implements Cache<K, V>
 
     @Override
     public V get(@NotNull K key, @Nullable Object argument, CacheLoader<K, V> loader)
+    {
+        return get(key, argument, loader, true);
+    }
+
+
+    // Values stored via put() aren't refreshable; their "loader" just hands back the same value
+    private V get(@NotNull K key, @Nullable Object argument, CacheLoader<K, V> loader, boolean refreshable)
     {
         Wrapper<V> w;
 
@@ -107,9 +250,17 @@ public class BlockingCache<K, V> implements Cache<K, V>
 
                 // Override the default TTL if a CacheTimeChooser is present and provides a custom value
                 if (null == _cacheTimeChooser || null == (ttl = _cacheTimeChooser.getTimeToLive(key, argument)))
+                {
                     _cache.put(key, w);
+                }
                 else
+                {
+                    w.timeToLive = ttl;
                     _cache.put(key, w, ttl);
+                }
+
+                // The cache's TTL runs from the put, so base the refresh time on it as well
+                w.refreshAt = getRefreshAt(w.timeToLive);
             }
         }
 
@@ -120,7 +271,10 @@ public class BlockingCache<K, V> implements Cache<K, V>
         synchronized (w.getLockObject())
         {
             if (isInitialized(w))
+            {
+                refreshAheadIfDue(key, argument, w);
                 return w.getValue();
+            }
 
             long endTime = _timeout > 0 ? System.currentTimeMillis() + _timeout : Long.MAX_VALUE;
             while (w.isLoading())
@@ -164,8 +318,11 @@ public class BlockingCache<K, V> implements Cache<K, V>
             synchronized (w.getLockObject())
             {
                 w.setValue(value);
+                // Remember the loader that produced this value, so refresh-ahead reloads it the same way
+                w.loader = refreshable ? loader : null;
                 w.getLockObject().notifyAll();
             }
+            _cache.reweigh(key);
             success = true;
             return value;
         }
@@ -205,7 +362,7 @@ public class BlockingCache<K, V> implements Cache<K, V>
     {
         // Perhaps a better approach would be to create a private version of get() that takes a "force" flag, but doesn't seem worth it
         remove(key);
-        get(key, null, (key1, argument) -> value);
+        get(key, null, (key1, argument) -> value, false);
     }
 
 
@@ -235,6 +392,12 @@ public class BlockingCache<K, V> implements Cache<K, V>
         return _cache.removeUsingFilter(filter);
     }
 
+    @Override
+    public void reweigh(@NotNull K key)
+    {
+        _cache.reweigh(key);
+    }
+
     @Override
     public Set<K> getKeys()
     {
@@ -367,5 +530,114 @@ public class BlockingCache<K, V> implements Cache<K, V>
             assertEquals(1, calls.get());
             assertEquals(9, timeouts.get());
         }
+
+        @Test
+        public void testRefreshAhead() throws InterruptedException
+        {
+            final AtomicInteger calls = new AtomicInteger();
+            final CountDownLatch release = new CountDownLatch(1);
+            TrackingCache<Integer, Wrapper<Integer>> cache = CacheManager.getCache(100, CacheManager.HOUR, "BlockingCache refresh-ahead test");
+
+            try
+            {
+                // Reloads block until released, so the stale value is observable while a refresh is running
+                BlockingCache<Integer, Integer> bc = new BlockingCache<>(cache, (key, argument) -> {
+                    if (calls.get() > 0)
+                        await(release);
+                    return calls.incrementAndGet();
+                });
+                AtomicLong now = new AtomicLong(0);
+                bc.setClock(now::get);
+                bc.setRefreshAhead(0.1);
+
+                assertEquals(1, (int)bc.get(1));
+                assertEquals("Not due yet", 1, (int)bc.get(1));
+
+                // Past 10% of the TTL, but well short of expiration
+                now.set(CacheManager.HOUR / 5);
+
+                for (int i = 0; i < 20; i++)
+                    assertEquals("Readers should get the stale value while the refresh runs", 1, (int)bc.get(1));
+
+                release.countDown();
+                waitFor(() -> 2 == bc.get(1));
+
+                assertEquals("Concurrent triggers should share one refresh", 2, calls.get());
+                assertEquals(1, cache.getStats().refreshes.get());
+            }
+            finally
+            {
+                cache.close();
+            }
+        }
+
+        @Test
+        public void testRefreshAheadLoader() throws InterruptedException
+        {
+            final AtomicInteger defaultCalls = new AtomicInteger();
+            final AtomicInteger customCalls = new AtomicInteger();
+            final AtomicInteger failingCalls = new AtomicInteger();
+            TrackingCache<Integer, Wrapper<Integer>> cache = CacheManager.getCache(100, CacheManager.HOUR, "BlockingCache refresh-ahead loader test");
+
+            try
+            {
+                BlockingCache<Integer, Integer> bc = new BlockingCache<>(cache, (key, argument) -> -defaultCalls.incrementAndGet());
+                AtomicLong now = new AtomicLong(0);
+                bc.setClock(now::get);
+                bc.setRefreshAhead(0.1);
+
+                // An entry loaded with its own loader is refreshed with that loader, not the cache's
+                CacheLoader<Integer, Integer> custom = (key, argument) -> 100 + customCalls.incrementAndGet();
+                assertEquals(101, (int)bc.get(1, null, custom));
+
+                // A loader that reports failure by returning null must not replace the current value
+                CacheLoader<Integer, Integer> failing = (key, argument) -> failingCalls.incrementAndGet() > 1 ? null : 7;
+                assertEquals(7, (int)bc.get(2, null, failing));
+
+                // Values that were put() have nothing to reload
+                bc.put(3, 42);
+
+                now.set(CacheManager.HOUR / 5);
+                bc.get(1);
+                bc.get(2);
+                bc.get(3);
+
+                waitFor(() -> cache.getStats().refreshes.get() + cache.getStats().refresh_failures.get() >= 2);
+
+                assertEquals(1, cache.getStats().refreshes.get());
+                assertEquals(1, cache.getStats().refresh_failures.get());
+                assertEquals(0, defaultCalls.get());
+                assertTrue(bc.get(1) > 101);
+                assertEquals("Failed refresh should keep the stale value", 7, (int)bc.get(2));
+                assertEquals(42, (int)bc.get(3));
+            }
+            finally
+            {
+                cache.close();
+            }
+        }
+
+        private static void await(CountDownLatch latch)
+        {
+            try
+            {
+                assertTrue("Timed out waiting for test to release the loader", latch.await(30, TimeUnit.SECONDS));
+            }
+            catch (InterruptedException x)
+            {
+                throw new RuntimeException(x);
+            }
+        }
+
+        // Background refreshes finish on another thread; wait (with a generous limit) for the expected outcome
+        private static void waitFor(BooleanSupplier condition) throws InterruptedException
+        {
+            long end = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+            while (!condition.getAsBoolean())
+            {
+                assertTrue("Timed out waiting for background refresh", System.currentTimeMillis() < end);
+                Thread.sleep(10);
+            }
+        }
     }
 }
@@ -48,6 +48,14 @@ public interface Cache<K, V>
      */
     int removeUsingFilter(Filter<K> filter);
 
+    /**
+     * Re-estimate the size of the value held at key after it was filled in or changed in place (e.g., by BlockingCache,
+     * which caches a Wrapper before loading its value), so byte limits see the real size.
+     */
+    default void reweigh(@NotNull K key)
+    {
+    }
+
     class StringPrefixFilter implements Filter<String>
     {
         private final String _prefix;
@@ -62,6 +70,11 @@ public interface Cache<K, V>
         {
             return s.startsWith(_prefix);
         }
+
+        public String getPrefix()
+        {
+            return _prefix;
+        }
     }
 
     Set<K> getKeys();
@@ -20,7 +20,12 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.Nullable;
 import org.labkey.api.cache.ehcache.EhCacheProvider;
+import org.labkey.api.cache.twolevel.InProcessInvalidationTransport;
+import org.labkey.api.cache.twolevel.InvalidationTransport;
+import org.labkey.api.cache.twolevel.PostgresInvalidationTransport;
+import org.labkey.api.cache.twolevel.TwoLevelCacheProvider;
 import org.labkey.api.collections.CollectionUtils;
+import org.labkey.api.data.DbScope;
 import org.labkey.api.mbean.LabKeyManagement;
 
 import java.util.ArrayList;
@@ -58,7 +63,16 @@ public class CacheManager
     // Set useCache = false to completely disable all caching... and slow your server to a near halt. Possibly useful for
     // reproducing CacheLoader re-entrancy problems, but not much else.
     private static final boolean useCache = true;
-    private static final CacheProvider PROVIDER = useCache ? EhCacheProvider.getInstance() : new NoopCacheProvider();
+    // Set -Dlabkey.cache.invalidation=postgres on every node of a multi-server deployment to broadcast cache removals
+    // between nodes (see TwoLevelCacheProvider). "inprocess" selects a transport that doesn't leave this JVM.
+    private static final String INVALIDATION_PROPERTY = "labkey.cache.invalidation";
+    private static final @Nullable TwoLevelCacheProvider TWO_LEVEL_PROVIDER = useCache && null != System.getProperty(INVALIDATION_PROPERTY) ? new TwoLevelCacheProvider(EhCacheProvider.getInstance(), null) : null;
+    private static final CacheProvider PROVIDER = useCache ? (null != TWO_LEVEL_PROVIDER ? TWO_LEVEL_PROVIDER : EhCacheProvider.getInstance()) : new NoopCacheProvider();
+
+    // Limit on the estimated bytes held by all weighed caches together (those created with a CacheWeigher). Defaults to
+    // a quarter of the max heap; set -Dlabkey.cache.memoryBudgetMB to override, or to 0 for no limit.
+    private static final String MEMORY_BUDGET_PROPERTY = "labkey.cache.memoryBudgetMB";
+    private static final WeightTracker.Budget MEMORY_BUDGET = new WeightTracker.Budget(getMemoryBudgetSetting());
 
     private static final List<TrackingCache> KNOWN_CACHES = new LinkedList<>();
 
@@ -67,9 +81,30 @@ public class CacheManager
     /** Indicates that we should not time out values in the cache */
     public static final int UNLIMITED = 0;
 
-    private static <K, V> TrackingCache<K, V> createCache(int limit, long defaultTimeToLive, String debugName)
+    private static long getMemoryBudgetSetting()
+    {
+        String setting = System.getProperty(MEMORY_BUDGET_PROPERTY);
+
+        if (null != setting)
+        {
+            try
+            {
+                return Long.parseLong(setting) * 1024 * 1024;
+            }
+            catch (NumberFormatException e)
+            {
+                LOG.error("Invalid " + MEMORY_BUDGET_PROPERTY + " setting: \"" + setting + "\"; using the default");
+            }
+        }
+
+        long maxMemory = Runtime.getRuntime().maxMemory();
+        return Long.MAX_VALUE == maxMemory ? UNLIMITED : maxMemory / 4;
+    }
+
+    // Caches without a weigher aren't weighed at all and don't count against the memory budget
+    private static <K, V> TrackingCache<K, V> createCache(int limit, long maxBytes, long defaultTimeToLive, String debugName, @Nullable CacheWeigher<K, ? super V> weigher)
     {
-        CacheWrapper<K, V> cache = new CacheWrapper<>(PROVIDER.getSimpleCache(debugName, limit, defaultTimeToLive, UNLIMITED, false), debugName, null);
+        CacheWrapper<K, V> cache = new CacheWrapper<>(PROVIDER.getSimpleCache(debugName, limit, defaultTimeToLive, UNLIMITED, false), debugName, null, (CacheWeigher<K, Object>)weigher, maxBytes, MEMORY_BUDGET);
         addToKnownCaches(cache);  // Permanent cache -- hold onto it
         LabKeyManagement.register(cache.createDynamicMBean(), "Cache", debugName);
         return cache;
@@ -77,12 +112,24 @@ public class CacheManager
 
     public static <K, V> TrackingCache<K, V> getCache(int limit, long defaultTimeToLive, String debugName)
     {
-        return createCache(limit, defaultTimeToLive, debugName);
+        return createCache(limit, UNLIMITED, defaultTimeToLive, debugName, null);
+    }
+
+    /**
+     * Creates a cache whose entries are weighed, so it's bounded by estimated size as well as entry count and counts
+     * against the global cache memory budget. Other caches aren't weighed.
+     *
+     * @param maxBytes  Maximum estimated bytes to hold in this cache, or CacheManager.UNLIMITED
+     * @param weigher   Estimates the bytes used by each entry
+     */
+    public static <K, V> TrackingCache<K, V> getCache(int limit, long maxBytes, long defaultTimeToLive, String debugName, @NotNull CacheWeigher<K, V> weigher)
+    {
+        return createCache(limit, maxBytes, defaultTimeToLive, debugName, weigher);
     }
 
     public static <V> Cache<String, V> getStringKeyCache(int limit, long defaultTimeToLive, String debugName)
     {
-        return CacheManager.createCache(limit, defaultTimeToLive, debugName);
+        return CacheManager.createCache(limit, UNLIMITED, defaultTimeToLive, debugName, null);
     }
 
     public static <K, V> BlockingCache<K, V> getBlockingCache(int limit, long defaultTimeToLive, String debugName, @Nullable CacheLoader<K, V> loader)
@@ -91,6 +138,12 @@ public class CacheManager
         return new BlockingCache<>(cache, loader);
     }
 
+    public static <K, V> BlockingCache<K, V> getBlockingCache(int limit, long maxBytes, long defaultTimeToLive, String debugName, @NotNull CacheWeigher<K, V> weigher, @Nullable CacheLoader<K, V> loader)
+    {
+        TrackingCache<K, Wrapper<V>> cache = getCache(limit, maxBytes, defaultTimeToLive, debugName, CacheWeigher.forWrapper(weigher));
+        return new BlockingCache<>(cache, loader);
+    }
+
     public static <V> BlockingCache<String, V> getBlockingStringKeyCache(int limit, long defaultTimeToLive, String debugName, @Nullable CacheLoader<String, V> loader)
     {
         Cache<String, Wrapper<V>> cache = getStringKeyCache(limit, defaultTimeToLive, debugName);
@@ -157,7 +210,7 @@ public class CacheManager
 
     public static CacheStats getCacheStats(TrackingCache cache)
     {
-        return new CacheStats(cache.getDebugName(), cache.getCreationStackTrace(), cache.getStats(), cache.size(), cache.getLimit());
+        return new CacheStats(cache.getDebugName(), cache.getCreationStackTrace(), cache.getStats(), cache.size(), cache.getLimit(), cache.isWeighed() ? cache.getEstimatedBytes() : null, cache.getMaxBytes());
     }
 
     public static CacheStats getTransactionCacheStats(TrackingCache cache)
@@ -165,6 +218,41 @@ public class CacheManager
         return new CacheStats(cache.getDebugName(), cache.getCreationStackTrace(), cache.getTransactionStats(), cache.size(), cache.getLimit());
     }
 
+    /**
+     * Connect the cache provider to the invalidation transport configured via the labkey.cache.invalidation system
+     * property, if any. Called once the database is available; until then, removals aren't broadcast.
+     */
+    public static void startInvalidationTransport()
+    {
+        if (null == TWO_LEVEL_PROVIDER)
+            return;
+
+        String type = System.getProperty(INVALIDATION_PROPERTY);
+        InvalidationTransport transport = switch (type)
+        {
+            case "postgres" -> new PostgresInvalidationTransport(DbScope.getLabKeyScope());
+            case "inprocess" -> new InProcessInvalidationTransport.Hub().connect();
+            default -> null;
+        };
+
+        if (null == transport)
+            LOG.error("Unknown " + INVALIDATION_PROPERTY + " setting: \"" + type + "\". Cache removals will not be broadcast to other nodes.");
+        else
+            TWO_LEVEL_PROVIDER.setTransport(transport);
+    }
+
+    /** Estimated bytes held by all weighed caches */
+    public static long getEstimatedBytes()
+    {
+        return MEMORY_BUDGET.getEstimatedBytes();
+    }
+
+    /** Limit on getEstimatedBytes(), or UNLIMITED */
+    public static long getMemoryBudget()
+    {
+        return MEMORY_BUDGET.getLimit();
+    }
+
     public static void shutdown()
     {
         PROVIDER.shutdown();
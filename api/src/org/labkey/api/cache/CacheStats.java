@@ -29,17 +29,31 @@ public class CacheStats implements Comparable<CacheStats>
     private final long _expirations;
     private final long _removes;
     private final long _clears;
+    private final long _evictions;
     private final long _size;
     private final long _maxSize;
     private final int _limit;
+    private final @Nullable Long _estimatedBytes;
+    private final long _maxBytes;
+    private final long _refreshes;
+    private final long _refreshFailures;
+    private final long _refreshNanos;
+    private final long _maxRefreshNanos;
 
 
     public CacheStats(String description, @Nullable StackTraceElement[] stackTrace, Stats stats, int size, int limit)
     {
-        this(description, stackTrace, stats.gets.get(), stats.misses.get(), stats.puts.get(), stats.expirations.get(), stats.removes.get(), stats.clears.get(), size, stats.max_size.get(), limit);
+        this(description, stackTrace, stats, size, limit, null, CacheManager.UNLIMITED);
     }
 
-    private CacheStats(String description, @Nullable StackTraceElement[] stackTrace, long gets, long misses, long puts, long expirations, long removes, long clears, long size, long maxSize, int limit)
+    public CacheStats(String description, @Nullable StackTraceElement[] stackTrace, Stats stats, int size, int limit, @Nullable Long estimatedBytes, long maxBytes)
+    {
+        this(description, stackTrace, stats.gets.get(), stats.misses.get(), stats.puts.get(), stats.expirations.get(), stats.removes.get(), stats.clears.get(), stats.evictions.get(), size, stats.max_size.get(), limit, estimatedBytes, maxBytes,
+            stats.refreshes.get(), stats.refresh_failures.get(), stats.refresh_nanos.get(), stats.max_refresh_nanos.get());
+    }
+
+    private CacheStats(String description, @Nullable StackTraceElement[] stackTrace, long gets, long misses, long puts, long expirations, long removes, long clears, long evictions, long size, long maxSize, int limit, @Nullable Long estimatedBytes, long maxBytes,
+                       long refreshes, long refreshFailures, long refreshNanos, long maxRefreshNanos)
     {
         _description = description;
         _stackTrace = stackTrace;
@@ -49,9 +63,16 @@ public class CacheStats implements Comparable<CacheStats>
         _expirations = expirations;
         _removes = removes;
         _clears = clears;
+        _evictions = evictions;
         _size = size;
         _maxSize = maxSize;
         _limit = limit;
+        _estimatedBytes = estimatedBytes;
+        _maxBytes = maxBytes;
+        _refreshes = refreshes;
+        _refreshFailures = refreshFailures;
+        _refreshNanos = refreshNanos;
+        _maxRefreshNanos = maxRefreshNanos;
     }
 
     public String getDescription()
@@ -113,6 +134,47 @@ public class CacheStats implements Comparable<CacheStats>
         return _expirations;
     }
 
+    /** Entries discarded to keep this cache under its byte limit or the global cache memory budget */
+    public long getEvictions()
+    {
+        return _evictions;
+    }
+
+    /** Estimated heap used by the entries, or null if the cache isn't weighed (see CacheManager.getCache(int, long, long, String, CacheWeigher)) */
+    public @Nullable Long getEstimatedBytes()
+    {
+        return _estimatedBytes;
+    }
+
+    public Long getMaxBytes()
+    {
+        if (CacheManager.UNLIMITED == _maxBytes)
+            return null;
+
+        return _maxBytes;
+    }
+
+    /** Background reloads completed by refresh-ahead (see BlockingCache.setRefreshAhead()) */
+    public long getRefreshes()
+    {
+        return _refreshes;
+    }
+
+    public long getRefreshFailures()
+    {
+        return _refreshFailures;
+    }
+
+    public double getAverageRefreshMillis()
+    {
+        return 0 != _refreshes ? _refreshNanos / (_refreshes * 1_000_000.0) : 0;
+    }
+
+    public double getMaxRefreshMillis()
+    {
+        return _maxRefreshNanos / 1_000_000.0;
+    }
+
     public double getMissRatio()
     {
         long gets = getGets();
@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) 2021 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.api.cache;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Estimates the heap used by a cache entry, in bytes. Caches opt in to weighing by passing one to CacheManager; the
+ * estimates enforce the cache's byte limit and the global cache memory budget, and are reported on the admin console.
+ * Called on every put, so it should be cheap, but it should know the values it weighs (see SizeEstimator.Sized).
+ */
+@FunctionalInterface
+public interface CacheWeigher<K, V>
+{
+    long weigh(@NotNull K key, @NotNull V value);
+
+    /** Adapts a weigher of values to the Wrappers that BlockingCache stores, charging nothing for values still loading */
+    static <K, V> CacheWeigher<K, Wrapper<V>> forWrapper(CacheWeigher<K, V> weigher)
+    {
+        return (key, wrapper) -> {
+            Object value = wrapper.value;
+            return 24 + (value == BlockingCache.UNINITIALIZED || null == value ? 0 : weigher.weigh(key, (V) value));
+        };
+    }
+}
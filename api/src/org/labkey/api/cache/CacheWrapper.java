@@ -44,10 +44,18 @@ class CacheWrapper<K, V> implements TrackingCache<K, V>, CacheMXBean
     private final Stats _stats;
     private final Stats _transactionStats;
     private final @Nullable StackTraceElement[] _stackTrace;
+    private final @Nullable WeightTracker<K> _weights;
     private final V _nullMarker = (V)NULL_MARKER;
 
 
     CacheWrapper(@NotNull SimpleCache<K, V> cache, @NotNull String debugName, @Nullable Stats stats)
+    {
+        this(cache, debugName, stats, null, CacheManager.UNLIMITED, null);
+    }
+
+
+    // A non-null weigher turns on byte accounting, enforcing maxBytes and the global budget (if provided)
+    CacheWrapper(@NotNull SimpleCache<K, V> cache, @NotNull String debugName, @Nullable Stats stats, @Nullable CacheWeigher<K, Object> weigher, long maxBytes, @Nullable WeightTracker.Budget budget)
     {
         _cache = cache;
         assert StringUtils.isNotBlank(debugName);
@@ -55,6 +63,18 @@ class CacheWrapper<K, V> implements TrackingCache<K, V>, CacheMXBean
         _stats = (null != stats ? stats : new Stats());
         _transactionStats = new Stats();
         _stackTrace = MiniProfiler.getTroubleshootingStackTrace();
+
+        if (null != weigher)
+        {
+            // Custom weighers don't expect our null marker
+            CacheWeigher<K, Object> markerAware = (key, value) -> value == NULL_MARKER ? 16 : weigher.weigh(key, value);
+            _weights = new WeightTracker<>(debugName, cache.getLimit(), maxBytes, markerAware, this::evict, budget);
+            _cache.setEvictionListener(_weights::onRemove);
+        }
+        else
+        {
+            _weights = null;
+        }
     }
 
 
@@ -68,6 +88,9 @@ class CacheWrapper<K, V> implements TrackingCache<K, V>, CacheMXBean
 
             _cache.put(key, value);
             trackPut(value);
+
+            if (null != _weights)
+                _weights.onPut(key, value);
         }
         catch (IllegalStateException ise)
         {
@@ -87,6 +110,9 @@ class CacheWrapper<K, V> implements TrackingCache<K, V>, CacheMXBean
 
             _cache.put(key, value, timeToLive);
             trackPut(value);
+
+            if (null != _weights)
+                _weights.onPut(key, value);
         }
         catch (IllegalStateException ise)
         {
@@ -110,6 +136,9 @@ class CacheWrapper<K, V> implements TrackingCache<K, V>, CacheMXBean
         {
             V v = trackGet(_cache.get(key));
 
+            if (null != _weights)
+                trackWeight(key, v);
+
             if (null != v)
             {
                 v = (v == _nullMarker ? null : v);
@@ -138,6 +167,9 @@ class CacheWrapper<K, V> implements TrackingCache<K, V>, CacheMXBean
         {
             _cache.remove(key);
             trackRemove();
+
+            if (null != _weights)
+                _weights.onRemove(key);
         }
         catch (IllegalStateException ise)
         {
@@ -151,7 +183,28 @@ class CacheWrapper<K, V> implements TrackingCache<K, V>, CacheMXBean
     @Override
     public int removeUsingFilter(Filter<K> kFilter)
     {
-        return trackRemoves(_cache.removeUsingFilter(kFilter));
+        if (null == _weights)
+            return trackRemoves(_cache.removeUsingFilter(kFilter));
+
+        return trackRemoves(_cache.removeUsingFilter(key -> {
+            if (!kFilter.accept(key))
+                return false;
+            _weights.onRemove(key);
+            return true;
+        }));
+    }
+
+
+    @Override
+    public void reweigh(@NotNull K key)
+    {
+        if (null != _weights && _weights.isTracked(key))
+        {
+            V value = _cache.get(key);
+
+            if (null != value)
+                _weights.onPut(key, value);
+        }
     }
 
 
@@ -166,6 +219,9 @@ class CacheWrapper<K, V> implements TrackingCache<K, V>, CacheMXBean
     {
         _cache.clear();
         trackClear();
+
+        if (null != _weights)
+            _weights.onClear();
     }
 
 
@@ -190,10 +246,34 @@ class CacheWrapper<K, V> implements TrackingCache<K, V>, CacheMXBean
     }
 
 
+    @Override
+    public boolean isWeighed()
+    {
+        return null != _weights;
+    }
+
+
+    @Override
+    public long getEstimatedBytes()
+    {
+        return null != _weights ? _weights.getEstimatedBytes() : 0;
+    }
+
+
+    @Override
+    public long getMaxBytes()
+    {
+        return null != _weights ? _weights.getMaxBytes() : CacheManager.UNLIMITED;
+    }
+
+
     @Override
     public void close()
     {
         _cache.close();
+
+        if (null != _weights)
+            _weights.close();
     }
 
 
@@ -266,6 +346,24 @@ class CacheWrapper<K, V> implements TrackingCache<K, V>, CacheMXBean
         _stats.expirations.incrementAndGet();
     }
 
+    // Count the access for eviction decisions and keep the byte accounting in step with entries the provider added or
+    // dropped without our seeing a put() or remove() (e.g., loaded from a shared tier, or evicted before we were told)
+    private void trackWeight(K key, @Nullable V value)
+    {
+        _weights.recordAccess(key);
+
+        if (null == value)
+            _weights.onRemove(key);
+        else if (!_weights.isTracked(key))
+            _weights.onPut(key, value);
+    }
+
+    private void evict(K key)
+    {
+        _cache.evict(key);
+        _stats.evictions.incrementAndGet();
+    }
+
     private void trackRemove()
     {
         _stats.removes.incrementAndGet();
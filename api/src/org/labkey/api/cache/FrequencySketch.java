@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2021 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.api.cache;
+
+/**
+ * Approximate access counts for cache keys, as used by TinyLFU admission: a count-min sketch of four rows of saturating
+ * counters (max 15) that are all halved once the number of recorded accesses reaches ten times the width, so old
+ * popularity fades. Updates aren't synchronized; lost increments only make the counts a little more approximate.
+ */
+class FrequencySketch
+{
+    private static final int ROWS = 4;
+    private static final int MAX_COUNT = 15;
+    private static final int[] SEEDS = {0x97cb3127, 0xb7f5a4c1, 0x4f39c653, 0xe2b95b6d};
+
+    private final byte[][] _counters;
+    private final int _mask;
+    private final int _resetThreshold;
+    private int _additions = 0;
+
+    FrequencySketch(int expectedEntries)
+    {
+        int width = Integer.highestOneBit(Math.max(256, Math.min(expectedEntries, 1 << 16)) - 1) << 1;
+        _counters = new byte[ROWS][width];
+        _mask = width - 1;
+        _resetThreshold = 10 * width;
+    }
+
+    private int index(int hash, int row)
+    {
+        int h = hash * SEEDS[row];
+        h ^= h >>> 16;
+        return h & _mask;
+    }
+
+    void increment(Object key)
+    {
+        int hash = key.hashCode();
+        boolean added = false;
+
+        for (int row = 0; row < ROWS; row++)
+        {
+            int i = index(hash, row);
+            if (_counters[row][i] < MAX_COUNT)
+            {
+                _counters[row][i]++;
+                added = true;
+            }
+        }
+
+        if (added && ++_additions >= _resetThreshold)
+            reset();
+    }
+
+    int frequency(Object key)
+    {
+        int hash = key.hashCode();
+        int min = MAX_COUNT;
+
+        for (int row = 0; row < ROWS; row++)
+            min = Math.min(min, _counters[row][index(hash, row)]);
+
+        return min;
+    }
+
+    private synchronized void reset()
+    {
+        for (byte[] row : _counters)
+            for (int i = 0; i < row.length; i++)
+                row[i] = (byte)(row[i] >>> 1);
+
+        _additions = 0;
+    }
+}
@@ -19,6 +19,7 @@ import org.jetbrains.annotations.Nullable;
 import org.labkey.api.util.Filter;
 
 import java.util.Set;
+import java.util.function.Consumer;
 
 /**
  * User: adam
@@ -39,6 +40,23 @@ public interface SimpleCache<K, V>
 
     void remove(K key);
 
+    /**
+     * Discard an entry to free memory. Unlike remove(), this doesn't imply the value is stale, so implementations that
+     * propagate removals (e.g., to other servers) shouldn't propagate evictions.
+     */
+    default void evict(K key)
+    {
+        remove(key);
+    }
+
+    /**
+     * Register a listener to be told the key of each entry the provider discards on its own (e.g., LRU eviction or
+     * expiration), so callers can keep per-entry bookkeeping in sync. Providers that can't report this may ignore it.
+     */
+    default void setEvictionListener(Consumer<K> listener)
+    {
+    }
+
     /**
      * Removes every element in the cache where filter.accept(K key) evaluates to true.
      * Returns the number of elements that were removed.
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2021 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.api.cache;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Cheap, approximate heap size estimates, for CacheWeighers to use on the parts of a value they don't size themselves.
+ * This doesn't walk object graphs; strings, boxed primitives, arrays, collections and maps are sized (sampling large
+ * ones) and everything else gets a flat per-object charge, so it's only a good estimate for values made of those.
+ * Values that know their own footprint (e.g., CachedResultSet) should implement Sized.
+ */
+public class SizeEstimator
+{
+    /** Implemented by objects that can estimate their own heap footprint more accurately than the generic rules */
+    public interface Sized
+    {
+        long getEstimatedBytes();
+    }
+
+    /** Charge for objects we can't look inside */
+    public static final long OBJECT_BYTES = 64;
+
+    private static final int MAX_DEPTH = 3;
+    private static final int SAMPLE_SIZE = 64;
+
+    public static long estimate(@Nullable Object o)
+    {
+        return estimate(o, 0);
+    }
+
+    private static long estimate(@Nullable Object o, int depth)
+    {
+        if (null == o)
+            return 0;
+        if (o instanceof Sized)
+            return ((Sized) o).getEstimatedBytes();
+        if (o instanceof String)
+            return 40 + ((String) o).length();
+        if (o instanceof Integer || o instanceof Short || o instanceof Byte || o instanceof Boolean || o instanceof Character || o instanceof Float)
+            return 16;
+        if (o instanceof Long || o instanceof Double)
+            return 24;
+        if (o instanceof BigDecimal || o instanceof Date)
+            return 48;
+        if (o instanceof Wrapper)
+            return 24 + (((Wrapper<?>) o).value == BlockingCache.UNINITIALIZED ? 0 : estimate(((Wrapper<?>) o).value, depth));
+        if (o instanceof byte[])
+            return 16 + ((byte[]) o).length;
+        if (o instanceof char[])
+            return 16 + 2L * ((char[]) o).length;
+        if (o instanceof int[])
+            return 16 + 4L * ((int[]) o).length;
+        if (o instanceof long[])
+            return 16 + 8L * ((long[]) o).length;
+        if (o instanceof double[])
+            return 16 + 8L * ((double[]) o).length;
+
+        if (depth >= MAX_DEPTH)
+            return OBJECT_BYTES;
+
+        if (o instanceof Object[])
+        {
+            Object[] array = (Object[]) o;
+            return 16 + 4L * array.length + estimateElements(Arrays.asList(array).iterator(), array.length, depth + 1);
+        }
+        if (o instanceof Collection)
+        {
+            Collection<?> collection = (Collection<?>) o;
+            // Hash-based sets carry an entry object per element; lists just a reference
+            long perElement = o instanceof Set ? 36 : 4;
+            return 48 + perElement * collection.size() + estimateElements(collection.iterator(), collection.size(), depth + 1);
+        }
+        if (o instanceof Map)
+        {
+            Map<?, ?> map = (Map<?, ?>) o;
+            return 64 + 36L * map.size() + estimateElements(map.keySet().iterator(), map.size(), depth + 1) + estimateElements(map.values().iterator(), map.size(), depth + 1);
+        }
+
+        return OBJECT_BYTES;
+    }
+
+    // Size the first SAMPLE_SIZE elements and extrapolate to the rest
+    private static long estimateElements(Iterator<?> iter, int size, int depth)
+    {
+        long bytes = 0;
+        int sampled = 0;
+
+        try
+        {
+            while (sampled < SAMPLE_SIZE && iter.hasNext())
+            {
+                bytes += estimate(iter.next(), depth);
+                sampled++;
+            }
+        }
+        catch (ConcurrentModificationException e)
+        {
+            // Someone's modifying a cached collection; extrapolate from what we've seen
+        }
+
+        return sampled == 0 || sampled == size ? bytes : bytes * size / sampled;
+    }
+}
@@ -30,5 +30,10 @@ public class Stats
     public final AtomicLong expirations = new AtomicLong(0);
     public final AtomicLong removes = new AtomicLong(0);
     public final AtomicLong clears = new AtomicLong(0);
+    public final AtomicLong evictions = new AtomicLong(0);
+    public final AtomicLong refreshes = new AtomicLong(0);
+    public final AtomicLong refresh_failures = new AtomicLong(0);
+    public final AtomicLong refresh_nanos = new AtomicLong(0);
+    public final AtomicLong max_refresh_nanos = new AtomicLong(0);
     public final AtomicLong max_size = new AtomicLong(0);
 }
@@ -42,4 +42,13 @@ public interface Tracking
     int size();
 
     long getDefaultExpires();
+
+    // Whether entries are weighed (the cache was created with a CacheWeigher). Unweighed caches report 0 estimated bytes.
+    boolean isWeighed();
+
+    // Estimated heap used by the entries in the cache, in bytes
+    long getEstimatedBytes();
+
+    // Maximum estimated bytes allowed in the cache, or CacheManager.UNLIMITED
+    long getMaxBytes();
 }
@@ -114,6 +114,15 @@ public class TransactionCache<K, V> implements Cache<K, V>
         return _privateCache.removeUsingFilter(filter);
     }
 
+    @Override
+    public void reweigh(@NotNull K key)
+    {
+        if (_hasWritten)
+            _privateCache.reweigh(key);
+        else
+            _sharedCache.reweigh(key);
+    }
+
     @Override
     public Set<K> getKeys()
     {
@@ -0,0 +1,395 @@
+/*
+ * Copyright (c) 2021 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.api.cache;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Keeps an estimated byte count for each entry of one cache and evicts entries when the cache exceeds its own byte limit
+ * or when all caches together exceed the global Budget. Victims are sampled with a clock hand over the tracked keys and
+ * the least frequently used one (per a TinyLFU FrequencySketch) is evicted. A newly loaded entry that's used less often
+ * than the victim it would displace is itself rejected instead, so one-off loads don't flush popular entries.
+ *
+ * Estimates are approximate: they come from a CacheWeigher, and entries the provider drops on its own are reconciled
+ * via eviction notifications and misses.
+ */
+public class WeightTracker<K>
+{
+    private static final int SAMPLE_SIZE = 8;
+    // Sketch size for caches without an entry limit
+    private static final int DEFAULT_EXPECTED_ENTRIES = 10_000;
+
+    private final String _name;
+    private final long _maxBytes;
+    private final CacheWeigher<K, Object> _weigher;
+    private final Consumer<K> _evictor;
+    private final @Nullable Budget _budget;
+    private final Map<K, Long> _weights = new ConcurrentHashMap<>();
+    private final AtomicLong _bytes = new AtomicLong();
+    private final AtomicLong _evictions = new AtomicLong();
+    // Created up front so accesses before the first eviction count toward admission decisions
+    private final FrequencySketch _sketch;
+
+    private Iterator<K> _hand = null;
+
+    /** Estimated bytes across every tracked cache, with a limit */
+    public static class Budget
+    {
+        private final long _limit;
+        private final AtomicLong _total = new AtomicLong();
+        private final List<WeightTracker<?>> _members = new CopyOnWriteArrayList<>();
+
+        public Budget(long limit)
+        {
+            _limit = limit;
+        }
+
+        public long getLimit()
+        {
+            return _limit;
+        }
+
+        public long getEstimatedBytes()
+        {
+            return _total.get();
+        }
+
+        private boolean isOver()
+        {
+            return _limit != CacheManager.UNLIMITED && _total.get() > _limit;
+        }
+
+        // Take from the heaviest cache first, so one large cache can't starve all the others
+        private synchronized void enforce()
+        {
+            long target = lowWater(_limit);
+
+            while (_total.get() > target)
+            {
+                WeightTracker<?> heaviest = null;
+
+                for (WeightTracker<?> member : _members)
+                    if (null == heaviest || member.getEstimatedBytes() > heaviest.getEstimatedBytes())
+                        heaviest = member;
+
+                if (null == heaviest || 0 == heaviest.evict(_total.get() - target, null))
+                    break;
+            }
+        }
+    }
+
+    /**
+     * @param limit     The cache's entry limit, used to size the frequency sketch, or CacheManager.UNLIMITED
+     * @param maxBytes  Byte limit for this cache, or CacheManager.UNLIMITED
+     * @param evictor   Discards a key from the underlying cache
+     */
+    WeightTracker(String name, int limit, long maxBytes, CacheWeigher<K, Object> weigher, Consumer<K> evictor, @Nullable Budget budget)
+    {
+        _name = name;
+        _maxBytes = maxBytes;
+        _weigher = weigher;
+        _evictor = evictor;
+        _budget = budget;
+        _sketch = new FrequencySketch(limit != CacheManager.UNLIMITED ? limit : DEFAULT_EXPECTED_ENTRIES);
+
+        if (null != _budget)
+            _budget._members.add(this);
+    }
+
+    private static long lowWater(long limit)
+    {
+        // Free a little extra so we're not evicting on every put once full
+        return limit - limit / 20;
+    }
+
+    public long getEstimatedBytes()
+    {
+        return _bytes.get();
+    }
+
+    public long getMaxBytes()
+    {
+        return _maxBytes;
+    }
+
+    public long getEvictions()
+    {
+        return _evictions.get();
+    }
+
+    void recordAccess(@NotNull K key)
+    {
+        _sketch.increment(key);
+    }
+
+    /** Record the weight of a new or replaced value, then evict if we're over a limit */
+    void onPut(@NotNull K key, @NotNull Object value)
+    {
+        long weight = _weigher.weigh(key, value);
+        Long previous = _weights.put(key, weight);
+        adjust(weight - (null == previous ? 0 : previous));
+
+        if (isOver())
+        {
+            synchronized (this)
+            {
+                if (isOver())
+                    evict(_bytes.get() - lowWater(_maxBytes), key);
+            }
+        }
+
+        if (null != _budget && _budget.isOver())
+            _budget.enforce();
+    }
+
+    void onRemove(@NotNull K key)
+    {
+        Long previous = _weights.remove(key);
+        if (null != previous)
+            adjust(-previous);
+    }
+
+    boolean isTracked(@NotNull K key)
+    {
+        return _weights.containsKey(key);
+    }
+
+    void onClear()
+    {
+        for (K key : new ArrayList<>(_weights.keySet()))
+            onRemove(key);
+    }
+
+    void close()
+    {
+        onClear();
+        if (null != _budget)
+            _budget._members.remove(this);
+    }
+
+    private void adjust(long delta)
+    {
+        _bytes.addAndGet(delta);
+        if (null != _budget)
+            _budget._total.addAndGet(delta);
+    }
+
+    private boolean isOver()
+    {
+        return _maxBytes != CacheManager.UNLIMITED && _bytes.get() > _maxBytes;
+    }
+
+    /**
+     * Evict entries until at least bytesToFree have been released or nothing's left. If candidate is the entry that was
+     * just added, it's protected from sampling but is rejected if it's used less often than the first victim.
+     * Returns the number of bytes freed.
+     */
+    private synchronized long evict(long bytesToFree, @Nullable K candidate)
+    {
+        FrequencySketch sketch = _sketch;
+        long freed = 0;
+
+        while (freed < bytesToFree)
+        {
+            K victim = sampleVictim(sketch, candidate);
+
+            if (null != candidate)
+            {
+                K rejected = null == victim || sketch.frequency(candidate) >= sketch.frequency(victim) ? null : candidate;
+                candidate = null;
+
+                if (null != rejected)
+                {
+                    freed += evictKey(rejected);
+                    continue;
+                }
+            }
+
+            if (null == victim)
+                break;
+
+            freed += evictKey(victim);
+        }
+
+        return freed;
+    }
+
+    private long evictKey(K key)
+    {
+        Long weight = _weights.get(key);
+        onRemove(key);
+        _evictor.accept(key);
+        _evictions.incrementAndGet();
+        return null == weight ? 0 : weight;
+    }
+
+    // Look at the next few keys under the clock hand and pick the least frequently used, breaking ties by size
+    private @Nullable K sampleVictim(FrequencySketch sketch, @Nullable K exclude)
+    {
+        K best = null;
+        int bestFrequency = Integer.MAX_VALUE;
+        long bestWeight = -1;
+        boolean wrapped = false;
+
+        for (int i = 0; i < SAMPLE_SIZE; i++)
+        {
+            if (null == _hand || !_hand.hasNext())
+            {
+                if (wrapped)
+                    break;
+                _hand = _weights.keySet().iterator();
+                wrapped = true;
+                if (!_hand.hasNext())
+                    break;
+            }
+
+            K key = _hand.next();
+            Long weight = _weights.get(key);
+
+            if (key.equals(exclude) || null == weight)
+                continue;
+
+            int frequency = sketch.frequency(key);
+
+            if (frequency < bestFrequency || (frequency == bestFrequency && weight > bestWeight))
+            {
+                best = key;
+                bestFrequency = frequency;
+                bestWeight = weight;
+            }
+        }
+
+        return best;
+    }
+
+    @Override
+    public String toString()
+    {
+        return _name + ": " + _bytes.get() + " bytes";
+    }
+
+    public static class TestCase extends Assert
+    {
+        private final Map<String, String> _cache = new ConcurrentHashMap<>();
+
+        private WeightTracker<String> createTracker(long maxBytes, @Nullable Budget budget)
+        {
+            // Weigh values by their length to keep the arithmetic obvious
+            return new WeightTracker<>("test", 100, maxBytes, (k, v) -> ((String) v).length(), _cache::remove, budget);
+        }
+
+        private void put(WeightTracker<String> tracker, String key, String value)
+        {
+            _cache.put(key, value);
+            tracker.onPut(key, value);
+        }
+
+        @Test
+        public void testAccounting()
+        {
+            _cache.clear();
+            WeightTracker<String> tracker = createTracker(CacheManager.UNLIMITED, null);
+            put(tracker, "a", "12345");
+            put(tracker, "b", "123");
+            assertEquals(8, tracker.getEstimatedBytes());
+
+            put(tracker, "a", "1");
+            assertEquals("Replacing a value should adjust, not add", 4, tracker.getEstimatedBytes());
+
+            tracker.onRemove("b");
+            assertEquals(1, tracker.getEstimatedBytes());
+            tracker.onClear();
+            assertEquals(0, tracker.getEstimatedBytes());
+        }
+
+        @Test
+        public void testByteLimit()
+        {
+            _cache.clear();
+            WeightTracker<String> tracker = createTracker(100, null);
+
+            for (int i = 0; i < 50; i++)
+                put(tracker, "key" + i, "0123456789");
+
+            assertTrue("Should stay under the byte limit: " + tracker.getEstimatedBytes(), tracker.getEstimatedBytes() <= 100);
+            assertTrue(tracker.getEvictions() > 0);
+            assertEquals(tracker._weights.keySet(), _cache.keySet());
+        }
+
+        @Test
+        public void testAccessesCountBeforeEviction()
+        {
+            _cache.clear();
+            WeightTracker<String> tracker = createTracker(CacheManager.UNLIMITED, null);
+            for (int i = 0; i < 3; i++)
+                tracker.recordAccess("a");
+
+            assertEquals(0, tracker.getEvictions());
+            assertEquals(3, tracker._sketch.frequency("a"));
+        }
+
+        @Test
+        public void testFrequentEntriesSurvive()
+        {
+            _cache.clear();
+            WeightTracker<String> tracker = createTracker(100, null);
+            put(tracker, "popular", "0123456789");
+
+            for (int i = 0; i < 200; i++)
+            {
+                tracker.recordAccess("popular");
+                tracker.recordAccess("oneoff" + i);
+                put(tracker, "oneoff" + i, "0123456789");
+            }
+
+            assertTrue("Popular entry should not be displaced by one-off loads", _cache.containsKey("popular"));
+        }
+
+        @Test
+        public void testBudget()
+        {
+            _cache.clear();
+            Budget budget = new Budget(200);
+            WeightTracker<String> small = createTracker(CacheManager.UNLIMITED, budget);
+            WeightTracker<String> large = createTracker(CacheManager.UNLIMITED, budget);
+
+            put(small, "s", "0123456789");
+
+            for (int i = 0; i < 100; i++)
+                put(large, "large" + i, "0123456789");
+
+            assertTrue("Budget exceeded: " + budget.getEstimatedBytes(), budget.getEstimatedBytes() <= 200);
+            assertEquals(small.getEstimatedBytes() + large.getEstimatedBytes(), budget.getEstimatedBytes());
+            assertTrue("Heaviest cache should be trimmed first", _cache.containsKey("s"));
+
+            small.close();
+            large.close();
+            assertEquals(0, budget.getEstimatedBytes());
+        }
+    }
+}
@@ -30,6 +30,12 @@ public class Wrapper<V>
     // weak reference, because I'm paranoid of accidentally holding onto threads
     protected WeakReference<Thread> loadingThread;
 
+    // Refresh-ahead bookkeeping, used by BlockingCache
+    Long timeToLive = null;           // TTL this wrapper was cached with, or null for the cache's default
+    long refreshAt = Long.MAX_VALUE;  // When a background reload should be started
+    boolean refreshing = false;       // A background reload is queued or running
+    CacheLoader<?, V> loader = null;  // Loader that produced the current value, or null if it can't be refreshed
+
     Object getLockObject()
     {
         return this;
@@ -16,7 +16,9 @@
 package org.labkey.api.cache.ehcache;
 
 import net.sf.ehcache.Cache;
+import net.sf.ehcache.Ehcache;
 import net.sf.ehcache.Element;
+import net.sf.ehcache.event.CacheEventListenerAdapter;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
@@ -28,6 +30,7 @@ import org.labkey.api.util.Filter;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.function.Consumer;
 
 /**
 * User: adam
@@ -73,6 +76,25 @@ class EhSimpleCache<K, V> implements SimpleCache<K, V>
         _cache.remove(key);
     }
 
+    @Override
+    public void setEvictionListener(Consumer<K> listener)
+    {
+        _cache.getCacheEventNotificationService().registerListener(new CacheEventListenerAdapter()
+        {
+            @Override
+            public void notifyElementExpired(Ehcache cache, Element element)
+            {
+                listener.accept((K)element.getObjectKey());
+            }
+
+            @Override
+            public void notifyElementEvicted(Ehcache cache, Element element)
+            {
+                listener.accept((K)element.getObjectKey());
+            }
+        });
+    }
+
     @Override
     public int removeUsingFilter(Filter<K> filter)
     {
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2021 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.api.cache.twolevel;
+
+import org.labkey.api.util.GUID;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Delivers messages synchronously to every transport connected to the same Hub. Lets tests simulate several nodes in
+ * one JVM; a single-node server can also use it, in which case messages simply go nowhere.
+ */
+public class InProcessInvalidationTransport implements InvalidationTransport
+{
+    private final Hub _hub;
+    private final String _nodeId;
+    private volatile Consumer<InvalidationMessage> _listener = m -> {};
+
+    public static class Hub
+    {
+        private final List<InProcessInvalidationTransport> _transports = new CopyOnWriteArrayList<>();
+
+        public InProcessInvalidationTransport connect()
+        {
+            return new InProcessInvalidationTransport(this);
+        }
+
+        private void send(InvalidationMessage message)
+        {
+            for (InProcessInvalidationTransport transport : _transports)
+                transport._listener.accept(message);
+        }
+    }
+
+    private InProcessInvalidationTransport(Hub hub)
+    {
+        _hub = hub;
+        _nodeId = GUID.makeGUID();
+    }
+
+    @Override
+    public String getNodeId()
+    {
+        return _nodeId;
+    }
+
+    @Override
+    public void publish(InvalidationMessage message)
+    {
+        _hub.send(message);
+    }
+
+    @Override
+    public void setListener(Consumer<InvalidationMessage> listener)
+    {
+        _listener = listener;
+    }
+
+    @Override
+    public void start()
+    {
+        _hub._transports.add(this);
+    }
+
+    @Override
+    public void shutdown()
+    {
+        _hub._transports.remove(this);
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2021 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.api.cache.twolevel;
+
+import org.jetbrains.annotations.Nullable;
+import org.labkey.api.cache.CacheManager;
+import org.labkey.api.util.Filter;
+import org.labkey.api.util.HeartBeat;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * SharedCacheStore backed by maps in this JVM. Used by tests to stand in for a real shared tier; values are held by
+ * reference, so no serialization is required.
+ */
+public class InProcessSharedCacheStore implements SharedCacheStore
+{
+    private final Map<String, Map<Object, Entry>> _caches = new ConcurrentHashMap<>();
+
+    private static class Entry
+    {
+        private final Object _value;
+        private final long _expires;
+
+        private Entry(Object value, long expires)
+        {
+            _value = value;
+            _expires = expires;
+        }
+    }
+
+    private Map<Object, Entry> getMap(String cacheName)
+    {
+        return _caches.computeIfAbsent(cacheName, name -> new ConcurrentHashMap<>());
+    }
+
+    @Override
+    public @Nullable Object get(String cacheName, Object key)
+    {
+        Map<Object, Entry> map = getMap(cacheName);
+        Entry entry = map.get(key);
+        if (null == entry)
+            return null;
+        if (entry._expires != CacheManager.UNLIMITED && entry._expires < HeartBeat.currentTimeMillis())
+        {
+            map.remove(key, entry);
+            return null;
+        }
+        return entry._value;
+    }
+
+    @Override
+    public void put(String cacheName, Object key, Object value, long timeToLive)
+    {
+        long expires = timeToLive == CacheManager.UNLIMITED ? CacheManager.UNLIMITED : HeartBeat.currentTimeMillis() + timeToLive;
+        getMap(cacheName).put(key, new Entry(value, expires));
+    }
+
+    @Override
+    public void remove(String cacheName, Object key)
+    {
+        getMap(cacheName).remove(key);
+    }
+
+    @Override
+    public void removeUsingFilter(String cacheName, Filter<Object> filter)
+    {
+        getMap(cacheName).keySet().removeIf(filter::accept);
+    }
+
+    @Override
+    public void clear(String cacheName)
+    {
+        getMap(cacheName).clear();
+    }
+}
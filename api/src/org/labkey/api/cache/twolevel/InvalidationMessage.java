@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2021 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.api.cache.twolevel;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Tells other nodes to discard one key, or all keys, of a named cache. Keys travel as their toString() value.
+ */
+public class InvalidationMessage
+{
+    public enum Type
+    {
+        REMOVE,
+        REMOVE_PREFIX,
+        CLEAR
+    }
+
+    private static final char SEPARATOR = '\t';
+
+    private final String _origin;
+    private final String _cacheName;
+    private final Type _type;
+    private final @Nullable String _key;
+
+    private InvalidationMessage(String origin, String cacheName, Type type, @Nullable String key)
+    {
+        _origin = origin;
+        _cacheName = cacheName;
+        _type = type;
+        _key = key;
+    }
+
+    public static InvalidationMessage remove(String origin, String cacheName, Object key)
+    {
+        return new InvalidationMessage(origin, cacheName, Type.REMOVE, String.valueOf(key));
+    }
+
+    /** Remove every String key that starts with prefix */
+    public static InvalidationMessage removePrefix(String origin, String cacheName, String prefix)
+    {
+        return new InvalidationMessage(origin, cacheName, Type.REMOVE_PREFIX, prefix);
+    }
+
+    public static InvalidationMessage clear(String origin, String cacheName)
+    {
+        return new InvalidationMessage(origin, cacheName, Type.CLEAR, null);
+    }
+
+    /** Id of the node that sent this message */
+    public String getOrigin()
+    {
+        return _origin;
+    }
+
+    public String getCacheName()
+    {
+        return _cacheName;
+    }
+
+    public Type getType()
+    {
+        return _type;
+    }
+
+    public @Nullable String getKey()
+    {
+        return _key;
+    }
+
+    /** Compact text form, for transports that carry strings */
+    public String encode()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append(_origin).append(SEPARATOR).append(_type.name()).append(SEPARATOR).append(_cacheName);
+        if (null != _key)
+            sb.append(SEPARATOR).append(_key);
+        return sb.toString();
+    }
+
+    /** Parse the output of encode(), or return null if the text isn't a valid message */
+    public static @Nullable InvalidationMessage decode(@NotNull String text)
+    {
+        // The key is last and may itself contain the separator
+        String[] parts = text.split(String.valueOf(SEPARATOR), 4);
+        if (parts.length < 3)
+            return null;
+
+        try
+        {
+            Type type = Type.valueOf(parts[1]);
+            if (type == Type.CLEAR)
+                return new InvalidationMessage(parts[0], parts[2], type, null);
+            if (parts.length < 4)
+                return null;
+            return new InvalidationMessage(parts[0], parts[2], type, parts[3]);
+        }
+        catch (IllegalArgumentException x)
+        {
+            return null;
+        }
+    }
+
+    /** A CLEAR of the same cache, to use when a message would be too large for the transport */
+    public InvalidationMessage asClear()
+    {
+        return clear(_origin, _cacheName);
+    }
+
+    @Override
+    public String toString()
+    {
+        return _type + " " + _cacheName + (null == _key ? "" : " " + _key) + " from " + _origin;
+    }
+}
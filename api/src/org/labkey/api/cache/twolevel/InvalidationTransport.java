@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) 2021 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.api.cache.twolevel;
+
+import java.util.function.Consumer;
+
+/**
+ * Broadcasts cache invalidation messages between the nodes of a multi-server deployment. Implementations must be
+ * thread-safe. Delivery is best effort; a node that misses messages (e.g., after a lost connection) should be told via
+ * the listener with a CLEAR message for each cache, which TwoLevelCacheProvider treats as "clear everything" when the
+ * cache name is ALL_CACHES.
+ */
+public interface InvalidationTransport
+{
+    /** Cache name that means every cache */
+    String ALL_CACHES = "*";
+
+    /** Unique id of this node, used to ignore our own messages */
+    String getNodeId();
+
+    /** Send a message to all other nodes. Transports that support it deliver only if the current transaction commits. */
+    void publish(InvalidationMessage message);
+
+    /** Called, on an arbitrary thread, for each message received from any node (including, possibly, this one) */
+    void setListener(Consumer<InvalidationMessage> listener);
+
+    void start();
+
+    void shutdown();
+}
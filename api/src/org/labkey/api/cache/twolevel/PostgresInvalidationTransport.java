@@ -0,0 +1,291 @@
+/*
+ * Copyright (c) 2021 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.api.cache.twolevel;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.labkey.api.data.DbScope;
+import org.labkey.api.data.SQLFragment;
+import org.labkey.api.data.SqlExecutor;
+import org.labkey.api.util.ContextListener;
+import org.labkey.api.util.GUID;
+import org.labkey.api.util.JobRunner;
+import org.labkey.api.util.ShutdownListener;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Broadcasts invalidations with PostgreSQL LISTEN/NOTIFY. Publishing doesn't touch the database: messages published
+ * inside a transaction are collected and queued when it commits (and dropped if it rolls back), others are queued
+ * right away. A single sender thread drains the queue, dropping duplicates and sending up to NOTIFY_BATCH_SIZE
+ * pg_notify() calls per statement, so a burst of removes costs a few round trips on one thread instead of one on each
+ * caller. Each node holds one unpooled connection that LISTENs on the channel and is polled by a daemon thread; if that
+ * connection is lost, the thread reconnects and tells the listener to clear every cache, since messages may have been
+ * missed in the meantime.
+ */
+public class PostgresInvalidationTransport implements InvalidationTransport
+{
+    private static final Logger LOG = LogManager.getLogger(PostgresInvalidationTransport.class);
+
+    public static final String CHANNEL = "labkey_cache";
+    // NOTIFY payloads must be shorter than 8000 bytes
+    private static final int MAX_PAYLOAD_BYTES = 7900;
+    private static final int POLL_TIMEOUT_MS = 500;
+    private static final int RECONNECT_DELAY_MS = 5000;
+    private static final int NOTIFY_BATCH_SIZE = 100;
+
+    private final DbScope _scope;
+    private final String _nodeId = GUID.makeGUID();
+    private final JobRunner _sender = new JobRunner("Cache invalidation sender", 1);
+    private volatile Consumer<InvalidationMessage> _listener = m -> {};
+    private ListenerThread _thread = null;
+
+    // Guarded by _outbound
+    private final Set<String> _outbound = new LinkedHashSet<>();
+    private boolean _flushScheduled = false;
+
+    public PostgresInvalidationTransport(DbScope scope)
+    {
+        if (!scope.getSqlDialect().isPostgreSQL())
+            throw new IllegalArgumentException("LISTEN/NOTIFY cache invalidation requires a PostgreSQL data source: " + scope.getDisplayName());
+        _scope = scope;
+    }
+
+    @Override
+    public String getNodeId()
+    {
+        return _nodeId;
+    }
+
+    @Override
+    public void publish(InvalidationMessage message)
+    {
+        String payload = message.encode();
+        if (payload.getBytes(StandardCharsets.UTF_8).length > MAX_PAYLOAD_BYTES)
+            payload = message.asClear().encode();
+
+        DbScope.Transaction transaction = _scope.getCurrentTransaction();
+        if (null != transaction)
+            transaction.addCommitTask(new TransactionMessages(), DbScope.CommitTaskOption.POSTCOMMIT)._payloads.add(payload);
+        else
+            enqueue(List.of(payload));
+    }
+
+    private void enqueue(Collection<String> payloads)
+    {
+        synchronized (_outbound)
+        {
+            _outbound.addAll(payloads);
+            if (_flushScheduled)
+                return;
+            _flushScheduled = true;
+        }
+        _sender.execute(this::flush);
+    }
+
+    private void flush()
+    {
+        List<String> payloads;
+        synchronized (_outbound)
+        {
+            payloads = new ArrayList<>(_outbound);
+            _outbound.clear();
+            _flushScheduled = false;
+        }
+
+        for (int i = 0; i < payloads.size(); i += NOTIFY_BATCH_SIZE)
+        {
+            SQLFragment sql = new SQLFragment("SELECT ");
+            String sep = "";
+            for (String payload : payloads.subList(i, Math.min(payloads.size(), i + NOTIFY_BATCH_SIZE)))
+            {
+                sql.append(sep).append("pg_notify(?, ?)").add(CHANNEL).add(payload);
+                sep = ", ";
+            }
+
+            try
+            {
+                new SqlExecutor(_scope).execute(sql);
+            }
+            catch (RuntimeException e)
+            {
+                // Other nodes will be stale until their entries expire
+                LOG.error("Failed to publish " + Math.min(NOTIFY_BATCH_SIZE, payloads.size() - i) + " cache invalidations", e);
+            }
+        }
+    }
+
+    // One per transaction (all instances are equal), so its messages are queued together when the transaction commits
+    private class TransactionMessages implements Runnable
+    {
+        private final Set<String> _payloads = new LinkedHashSet<>();
+
+        @Override
+        public void run()
+        {
+            enqueue(_payloads);
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            return o instanceof TransactionMessages && ((TransactionMessages) o).getTransport() == getTransport();
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return System.identityHashCode(getTransport());
+        }
+
+        private PostgresInvalidationTransport getTransport()
+        {
+            return PostgresInvalidationTransport.this;
+        }
+    }
+
+    @Override
+    public void setListener(Consumer<InvalidationMessage> listener)
+    {
+        _listener = listener;
+    }
+
+    @Override
+    public synchronized void start()
+    {
+        if (null == _thread)
+        {
+            _thread = new ListenerThread();
+            _thread.start();
+        }
+    }
+
+    @Override
+    public synchronized void shutdown()
+    {
+        if (null != _thread)
+        {
+            _thread.shutdownPre();
+            _thread = null;
+        }
+        _sender.shutdown();
+    }
+
+    private class ListenerThread extends Thread implements ShutdownListener
+    {
+        private volatile boolean _shutdown = false;
+
+        ListenerThread()
+        {
+            setDaemon(true);
+            setName(getClass().getSimpleName());
+            ContextListener.addShutdownListener(this);
+        }
+
+        @Override
+        public void run()
+        {
+            boolean connectedBefore = false;
+
+            while (!_shutdown)
+            {
+                try (Connection conn = _scope.getUnpooledConnection())
+                {
+                    PGConnection pg = conn.unwrap(PGConnection.class);
+
+                    try (Statement stmt = conn.createStatement())
+                    {
+                        stmt.execute("LISTEN " + CHANNEL);
+                    }
+
+                    // Anything sent while we weren't listening is lost
+                    if (connectedBefore)
+                        deliver(InvalidationMessage.clear(_nodeId + "-reconnect", ALL_CACHES));
+                    connectedBefore = true;
+
+                    while (!_shutdown)
+                    {
+                        PGNotification[] notifications = pg.getNotifications(POLL_TIMEOUT_MS);
+
+                        if (null != notifications)
+                        {
+                            for (PGNotification notification : notifications)
+                            {
+                                InvalidationMessage message = InvalidationMessage.decode(notification.getParameter());
+
+                                if (null != message)
+                                    deliver(message);
+                                else
+                                    LOG.warn("Ignoring invalid cache invalidation message: " + notification.getParameter());
+                            }
+                        }
+                    }
+                }
+                catch (SQLException e)
+                {
+                    if (_shutdown)
+                        break;
+
+                    LOG.warn("Cache invalidation listener lost its connection; reconnecting", e);
+
+                    try
+                    {
+                        Thread.sleep(RECONNECT_DELAY_MS);
+                    }
+                    catch (InterruptedException x)
+                    {
+                        LOG.debug(getName() + " interrupted");
+                    }
+                }
+            }
+        }
+
+        private void deliver(InvalidationMessage message)
+        {
+            try
+            {
+                _listener.accept(message);
+            }
+            catch (RuntimeException e)
+            {
+                LOG.error("Error applying cache invalidation: " + message, e);
+            }
+        }
+
+        @Override
+        public void shutdownPre()
+        {
+            _shutdown = true;
+            interrupt();
+        }
+
+        @Override
+        public void shutdownStarted()
+        {
+        }
+    }
+}
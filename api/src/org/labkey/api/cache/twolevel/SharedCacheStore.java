@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) 2021 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.api.cache.twolevel;
+
+import org.jetbrains.annotations.Nullable;
+import org.labkey.api.util.Filter;
+
+/**
+ * The L2 tier of a TwoLevelCacheProvider: a store shared by every node, partitioned by cache name. A node that misses
+ * in its local (L1) cache checks here before invoking its loader. Implementations must be thread-safe. Stores that live
+ * outside the JVM will need keys and values that can be serialized.
+ */
+public interface SharedCacheStore
+{
+    @Nullable Object get(String cacheName, Object key);
+
+    /**
+     * @param timeToLive  TTL in milliseconds, or CacheManager.UNLIMITED
+     */
+    void put(String cacheName, Object key, Object value, long timeToLive);
+
+    void remove(String cacheName, Object key);
+
+    void removeUsingFilter(String cacheName, Filter<Object> filter);
+
+    void clear(String cacheName);
+}
@@ -0,0 +1,474 @@
+/*
+ * Copyright (c) 2021 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.api.cache.twolevel;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.labkey.api.cache.Cache;
+import org.labkey.api.cache.CacheManager;
+import org.labkey.api.cache.CacheProvider;
+import org.labkey.api.cache.CacheType;
+import org.labkey.api.cache.SimpleCache;
+import org.labkey.api.cache.ehcache.EhCacheProvider;
+import org.labkey.api.util.Filter;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * CacheProvider for multi-node deployments. Each permanent cache has a local L1 tier (from the wrapped provider, usually
+ * Ehcache) and an optional L2 tier shared by all nodes. Removes and clears are applied locally and broadcast through an
+ * InvalidationTransport, so other nodes discard just the affected keys instead of clearing every cache.
+ *
+ * Only invalidations are broadcast, never puts. A put is a load of the current value, and code that changes the data
+ * behind a cached value removes its key (or clears the cache), which is what tells the other nodes. Temporary caches
+ * (e.g., transaction caches) are never shared.
+ *
+ * Until a transport is set, caches behave like plain L1 (+ L2) caches. Keys are matched across nodes by toString(), so
+ * distributed caches need keys with stable string forms.
+ */
+public class TwoLevelCacheProvider implements CacheProvider
+{
+    private static final Logger LOG = LogManager.getLogger(TwoLevelCacheProvider.class);
+
+    private final CacheProvider _local;
+    private final @Nullable SharedCacheStore _shared;
+    private final Map<String, List<TwoLevelCache<?, ?>>> _caches = new ConcurrentHashMap<>();
+    private volatile @Nullable InvalidationTransport _transport = null;
+
+    public TwoLevelCacheProvider(CacheProvider local, @Nullable SharedCacheStore shared)
+    {
+        _local = local;
+        _shared = shared;
+    }
+
+    @Override
+    public <K, V> SimpleCache<K, V> getSimpleCache(String debugName, int limit, long defaultTimeToLive, long defaultTimeToIdle, boolean temporary)
+    {
+        SimpleCache<K, V> l1 = _local.getSimpleCache(debugName, limit, defaultTimeToLive, defaultTimeToIdle, temporary);
+
+        if (temporary)
+            return l1;
+
+        TwoLevelCache<K, V> cache = new TwoLevelCache<>(debugName, l1);
+        _caches.computeIfAbsent(debugName, name -> new CopyOnWriteArrayList<>()).add(cache);
+        return cache;
+    }
+
+    /** Start broadcasting and receiving invalidations. Replaces (and shuts down) any previous transport. */
+    public void setTransport(@Nullable InvalidationTransport transport)
+    {
+        InvalidationTransport previous = _transport;
+        if (null != previous)
+            previous.shutdown();
+
+        if (null != transport)
+        {
+            transport.setListener(this::receive);
+            transport.start();
+            LOG.info("Cache invalidation transport started: " + transport.getClass().getSimpleName() + ", node " + transport.getNodeId());
+        }
+
+        _transport = transport;
+    }
+
+    public @Nullable InvalidationTransport getTransport()
+    {
+        return _transport;
+    }
+
+    @Override
+    public void shutdown()
+    {
+        setTransport(null);
+        _local.shutdown();
+    }
+
+    private void publish(InvalidationMessage message)
+    {
+        InvalidationTransport transport = _transport;
+
+        if (null != transport)
+        {
+            try
+            {
+                transport.publish(message);
+            }
+            catch (RuntimeException e)
+            {
+                // Don't fail the operation that modified the data; other nodes will be stale until their entries expire
+                LOG.error("Failed to publish cache invalidation: " + message, e);
+            }
+        }
+    }
+
+    private @Nullable String getNodeId()
+    {
+        InvalidationTransport transport = _transport;
+        return null != transport ? transport.getNodeId() : null;
+    }
+
+    // Messages from other nodes touch only L1; the sender has already updated the shared tier
+    void receive(InvalidationMessage message)
+    {
+        if (message.getOrigin().equals(getNodeId()))
+            return;
+
+        LOG.debug("Received " + message);
+
+        if (InvalidationTransport.ALL_CACHES.equals(message.getCacheName()))
+        {
+            _caches.values().forEach(list -> list.forEach(TwoLevelCache::clearLocal));
+            return;
+        }
+
+        List<TwoLevelCache<?, ?>> caches = _caches.get(message.getCacheName());
+
+        if (null != caches)
+        {
+            for (TwoLevelCache<?, ?> cache : caches)
+            {
+                switch (message.getType())
+                {
+                    case REMOVE -> cache.removeLocal(message.getKey());
+                    case REMOVE_PREFIX -> cache.removeLocalByPrefix(message.getKey());
+                    case CLEAR -> cache.clearLocal();
+                }
+            }
+        }
+    }
+
+    private class TwoLevelCache<K, V> implements SimpleCache<K, V>
+    {
+        private final String _name;
+        private final SimpleCache<K, V> _l1;
+        // Lets us skip scanning keys when a remove arrives for a cache with String keys (the common case)
+        private volatile boolean _nonStringKeys = false;
+
+        private TwoLevelCache(String name, SimpleCache<K, V> l1)
+        {
+            _name = name;
+            _l1 = l1;
+        }
+
+        private void noteKey(K key)
+        {
+            if (!_nonStringKeys && !(key instanceof String))
+                _nonStringKeys = true;
+        }
+
+        @Override
+        public void put(K key, V value)
+        {
+            put(key, value, _l1.getDefaultExpires());
+        }
+
+        @Override
+        public void put(K key, V value, long timeToLive)
+        {
+            noteKey(key);
+            _l1.put(key, value, timeToLive);
+
+            if (null != _shared)
+                _shared.put(_name, key, value, timeToLive);
+        }
+
+        @Override
+        public @Nullable V get(K key)
+        {
+            V value = _l1.get(key);
+
+            if (null == value && null != _shared)
+            {
+                value = (V)_shared.get(_name, key);
+
+                if (null != value)
+                {
+                    noteKey(key);
+                    _l1.put(key, value);
+                }
+            }
+
+            return value;
+        }
+
+        @Override
+        public void remove(K key)
+        {
+            _l1.remove(key);
+
+            if (null != _shared)
+                _shared.remove(_name, key);
+
+            publish(InvalidationMessage.remove(getNodeId(), _name, key));
+        }
+
+        // Freeing memory on this node doesn't make the value stale anywhere else
+        @Override
+        public void evict(K key)
+        {
+            _l1.remove(key);
+        }
+
+        @Override
+        public void setEvictionListener(Consumer<K> listener)
+        {
+            _l1.setEvictionListener(listener);
+        }
+
+        @Override
+        public int removeUsingFilter(Filter<K> filter)
+        {
+            int count = _l1.removeUsingFilter(filter);
+
+            if (null != _shared)
+                _shared.removeUsingFilter(_name, (Filter<Object>)filter);
+
+            // A prefix can be applied remotely; an arbitrary filter can't, so the other nodes clear the whole cache
+            if (filter instanceof Cache.StringPrefixFilter)
+                publish(InvalidationMessage.removePrefix(getNodeId(), _name, ((Cache.StringPrefixFilter) filter).getPrefix()));
+            else
+                publish(InvalidationMessage.clear(getNodeId(), _name));
+
+            return count;
+        }
+
+        @Override
+        public Set<K> getKeys()
+        {
+            return _l1.getKeys();
+        }
+
+        @Override
+        public void clear()
+        {
+            _l1.clear();
+
+            if (null != _shared)
+                _shared.clear(_name);
+
+            publish(InvalidationMessage.clear(getNodeId(), _name));
+        }
+
+        private void removeLocal(String key)
+        {
+            _l1.remove((K)key);
+
+            if (_nonStringKeys)
+                _l1.removeUsingFilter(k -> key.equals(String.valueOf(k)));
+        }
+
+        private void removeLocalByPrefix(String prefix)
+        {
+            _l1.removeUsingFilter(k -> k instanceof String && ((String) k).startsWith(prefix));
+        }
+
+        private void clearLocal()
+        {
+            _l1.clear();
+        }
+
+        @Override
+        public int getLimit()
+        {
+            return _l1.getLimit();
+        }
+
+        @Override
+        public int size()
+        {
+            return _l1.size();
+        }
+
+        @Override
+        public boolean isEmpty()
+        {
+            return _l1.isEmpty();
+        }
+
+        @Override
+        public long getDefaultExpires()
+        {
+            return _l1.getDefaultExpires();
+        }
+
+        @Override
+        public void close()
+        {
+            List<TwoLevelCache<?, ?>> caches = _caches.get(_name);
+            if (null != caches)
+                caches.remove(this);
+            _l1.close();
+        }
+
+        @Override
+        public CacheType getCacheType()
+        {
+            return _l1.getCacheType();
+        }
+
+        @Override
+        public void log()
+        {
+            _l1.log();
+        }
+    }
+
+    public static class TestCase extends Assert
+    {
+        private InProcessInvalidationTransport.Hub _hub;
+        private SharedCacheStore _store;
+        private TwoLevelCacheProvider _node1;
+        private TwoLevelCacheProvider _node2;
+        private SimpleCache<String, String> _cache1;
+        private SimpleCache<String, String> _cache2;
+
+        @Before
+        public void setUp()
+        {
+            _hub = new InProcessInvalidationTransport.Hub();
+            _store = new InProcessSharedCacheStore();
+            _node1 = createNode();
+            _node2 = createNode();
+            _cache1 = _node1.getSimpleCache("TwoLevelTest", 100, CacheManager.UNLIMITED, CacheManager.UNLIMITED, false);
+            _cache2 = _node2.getSimpleCache("TwoLevelTest", 100, CacheManager.UNLIMITED, CacheManager.UNLIMITED, false);
+        }
+
+        private TwoLevelCacheProvider createNode()
+        {
+            TwoLevelCacheProvider node = new TwoLevelCacheProvider(EhCacheProvider.getInstance(), _store);
+            node.setTransport(_hub.connect());
+            return node;
+        }
+
+        @After
+        public void tearDown()
+        {
+            _cache1.close();
+            _cache2.close();
+            // Don't shut down the nodes; that would shut down the shared Ehcache manager
+            _node1.setTransport(null);
+            _node2.setTransport(null);
+        }
+
+        @Test
+        public void testSharedTier()
+        {
+            _cache1.put("a", "1");
+            assertEquals("1", _cache2.get("a"));
+            assertEquals("Value should have been copied into node 2's L1", 1, _cache2.size());
+        }
+
+        @Test
+        public void testRemove()
+        {
+            _cache1.put("a", "1");
+            _cache1.put("b", "2");
+            assertEquals("1", _cache2.get("a"));
+            assertEquals("2", _cache2.get("b"));
+
+            _cache1.remove("a");
+            assertNull(_cache2.get("a"));
+            assertEquals("Other keys should stay warm", "2", _cache2.get("b"));
+        }
+
+        @Test
+        public void testReplace()
+        {
+            _cache1.put("a", "1");
+            assertEquals("1", _cache2.get("a"));
+
+            // Puts aren't broadcast; changing the value is a remove followed by a load
+            _cache1.put("a", "2");
+            assertEquals("1", _cache2.get("a"));
+
+            _cache1.remove("a");
+            _cache1.put("a", "2");
+            assertEquals("2", _cache2.get("a"));
+        }
+
+        @Test
+        public void testPrefixAndClear()
+        {
+            _cache1.put("child/1", "x");
+            _cache1.put("child/2", "y");
+            _cache1.put("container/1", "z");
+            assertEquals("x", _cache2.get("child/1"));
+            assertEquals("z", _cache2.get("container/1"));
+
+            _cache1.removeUsingFilter(new Cache.StringPrefixFilter("child/"));
+            assertNull(_cache2.get("child/1"));
+            assertNull(_cache2.get("child/2"));
+            assertEquals("z", _cache2.get("container/1"));
+
+            _cache2.clear();
+            assertEquals(0, _cache1.size());
+            assertNull(_cache1.get("container/1"));
+        }
+
+        @Test
+        public void testNonStringKeys()
+        {
+            SimpleCache<Integer, String> cache1 = _node1.getSimpleCache("TwoLevelIntTest", 100, CacheManager.UNLIMITED, CacheManager.UNLIMITED, false);
+            SimpleCache<Integer, String> cache2 = _node2.getSimpleCache("TwoLevelIntTest", 100, CacheManager.UNLIMITED, CacheManager.UNLIMITED, false);
+
+            try
+            {
+                cache1.put(1, "one");
+                cache1.put(2, "two");
+                assertEquals("one", cache2.get(1));
+                assertEquals("two", cache2.get(2));
+
+                cache1.remove(1);
+                assertNull(cache2.get(1));
+                assertEquals("two", cache2.get(2));
+            }
+            finally
+            {
+                cache1.close();
+                cache2.close();
+            }
+        }
+
+        @Test
+        public void testMessageEncoding()
+        {
+            InvalidationMessage message = InvalidationMessage.remove("node", "Containers", "key\twith\ttabs");
+            InvalidationMessage decoded = InvalidationMessage.decode(message.encode());
+            assertNotNull(decoded);
+            assertEquals(InvalidationMessage.Type.REMOVE, decoded.getType());
+            assertEquals("node", decoded.getOrigin());
+            assertEquals("Containers", decoded.getCacheName());
+            assertEquals("key\twith\ttabs", decoded.getKey());
+
+            decoded = InvalidationMessage.decode(InvalidationMessage.clear("node", "Containers").encode());
+            assertNotNull(decoded);
+            assertEquals(InvalidationMessage.Type.CLEAR, decoded.getType());
+            assertNull(decoded.getKey());
+
+            assertNull(InvalidationMessage.decode("garbage"));
+        }
+    }
+}
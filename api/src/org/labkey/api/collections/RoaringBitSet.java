@@ -0,0 +1,1258 @@
+/*
+ * Copyright (c) 2021 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.api.collections;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+
+/**
+ * A compressed set of non-negative ints, laid out like a Roaring bitmap. Values are partitioned by their high 16 bits
+ * into chunks of 65536, and each chunk is stored in whichever container suits its density: a sorted char[] for sparse
+ * chunks (up to 4096 values), a 1024-word bitmap for dense ones, or, once the set is sealed, runs of consecutive values
+ * when that's smaller still. Set operations work chunk by chunk and container against container, so intersecting or
+ * counting the overlap of two sets costs about as much as scanning the smaller one.
+ *
+ * Has the subset of the SparseBitSet API that MemberSet uses. Not thread-safe for modification; a sealed set is
+ * read-only and can be shared between threads.
+ */
+public class RoaringBitSet implements Cloneable
+{
+    private static final int ARRAY_MAX = 4096;
+    private static final int BITMAP_WORDS = 1024;
+
+    private char[] _keys;
+    private Chunk[] _chunks;
+    private int _size = 0;
+    private boolean _sealed = false;
+
+    public RoaringBitSet()
+    {
+        _keys = new char[4];
+        _chunks = new Chunk[4];
+    }
+
+    private RoaringBitSet(char[] keys, Chunk[] chunks, int size)
+    {
+        _keys = keys;
+        _chunks = chunks;
+        _size = size;
+    }
+
+    /** Compact each chunk into its smallest representation and make the set read-only */
+    public void seal()
+    {
+        // already sealed sets may be shared between threads, so don't touch them again
+        if (_sealed)
+            return;
+
+        for (int i = 0; i < _size; i++)
+            _chunks[i] = _chunks[i].optimize();
+
+        _keys = Arrays.copyOf(_keys, _size);
+        _chunks = Arrays.copyOf(_chunks, _size);
+        _sealed = true;
+    }
+
+    public boolean isSealed()
+    {
+        return _sealed;
+    }
+
+    private void checkModifiable()
+    {
+        if (_sealed)
+            throw new IllegalStateException("RoaringBitSet is sealed");
+    }
+
+    private static char high(int i)
+    {
+        if (i < 0)
+            throw new IndexOutOfBoundsException("i=" + i);
+        return (char)(i >>> 16);
+    }
+
+    private static char low(int i)
+    {
+        return (char)i;
+    }
+
+    // Index of key in _keys, or (-(insertion point) - 1) if it's not there
+    private int indexOf(char key)
+    {
+        return Arrays.binarySearch(_keys, 0, _size, key);
+    }
+
+    public void set(int i)
+    {
+        checkModifiable();
+        char key = high(i);
+        int index = indexOf(key);
+
+        if (index >= 0)
+        {
+            _chunks[index] = _chunks[index].add(low(i));
+        }
+        else
+        {
+            index = -index - 1;
+            insertChunk(index, key, new ArrayChunk());
+            _chunks[index] = _chunks[index].add(low(i));
+        }
+    }
+
+    public boolean get(int i)
+    {
+        int index = indexOf(high(i));
+        return index >= 0 && _chunks[index].contains(low(i));
+    }
+
+    public void clear(int i)
+    {
+        checkModifiable();
+        int index = indexOf(high(i));
+
+        if (index >= 0)
+        {
+            Chunk chunk = _chunks[index].remove(low(i));
+
+            if (0 == chunk.cardinality())
+                removeChunk(index);
+            else
+                _chunks[index] = chunk;
+        }
+    }
+
+    public void clear()
+    {
+        checkModifiable();
+        Arrays.fill(_chunks, 0, _size, null);
+        _size = 0;
+    }
+
+    public int cardinality()
+    {
+        int cardinality = 0;
+        for (int i = 0; i < _size; i++)
+            cardinality += _chunks[i].cardinality();
+        return cardinality;
+    }
+
+    public boolean isEmpty()
+    {
+        // Empty chunks are always removed
+        return 0 == _size;
+    }
+
+    /** Returns the first value >= i in the set, or -1 if there isn't one */
+    public int nextSetBit(int i)
+    {
+        char key = high(i);
+        int index = indexOf(key);
+        int from = low(i);
+
+        if (index < 0)
+        {
+            index = -index - 1;
+            from = 0;
+        }
+
+        for (; index < _size; index++, from = 0)
+        {
+            int next = _chunks[index].next(from);
+            if (next >= 0)
+                return (_keys[index] << 16) | next;
+        }
+
+        return -1;
+    }
+
+    /** Retain only the values that are also in other */
+    public void and(RoaringBitSet other)
+    {
+        checkModifiable();
+        int size = 0;
+        int i = 0;
+        int j = 0;
+
+        while (i < _size && j < other._size)
+        {
+            if (_keys[i] < other._keys[j])
+            {
+                i++;
+            }
+            else if (_keys[i] > other._keys[j])
+            {
+                j++;
+            }
+            else
+            {
+                Chunk chunk = and(_chunks[i], other._chunks[j]);
+
+                if (chunk.cardinality() > 0)
+                {
+                    _keys[size] = _keys[i];
+                    _chunks[size++] = chunk;
+                }
+
+                i++;
+                j++;
+            }
+        }
+
+        Arrays.fill(_chunks, size, _size, null);
+        _size = size;
+    }
+
+    /** Add all the values in other */
+    public void or(RoaringBitSet other)
+    {
+        checkModifiable();
+
+        for (int j = 0; j < other._size; j++)
+        {
+            int index = indexOf(other._keys[j]);
+
+            if (index >= 0)
+                _chunks[index] = or(_chunks[index], other._chunks[j]);
+            else
+                insertChunk(-index - 1, other._keys[j], other._chunks[j].copy());
+        }
+    }
+
+    public boolean intersects(RoaringBitSet other)
+    {
+        int i = 0;
+        int j = 0;
+
+        while (i < _size && j < other._size)
+        {
+            if (_keys[i] < other._keys[j])
+                i++;
+            else if (_keys[i] > other._keys[j])
+                j++;
+            else if (andCardinality(_chunks[i++], other._chunks[j++]) > 0)
+                return true;
+        }
+
+        return false;
+    }
+
+    /** Size of the intersection of a and b, without building it */
+    public static int andCardinality(RoaringBitSet a, RoaringBitSet b)
+    {
+        int count = 0;
+        int i = 0;
+        int j = 0;
+
+        while (i < a._size && j < b._size)
+        {
+            if (a._keys[i] < b._keys[j])
+                i++;
+            else if (a._keys[i] > b._keys[j])
+                j++;
+            else
+                count += andCardinality(a._chunks[i++], b._chunks[j++]);
+        }
+
+        return count;
+    }
+
+    /** Returns an unsealed deep copy */
+    @Override
+    public RoaringBitSet clone()
+    {
+        Chunk[] chunks = new Chunk[Math.max(4, _size)];
+        for (int i = 0; i < _size; i++)
+            chunks[i] = _chunks[i].copy();
+
+        return new RoaringBitSet(Arrays.copyOf(_keys, chunks.length), chunks, _size);
+    }
+
+    /** Approximate heap footprint, counted the same way as SparseBitSet.getMemorySizeInBytes() */
+    public long getMemorySizeInBytes()
+    {
+        long size = 8 + 8 + 8 + 4 + 1 + (16 + 2L * _keys.length) + (16 + 8L * _chunks.length);
+        for (int i = 0; i < _size; i++)
+            size += _chunks[i].getMemorySizeInBytes();
+        return size;
+    }
+
+    private static final byte ARRAY = 1;
+    private static final byte BITMAP = 2;
+    private static final byte RUN = 3;
+
+    /**
+     * Write the set in a compact binary form that readFrom() understands: the chunk count, then each chunk's key,
+     * container type, cardinality and contents. Containers are written as they are, so seal first for the smallest output.
+     */
+    public void writeTo(DataOutput out) throws IOException
+    {
+        out.writeInt(_size);
+        for (int i = 0; i < _size; i++)
+        {
+            Chunk chunk = _chunks[i];
+            out.writeChar(_keys[i]);
+
+            if (chunk instanceof ArrayChunk)
+            {
+                out.writeByte(ARRAY);
+                out.writeInt(chunk.cardinality());
+                char[] values = ((ArrayChunk)chunk)._values;
+                for (int v = 0; v < chunk.cardinality(); v++)
+                    out.writeChar(values[v]);
+            }
+            else if (chunk instanceof BitmapChunk)
+            {
+                out.writeByte(BITMAP);
+                out.writeInt(chunk.cardinality());
+                for (long word : ((BitmapChunk)chunk)._words)
+                    out.writeLong(word);
+            }
+            else
+            {
+                RunChunk run = (RunChunk)chunk;
+                out.writeByte(RUN);
+                out.writeInt(run._cardinality);
+                out.writeInt(run._count);
+                for (int r = 0; r < 2 * run._count; r++)
+                    out.writeChar(run._runs[r]);
+            }
+        }
+    }
+
+    /** Read a set written by writeTo(), starting at the buffer's position. The returned set is sealed. */
+    public static RoaringBitSet readFrom(ByteBuffer in)
+    {
+        int size = in.getInt();
+        char[] keys = new char[Math.max(4, size)];
+        Chunk[] chunks = new Chunk[keys.length];
+
+        for (int i = 0; i < size; i++)
+        {
+            keys[i] = in.getChar();
+            byte type = in.get();
+            int cardinality = in.getInt();
+
+            switch (type)
+            {
+                case ARRAY:
+                {
+                    char[] values = new char[cardinality];
+                    in.asCharBuffer().get(values);
+                    in.position(in.position() + 2 * cardinality);
+                    chunks[i] = new ArrayChunk(values, cardinality);
+                    break;
+                }
+                case BITMAP:
+                {
+                    long[] words = new long[BITMAP_WORDS];
+                    in.asLongBuffer().get(words);
+                    in.position(in.position() + 8 * BITMAP_WORDS);
+                    chunks[i] = new BitmapChunk(words, cardinality);
+                    break;
+                }
+                case RUN:
+                {
+                    int count = in.getInt();
+                    char[] runs = new char[2 * count];
+                    in.asCharBuffer().get(runs);
+                    in.position(in.position() + 4 * count);
+                    chunks[i] = new RunChunk(runs, count, cardinality);
+                    break;
+                }
+                default:
+                    throw new IllegalArgumentException("Unknown chunk type: " + type);
+            }
+        }
+
+        RoaringBitSet set = new RoaringBitSet(keys, chunks, size);
+        set._sealed = true;
+        return set;
+    }
+
+    private void insertChunk(int index, char key, Chunk chunk)
+    {
+        if (_size == _keys.length)
+        {
+            int capacity = Math.max(4, _size * 2);
+            _keys = Arrays.copyOf(_keys, capacity);
+            _chunks = Arrays.copyOf(_chunks, capacity);
+        }
+
+        System.arraycopy(_keys, index, _keys, index + 1, _size - index);
+        System.arraycopy(_chunks, index, _chunks, index + 1, _size - index);
+        _keys[index] = key;
+        _chunks[index] = chunk;
+        _size++;
+    }
+
+    private void removeChunk(int index)
+    {
+        System.arraycopy(_keys, index + 1, _keys, index, _size - index - 1);
+        System.arraycopy(_chunks, index + 1, _chunks, index, _size - index - 1);
+        _chunks[--_size] = null;
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder("{");
+        String sep = "";
+        for (int i = nextSetBit(0); i >= 0; i = nextSetBit(i + 1))
+        {
+            sb.append(sep).append(i);
+            sep = ", ";
+        }
+        return sb.append("}").toString();
+    }
+
+
+    /* Containers for the low 16 bits of each value in one chunk. Mutators return the container to use from then on, which
+       may be a different representation. */
+
+    private static abstract class Chunk
+    {
+        abstract int cardinality();
+        abstract boolean contains(char low);
+        abstract Chunk add(char low);
+        abstract Chunk remove(char low);
+        /** Smallest value >= from, or -1 */
+        abstract int next(int from);
+        abstract BitmapChunk toBitmap();
+        /** The most compact equivalent container */
+        abstract Chunk optimize();
+        abstract Chunk copy();
+        abstract long getMemorySizeInBytes();
+    }
+
+
+    private static final class ArrayChunk extends Chunk
+    {
+        private char[] _values;
+        private int _cardinality;
+
+        ArrayChunk()
+        {
+            this(new char[4], 0);
+        }
+
+        ArrayChunk(char[] values, int cardinality)
+        {
+            _values = values;
+            _cardinality = cardinality;
+        }
+
+        @Override
+        int cardinality()
+        {
+            return _cardinality;
+        }
+
+        @Override
+        boolean contains(char low)
+        {
+            return Arrays.binarySearch(_values, 0, _cardinality, low) >= 0;
+        }
+
+        @Override
+        Chunk add(char low)
+        {
+            int index = Arrays.binarySearch(_values, 0, _cardinality, low);
+            if (index >= 0)
+                return this;
+
+            if (_cardinality >= ARRAY_MAX)
+                return toBitmap().add(low);
+
+            index = -index - 1;
+            if (_cardinality == _values.length)
+                _values = Arrays.copyOf(_values, Math.min(ARRAY_MAX, _cardinality * 2));
+            System.arraycopy(_values, index, _values, index + 1, _cardinality - index);
+            _values[index] = low;
+            _cardinality++;
+            return this;
+        }
+
+        @Override
+        Chunk remove(char low)
+        {
+            int index = Arrays.binarySearch(_values, 0, _cardinality, low);
+            if (index >= 0)
+            {
+                System.arraycopy(_values, index + 1, _values, index, _cardinality - index - 1);
+                _cardinality--;
+            }
+            return this;
+        }
+
+        @Override
+        int next(int from)
+        {
+            int index = Arrays.binarySearch(_values, 0, _cardinality, (char)from);
+            if (index >= 0)
+                return from;
+            index = -index - 1;
+            return index < _cardinality ? _values[index] : -1;
+        }
+
+        @Override
+        BitmapChunk toBitmap()
+        {
+            long[] words = new long[BITMAP_WORDS];
+            for (int i = 0; i < _cardinality; i++)
+                words[_values[i] >>> 6] |= 1L << _values[i];
+            return new BitmapChunk(words, _cardinality);
+        }
+
+        @Override
+        Chunk optimize()
+        {
+            int runs = 0;
+            for (int i = 0; i < _cardinality; i++)
+                if (0 == i || _values[i] != _values[i - 1] + 1)
+                    runs++;
+
+            if (RunChunk.bytesFor(runs) < 2 * _cardinality)
+                return RunChunk.fromSorted(_values, _cardinality, runs);
+
+            return _values.length == _cardinality ? this : new ArrayChunk(Arrays.copyOf(_values, _cardinality), _cardinality);
+        }
+
+        @Override
+        Chunk copy()
+        {
+            return new ArrayChunk(Arrays.copyOf(_values, Math.max(4, _cardinality)), _cardinality);
+        }
+
+        @Override
+        long getMemorySizeInBytes()
+        {
+            return 8 + 8 + 4 + 16 + 2L * _values.length;
+        }
+    }
+
+
+    private static final class BitmapChunk extends Chunk
+    {
+        private final long[] _words;
+        private int _cardinality;
+
+        BitmapChunk(long[] words, int cardinality)
+        {
+            _words = words;
+            _cardinality = cardinality;
+        }
+
+        @Override
+        int cardinality()
+        {
+            return _cardinality;
+        }
+
+        @Override
+        boolean contains(char low)
+        {
+            return 0 != (_words[low >>> 6] & (1L << low));
+        }
+
+        @Override
+        Chunk add(char low)
+        {
+            long bit = 1L << low;
+            if (0 == (_words[low >>> 6] & bit))
+            {
+                _words[low >>> 6] |= bit;
+                _cardinality++;
+            }
+            return this;
+        }
+
+        @Override
+        Chunk remove(char low)
+        {
+            long bit = 1L << low;
+            if (0 != (_words[low >>> 6] & bit))
+            {
+                _words[low >>> 6] &= ~bit;
+                if (--_cardinality <= ARRAY_MAX)
+                    return toArray();
+            }
+            return this;
+        }
+
+        @Override
+        int next(int from)
+        {
+            int w = from >>> 6;
+            long word = _words[w] & (-1L << from);
+
+            while (0 == word)
+            {
+                if (++w == BITMAP_WORDS)
+                    return -1;
+                word = _words[w];
+            }
+
+            return (w << 6) + Long.numberOfTrailingZeros(word);
+        }
+
+        @Override
+        BitmapChunk toBitmap()
+        {
+            return this;
+        }
+
+        ArrayChunk toArray()
+        {
+            char[] values = new char[Math.max(4, _cardinality)];
+            int n = 0;
+            for (int w = 0; w < BITMAP_WORDS; w++)
+            {
+                for (long word = _words[w]; 0 != word; word &= word - 1)
+                    values[n++] = (char)((w << 6) + Long.numberOfTrailingZeros(word));
+            }
+            return new ArrayChunk(values, n);
+        }
+
+        @Override
+        Chunk optimize()
+        {
+            // A run starts at each set bit whose predecessor is clear
+            int runs = 0;
+            long carry = 0;
+            for (int w = 0; w < BITMAP_WORDS; w++)
+            {
+                long word = _words[w];
+                runs += Long.bitCount(word & ~((word << 1) | carry));
+                carry = word >>> 63;
+            }
+
+            int bytes = _cardinality <= ARRAY_MAX ? 2 * _cardinality : 8 * BITMAP_WORDS;
+            if (RunChunk.bytesFor(runs) < bytes)
+                return RunChunk.fromBitmap(_words, runs, _cardinality);
+
+            return _cardinality <= ARRAY_MAX ? toArray() : this;
+        }
+
+        @Override
+        Chunk copy()
+        {
+            return new BitmapChunk(_words.clone(), _cardinality);
+        }
+
+        @Override
+        long getMemorySizeInBytes()
+        {
+            return 8 + 8 + 4 + 16 + 8L * BITMAP_WORDS;
+        }
+
+        // Number of set bits from start to end, inclusive
+        int countRange(int start, int end)
+        {
+            int first = start >>> 6;
+            int last = end >>> 6;
+            long firstMask = -1L << start;
+            long lastMask = -1L >>> (63 - (end & 63));
+
+            if (first == last)
+                return Long.bitCount(_words[first] & firstMask & lastMask);
+
+            int count = Long.bitCount(_words[first] & firstMask);
+            for (int w = first + 1; w < last; w++)
+                count += Long.bitCount(_words[w]);
+            return count + Long.bitCount(_words[last] & lastMask);
+        }
+    }
+
+
+    /** Sorted, non-overlapping runs stored as (start, length - 1) pairs. Read-only; mutators convert first. */
+    private static final class RunChunk extends Chunk
+    {
+        private final char[] _runs;
+        private final int _count;
+        private final int _cardinality;
+
+        private RunChunk(char[] runs, int count, int cardinality)
+        {
+            _runs = runs;
+            _count = count;
+            _cardinality = cardinality;
+        }
+
+        static int bytesFor(int runs)
+        {
+            return 4 * runs;
+        }
+
+        static RunChunk fromSorted(char[] values, int cardinality, int runs)
+        {
+            char[] pairs = new char[2 * runs];
+            int r = -1;
+            for (int i = 0; i < cardinality; i++)
+            {
+                if (0 == i || values[i] != values[i - 1] + 1)
+                {
+                    pairs[2 * ++r] = values[i];
+                    pairs[2 * r + 1] = 0;
+                }
+                else
+                {
+                    pairs[2 * r + 1]++;
+                }
+            }
+            return new RunChunk(pairs, runs, cardinality);
+        }
+
+        static RunChunk fromBitmap(long[] words, int runs, int cardinality)
+        {
+            char[] pairs = new char[2 * runs];
+            int r = 0;
+            int start = -1;
+            for (int i = 0; i < 65536; i++)
+            {
+                boolean set = 0 != (words[i >>> 6] & (1L << i));
+                if (set && start < 0)
+                {
+                    start = i;
+                }
+                else if (!set && start >= 0)
+                {
+                    pairs[2 * r] = (char)start;
+                    pairs[2 * r++ + 1] = (char)(i - 1 - start);
+                    start = -1;
+                }
+            }
+            if (start >= 0)
+            {
+                pairs[2 * r] = (char)start;
+                pairs[2 * r + 1] = (char)(65535 - start);
+            }
+            return new RunChunk(pairs, runs, cardinality);
+        }
+
+        int start(int run)
+        {
+            return _runs[2 * run];
+        }
+
+        int end(int run)
+        {
+            return _runs[2 * run] + _runs[2 * run + 1];
+        }
+
+        // Index of the last run starting at or before value, or -1
+        private int floorRun(int value)
+        {
+            int lo = 0;
+            int hi = _count - 1;
+            while (lo <= hi)
+            {
+                int mid = (lo + hi) >>> 1;
+                if (start(mid) <= value)
+                    lo = mid + 1;
+                else
+                    hi = mid - 1;
+            }
+            return hi;
+        }
+
+        @Override
+        int cardinality()
+        {
+            return _cardinality;
+        }
+
+        @Override
+        boolean contains(char low)
+        {
+            int run = floorRun(low);
+            return run >= 0 && low <= end(run);
+        }
+
+        private Chunk toModifiable()
+        {
+            return _cardinality <= ARRAY_MAX ? toArray() : toBitmap();
+        }
+
+        @Override
+        Chunk add(char low)
+        {
+            return contains(low) ? this : toModifiable().add(low);
+        }
+
+        @Override
+        Chunk remove(char low)
+        {
+            return contains(low) ? toModifiable().remove(low) : this;
+        }
+
+        @Override
+        int next(int from)
+        {
+            int run = floorRun(from);
+            if (run >= 0 && from <= end(run))
+                return from;
+            return run + 1 < _count ? start(run + 1) : -1;
+        }
+
+        @Override
+        BitmapChunk toBitmap()
+        {
+            long[] words = new long[BITMAP_WORDS];
+            for (int r = 0; r < _count; r++)
+                setRange(words, start(r), end(r));
+            return new BitmapChunk(words, _cardinality);
+        }
+
+        ArrayChunk toArray()
+        {
+            char[] values = new char[Math.max(4, _cardinality)];
+            int n = 0;
+            for (int r = 0; r < _count; r++)
+                for (int v = start(r); v <= end(r); v++)
+                    values[n++] = (char)v;
+            return new ArrayChunk(values, n);
+        }
+
+        @Override
+        Chunk optimize()
+        {
+            return this;
+        }
+
+        @Override
+        Chunk copy()
+        {
+            // Immutable
+            return this;
+        }
+
+        @Override
+        long getMemorySizeInBytes()
+        {
+            return 8 + 8 + 4 + 4 + 16 + 2L * _runs.length;
+        }
+
+        private static void setRange(long[] words, int start, int end)
+        {
+            int first = start >>> 6;
+            int last = end >>> 6;
+            long firstMask = -1L << start;
+            long lastMask = -1L >>> (63 - (end & 63));
+
+            if (first == last)
+            {
+                words[first] |= firstMask & lastMask;
+                return;
+            }
+
+            words[first] |= firstMask;
+            for (int w = first + 1; w < last; w++)
+                words[w] = -1L;
+            words[last] |= lastMask;
+        }
+    }
+
+
+    /* Pairwise operations */
+
+    private static Chunk and(Chunk a, Chunk b)
+    {
+        if (a instanceof ArrayChunk && b instanceof ArrayChunk)
+            return andArrays((ArrayChunk)a, (ArrayChunk)b);
+
+        if (b instanceof ArrayChunk)
+        {
+            Chunk t = a;
+            a = b;
+            b = t;
+        }
+
+        if (a instanceof ArrayChunk)
+        {
+            // Filter the sparse side through the other container
+            ArrayChunk array = (ArrayChunk)a;
+            char[] values = new char[Math.max(4, array._cardinality)];
+            int n = 0;
+            for (int i = 0; i < array._cardinality; i++)
+                if (b.contains(array._values[i]))
+                    values[n++] = array._values[i];
+            return new ArrayChunk(values, n);
+        }
+
+        if (a instanceof RunChunk && b instanceof RunChunk)
+            return andRuns((RunChunk)a, (RunChunk)b);
+
+        long[] words = a.toBitmap()._words.clone();
+        long[] other = b.toBitmap()._words;
+        int cardinality = 0;
+        for (int w = 0; w < BITMAP_WORDS; w++)
+        {
+            words[w] &= other[w];
+            cardinality += Long.bitCount(words[w]);
+        }
+
+        BitmapChunk result = new BitmapChunk(words, cardinality);
+        return cardinality <= ARRAY_MAX ? result.toArray() : result;
+    }
+
+    private static ArrayChunk andArrays(ArrayChunk a, ArrayChunk b)
+    {
+        char[] values = new char[Math.max(4, Math.min(a._cardinality, b._cardinality))];
+        int n = 0;
+        int i = 0;
+        int j = 0;
+
+        while (i < a._cardinality && j < b._cardinality)
+        {
+            if (a._values[i] < b._values[j])
+                i++;
+            else if (a._values[i] > b._values[j])
+                j++;
+            else
+            {
+                values[n++] = a._values[i];
+                i++;
+                j++;
+            }
+        }
+
+        return new ArrayChunk(values, n);
+    }
+
+    private static Chunk andRuns(RunChunk a, RunChunk b)
+    {
+        char[] pairs = new char[2 * (a._count + b._count)];
+        int count = 0;
+        int cardinality = 0;
+        int i = 0;
+        int j = 0;
+
+        while (i < a._count && j < b._count)
+        {
+            int start = Math.max(a.start(i), b.start(j));
+            int end = Math.min(a.end(i), b.end(j));
+
+            if (start <= end)
+            {
+                pairs[2 * count] = (char)start;
+                pairs[2 * count++ + 1] = (char)(end - start);
+                cardinality += end - start + 1;
+            }
+
+            if (a.end(i) < b.end(j))
+                i++;
+            else
+                j++;
+        }
+
+        return new RunChunk(Arrays.copyOf(pairs, 2 * count), count, cardinality);
+    }
+
+    private static int andCardinality(Chunk a, Chunk b)
+    {
+        if (a instanceof ArrayChunk && b instanceof ArrayChunk)
+            return andCardinalityArrays((ArrayChunk)a, (ArrayChunk)b);
+
+        if (b instanceof ArrayChunk)
+        {
+            Chunk t = a;
+            a = b;
+            b = t;
+        }
+
+        if (a instanceof ArrayChunk)
+        {
+            ArrayChunk array = (ArrayChunk)a;
+            int count = 0;
+            for (int i = 0; i < array._cardinality; i++)
+                if (b.contains(array._values[i]))
+                    count++;
+            return count;
+        }
+
+        if (a instanceof BitmapChunk && b instanceof BitmapChunk)
+        {
+            long[] x = ((BitmapChunk)a)._words;
+            long[] y = ((BitmapChunk)b)._words;
+            int count = 0;
+            for (int w = 0; w < BITMAP_WORDS; w++)
+                count += Long.bitCount(x[w] & y[w]);
+            return count;
+        }
+
+        if (a instanceof RunChunk && b instanceof RunChunk)
+            return andRuns((RunChunk)a, (RunChunk)b).cardinality();
+
+        // One run container and one bitmap: count the bitmap's bits inside each run
+        RunChunk runs = (RunChunk)(a instanceof RunChunk ? a : b);
+        BitmapChunk bitmap = (BitmapChunk)(a instanceof RunChunk ? b : a);
+        int count = 0;
+        for (int r = 0; r < runs._count; r++)
+            count += bitmap.countRange(runs.start(r), runs.end(r));
+        return count;
+    }
+
+    private static int andCardinalityArrays(ArrayChunk a, ArrayChunk b)
+    {
+        if (a._cardinality > b._cardinality)
+        {
+            ArrayChunk t = a;
+            a = b;
+            b = t;
+        }
+
+        int count = 0;
+
+        // Much smaller side: binary search the larger one instead of merging
+        if (a._cardinality * 32 < b._cardinality)
+        {
+            for (int i = 0; i < a._cardinality; i++)
+                if (Arrays.binarySearch(b._values, 0, b._cardinality, a._values[i]) >= 0)
+                    count++;
+            return count;
+        }
+
+        int i = 0;
+        int j = 0;
+        while (i < a._cardinality && j < b._cardinality)
+        {
+            if (a._values[i] < b._values[j])
+                i++;
+            else if (a._values[i] > b._values[j])
+                j++;
+            else
+            {
+                count++;
+                i++;
+                j++;
+            }
+        }
+        return count;
+    }
+
+    private static Chunk or(Chunk a, Chunk b)
+    {
+        if (a instanceof ArrayChunk && b instanceof ArrayChunk && a.cardinality() + b.cardinality() <= ARRAY_MAX)
+        {
+            ArrayChunk x = (ArrayChunk)a;
+            ArrayChunk y = (ArrayChunk)b;
+            char[] values = new char[Math.max(4, x._cardinality + y._cardinality)];
+            int n = 0;
+            int i = 0;
+            int j = 0;
+
+            while (i < x._cardinality || j < y._cardinality)
+            {
+                if (j == y._cardinality || (i < x._cardinality && x._values[i] < y._values[j]))
+                    values[n++] = x._values[i++];
+                else if (i == x._cardinality || y._values[j] < x._values[i])
+                    values[n++] = y._values[j++];
+                else
+                {
+                    values[n++] = x._values[i++];
+                    j++;
+                }
+            }
+
+            return new ArrayChunk(values, n);
+        }
+
+        // Modifies a in place when it's already a bitmap (a belongs to the set being modified); otherwise toBitmap()
+        // makes a new bitmap. b is only read, so it can be a bitmap shared with another set.
+        long[] words = a instanceof BitmapChunk ? ((BitmapChunk)a)._words : a.toBitmap()._words;
+        long[] other = b.toBitmap()._words;
+        int cardinality = 0;
+        for (int w = 0; w < BITMAP_WORDS; w++)
+        {
+            words[w] |= other[w];
+            cardinality += Long.bitCount(words[w]);
+        }
+
+        BitmapChunk result = new BitmapChunk(words, cardinality);
+        return cardinality <= ARRAY_MAX ? result.toArray() : result;
+    }
+
+
+    public static class TestCase extends Assert
+    {
+        private static void set(RoaringBitSet r, BitSet b, int i)
+        {
+            r.set(i);
+            b.set(i);
+        }
+
+        private static void assertBitsEqual(BitSet expected, RoaringBitSet actual)
+        {
+            assertEquals(expected.cardinality(), actual.cardinality());
+            assertEquals(expected.isEmpty(), actual.isEmpty());
+
+            int e = expected.nextSetBit(0);
+            int a = actual.nextSetBit(0);
+            while (e >= 0)
+            {
+                assertEquals(e, a);
+                assertTrue(actual.get(e));
+                e = expected.nextSetBit(e + 1);
+                a = actual.nextSetBit(a + 1);
+            }
+            assertEquals(-1, a);
+        }
+
+        // Sparse, dense, and run-heavy chunks, with values straddling chunk boundaries
+        private static RoaringBitSet fill(BitSet b, Random random, int density)
+        {
+            RoaringBitSet r = new RoaringBitSet();
+            for (int i = 0; i < 300_000; i++)
+                if (random.nextInt(100) < density)
+                    set(r, b, i);
+            for (int i = 400_000; i < 420_000; i++)
+                set(r, b, i);
+            set(r, b, 65535);
+            set(r, b, 65536);
+            return r;
+        }
+
+        @Test
+        public void testAgainstBitSet()
+        {
+            Random random = new Random(1234);
+
+            for (int density : new int[] {1, 10, 90})
+            {
+                BitSet bitsA = new BitSet();
+                BitSet bitsB = new BitSet();
+                RoaringBitSet a = fill(bitsA, random, density);
+                RoaringBitSet b = fill(bitsB, random, 5);
+                assertBitsEqual(bitsA, a);
+
+                for (boolean sealed : new boolean[] {false, true})
+                {
+                    RoaringBitSet x = a.clone();
+                    RoaringBitSet y = b.clone();
+                    if (sealed)
+                    {
+                        x.seal();
+                        y.seal();
+                        assertBitsEqual(bitsA, x);
+                        assertTrue(x.getMemorySizeInBytes() <= a.getMemorySizeInBytes());
+                    }
+
+                    BitSet and = (BitSet)bitsA.clone();
+                    and.and(bitsB);
+                    assertEquals(and.cardinality(), andCardinality(x, y));
+                    assertEquals(and.intersects(bitsB), x.intersects(y));
+
+                    RoaringBitSet rAnd = x.clone();
+                    rAnd.and(y);
+                    assertBitsEqual(and, rAnd);
+
+                    BitSet or = (BitSet)bitsA.clone();
+                    or.or(bitsB);
+                    RoaringBitSet rOr = x.clone();
+                    rOr.or(y);
+                    assertBitsEqual(or, rOr);
+                }
+            }
+        }
+
+        @Test
+        public void testMutation()
+        {
+            BitSet bits = new BitSet();
+            RoaringBitSet r = new RoaringBitSet();
+
+            // Grow one chunk past the array limit and shrink it back, then empty it
+            for (int i = 0; i < 2 * ARRAY_MAX; i++)
+                set(r, bits, 2 * i);
+            assertBitsEqual(bits, r);
+            for (int i = 0; i < 2 * ARRAY_MAX; i += 2)
+            {
+                r.clear(2 * i);
+                bits.clear(2 * i);
+            }
+            assertBitsEqual(bits, r);
+
+            r.seal();
+            try
+            {
+                r.set(1);
+                fail("Sealed sets should be read-only");
+            }
+            catch (IllegalStateException e)
+            {
+                // expected
+            }
+
+            RoaringBitSet copy = r.clone();
+            for (int i = 0; i < 2 * ARRAY_MAX; i++)
+            {
+                copy.clear(2 * i);
+                bits.clear(2 * i);
+            }
+            assertTrue(copy.isEmpty());
+            assertBitsEqual(bits, copy);
+            assertEquals(-1, copy.nextSetBit(0));
+        }
+
+        @Test
+        public void testSerialization() throws IOException
+        {
+            Random random = new Random(4321);
+
+            for (int density : new int[] {1, 90})
+            {
+                BitSet bits = new BitSet();
+                RoaringBitSet r = fill(bits, random, density);
+
+                for (boolean sealed : new boolean[] {false, true})
+                {
+                    if (sealed)
+                        r.seal();
+
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    try (DataOutputStream out = new DataOutputStream(bytes))
+                    {
+                        out.writeInt(42);
+                        r.writeTo(out);
+                        out.writeInt(43);
+                    }
+
+                    ByteBuffer in = ByteBuffer.wrap(bytes.toByteArray());
+                    assertEquals(42, in.getInt());
+                    RoaringBitSet read = readFrom(in);
+                    assertEquals("Should leave the buffer just past the set", 43, in.getInt());
+                    assertTrue(read.isSealed());
+                    assertBitsEqual(bits, read);
+                    assertEquals(andCardinality(r, r), andCardinality(read, r));
+                }
+            }
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            new RoaringBitSet().writeTo(new DataOutputStream(bytes));
+            assertTrue(readFrom(ByteBuffer.wrap(bytes.toByteArray())).isEmpty());
+        }
+    }
+}
@@ -20,6 +20,7 @@ import org.jetbrains.annotations.Nullable;
 import org.junit.Assert;
 import org.junit.Test;
 import org.labkey.api.data.dialect.SqlDialect;
+import org.labkey.api.data.statistics.ColumnSummary;
 import org.labkey.api.query.FieldKey;
 import org.labkey.api.stats.BaseAggregatesAnalyticsProvider;
 import org.labkey.api.util.DateUtil;
@@ -128,6 +129,26 @@ public class Aggregate
          * @return the number of subqueries the aggregate uses
          */
         default int subQueryCount(SqlDialect dialect) { return 0; }
+
+        /**
+         * Return true if this statistic can't be expressed in SQL and is instead computed in Java from a ColumnSummary.
+         * All such statistics requested for a query, across every column, are computed from one scan of its rows.
+         */
+        default boolean isComputedFromScan()
+        {
+            return false;
+        }
+
+        /** Enable whatever the ColumnSummary needs to track for this statistic (e.g. quantiles) before the scan */
+        default void prepareSummary(ColumnSummary summary)
+        {
+        }
+
+        /** Compute this statistic from the scanned values of its column */
+        default Result getScanResult(Aggregate aggregate, ColumnSummary summary)
+        {
+            return new Result(aggregate, null);
+        }
     }
 
     public enum BaseType implements Type
@@ -311,15 +332,169 @@ public class Aggregate
         }
     }
 
+    /**
+     * Statistics computed from a single scan of the rows rather than in SQL. Quantiles and distinct counts are exact
+     * for up to ColumnSummary.EXACT_LIMIT values and estimated from a t-digest or HyperLogLog sketch beyond that.
+     */
+    public enum ScanType implements Type
+    {
+        STDDEV("Standard Deviation", "Std Dev")
+                {
+                    @Override
+                    public Result getScanResult(Aggregate aggregate, ColumnSummary summary)
+                    {
+                        return new Result(aggregate, summary.getStdDev());
+                    }
+                },
+        MEDIAN("Median")
+                {
+                    @Override
+                    public void prepareSummary(ColumnSummary summary)
+                    {
+                        summary.trackQuantiles();
+                    }
+
+                    @Override
+                    public Result getScanResult(Aggregate aggregate, ColumnSummary summary)
+                    {
+                        return new Result(aggregate, summary.getQuantile(0.5), summary.isQuantileApproximate());
+                    }
+                },
+        Q1("Lower Quartile", "Q1")
+                {
+                    @Override
+                    public void prepareSummary(ColumnSummary summary)
+                    {
+                        summary.trackQuantiles();
+                    }
+
+                    @Override
+                    public Result getScanResult(Aggregate aggregate, ColumnSummary summary)
+                    {
+                        return new Result(aggregate, summary.getQuantile(0.25), summary.isQuantileApproximate());
+                    }
+                },
+        Q3("Upper Quartile", "Q3")
+                {
+                    @Override
+                    public void prepareSummary(ColumnSummary summary)
+                    {
+                        summary.trackQuantiles();
+                    }
+
+                    @Override
+                    public Result getScanResult(Aggregate aggregate, ColumnSummary summary)
+                    {
+                        return new Result(aggregate, summary.getQuantile(0.75), summary.isQuantileApproximate());
+                    }
+                },
+        COUNT_DISTINCT("Count (distinct)", "Distinct Count")
+                {
+                    @Nullable
+                    @Override
+                    public String getDescription()
+                    {
+                        return "Count of the number of different non-blank values in the set. Estimated, to within about 2%, for very large sets.";
+                    }
+
+                    @Override
+                    public void prepareSummary(ColumnSummary summary)
+                    {
+                        summary.trackDistinct();
+                    }
+
+                    @Override
+                    public Result getScanResult(Aggregate aggregate, ColumnSummary summary)
+                    {
+                        return new Result(aggregate, summary.getDistinctCount(), summary.isDistinctCountApproximate());
+                    }
+
+                    @Override
+                    public JdbcType returnType(JdbcType jdbcType)
+                    {
+                        return JdbcType.BIGINT;
+                    }
+                };
+
+        private final String _fullLabel;
+        private final String _displayValue;
+
+        ScanType(String fullLabel)
+        {
+            this(fullLabel, fullLabel);
+        }
+
+        ScanType(String fullLabel, String displayValue)
+        {
+            _fullLabel = fullLabel;
+            _displayValue = displayValue;
+        }
+
+        @Override
+        public String getName()
+        {
+            return name();
+        }
+
+        @Override
+        public String getFullLabel()
+        {
+            return _fullLabel;
+        }
+
+        @Override
+        public String getDisplayValue()
+        {
+            return _displayValue;
+        }
+
+        @Override
+        public String getSQLFunctionName(@Nullable SqlDialect dialect)
+        {
+            return null;
+        }
+
+        @Override
+        public String getAliasName()
+        {
+            return name();
+        }
+
+        @Override
+        public SQLFragment getSQLColumnFragment(SqlDialect dialect, String columnName, String asName, @Nullable JdbcType jdbcType, boolean distinct, SQLFragment tableInnerSql)
+        {
+            return null;
+        }
+
+        @Override
+        public boolean isComputedFromScan()
+        {
+            return true;
+        }
+
+        @Override
+        public JdbcType returnType(JdbcType jdbcType)
+        {
+            return jdbcType.isNumeric() ? JdbcType.DOUBLE : null;
+        }
+    }
+
     public static class Result
     {
         private final Aggregate _aggregate;
         private final Object _value;
+        private final boolean _approximate;
 
         public Result(Aggregate aggregate, Object value)
+        {
+            this(aggregate, value, false);
+        }
+
+        public Result(Aggregate aggregate, Object value, boolean approximate)
         {
             _aggregate = aggregate;
             _value = value;
+            _approximate = approximate;
         }
 
         public Aggregate getAggregate()
@@ -334,6 +509,12 @@ public class Aggregate
             return _value;
         }
 
+        /** True if the value was estimated from a sketch of a very large set rather than computed exactly */
+        public boolean isApproximate()
+        {
+            return _approximate;
+        }
+
         @Override
         public String toString()
         {
@@ -343,6 +524,15 @@ public class Aggregate
         /** @return the value to show (not HTML encoded),
          * and whether it's an error condition, like trying to apply an aggregate to the wrong type */
         public Pair<String, Boolean> getFormattedValue(DisplayColumn renderer, Container container)
+        {
+            Pair<String, Boolean> formatted = formatValue(renderer, container);
+            if (_approximate && !formatted.second && null != _value)
+                return Pair.of("~" + formatted.first, false);
+
+            return formatted;
+        }
+
+        private Pair<String, Boolean> formatValue(DisplayColumn renderer, Container container)
         {
             // Issue 16570: Formatter is only applicable if the aggregate return type is
             // similar to the input jdbcType.  For example, don't apply a date format
@@ -607,6 +797,11 @@ public class Aggregate
             assertAggregate(true,  BaseType.MAX, JdbcType.INTEGER);
             assertAggregate(true,  BaseType.MAX, JdbcType.DOUBLE);
 
+            assertAggregate(false, ScanType.MEDIAN, JdbcType.DATE);
+            assertAggregate(false, ScanType.STDDEV, JdbcType.VARCHAR);
+            assertAggregate(true,  ScanType.Q1, JdbcType.INTEGER);
+            assertAggregate(true,  ScanType.Q3, JdbcType.DOUBLE);
+            assertAggregate(true,  ScanType.COUNT_DISTINCT, JdbcType.VARCHAR);
         }
 
         private void assertAggregate(boolean legal, Type type, JdbcType jdbcType)
@@ -22,7 +22,9 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.labkey.api.cache.SizeEstimator;
 import org.labkey.api.collections.RowMap;
+import org.labkey.api.collections.RowMapFactory;
 import org.labkey.api.dataiterator.DataIterator;
 import org.labkey.api.miniprofiler.MiniProfiler;
 import org.labkey.api.settings.AppProps;
@@ -55,6 +57,7 @@ import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 import static java.lang.Math.max;
@@ -66,7 +69,7 @@ import static java.lang.Math.min;
  * User: mbellew
  * Date: Nov 29, 2005
  */
-public class CachedResultSet implements ResultSet, TableResultSet
+public class CachedResultSet implements ResultSet, TableResultSet, SizeEstimator.Sized
 {
     private static final Logger _log = LogManager.getLogger(CachedResultSet.class);
 
@@ -74,8 +77,8 @@ public class CachedResultSet implements ResultSet, TableResultSet
     private final ResultSetMetaData _md;
     private final HashMap<String, Integer> _columns;
 
-    // data
-    private final ArrayList<RowMap<Object>> _rowMaps;
+    // data: either an ArrayList of RowMaps or, for large results, a ColumnarRowList
+    private final List<RowMap<Object>> _rowMaps;
     private final boolean _isComplete;
     @Nullable
     private final StackTraceElement[] _stackTrace;
@@ -97,7 +100,7 @@ public class CachedResultSet implements ResultSet, TableResultSet
 
         stackTrace is used to set an alternate stack trace -- good for async queries, to indicate original creation stack trace
      */
-    CachedResultSet(ResultSetMetaData md, boolean cacheMetaData, ArrayList<RowMap<Object>> maps, boolean isComplete, @Nullable StackTraceElement[] stackTrace)
+    CachedResultSet(ResultSetMetaData md, boolean cacheMetaData, List<RowMap<Object>> maps, boolean isComplete, @Nullable StackTraceElement[] stackTrace)
     {
         _rowMaps = maps;
         _isComplete = isComplete;
@@ -155,6 +158,54 @@ public class CachedResultSet implements ResultSet, TableResultSet
         MemTracker.getInstance().put(this);
     }
 
+    /**
+     * Returns a new CachedResultSet over the same metadata with its own cursor and its own copy of each row, so callers
+     * can't reposition or mutate this instance. Used to hand out results held by QueryResultCache.
+     */
+    CachedResultSet copy()
+    {
+        return copy(Table.ALL_ROWS);
+    }
+
+    /**
+     * Same as copy(), but returns at most maxRows rows. As with CachedResultSets.create(), the copy isn't complete if
+     * rows had to be dropped.
+     */
+    CachedResultSet copy(int maxRows)
+    {
+        List<RowMap<Object>> rows = _rowMaps;
+        boolean isComplete = _isComplete;
+
+        if (Table.ALL_ROWS != maxRows && rows.size() > maxRows)
+        {
+            rows = rows.subList(0, maxRows);
+            isComplete = false;
+        }
+
+        // Columnar rows are immutable and every RowMap it hands out is already a private copy, so just share it
+        if (_rowMaps instanceof ColumnarRowList)
+            return new CachedResultSet(_md, false, rows, isComplete, null);
+
+        ArrayList<RowMap<Object>> maps = new ArrayList<>(rows.size());
+        RowMapFactory<Object> factory = null;
+
+        for (RowMap<Object> rowMap : rows)
+        {
+            // All rows share a single FindMap, so share it with the copies as well
+            if (null == factory)
+                factory = new RowMapFactory<>(rowMap.getFindMap());
+
+            maps.add(factory.getRowMap(rowMap));
+        }
+
+        return new CachedResultSet(_md, false, maps, isComplete, null);
+    }
+
+    @Nullable ColumnarRowList getColumnarRows()
+    {
+        return _rowMaps instanceof ColumnarRowList ? (ColumnarRowList)_rowMaps : null;
+    }
+
     public boolean isRequireClose()
     {
         return _requireClose;
@@ -626,7 +677,10 @@ public class CachedResultSet implements ResultSet, TableResultSet
         if (_row < 0 || _row >= _rowMaps.size())
             throw new SQLException("No current row");
 
-        _lastObject = _rowMaps.get(_row).get(columnIndex);
+        if (_rowMaps instanceof ColumnarRowList)
+            _lastObject = ((ColumnarRowList)_rowMaps).getValue(_row, columnIndex);
+        else
+            _lastObject = _rowMaps.get(_row).get(columnIndex);
 
         if (_lastObject instanceof Double)
             _lastObject = ResultSetUtil.mapDatabaseDoubleToJavaDouble((Double) _lastObject);
@@ -637,7 +691,10 @@ public class CachedResultSet implements ResultSet, TableResultSet
     @Override
     public Object getObject(String columnName) throws SQLException
     {
-        _lastObject = _rowMaps.get(_row).get(columnName);
+        if (_rowMaps instanceof ColumnarRowList)
+            _lastObject = ((ColumnarRowList)_rowMaps).getValue(_row, columnName);
+        else
+            _lastObject = _rowMaps.get(_row).get(columnName);
         // check for no illegal column name
         if (_lastObject == null)
             findColumn(columnName);
@@ -652,6 +709,9 @@ public class CachedResultSet implements ResultSet, TableResultSet
     // careful! this does no error checking
     public void _setObject(int columnIndex, Object o)
     {
+        if (_rowMaps instanceof ColumnarRowList)
+            throw new UnsupportedOperationException("Columnar results are read-only");
+
         _rowMaps.get(_row).set(columnIndex, o);
     }
 
@@ -1308,6 +1368,32 @@ public class CachedResultSet implements ResultSet, TableResultSet
         return _rowMaps.size();
     }
 
+    /** Approximate heap used by the rows; row-oriented results are sized from a sample of rows */
+    @Override
+    public long getEstimatedBytes()
+    {
+        ColumnarRowList columnar = getColumnarRows();
+
+        if (null != columnar)
+            return columnar.getEstimatedBytes();
+
+        int size = _rowMaps.size();
+        int sampled = Math.min(size, 100);
+        long bytes = 0;
+
+        for (int i = 0; i < sampled; i++)
+        {
+            // Rows share their column map, so charge only for the value list
+            RowMap<Object> row = _rowMaps.get(i);
+            bytes += 40 + 4L * row.size();
+
+            for (Object value : row.values())
+                bytes += SizeEstimator.estimate(value);
+        }
+
+        return 0 == sampled ? 0 : bytes * size / sampled;
+    }
+
     //
     // helpers
     //
@@ -16,16 +16,24 @@
 package org.labkey.api.data;
 
 import org.jetbrains.annotations.Nullable;
+import org.junit.Assert;
+import org.junit.Test;
 import org.labkey.api.collections.ResultSetRowMapFactory;
 import org.labkey.api.collections.RowMap;
 
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Factory methods that create CachedResultSets, plus a couple helpers
@@ -34,6 +42,9 @@ import java.util.Map;
  */
 public class CachedResultSets
 {
+    /** Once a result reaches this many rows, the rows are moved into much more compact column-oriented storage */
+    public static final int COLUMNAR_THRESHOLD = 50000;
+
     public static CachedResultSet create(ResultSet rs, boolean cacheMetaData, int maxRows) throws SQLException
     {
         return create(rs, cacheMetaData, maxRows, null, QueryLogging.emptyQueryLogging());      // TODO: Should be only for MetaData??
@@ -41,6 +52,12 @@ public class CachedResultSets
 
 
     public static CachedResultSet create(ResultSet rsIn, boolean cacheMetaData, int maxRows, @Nullable StackTraceElement[] stackTrace, QueryLogging queryLogging) throws SQLException
+    {
+        return create(rsIn, cacheMetaData, maxRows, stackTrace, queryLogging, COLUMNAR_THRESHOLD);
+    }
+
+
+    static CachedResultSet create(ResultSet rsIn, boolean cacheMetaData, int maxRows, @Nullable StackTraceElement[] stackTrace, QueryLogging queryLogging, int columnarThreshold) throws SQLException
     {
         try (ResultSet rs = new LoggingResultSetWrapper(rsIn, queryLogging))         // TODO: avoid is we're passed a read-only and empty one??
         {
@@ -52,9 +69,29 @@ public class CachedResultSets
             ResultSetRowMapFactory factory = ResultSetRowMapFactory.create(rs);
 
             // Note: we check in this order to avoid consuming the "extra" row used to detect complete vs. not
-            while (list.size() < maxRows && rs.next())
+            while (list.size() < maxRows && list.size() < columnarThreshold && rs.next())
                 list.add(factory.getRowMap(rs));
 
+            // Large result: move the rows we've read into columnar storage and stream the rest directly into it
+            if (columnarThreshold > 0 && list.size() == columnarThreshold && list.size() < maxRows)
+            {
+                ColumnarRowList columnar = new ColumnarRowList(list.get(0).getFindMap(), rs.getMetaData().getColumnCount() + 1, 2 * columnarThreshold);
+
+                for (RowMap<Object> rowMap : list)
+                    columnar.add(rowMap);
+
+                list = null;
+
+                while (columnar.size() < maxRows && rs.next())
+                    columnar.add(factory.getRowMap(rs));
+
+                columnar.trimToSize();
+
+                boolean isComplete = !rs.next();
+
+                return new CachedResultSet(rs.getMetaData(), cacheMetaData, columnar, isComplete, stackTrace);
+            }
+
             // If we have another row, then we're not complete
             boolean isComplete = !rs.next();
 
@@ -134,4 +171,186 @@ public class CachedResultSets
 
         return list;
     }
+
+
+    public static class ColumnarTestCase extends Assert
+    {
+        private static final int ROWS = 200;
+
+        private List<Map<String, Object>> createRows(int count, boolean includeMixed)
+        {
+            List<Map<String, Object>> rows = new ArrayList<>(count);
+
+            for (int i = 0; i < count; i++)
+            {
+                Map<String, Object> row = new HashMap<>();
+                row.put("RowId", i);
+                row.put("Big", 1_000_000_000_000L + i);
+                row.put("Measure", i % 7 == 0 ? null : i / 3.0);
+                row.put("Flag", i % 2 == 0);
+                row.put("Category", "Category" + (i % 10));
+
+                if (includeMixed)
+                    row.put("Mixed", i % 2 == 0 ? (Object)i : "odd" + i);
+
+                rows.add(row);
+            }
+
+            return rows;
+        }
+
+        private CachedResultSet createColumnar(List<Map<String, Object>> rows, int threshold) throws SQLException
+        {
+            try (CachedResultSet source = create(rows))
+            {
+                return create(source, true, Table.ALL_ROWS, null, QueryLogging.emptyQueryLogging(), threshold);
+            }
+        }
+
+        @Test
+        public void testRoundTrip() throws SQLException
+        {
+            List<Map<String, Object>> rows = createRows(ROWS, true);
+
+            try (CachedResultSet rowBased = create(rows); CachedResultSet columnar = createColumnar(rows, ROWS / 4))
+            {
+                assertEquals(ROWS, columnar.getSize());
+                assertTrue(columnar.isComplete());
+
+                while (rowBased.next())
+                {
+                    assertTrue(columnar.next());
+
+                    for (String name : rows.get(0).keySet())
+                    {
+                        assertEquals(rowBased.getObject(name), columnar.getObject(name));
+                        assertEquals(rowBased.getObject(rowBased.findColumn(name)), columnar.getObject(columnar.findColumn(name)));
+                        assertEquals(rowBased.wasNull(), columnar.wasNull());
+                    }
+
+                    assertEquals(rowBased.getRowMap(), columnar.getRowMap());
+                }
+
+                assertFalse(columnar.next());
+
+                // Scrolling works on columnar results too
+                assertTrue(columnar.absolute(ROWS / 2));
+                assertEquals(ROWS / 2 - 1, columnar.getInt("RowId"));
+                assertEquals("Category" + ((ROWS / 2 - 1) % 10), columnar.getString("Category"));
+            }
+        }
+
+        @Test
+        public void testMaxRows() throws SQLException
+        {
+            List<Map<String, Object>> rows = createRows(ROWS, true);
+
+            try (CachedResultSet source = create(rows);
+                 CachedResultSet columnar = create(source, true, ROWS - 10, null, QueryLogging.emptyQueryLogging(), ROWS / 4))
+            {
+                assertEquals(ROWS - 10, columnar.getSize());
+                assertFalse(columnar.isComplete());
+            }
+        }
+
+        // Computes the size of both representations of the same 200,000 rows from their contents, rather than measuring the heap
+        @Test
+        public void testMemory() throws SQLException
+        {
+            int count = 200_000;
+            List<Map<String, Object>> rows = createRows(count, false);
+
+            try (CachedResultSet rowBased = createColumnar(rows, Integer.MAX_VALUE); CachedResultSet columnar = createColumnar(rows, COLUMNAR_THRESHOLD))
+            {
+                assertNull("Expected row-oriented storage", rowBased.getColumnarRows());
+                ColumnarRowList columnarRows = columnar.getColumnarRows();
+                assertNotNull("Expected columnar storage", columnarRows);
+                assertEquals(count, columnarRows.size());
+
+                // Trimmed to one primitive per row
+                assertColumnBytes(columnarRows, "RowId", 4L * count);
+                assertColumnBytes(columnarRows, "Big", 8L * count);
+                assertColumnBytes(columnarRows, "Measure", 8L * count);
+                assertColumnBytes(columnarRows, "Flag", count / 8);
+                // Dictionary encoded: a code per row, plus ten distinct strings
+                assertColumnBytes(columnarRows, "Category", 4L * count);
+
+                long rowBytes = getEstimatedBytes(rowBased);
+                long columnarBytes = columnarRows.getEstimatedBytes();
+                assertTrue("Columnar storage (" + columnarBytes + " bytes) should be less than half the size of row-oriented storage (" + rowBytes + " bytes)",
+                        2 * columnarBytes < rowBytes);
+            }
+        }
+
+        /**
+         * Approximate heap used by row-oriented storage: a list slot, RowMap and ArrayList per row, the ArrayList's
+         * Object[] (assuming no spare capacity), and each distinct value. Shallow sizes come from the classes' fields,
+         * assuming compressed references.
+         */
+        private static long getEstimatedBytes(CachedResultSet rs) throws SQLException
+        {
+            int width = rs.getMetaData().getColumnCount() + 1;
+            long perRow = 4 + getShallowBytes(RowMap.class) + getShallowBytes(ArrayList.class) + align(16 + 4L * width);
+            Set<Object> values = Collections.newSetFromMap(new IdentityHashMap<>());
+            long bytes = 0;
+
+            rs.beforeFirst();
+
+            while (rs.next())
+            {
+                RowMap<?> row = (RowMap<?>)rs.getRowMap();
+                bytes += perRow;
+
+                for (int i = 0; i < width; i++)
+                {
+                    Object value = row.get(i);
+
+                    if (null != value && values.add(value))
+                        bytes += getShallowBytes(value.getClass()) + (value instanceof String ? align(16 + ((String)value).length()) : 0);
+                }
+            }
+
+            return bytes;
+        }
+
+        private static long getShallowBytes(Class<?> c)
+        {
+            long bytes = 12;
+
+            for (; null != c; c = c.getSuperclass())
+            {
+                for (Field field : c.getDeclaredFields())
+                {
+                    if (Modifier.isStatic(field.getModifiers()))
+                        continue;
+
+                    Class<?> type = field.getType();
+
+                    if (type == long.class || type == double.class)
+                        bytes += 8;
+                    else if (type == byte.class || type == boolean.class)
+                        bytes += 1;
+                    else if (type == short.class || type == char.class)
+                        bytes += 2;
+                    else
+                        bytes += 4;
+                }
+            }
+
+            return align(bytes);
+        }
+
+        private static long align(long bytes)
+        {
+            return (bytes + 7) & ~7L;
+        }
+
+        // Allows up to a bit per row for the null bitmap, and a little for headers and the string dictionary
+        private static void assertColumnBytes(ColumnarRowList rows, String columnName, long dataBytes)
+        {
+            long bytes = rows.getEstimatedBytes(columnName);
+            assertTrue(columnName + ": expected at least " + dataBytes + " bytes, was " + bytes, bytes >= dataBytes);
+            assertTrue(columnName + ": expected at most " + (dataBytes + rows.size() / 8 + 1024) + " bytes, was " + bytes, bytes <= dataBytes + rows.size() / 8 + 1024);
+        }
+    }
 }
@@ -0,0 +1,503 @@
+package org.labkey.api.data;
+
+import org.jetbrains.annotations.Nullable;
+import org.labkey.api.collections.ArrayListMap;
+import org.labkey.api.collections.RowMap;
+import org.labkey.api.collections.RowMapFactory;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable, column-oriented storage for the rows of a large CachedResultSet. Each column is held in a single primitive
+ * array (int, long, double, or boolean bits) plus a null bitmap; strings are dictionary encoded. Columns whose values
+ * don't share a single type fall back to an Object[]. The column type is chosen by the first non-null value, so the
+ * values (and their classes) handed back match what ResultSetRowMapFactory produced when the rows were read.
+ *
+ * Exposed as a List of RowMaps so CachedResultSet navigation works unchanged, but each RowMap is materialized on demand
+ * and is a private copy; CachedResultSet reads single values via getValue() to avoid materializing rows at all.
+ */
+class ColumnarRowList extends AbstractList<RowMap<Object>>
+{
+    private final RowMapFactory<Object> _factory;
+    private final ArrayListMap.FindMap<String> _findMap;
+    private final Column[] _columns;
+    private int _size = 0;
+    private int _capacity;
+
+    /**
+     * @param findMap shared column name -> index map of the incoming RowMaps
+     * @param width number of values in each row, including the row number at index 0
+     */
+    ColumnarRowList(ArrayListMap.FindMap<String> findMap, int width, int initialCapacity)
+    {
+        _findMap = findMap;
+        _factory = new RowMapFactory<>(findMap);
+        _columns = new Column[width];
+        _capacity = Math.max(16, initialCapacity);
+
+        for (int i = 0; i < width; i++)
+            _columns[i] = new UntypedColumn();
+    }
+
+    void add(ArrayListMap<String, Object> row)
+    {
+        if (_size == _capacity)
+        {
+            _capacity = _capacity + (_capacity >> 1);
+
+            for (Column column : _columns)
+                column.grow(_capacity);
+        }
+
+        for (int i = 0; i < _columns.length; i++)
+        {
+            Object value = row.get(i);
+
+            if (null == value)
+            {
+                _columns[i].setNull(_size);
+            }
+            else
+            {
+                if (!_columns[i].accepts(value))
+                    _columns[i] = _columns[i].promote(value, _size, _capacity);
+
+                _columns[i].set(_size, value);
+            }
+        }
+
+        _size++;
+    }
+
+    /** Release excess capacity and any build-time structures. Call once all rows have been added. */
+    void trimToSize()
+    {
+        _capacity = Math.max(_size, 1);
+
+        for (Column column : _columns)
+        {
+            column.grow(_capacity);
+            column.trim();
+        }
+    }
+
+    @Nullable Object getValue(int row, int columnIndex)
+    {
+        return columnIndex < _columns.length ? _columns[columnIndex].get(row) : null;
+    }
+
+    @Nullable Object getValue(int row, String columnName)
+    {
+        Integer columnIndex = _findMap.get(columnName);
+        return null == columnIndex ? null : getValue(row, columnIndex);
+    }
+
+    @Override
+    public RowMap<Object> get(int index)
+    {
+        if (index < 0 || index >= _size)
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + _size);
+
+        List<Object> row = new ArrayList<>(_columns.length);
+
+        for (Column column : _columns)
+            row.add(column.get(index));
+
+        return _factory.getRowMap(row);
+    }
+
+    @Override
+    public int size()
+    {
+        return _size;
+    }
+
+    /** Approximate heap used by the column data, for comparison with row-oriented storage */
+    long getEstimatedBytes()
+    {
+        long bytes = 0;
+
+        for (Column column : _columns)
+            bytes += column.getEstimatedBytes();
+
+        return bytes;
+    }
+
+    /** Approximate heap used by one column's data, or 0 if there's no such column */
+    long getEstimatedBytes(String columnName)
+    {
+        Integer columnIndex = _findMap.get(columnName);
+        return null == columnIndex || columnIndex >= _columns.length ? 0 : _columns[columnIndex].getEstimatedBytes();
+    }
+
+
+    private static abstract class Column
+    {
+        protected BitSet _nulls = new BitSet();
+
+        abstract boolean accepts(Object value);
+
+        abstract void set(int row, Object value);
+
+        abstract @Nullable Object getValue(int row);
+
+        abstract void grow(int capacity);
+
+        abstract long getDataBytes();
+
+        void trim()
+        {
+        }
+
+        void setNull(int row)
+        {
+            _nulls.set(row);
+        }
+
+        @Nullable Object get(int row)
+        {
+            return _nulls.get(row) ? null : getValue(row);
+        }
+
+        long getEstimatedBytes()
+        {
+            return getDataBytes() + _nulls.size() / 8;
+        }
+
+        // Return a column that can hold both the existing values and this value
+        Column promote(Object value, int size, int capacity)
+        {
+            Column column = new ObjectColumn(capacity);
+
+            for (int row = 0; row < size; row++)
+            {
+                Object existing = get(row);
+
+                if (null == existing)
+                    column.setNull(row);
+                else
+                    column.set(row, existing);
+            }
+
+            return column;
+        }
+    }
+
+    // Holds only nulls so far; the first non-null value determines the real column type
+    private static class UntypedColumn extends Column
+    {
+        @Override
+        boolean accepts(Object value)
+        {
+            return false;
+        }
+
+        @Override
+        void set(int row, Object value)
+        {
+            throw new IllegalStateException();
+        }
+
+        @Override
+        Object getValue(int row)
+        {
+            return null;
+        }
+
+        @Override
+        void grow(int capacity)
+        {
+        }
+
+        @Override
+        long getDataBytes()
+        {
+            return 0;
+        }
+
+        @Override
+        Column promote(Object value, int size, int capacity)
+        {
+            Column column;
+
+            if (value instanceof Integer)
+                column = new IntColumn(capacity);
+            else if (value instanceof Long)
+                column = new LongColumn(capacity);
+            else if (value instanceof Double)
+                column = new DoubleColumn(capacity);
+            else if (value instanceof Boolean)
+                column = new BooleanColumn();
+            else if (value instanceof String)
+                column = new StringColumn(capacity);
+            else
+                column = new ObjectColumn(capacity);
+
+            column._nulls = _nulls;
+            return column;
+        }
+    }
+
+    private static class IntColumn extends Column
+    {
+        private int[] _values;
+
+        private IntColumn(int capacity)
+        {
+            _values = new int[capacity];
+        }
+
+        @Override
+        boolean accepts(Object value)
+        {
+            return value instanceof Integer;
+        }
+
+        @Override
+        void set(int row, Object value)
+        {
+            _values[row] = (Integer)value;
+        }
+
+        @Override
+        Object getValue(int row)
+        {
+            return _values[row];
+        }
+
+        @Override
+        void grow(int capacity)
+        {
+            _values = Arrays.copyOf(_values, capacity);
+        }
+
+        @Override
+        long getDataBytes()
+        {
+            return 4L * _values.length;
+        }
+    }
+
+    private static class LongColumn extends Column
+    {
+        private long[] _values;
+
+        private LongColumn(int capacity)
+        {
+            _values = new long[capacity];
+        }
+
+        @Override
+        boolean accepts(Object value)
+        {
+            return value instanceof Long;
+        }
+
+        @Override
+        void set(int row, Object value)
+        {
+            _values[row] = (Long)value;
+        }
+
+        @Override
+        Object getValue(int row)
+        {
+            return _values[row];
+        }
+
+        @Override
+        void grow(int capacity)
+        {
+            _values = Arrays.copyOf(_values, capacity);
+        }
+
+        @Override
+        long getDataBytes()
+        {
+            return 8L * _values.length;
+        }
+    }
+
+    private static class DoubleColumn extends Column
+    {
+        private double[] _values;
+
+        private DoubleColumn(int capacity)
+        {
+            _values = new double[capacity];
+        }
+
+        @Override
+        boolean accepts(Object value)
+        {
+            return value instanceof Double;
+        }
+
+        @Override
+        void set(int row, Object value)
+        {
+            _values[row] = (Double)value;
+        }
+
+        @Override
+        Object getValue(int row)
+        {
+            return _values[row];
+        }
+
+        @Override
+        void grow(int capacity)
+        {
+            _values = Arrays.copyOf(_values, capacity);
+        }
+
+        @Override
+        long getDataBytes()
+        {
+            return 8L * _values.length;
+        }
+    }
+
+    private static class BooleanColumn extends Column
+    {
+        private final BitSet _values = new BitSet();
+
+        @Override
+        boolean accepts(Object value)
+        {
+            return value instanceof Boolean;
+        }
+
+        @Override
+        void set(int row, Object value)
+        {
+            _values.set(row, (Boolean)value);
+        }
+
+        @Override
+        Object getValue(int row)
+        {
+            return _values.get(row);
+        }
+
+        @Override
+        void grow(int capacity)
+        {
+        }
+
+        @Override
+        long getDataBytes()
+        {
+            return _values.size() / 8;
+        }
+    }
+
+    // Dictionary encoded: each distinct string is stored once, rows hold an int code
+    private static class StringColumn extends Column
+    {
+        private int[] _codes;
+        private final ArrayList<String> _dictionary = new ArrayList<>();
+        private @Nullable Map<String, Integer> _lookup = new HashMap<>();
+
+        private StringColumn(int capacity)
+        {
+            _codes = new int[capacity];
+        }
+
+        @Override
+        boolean accepts(Object value)
+        {
+            return value instanceof String;
+        }
+
+        @Override
+        void set(int row, Object value)
+        {
+            if (null == _lookup)
+                throw new IllegalStateException("Column has been trimmed");
+
+            _codes[row] = _lookup.computeIfAbsent((String)value, s -> {
+                _dictionary.add(s);
+                return _dictionary.size() - 1;
+            });
+        }
+
+        @Override
+        Object getValue(int row)
+        {
+            return _dictionary.get(_codes[row]);
+        }
+
+        @Override
+        void grow(int capacity)
+        {
+            _codes = Arrays.copyOf(_codes, capacity);
+        }
+
+        @Override
+        void trim()
+        {
+            _dictionary.trimToSize();
+            _lookup = null;
+        }
+
+        @Override
+        long getDataBytes()
+        {
+            long bytes = 4L * _codes.length + 4L * _dictionary.size();
+
+            // Rough String size: header + array header + content (Latin-1 compact strings)
+            for (String s : _dictionary)
+                bytes += 40 + s.length();
+
+            return bytes;
+        }
+    }
+
+    private static class ObjectColumn extends Column
+    {
+        private Object[] _values;
+
+        private ObjectColumn(int capacity)
+        {
+            _values = new Object[capacity];
+        }
+
+        @Override
+        boolean accepts(Object value)
+        {
+            return true;
+        }
+
+        @Override
+        void set(int row, Object value)
+        {
+            _values[row] = value;
+        }
+
+        @Override
+        Object getValue(int row)
+        {
+            return _values[row];
+        }
+
+        @Override
+        void grow(int capacity)
+        {
+            _values = Arrays.copyOf(_values, capacity);
+        }
+
+        @Override
+        long getDataBytes()
+        {
+            // Reference plus a rough guess at the boxed value itself
+            return 4L * _values.length + 24L * _values.length;
+        }
+    }
+}
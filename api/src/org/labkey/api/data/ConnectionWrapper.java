@@ -99,6 +99,9 @@ public class ConnectionWrapper implements java.sql.Connection
 
     private volatile boolean _allowClose = true;
 
+    /** Statements created on this connection that haven't been closed yet, so they can be cancelled from another thread */
+    private final Set<StatementWrapper> _openStatements = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+
     private static boolean initializeExplicitLogger()
     {
         var loggerContext = (LoggerContext) LogManager.getContext(false);
@@ -237,6 +240,69 @@ public class ConnectionWrapper implements java.sql.Connection
         return _spid;
     }
 
+    /**
+     * Cancel (via Statement.cancel()) every open statement on the connections opened by the given thread, e.g., to stop
+     * a runaway query that's running in the background. The thread will see a SQLException from the cancelled statement.
+     * @return the number of statements cancelled
+     */
+    public static int cancelStatements(Thread thread)
+    {
+        int count = 0;
+
+        for (ConnectionWrapper conn : getConnectionsForThread(thread))
+            count += conn.cancelStatements();
+
+        return count;
+    }
+
+    private static Set<ConnectionWrapper> getConnectionsForThread(Thread thread)
+    {
+        Set<ConnectionWrapper> result = new HashSet<>();
+        synchronized(_openConnections)
+        {
+            for (Map.Entry<ConnectionWrapper, Pair<Thread, Throwable>> entry : _openConnections.entrySet())
+            {
+                if (entry.getValue().getKey() == thread)
+                    result.add(entry.getKey());
+            }
+        }
+        return result;
+    }
+
+    /** Cancel every open statement on this connection */
+    public int cancelStatements()
+    {
+        StatementWrapper[] statements;
+        synchronized (_openStatements)
+        {
+            statements = _openStatements.toArray(new StatementWrapper[0]);
+        }
+
+        int count = 0;
+
+        for (StatementWrapper stmt : statements)
+        {
+            try
+            {
+                _log.debug("Cancelling statement on connection " + _count + ": " + stmt.getDebugSql());
+                stmt.cancel();
+                count++;
+            }
+            catch (SQLException e)
+            {
+                _log.warn("Error cancelling statement on connection " + _count, e);
+            }
+        }
+
+        return count;
+    }
+
+    /** Called by StatementWrapper.close() */
+    public void statementClosed(StatementWrapper stmt)
+    {
+        _openStatements.remove(stmt);
+    }
+
     @Override
     public Statement createStatement() throws SQLException
     {
@@ -383,6 +449,7 @@ public class ConnectionWrapper implements java.sql.Connection
     {
         _openConnections.remove(this);
         _loggedLeaks.remove(this);
+        _openStatements.clear();
 
         // The Tomcat connection pool violates the API for close() - it throws an exception
         // if it's already been closed instead of doing a no-op
@@ -580,18 +647,24 @@ public class ConnectionWrapper implements java.sql.Connection
 
     private StatementWrapper getStatementWrapper(ConnectionWrapper conn, Statement stmt)
     {
+        StatementWrapper wrapper;
         if (null == _scope)
-            return new StatementWrapper(conn, stmt);
+            wrapper = new StatementWrapper(conn, stmt);
         else
-            return _scope.getSqlDialect().getStatementWrapper(conn, stmt);
+            wrapper = _scope.getSqlDialect().getStatementWrapper(conn, stmt);
+        _openStatements.add(wrapper);
+        return wrapper;
     }
 
     private StatementWrapper getStatementWrapper(ConnectionWrapper conn, Statement stmt, String sql)
     {
+        StatementWrapper wrapper;
         if (null == _scope)
-            return new StatementWrapper(conn, stmt, sql);
+            wrapper = new StatementWrapper(conn, stmt, sql);
         else
-            return _scope.getSqlDialect().getStatementWrapper(conn, stmt, sql);
+            wrapper = _scope.getSqlDialect().getStatementWrapper(conn, stmt, sql);
+        _openStatements.add(wrapper);
+        return wrapper;
     }
 
 
@@ -129,6 +129,7 @@ public class DataRegion extends DisplayElement
     private boolean _errorCreatingResults = false;
 
     private Long _totalRows = null; // total rows in the query or null if unknown
+    private boolean _totalRowsEstimated = false; // true if _totalRows came from database statistics rather than COUNT(*)
     private Integer _rowCount = null; // number of rows in the result set or null if unknown
     private boolean _complete = false; // true if all rows are in the ResultSet
     private List<ButtonBarConfig> _buttonBarConfigs = new ArrayList<>();
@@ -810,6 +811,13 @@ public class DataRegion extends DisplayElement
     }
 
 
+    /** The selector for this region's rows (ignoring offset), built but not executed */
+    public TableSelector getResultsSelector(RenderContext ctx)
+    {
+        return ctx.getResultsSelector(getSelectColumns(), getDisplayColumns(), getTable(), getSettings(), getQueryParameters(), getMaxRows(), getName());
+    }
+
+
     public void addQueryColumns(Set<ColumnInfo> columns)
     {
         // no extra query columns added by default
@@ -827,6 +835,19 @@ public class DataRegion extends DisplayElement
             boolean countAggregate = getMaxRows() > 0 && !_complete && _showPagination && _showPaginationCount;
             countAggregate = countAggregate || (getMaxRows() == Table.ALL_ROWS && getTable() != null);
 
+            // Counting every row of a very large table can take longer than fetching the page, so use the database's
+            // estimate instead when the caller has said that's good enough
+            if (countAggregate && getMaxRows() > 0 && null != getSettings() && getSettings().isEstimateRowCount())
+            {
+                Long estimate = ctx.getEstimatedRowCount(_displayColumns, getTable(), getSettings(), getName(), getQueryParameters());
+                if (null != estimate)
+                {
+                    _totalRows = estimate;
+                    _totalRowsEstimated = true;
+                    countAggregate = false;
+                }
+            }
+
             List<Aggregate> baseAggregates = getSummaryStatsAggregates(ctx.getBaseSummaryStatsProviders());
 
             if (countAggregate)
@@ -875,6 +896,12 @@ public class DataRegion extends DisplayElement
         return _totalRows;
     }
 
+    /** @return true if getTotalRows() is an estimate from database statistics rather than an exact count */
+    public boolean isTotalRowsEstimated()
+    {
+        return _totalRowsEstimated;
+    }
+
     public void setTotalRows(Long totalRows)
     {
         if (_totalRows == null)
@@ -1359,6 +1386,7 @@ public class DataRegion extends DisplayElement
         dataRegionJSON.put("offset", getOffset());
         dataRegionJSON.put("maxRows", getMaxRows());
         dataRegionJSON.put("totalRows", _totalRows);
+        dataRegionJSON.put("totalRowsEstimated", _totalRowsEstimated);
         dataRegionJSON.put("rowCount", _rowCount);
         dataRegionJSON.put("showPagination", getShowPagination());
         dataRegionJSON.put("showPaginationCount", getShowPaginationCount());
@@ -245,6 +245,12 @@ public class DatabaseCache<K, V> implements Cache<K, V>
         return getCache().removeUsingFilter(filter);
     }
 
+    @Override
+    public void reweigh(@NotNull K key)
+    {
+        getCache().reweigh(key);
+    }
+
     @Override
     public Set<K> getKeys()
     {
@@ -129,6 +129,8 @@ public class DbSchemaCache
         {
             super(CacheManager.getCache(1000, CacheManager.UNLIMITED, "DbSchemas for " + dsName), new DbSchemaLoader());
             setCacheTimeChooser(SCHEMA_CACHE_TIME_CHOOSER);
+            // Reload schemas in the background shortly before they expire, so requests don't stall on schema metadata loads
+            setRefreshAhead(0.8);
         }
     }
 }
@@ -131,6 +131,16 @@ public class DbSequence
             return ret;
         }
 
+        /* package */
+        synchronized boolean releaseSequentialBlock(long start, int count)
+        {
+            // Only the most recently reserved values can be handed back, or they'd be handed out twice
+            if (null == _currentValue || count <= 0 || _currentValue != start + count - 1)
+                return false;
+            _currentValue = start - 1;
+            return true;
+        }
+
         @Override
         public synchronized void ensureMinimum(long minimum)
         {
@@ -88,6 +88,18 @@ public class DbSequenceManager
         return ((DbSequence.Preallocate)seq).reserveSequentialBlock(count);
     }
 
+    /**
+     * Hand back the unused end of a block from reserveSequentialBlock(), starting at start. This only works if nothing
+     * has taken values from the sequence since; otherwise the values are skipped, as they would have been anyway.
+     * @return true if the values will be handed out again
+     */
+    public static boolean releaseSequentialBlock(DbSequence seq, long start, int count)
+    {
+        if (!(seq instanceof DbSequence.Preallocate))
+            throw new IllegalStateException();
+        return ((DbSequence.Preallocate)seq).releaseSequentialBlock(start, count);
+    }
+
 
     private static int ensure(Container c, String name, int id)
     {
@@ -547,6 +559,23 @@ public class DbSequenceManager
             assertEquals(first+1, after);
         }
 
+        @Test
+        public void testReleaseSequentialBlock()
+        {
+            long start = DbSequenceManager.reserveSequentialBlock(_sequenceBulk, 500);
+            assertEquals(start + 499, _sequenceBulk.current());
+
+            // The unused end of the block is handed out again
+            assertTrue(DbSequenceManager.releaseSequentialBlock(_sequenceBulk, start + 10, 490));
+            assertEquals(start + 10, _sequenceBulk.next());
+
+            // Once more values have been taken, an earlier block can't be released
+            long second = DbSequenceManager.reserveSequentialBlock(_sequenceBulk, 10);
+            _sequenceBulk.next();
+            assertFalse(DbSequenceManager.releaseSequentialBlock(_sequenceBulk, second, 10));
+            assertEquals(second + 11, _sequenceBulk.next());
+        }
+
         @After
         public void cleanup()
         {
@@ -0,0 +1,353 @@
+/*
+ * Copyright (c) 2021 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.api.data;
+
+import org.apache.commons.lang3.StringUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+import org.labkey.api.collections.CaseInsensitiveHashMap;
+import org.labkey.api.data.dialect.SqlDialect;
+import org.labkey.api.query.FieldKey;
+import org.labkey.api.query.QueryService;
+import org.labkey.api.util.GUID;
+import org.labkey.api.util.JunitUtil;
+import org.labkey.api.view.BadRequestException;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Keyset ("seek") pagination. Instead of skipping OFFSET rows, each page after the first is selected with a WHERE
+ * clause that starts right after the last row of the previous page, so fetching page 1000 costs the same as page 1.
+ *
+ * The sort is completed with the table's primary key so every row has a unique position. The cursor handed to clients
+ * is an opaque token holding that sort and the last row's value for each sort column; it's only valid with the same
+ * sort, and filters that change between pages simply apply to the remaining rows.
+ */
+public class KeysetCursor
+{
+    private static final String SORT = "sort";
+    private static final String VALUES = "values";
+    private static final String TIMESTAMP = "ts";
+    private static final String NANOS = "nanos";
+
+    private final String _sort;
+    private final List<Object> _values;
+
+    private KeysetCursor(String sort, List<Object> values)
+    {
+        _sort = sort;
+        _values = values;
+    }
+
+    /**
+     * Append the table's primary key columns to the sort (if not already present) so the order is total, and check
+     * that every column can be compared by value; lookups sorted by display value and MV columns can't.
+     */
+    public static @NotNull Sort getKeysetSort(TableInfo table, @Nullable Sort sort)
+    {
+        Sort ret = new Sort();
+        if (null != sort)
+            ret.insertSort(sort);
+
+        List<ColumnInfo> pkCols = table.getPkColumns();
+        if (pkCols.isEmpty())
+            throw new BadRequestException("Keyset pagination requires a query with a primary key: " + table.getName());
+
+        for (ColumnInfo pkCol : pkCols)
+        {
+            if (!ret.contains(pkCol.getFieldKey()))
+                ret.appendSortColumn(pkCol.getFieldKey(), Sort.SortDirection.ASC, false);
+        }
+
+        List<FieldKey> fieldKeys = new ArrayList<>();
+        for (Sort.SortField sf : ret.getSortList())
+            fieldKeys.add(sf.getFieldKey());
+
+        Map<FieldKey, ColumnInfo> columns = QueryService.get().getColumns(table, fieldKeys);
+        for (FieldKey fieldKey : fieldKeys)
+        {
+            ColumnInfo col = columns.get(fieldKey);
+            List<FieldKey> sortFieldKeys = null == col ? null : col.getSortFieldKeys();
+
+            if (null == col || col.isMvEnabled() || (null != sortFieldKeys && !sortFieldKeys.equals(Collections.singletonList(fieldKey))))
+                throw new BadRequestException("Keyset pagination can't be used when sorting on " + fieldKey.toDisplayString());
+        }
+
+        return ret;
+    }
+
+    /** Create a cursor positioned after the row whose values are returned by getter */
+    public static KeysetCursor create(Sort keysetSort, Function<FieldKey, Object> getter)
+    {
+        List<Object> values = new ArrayList<>();
+        for (Sort.SortField sf : keysetSort.getSortList())
+            values.add(getter.apply(sf.getFieldKey()));
+
+        return new KeysetCursor(keysetSort.getSortParamValue(), values);
+    }
+
+    public static KeysetCursor decode(String token)
+    {
+        try
+        {
+            JSONObject json = new JSONObject(new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8));
+            JSONArray array = json.getJSONArray(VALUES);
+            List<Object> values = new ArrayList<>(array.length());
+
+            for (int i = 0; i < array.length(); i++)
+            {
+                Object value = array.isNull(i) ? null : array.get(i);
+
+                if (value instanceof JSONObject)
+                {
+                    Timestamp ts = new Timestamp(((JSONObject) value).getLong(TIMESTAMP));
+                    ts.setNanos(((JSONObject) value).getInt(NANOS));
+                    value = ts;
+                }
+                else if (null != value)
+                {
+                    value = value.toString();
+                }
+
+                values.add(value);
+            }
+
+            return new KeysetCursor(json.getString(SORT), values);
+        }
+        catch (IllegalArgumentException | JSONException e)
+        {
+            throw new BadRequestException("Invalid cursor: " + token, e);
+        }
+    }
+
+    public String encode()
+    {
+        JSONArray values = new JSONArray();
+
+        for (Object value : _values)
+        {
+            if (value instanceof Date)
+            {
+                // Keep sub-millisecond precision so rows with close timestamps aren't skipped or repeated
+                JSONObject ts = new JSONObject();
+                ts.put(TIMESTAMP, ((Date) value).getTime());
+                ts.put(NANOS, value instanceof Timestamp ? ((Timestamp) value).getNanos() : (int) Math.floorMod(((Date) value).getTime(), 1000L) * 1_000_000);
+                values.put(ts);
+            }
+            else
+            {
+                // Strings survive the round trip exactly (unlike JSON doubles); the filter converts them to the column's type
+                values.put(null == value ? JSONObject.NULL : value.toString());
+            }
+        }
+
+        JSONObject json = new JSONObject();
+        json.put(SORT, _sort);
+        json.put(VALUES, values);
+
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(json.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Build the clause selecting rows after this cursor: (k1 after v1) OR (k1 = v1 AND k2 after v2) OR ... where "after"
+     * follows each column's direction and where the dialect sorts NULLs.
+     *
+     * @param columns Resolved sort columns; NULL handling is only generated for nullable (or unknown) columns
+     */
+    public SimpleFilter.FilterClause createFilterClause(Sort keysetSort, Map<FieldKey, ? extends ColumnInfo> columns, SqlDialect dialect)
+    {
+        if (!StringUtils.equals(_sort, keysetSort.getSortParamValue()) || _values.size() != keysetSort.getSortList().size())
+            throw new BadRequestException("The cursor doesn't match the current sort; start again from the first page");
+
+        List<Sort.SortField> sortList = keysetSort.getSortList();
+        SimpleFilter.OrClause or = new SimpleFilter.OrClause();
+        boolean empty = true;
+
+        for (int i = 0; i < sortList.size(); i++)
+        {
+            SimpleFilter.FilterClause after = createAfterClause(sortList.get(i), _values.get(i), columns, dialect);
+            if (null == after)
+                continue;
+
+            SimpleFilter.AndClause and = new SimpleFilter.AndClause();
+            for (int j = 0; j < i; j++)
+            {
+                FieldKey fieldKey = sortList.get(j).getFieldKey();
+                Object value = _values.get(j);
+                and.addClause(null == value ? CompareType.ISBLANK.createFilterClause(fieldKey, null) : convertible(CompareType.EQUAL.createFilterClause(fieldKey, value)));
+            }
+            and.addClause(after);
+            or.addClause(and);
+            empty = false;
+        }
+
+        if (empty)
+            return new SimpleFilter.SQLClause("1 = 0", null);
+
+        return or;
+    }
+
+    private static @Nullable SimpleFilter.FilterClause createAfterClause(Sort.SortField sf, @Nullable Object value, Map<FieldKey, ? extends ColumnInfo> columns, SqlDialect dialect)
+    {
+        FieldKey fieldKey = sf.getFieldKey();
+        boolean ascending = sf.getSortDirection() == Sort.SortDirection.ASC;
+        boolean nullsLast = dialect.isNullSortedHigh() == ascending;
+        ColumnInfo col = columns.get(fieldKey);
+        boolean nullable = null == col || col.isNullable();
+
+        if (null == value)
+        {
+            // Nothing comes after NULL if NULLs sort last, otherwise every non-NULL value does
+            return nullsLast ? null : CompareType.NONBLANK.createFilterClause(fieldKey, null);
+        }
+
+        SimpleFilter.FilterClause compare = convertible((ascending ? CompareType.GT : CompareType.LT).createFilterClause(fieldKey, value));
+
+        if (nullsLast && nullable)
+            return new SimpleFilter.OrClause(compare, CompareType.ISBLANK.createFilterClause(fieldKey, null));
+
+        return compare;
+    }
+
+    // Cursor values are strings (or timestamps); convert them to the column's type when generating SQL
+    private static SimpleFilter.FilterClause convertible(SimpleFilter.FilterClause clause)
+    {
+        clause._needsTypeConversion = true;
+        return clause;
+    }
+
+    public static class TestCase extends Assert
+    {
+        @Test
+        public void testRoundTrip()
+        {
+            Timestamp ts = new Timestamp(1_600_000_000_123L);
+            ts.setNanos(123_456_789);
+            Sort sort = new Sort("-Created,Name,RowId");
+            Map<FieldKey, Object> row = Map.of(FieldKey.fromParts("Created"), ts, FieldKey.fromParts("RowId"), 42);
+
+            KeysetCursor cursor = decode(create(sort, row::get).encode());
+            assertEquals("-Created,Name,RowId", cursor._sort);
+            assertEquals(ts, cursor._values.get(0));
+            assertNull(cursor._values.get(1));
+            assertEquals("42", cursor._values.get(2));
+
+            try
+            {
+                decode("not a cursor");
+                fail("Expected BadRequestException");
+            }
+            catch (BadRequestException ignored)
+            {
+            }
+        }
+
+        @Test
+        public void testFilterClause()
+        {
+            SqlDialect dialect = CoreSchema.getInstance().getSqlDialect();
+            Sort sort = new Sort("-Name,RowId");
+            Map<FieldKey, Object> row = Map.of(FieldKey.fromParts("Name"), "b", FieldKey.fromParts("RowId"), 5);
+            SimpleFilter.FilterClause clause = decode(create(sort, row::get).encode()).createFilterClause(sort, Collections.emptyMap(), dialect);
+
+            // Name after 'b', or Name = 'b' and RowId after 5, plus NULL handling wherever NULLs sort last
+            SQLFragment sql = clause.toSQLFragment(Collections.emptyMap(), dialect);
+            assertTrue(sql.getSQL(), sql.getSQL().contains(" < ?"));
+            assertTrue(sql.getSQL(), sql.getSQL().contains(" = ?"));
+            assertTrue(sql.getSQL(), sql.getSQL().contains(" > ?"));
+            assertEquals(List.of("b", "b", "5"), sql.getParams());
+
+            try
+            {
+                create(sort, row::get).createFilterClause(new Sort("RowId"), Collections.emptyMap(), dialect);
+                fail("Expected BadRequestException");
+            }
+            catch (BadRequestException ignored)
+            {
+            }
+        }
+
+        // Page through a real table sorted on a column with NULLs and ties; keyset pages must match OFFSET pages
+        @Test
+        public void testPaging()
+        {
+            TableInfo testTable = TestSchema.getInstance().getTableInfoTestTable();
+            String containerId = JunitUtil.getTestContainer().getId();
+            String marker = GUID.makeHash();
+            int count = 40;
+            int pageSize = 7;
+
+            try
+            {
+                for (int i = 0; i < count; i++)
+                {
+                    new SqlExecutor(testTable.getSchema()).execute("INSERT INTO test.testtable (EntityId, Container, Text, IntNull, IntNotNull, DatetimeNotNull, BitNotNull) VALUES (?, ?, ?, ?, ?, ?, ?)",
+                        GUID.makeGUID(), containerId, marker + i, i % 4 == 0 ? null : i % 3, i % 5, new Timestamp(System.currentTimeMillis()), true);
+                }
+
+                Sort sort = getKeysetSort(testTable, new Sort("-IntNull,IntNotNull"));
+                assertEquals("-IntNull,IntNotNull,RowId", sort.getSortParamValue());
+                List<FieldKey> fieldKeys = List.of(FieldKey.fromParts("IntNull"), FieldKey.fromParts("IntNotNull"), FieldKey.fromParts("RowId"));
+                Map<FieldKey, ColumnInfo> columns = QueryService.get().getColumns(testTable, fieldKeys);
+                SqlDialect dialect = testTable.getSqlDialect();
+
+                List<Object> keysetIds = new ArrayList<>();
+                List<Object> offsetIds = new ArrayList<>();
+                KeysetCursor cursor = null;
+                for (int offset = 0; offset <= count; offset += pageSize)
+                {
+                    SimpleFilter filter = new SimpleFilter(FieldKey.fromParts("Text"), marker, CompareType.STARTS_WITH);
+                    if (null != cursor)
+                        filter.addClause(cursor.createFilterClause(sort, columns, dialect));
+                    Map<String, Object>[] page = new TableSelector(testTable, columns.values(), filter, sort).setMaxRows(pageSize).getMapArray();
+
+                    SimpleFilter offsetFilter = new SimpleFilter(FieldKey.fromParts("Text"), marker, CompareType.STARTS_WITH);
+                    for (Map<String, Object> row : new TableSelector(testTable, columns.values(), offsetFilter, sort).setMaxRows(pageSize).setOffset(offset).getMapArray())
+                        offsetIds.add(new CaseInsensitiveHashMap<>(row).get("RowId"));
+
+                    if (page.length == 0)
+                        break;
+                    for (Map<String, Object> row : page)
+                        keysetIds.add(new CaseInsensitiveHashMap<>(row).get("RowId"));
+
+                    // Through the token, as clients would use it
+                    Map<String, Object> last = new CaseInsensitiveHashMap<>(page[page.length - 1]);
+                    cursor = decode(create(sort, fieldKey -> last.get(fieldKey.getName())).encode());
+                }
+
+                assertEquals(count, keysetIds.size());
+                assertEquals(offsetIds, keysetIds);
+            }
+            finally
+            {
+                new SqlExecutor(testTable.getSchema()).execute("DELETE FROM test.testtable WHERE Text LIKE ?", marker + "%");
+            }
+        }
+    }
+}
@@ -26,6 +26,7 @@ import org.labkey.api.util.Pair;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -254,6 +255,39 @@ public class LookupColumn extends BaseColumnInfo
     }
 
 
+    /**
+     * True if this lookup joins at most one target row to each source row, so the join can't change the number of rows
+     * a query returns: an outer join on the target table's single-column primary key, from a column (and to a display
+     * column) whose own joins are also to-one. Such joins can be deferred until after rows are filtered and paged.
+     */
+    public boolean isToOneJoin()
+    {
+        if (_joinType != JoinType.leftOuter || !_additionalJoins.isEmpty())
+            return false;
+
+        TableInfo lookupTable = _lookupKey.getParentTable();
+        List<ColumnInfo> pkColumns = null == lookupTable ? Collections.emptyList() : lookupTable.getPkColumns();
+        if (pkColumns.size() != 1 || !pkColumns.get(0).getName().equalsIgnoreCase(_lookupKey.getName()))
+            return false;
+
+        return isToOne(_foreignKey) && (!includeLookupJoins() || isToOne(_lookupColumn));
+    }
+
+
+    /** True if the joins this column declares (if any) can't add rows to a query */
+    public static boolean isToOne(ColumnInfo column)
+    {
+        if (column instanceof WrappedColumn)
+            column = ((WrappedColumn) column).getWrappedColumn();
+        if (column instanceof LookupColumn)
+            return ((LookupColumn) column).isToOneJoin();
+
+        Map<String, SQLFragment> joins = new LinkedHashMap<>();
+        column.declareJoins("x", joins);
+        return joins.isEmpty();
+    }
+
+
     protected void addLookupSql(SQLFragment strJoin, TableInfo lookupTable, String alias)
     {
         strJoin.append(lookupTable.getFromSQL(alias));
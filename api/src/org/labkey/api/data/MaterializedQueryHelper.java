@@ -16,6 +16,8 @@
 package org.labkey.api.data;
 
 import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.junit.After;
@@ -25,11 +27,13 @@ import org.junit.Test;
 import org.labkey.api.action.SpringActionController;
 import org.labkey.api.cache.CacheListener;
 import org.labkey.api.cache.CacheManager;
+import org.labkey.api.data.dialect.SqlDialect;
 import org.labkey.api.test.TestWhen;
 import org.labkey.api.util.GUID;
 import org.labkey.api.util.HeartBeat;
 import org.labkey.api.util.JobRunner;
 import org.labkey.api.util.MemTracker;
+import org.labkey.api.util.Pair;
 
 import java.util.ArrayList;
 import java.util.Collection;
@@ -51,16 +55,21 @@ import static org.labkey.api.test.TestWhen.When.BVT;
  */
 public class MaterializedQueryHelper implements CacheListener, AutoCloseable
 {
+    private static final Logger LOG = LogManager.getLogger(MaterializedQueryHelper.class);
+
     private class Materialized
     {
         private final long _created;
         private final String _cacheKey;
         private final String _fromSql;
         private final ArrayList<Invalidator> _invalidators = new ArrayList<>(3);
+        // Updated when the table is refreshed in place; the invalidators still measure age from _created
+        private volatile long _refreshed;
 
         Materialized(String cacheKey, long created, String sql)
         {
             _created = created;
+            _refreshed = created;
             _cacheKey = cacheKey;
             _fromSql = sql;
         }
@@ -78,9 +87,14 @@ public class MaterializedQueryHelper implements CacheListener, AutoCloseable
         }
 
         void addInvalidator(Supplier<String> sup)
+        {
+            addInvalidator(sup, false);
+        }
+
+        void addInvalidator(Supplier<String> sup, boolean versioned)
         {
             if (null != sup)
-                _invalidators.add(new SupplierInvalidator(sup));
+                _invalidators.add(new SupplierInvalidator(sup, versioned));
         }
 
         void reset()
@@ -116,6 +130,12 @@ public class MaterializedQueryHelper implements CacheListener, AutoCloseable
             return CacheCheck.COALESCE;
         }
         abstract boolean stillValid(long createdTime);
+
+        /** Can the change this invalidator detects be applied by an incremental refresh? */
+        boolean allowsIncremental()
+        {
+            return false;
+        }
     }
 
 
@@ -163,11 +183,19 @@ public class MaterializedQueryHelper implements CacheListener, AutoCloseable
     private class SupplierInvalidator extends Invalidator
     {
         private final Supplier<String> _supplier;
+        private final boolean _versioned;
         private final AtomicReference<String> _result = new AtomicReference<>();
 
-        SupplierInvalidator(Supplier<String> sup)
+        SupplierInvalidator(Supplier<String> sup, boolean versioned)
         {
             _supplier = sup;
+            _versioned = versioned;
+        }
+
+        @Override
+        boolean allowsIncremental()
+        {
+            return _versioned;
         }
 
         @Override
@@ -193,9 +221,12 @@ public class MaterializedQueryHelper implements CacheListener, AutoCloseable
     private final SQLFragment _selectQuery;
     private final SQLFragment _uptodateQuery;
     private final Supplier<String> _supplier;
+    private final List<Pair<Supplier<String>, Boolean>> _tableChecks = new ArrayList<>();
     private final List<String> _indexes = new ArrayList<>();
     private final long _maxTimeToCache;
     private final boolean _perContainer;
+    private final @Nullable String _keyColumn;
+    private final @Nullable String _versionColumn;
     private final LinkedHashMap<String, Materialized> _map = new LinkedHashMap<String,Materialized>()
     {
         @Override
@@ -209,12 +240,13 @@ public class MaterializedQueryHelper implements CacheListener, AutoCloseable
     // DEBUG variables
     private final AtomicInteger _countGetFromSql = new AtomicInteger();
     private final AtomicInteger _countSelectInto = new AtomicInteger();
+    private final AtomicInteger _countRefresh = new AtomicInteger();
     private final AtomicLong _lastUsed = new AtomicLong(HeartBeat.currentTimeMillis());
 
     private boolean _closed = false;
 
     private MaterializedQueryHelper(String prefix, DbScope scope, SQLFragment select, @Nullable SQLFragment uptodate, Supplier<String> supplier, @Nullable Collection<String> indexes, long maxTimeToCache,
-                                    boolean perContainer)
+                                    boolean perContainer, @Nullable String keyColumn, @Nullable String versionColumn, @Nullable List<Pair<Supplier<String>, Boolean>> tableChecks)
     {
         _prefix = StringUtils.defaultString(prefix,"mat");
         _scope = scope;
@@ -223,8 +255,12 @@ public class MaterializedQueryHelper implements CacheListener, AutoCloseable
         _supplier = supplier;
         _maxTimeToCache = maxTimeToCache;
         _perContainer = perContainer;
+        _keyColumn = keyColumn;
+        _versionColumn = versionColumn;
         if (null != indexes)
             _indexes.addAll(indexes);
+        if (null != tableChecks)
+            _tableChecks.addAll(tableChecks);
         if (perContainer)
             throw new UnsupportedOperationException("NYI");
         assert MemTracker.get().put(this);
@@ -332,12 +368,22 @@ public class MaterializedQueryHelper implements CacheListener, AutoCloseable
         if (null != materialized)
         {
             boolean replace = false;
+            // Outside a transaction an incremental helper can bring the existing table up to date instead of replacing it,
+            // but only if every change it detected is one the version column reflects
+            boolean incremental = null != _keyColumn && !_scope.isTransactionActive();
             for (Invalidator i : materialized._invalidators)
             {
                 CacheCheck cc = i.checkValid(materialized._created);
                 if (cc != CacheCheck.OK)
+                {
                     replace = true;
+                    if (!i.allowsIncremental())
+                        incremental = false;
+                }
             }
+            if (replace && incremental && refresh(materialized, selectQuery, now))
+                replace = false;
+
             if (replace)
             {
                 synchronized (this)
@@ -357,6 +403,8 @@ public class MaterializedQueryHelper implements CacheListener, AutoCloseable
             materialized.addMaxTimeToCache(_maxTimeToCache);
             materialized.addUpToDateQuery(_uptodateQuery);
             materialized.addInvalidator(_supplier);
+            for (Pair<Supplier<String>, Boolean> check : _tableChecks)
+                materialized.addInvalidator(check.first, check.second);
             // CONSIDER: copy over old validators (if previous materialized) so we don't need to reset
             materialized.reset();
 
@@ -395,6 +443,66 @@ public class MaterializedQueryHelper implements CacheListener, AutoCloseable
     }
 
 
+    /**
+     * Bring an existing materialized table up to date in place. The query is evaluated once for just the key and version
+     * of every row, into a temp table. Materialized rows whose key is gone or whose version differs are deleted, then the
+     * rows for the keys that are left over are re-read. Versions are compared for equality, not ordered, so rows whose
+     * changes committed late or were stamped by a server with a skewed clock aren't missed. Readers see either the old or
+     * the new contents, since the changes are made in one transaction.
+     *
+     * @return false if the table couldn't be refreshed, in which case the caller should rebuild it
+     */
+    private boolean refresh(Materialized materialized, SQLFragment selectQuery, long checked)
+    {
+        synchronized (materialized)
+        {
+            // Another thread refreshed it while we were waiting
+            if (materialized._refreshed >= checked)
+                return true;
+
+            SqlDialect dialect = _scope.getSqlDialect();
+            String mat = materialized._fromSql;
+            String key = dialect.makeLegalIdentifier(_keyColumn);
+            String version = dialect.makeLegalIdentifier(_versionColumn);
+            String current = "\"" + DbSchema.getTemp().getName() + "\".\"" + _prefix + "_" + GUID.makeHash() + "\"";
+
+            SQLFragment selectCurrent = new SQLFragment("SELECT " + key + ", " + version + " INTO " + current + "\nFROM (\n");
+            selectCurrent.append(selectQuery).append("\n) _sql_");
+
+            String sameVersion = "(_cur_." + version + " = " + mat + "." + version + " OR (_cur_." + version + " IS NULL AND " + mat + "." + version + " IS NULL))";
+            SQLFragment deleteStale = new SQLFragment("DELETE FROM " + mat + "\nWHERE NOT EXISTS (SELECT 1 FROM " + current + " _cur_ WHERE _cur_." + key + " = " + mat + "." + key + " AND " + sameVersion + ")");
+
+            // What's left in the temp table are the keys that are new or changed
+            SQLFragment deleteCurrent = new SQLFragment("DELETE FROM " + current + "\nWHERE EXISTS (SELECT 1 FROM " + mat + " WHERE " + mat + "." + key + " = " + current + "." + key + ")");
+
+            SQLFragment insert = new SQLFragment("INSERT INTO " + mat + "\nSELECT * FROM (\n").append(selectQuery);
+            insert.append("\n) _sql_\nWHERE " + key + " IN (SELECT " + key + " FROM " + current + ")");
+
+            try (var ignored = SpringActionController.ignoreSqlUpdates(); DbScope.Transaction tx = _scope.ensureTransaction())
+            {
+                long now = HeartBeat.currentTimeMillis();
+                SqlExecutor executor = new SqlExecutor(_scope);
+                executor.execute(selectCurrent);
+                executor.execute(deleteStale);
+                executor.execute(deleteCurrent);
+                if (new SqlSelector(_scope, "SELECT 1 FROM " + current).exists())
+                    executor.execute(insert);
+                executor.execute("DROP TABLE " + current);
+                tx.commit();
+
+                materialized._refreshed = now;
+                _countRefresh.incrementAndGet();
+                return true;
+            }
+            catch (RuntimeSQLException e)
+            {
+                LOG.debug("Incremental refresh of " + mat + " failed, rebuilding", e);
+                return false;
+            }
+        }
+    }
+
+
     /**
      *  To be consistent with CacheManager maxTimeToCache==0 means UNLIMITED, so we use maxTimeToCache==-1 to mean no caching, just materialize and return
      *
@@ -410,14 +518,14 @@ public class MaterializedQueryHelper implements CacheListener, AutoCloseable
     @Deprecated // use Builder
     public static MaterializedQueryHelper create(String prefix, DbScope scope, SQLFragment select, @Nullable SQLFragment uptodate, Collection<String> indexes, long maxTimeToCache)
     {
-        return new MaterializedQueryHelper(prefix, scope, select, uptodate, null, indexes, maxTimeToCache, false);
+        return new MaterializedQueryHelper(prefix, scope, select, uptodate, null, indexes, maxTimeToCache, false, null, null, null);
     }
 
 
     @Deprecated // use Builder
     public static MaterializedQueryHelper create(String prefix, DbScope scope, SQLFragment select, Supplier<String> uptodate, Collection<String> indexes, long maxTimeToCache)
     {
-        return new MaterializedQueryHelper(prefix, scope, select, null, uptodate, indexes, maxTimeToCache, false);
+        return new MaterializedQueryHelper(prefix, scope, select, null, uptodate, indexes, maxTimeToCache, false, null, null, null);
     }
 
 
@@ -431,6 +539,9 @@ public class MaterializedQueryHelper implements CacheListener, AutoCloseable
         private SQLFragment _uptodate = null;
         private Supplier<String> _supplier = null;
         private Collection<String> _indexes = new ArrayList<>();
+        private List<Pair<Supplier<String>, Boolean>> _tableChecks = new ArrayList<>();
+        private String _keyColumn = null;
+        private String _versionColumn = null;
 
         public Builder(String prefix, DbScope scope, SQLFragment select)
         {
@@ -457,16 +568,40 @@ public class MaterializedQueryHelper implements CacheListener, AutoCloseable
             return this;
         }
 
+        /**
+         * Invalidate when a table the query reads from changes, as reported by the token supplier (e.g.
+         * QueryResultCache.getChangeToken()). Pass versioned=true only if every change to the table shows up in the
+         * version column passed to incremental(); changes to any other table, and all other invalidation checks,
+         * rebuild the results instead of refreshing them.
+         */
+        public Builder addTableInvalidCheck(Supplier<String> changeToken, boolean versioned)
+        {
+            _tableChecks.add(new Pair<>(changeToken, versioned));
+            return this;
+        }
+
         public Builder addIndex(String index)
         {
             _indexes.add(index);
             return this;
         }
 
+        /**
+         * Refresh out of date results in place instead of rebuilding the table, when the only changes detected are to
+         * versioned tables (see addTableInvalidCheck()). Both columns are aliases in the select; the key must be unique
+         * and non-null, and the version (e.g. a modified timestamp or row version) must change whenever a row changes.
+         */
+        public Builder incremental(String keyColumn, String versionColumn)
+        {
+            _keyColumn = keyColumn;
+            _versionColumn = versionColumn;
+            return this;
+        }
+
         @Override
         public MaterializedQueryHelper build()
         {
-            return new MaterializedQueryHelper(_prefix, _scope, _select, _uptodate, _supplier, _indexes, _max, false);
+            return new MaterializedQueryHelper(_prefix, _scope, _select, _uptodate, _supplier, _indexes, _max, false, _keyColumn, _versionColumn, _tableChecks);
         }
     }
 
@@ -479,7 +614,7 @@ public class MaterializedQueryHelper implements CacheListener, AutoCloseable
         {
             DbSchema temp = DbSchema.getTemp();
             temp.dropTableIfExists("MQH_TESTCASE");
-            new SqlExecutor(temp).execute("CREATE TABLE temp.MQH_TESTCASE (x INT)");
+            new SqlExecutor(temp).execute("CREATE TABLE temp.MQH_TESTCASE (x INT, v INT)");
         }
 
         @After
@@ -507,6 +642,82 @@ public class MaterializedQueryHelper implements CacheListener, AutoCloseable
             }
         }
 
+        @Test
+        public void testIncremental()
+        {
+            DbSchema temp = DbSchema.getTemp();
+            SqlExecutor executor = new SqlExecutor(temp);
+            executor.execute("INSERT INTO temp.MQH_TESTCASE (x, v) VALUES (1, 1), (2, 1)");
+            SQLFragment select = new SQLFragment("SELECT x, v FROM temp.MQH_TESTCASE");
+            AtomicInteger changes = new AtomicInteger();
+
+            try (MaterializedQueryHelper mqh = new Builder("test", temp.getScope(), select)
+                    .addTableInvalidCheck(() -> String.valueOf(changes.get()), true)
+                    .incremental("x", "v")
+                    .build())
+            {
+                SQLFragment before = mqh.getFromSql("_", null);
+                executor.execute("UPDATE temp.MQH_TESTCASE SET v = 2 WHERE x = 2");
+                executor.execute("DELETE FROM temp.MQH_TESTCASE WHERE x = 1");
+                // An older version than any materialized so far, as if its transaction committed late
+                executor.execute("INSERT INTO temp.MQH_TESTCASE (x, v) VALUES (3, 0)");
+                changes.incrementAndGet();
+
+                // Same table, brought up to date in place
+                SQLFragment after = mqh.getFromSql("_", null);
+                assertEquals(before, after);
+                assertEquals(1, mqh._countSelectInto.get());
+                assertEquals(1, mqh._countRefresh.get());
+
+                SQLFragment rows = new SQLFragment("SELECT x, v FROM ").append(after).append(" ORDER BY x");
+                List<Map<String, Object>> maps = new ArrayList<>(new SqlSelector(temp, rows).getMapCollection());
+                assertEquals(2, maps.size());
+                assertEquals(2, maps.get(0).get("x"));
+                assertEquals(2, maps.get(0).get("v"));
+                assertEquals(3, maps.get(1).get("x"));
+                assertEquals(0, maps.get(1).get("v"));
+            }
+        }
+
+        @Test
+        public void testIncrementalRebuild()
+        {
+            DbSchema temp = DbSchema.getTemp();
+            SqlExecutor executor = new SqlExecutor(temp);
+            executor.execute("INSERT INTO temp.MQH_TESTCASE (x, v) VALUES (1, 1), (2, 1)");
+            SQLFragment select = new SQLFragment("SELECT x, v FROM temp.MQH_TESTCASE");
+            AtomicInteger versioned = new AtomicInteger();
+            AtomicInteger lookup = new AtomicInteger();
+
+            try (MaterializedQueryHelper mqh = new Builder("test", temp.getScope(), select)
+                    .addTableInvalidCheck(() -> String.valueOf(versioned.get()), true)
+                    .addTableInvalidCheck(() -> String.valueOf(lookup.get()), false)
+                    .incremental("x", "v")
+                    .build())
+            {
+                SQLFragment before = mqh.getFromSql("_", null);
+
+                // A change the version column can't reflect (e.g. a joined table) forces a rebuild
+                lookup.incrementAndGet();
+                SQLFragment after = mqh.getFromSql("_", null);
+                assertNotEquals(before, after);
+                assertEquals(2, mqh._countSelectInto.get());
+                assertEquals(0, mqh._countRefresh.get());
+
+                // Even when it coincides with a versioned change
+                versioned.incrementAndGet();
+                lookup.incrementAndGet();
+                mqh.getFromSql("_", null);
+                assertEquals(3, mqh._countSelectInto.get());
+                assertEquals(0, mqh._countRefresh.get());
+
+                versioned.incrementAndGet();
+                mqh.getFromSql("_", null);
+                assertEquals(3, mqh._countSelectInto.get());
+                assertEquals(1, mqh._countRefresh.get());
+            }
+        }
+
         @Test
         public void testThreads() throws Exception
         {
@@ -0,0 +1,449 @@
+package org.labkey.api.data;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A plain INSERT that sends rows to the database many at a time. Rows passed to addBatch() are buffered and
+ * executeBatch() writes them with multi-row INSERT INTO ... VALUES (...), (...) statements or, on PostgreSQL when every
+ * value is a parameter, with the COPY protocol. Either way that's one round trip per chunk of rows instead of one per row.
+ * (For COPY's sake StatementUtils binds the container as a constant parameter rather than a literal on PostgreSQL.)
+ *
+ * StatementUtils creates these (see StatementUtils.multiRowInsert()) only for inserts without exp.Object handling or
+ * reselected ids. If a row holds a value that can't be buffered (e.g., a file or an array) the rest of the current batch
+ * falls back to the standard JDBC batch on the single-row statement. execute() always inserts only the current row.
+ */
+public class MultiRowInsertStatement extends ParameterMapStatement
+{
+    private static final int MAX_ROWS_PER_STATEMENT = 1000;         // SQL Server's limit for a VALUES list; plenty for PostgreSQL
+    private static final int MAX_PARAMETERS_SQLSERVER = 2000;       // Real limit is 2100
+    private static final int MAX_PARAMETERS_POSTGRESQL = 32000;     // Real limit is 32767 (the driver sends the count as a short)
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final String _insertInto;           // INSERT INTO table (col1, col2, ...)
+    private final @Nullable String _copyFrom;   // COPY table (col1, col2, ...) FROM STDIN, or null if any value is a literal
+    private final int[] _valueParameters;       // for each column, index into _parameters or -1 for a literal
+    private final String[] _literals;           // for each column, the literal SQL if the value isn't a parameter
+    private final int _maxRowsPerStatement;
+
+    private final List<Object[]> _rows = new ArrayList<>();
+    private boolean _fallback = false;
+
+    // How many rows went each way, so tests can tell which path ran
+    private int _copiedRowCount = 0;
+    private int _valuesRowCount = 0;
+    private int _batchedRowCount = 0;
+
+    // Cached statement for a full chunk of _maxRowsPerStatement rows, with a reusable Parameter for each placeholder
+    private PreparedStatement _chunkStmt = null;
+    private Parameter[] _chunkParameters = null;
+
+    /**
+     * @param singleRowSql the standard single-row insert, used by execute() and by batches that fall back
+     * @param values value of each column for a single row, each either a single Parameter ("?") or a literal
+     */
+    MultiRowInsertStatement(@NotNull DbScope scope, Connection conn, SQLFragment singleRowSql, @Nullable Map<String, String> remap,
+                            String tableSelectName, List<String> columnSelectNames, List<SQLFragment> values)
+    {
+        super(scope, conn, singleRowSql, remap);
+
+        assert isSupported(values);
+        String columns = String.join(", ", columnSelectNames);
+        _insertInto = "INSERT INTO " + tableSelectName + " (" + columns + ")";
+        _valueParameters = new int[values.size()];
+        _literals = new String[values.size()];
+        boolean allParameters = true;
+        int parameterCount = 0;
+
+        for (int i = 0; i < values.size(); i++)
+        {
+            SQLFragment value = values.get(i);
+
+            if (value.getParams().isEmpty())
+            {
+                _valueParameters[i] = -1;
+                _literals[i] = value.getSQL();
+                allParameters = false;
+            }
+            else
+            {
+                _valueParameters[i] = indexOf((Parameter) value.getParams().get(0));
+                parameterCount++;
+            }
+        }
+
+        _copyFrom = allParameters && _dialect.isPostgreSQL() ? "COPY " + tableSelectName + " (" + columns + ") FROM STDIN" : null;
+        int maxParameters = _dialect.isSqlServer() ? MAX_PARAMETERS_SQLSERVER : MAX_PARAMETERS_POSTGRESQL;
+        _maxRowsPerStatement = Math.max(1, Math.min(MAX_ROWS_PER_STATEMENT, maxParameters / Math.max(1, parameterCount)));
+    }
+
+    private MultiRowInsertStatement(MultiRowInsertStatement from)
+    {
+        super(from);
+        _insertInto = from._insertInto;
+        _copyFrom = from._copyFrom;
+        _valueParameters = from._valueParameters;
+        _literals = from._literals;
+        _maxRowsPerStatement = from._maxRowsPerStatement;
+    }
+
+    /** Can these single-row values be rendered as a multi-row insert? Each must be a lone parameter or a literal. */
+    static boolean isSupported(List<SQLFragment> values)
+    {
+        for (SQLFragment value : values)
+        {
+            List<Object> params = value.getParams();
+
+            if (params.isEmpty())
+                continue;
+
+            if (params.size() != 1 || !(params.get(0) instanceof Parameter) || !"?".equals(value.getSQL().trim()))
+                return false;
+        }
+
+        return !values.isEmpty();
+    }
+
+    private int indexOf(Parameter p)
+    {
+        for (int i = 0; i < _parameters.length; i++)
+            if (_parameters[i] == p)
+                return i;
+
+        throw new IllegalStateException("Parameter not found: " + p);
+    }
+
+    @Override
+    public ParameterMapStatement copy()
+    {
+        if (null == _sqlf || null == _conn)
+            throw new IllegalStateException("Copy can only be used on ParameterMap constructed with SQL");
+        return new MultiRowInsertStatement(this);
+    }
+
+    @Override
+    public void addBatch()
+    {
+        if (!_fallback)
+        {
+            prepareParametersBeforeExecute();
+            Object[] row = new Object[_parameters.length];
+
+            for (int i = 0; i < _parameters.length; i++)
+            {
+                Object value = _parameters[i]._boundValue;
+
+                if (!isBufferable(value))
+                {
+                    // Keep the rows in order: write what's buffered so far, then batch the rest of this batch row by row
+                    flushRows();
+                    _fallback = true;
+                    break;
+                }
+
+                row[i] = value;
+            }
+
+            if (!_fallback)
+            {
+                _rows.add(row);
+                return;
+            }
+        }
+
+        super.addBatch();
+        _batchedRowCount++;
+    }
+
+    int getCopiedRowCount()
+    {
+        return _copiedRowCount;
+    }
+
+    int getValuesRowCount()
+    {
+        return _valuesRowCount;
+    }
+
+    int getBatchedRowCount()
+    {
+        return _batchedRowCount;
+    }
+
+    private static boolean isBufferable(@Nullable Object value)
+    {
+        return null == value || value instanceof Number || value instanceof String || value instanceof Boolean ||
+                value instanceof java.util.Date || value instanceof byte[];
+    }
+
+    @Override
+    public void executeBatch()
+    {
+        if (_fallback)
+        {
+            _fallback = false;
+            super.executeBatch();
+        }
+        else
+        {
+            _rowId = null;
+            _objectId = null;
+            flushRows();
+        }
+    }
+
+    private void flushRows()
+    {
+        if (_rows.isEmpty())
+            return;
+
+        try
+        {
+            PGConnection pg = null != _copyFrom ? getPgConnection() : null;
+
+            if (null != pg)
+            {
+                copyRows(pg);
+                _copiedRowCount += _rows.size();
+            }
+            else
+            {
+                insertRows();
+                _valuesRowCount += _rows.size();
+            }
+        }
+        catch (SQLException x)
+        {
+            throw _exceptionFramework.translate(_scope, "Inserting " + _rows.size() + " rows", x);
+        }
+        finally
+        {
+            _rows.clear();
+        }
+    }
+
+    private @Nullable PGConnection getPgConnection() throws SQLException
+    {
+        if (_conn.isWrapperFor(PGConnection.class))
+            return _conn.unwrap(PGConnection.class);
+
+        // ConnectionWrapper unwraps a single level, but the pooled connection it holds usually wraps the driver's connection
+        Connection inner = _conn.unwrap(Connection.class);
+        if (null != inner && inner != _conn && inner.isWrapperFor(PGConnection.class))
+            return inner.unwrap(PGConnection.class);
+
+        return null;
+    }
+
+    private void insertRows() throws SQLException
+    {
+        int start = 0;
+
+        while (start < _rows.size())
+        {
+            int count = Math.min(_maxRowsPerStatement, _rows.size() - start);
+
+            if (count == _maxRowsPerStatement)
+            {
+                if (null == _chunkStmt)
+                {
+                    _chunkStmt = _conn.prepareStatement(getInsertSql(count));
+                    _chunkParameters = createParameters(_chunkStmt, count);
+                }
+                bindAndExecute(_chunkStmt, _chunkParameters, start, count);
+            }
+            else
+            {
+                try (PreparedStatement stmt = _conn.prepareStatement(getInsertSql(count)))
+                {
+                    bindAndExecute(stmt, createParameters(stmt, count), start, count);
+                }
+            }
+
+            start += count;
+        }
+    }
+
+    private String getInsertSql(int rowCount)
+    {
+        StringBuilder sql = new StringBuilder(_insertInto.length() + rowCount * _valueParameters.length * 4);
+        sql.append(_insertInto).append("\nVALUES ");
+        String rowSep = "";
+
+        for (int row = 0; row < rowCount; row++)
+        {
+            sql.append(rowSep).append("(");
+            rowSep = ", ";
+            String sep = "";
+
+            for (int col = 0; col < _valueParameters.length; col++)
+            {
+                sql.append(sep).append(-1 == _valueParameters[col] ? _literals[col] : "?");
+                sep = ", ";
+            }
+
+            sql.append(")");
+        }
+
+        return sql.toString();
+    }
+
+    private Parameter[] createParameters(PreparedStatement stmt, int rowCount)
+    {
+        List<Parameter> parameters = new ArrayList<>();
+        int index = 1;
+
+        for (int row = 0; row < rowCount; row++)
+            for (int valueParameter : _valueParameters)
+                if (-1 != valueParameter)
+                    parameters.add(new Parameter(stmt, index++, _parameters[valueParameter].getType()));
+
+        return parameters.toArray(new Parameter[0]);
+    }
+
+    private void bindAndExecute(PreparedStatement stmt, Parameter[] parameters, int start, int count) throws SQLException
+    {
+        int p = 0;
+
+        try
+        {
+            for (int row = start; row < start + count; row++)
+            {
+                Object[] values = _rows.get(row);
+
+                for (int valueParameter : _valueParameters)
+                    if (-1 != valueParameter)
+                        parameters[p++].setValue(values[valueParameter]);
+            }
+        }
+        catch (RuntimeSQLException x)
+        {
+            throw x.getSQLException();
+        }
+
+        stmt.executeUpdate();
+    }
+
+    private void copyRows(PGConnection pg) throws SQLException
+    {
+        CopyIn copyIn = pg.getCopyAPI().copyIn(_copyFrom);
+
+        try
+        {
+            StringBuilder sb = new StringBuilder(COPY_BUFFER_SIZE + 1024);
+
+            for (Object[] values : _rows)
+            {
+                String sep = "";
+
+                for (int valueParameter : _valueParameters)
+                {
+                    sb.append(sep);
+                    sep = "\t";
+                    appendCopyValue(sb, values[valueParameter], _parameters[valueParameter].getType());
+                }
+
+                sb.append('\n');
+
+                if (sb.length() >= COPY_BUFFER_SIZE)
+                {
+                    writeToCopy(copyIn, sb);
+                    sb.setLength(0);
+                }
+            }
+
+            writeToCopy(copyIn, sb);
+            copyIn.endCopy();
+        }
+        finally
+        {
+            if (copyIn.isActive())
+                copyIn.cancelCopy();
+        }
+    }
+
+    private static void writeToCopy(CopyIn copyIn, StringBuilder sb) throws SQLException
+    {
+        byte[] bytes = sb.toString().getBytes(StandardCharsets.UTF_8);
+        copyIn.writeToCopy(bytes, 0, bytes.length);
+    }
+
+    // Render a value in COPY's text format: \N for NULL, backslash escapes for the delimiter, newlines, and backslash itself
+    static void appendCopyValue(StringBuilder sb, @Nullable Object value, @Nullable JdbcType type)
+    {
+        if (null == value)
+        {
+            sb.append("\\N");
+        }
+        else if (value instanceof Boolean && (null == type || type == JdbcType.BOOLEAN))
+        {
+            sb.append((Boolean) value ? 't' : 'f');
+        }
+        else if (value instanceof BigDecimal)
+        {
+            sb.append(((BigDecimal) value).toPlainString());
+        }
+        else if (value instanceof Number)
+        {
+            sb.append(value);
+        }
+        else if (value instanceof byte[])
+        {
+            // bytea hex format; the backslash itself must be escaped
+            sb.append("\\\\x");
+            for (byte b : (byte[]) value)
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        else
+        {
+            String s = value instanceof java.util.Date && !(value instanceof java.sql.Date || value instanceof java.sql.Time || value instanceof java.sql.Timestamp)
+                    ? new java.sql.Timestamp(((java.util.Date) value).getTime()).toString()
+                    : value.toString();
+
+            for (int i = 0; i < s.length(); i++)
+            {
+                char c = s.charAt(i);
+
+                switch (c)
+                {
+                    case '\\' -> sb.append("\\\\");
+                    case '\t' -> sb.append("\\t");
+                    case '\n' -> sb.append("\\n");
+                    case '\r' -> sb.append("\\r");
+                    default -> sb.append(c);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        if (null != _chunkStmt)
+        {
+            try
+            {
+                _chunkStmt.close();
+            }
+            catch (SQLException e)
+            {
+                Parameter.LOG.warn("Failed to close multi-row insert statement", e);
+            }
+            _chunkStmt = null;
+            _chunkParameters = null;
+        }
+
+        super.close();
+    }
+}
@@ -75,6 +75,14 @@ public class MultiValuedLookupColumn extends LookupColumn
     }
 
 
+    // The join is to a subquery grouped by the child key, so there's at most one row per parent
+    @Override
+    public boolean isToOneJoin()
+    {
+        return isToOne(_foreignKey);
+    }
+
+
     @Override
     protected void addLookupSql(SQLFragment strJoin, TableInfo lookupTable, String alias)
     {
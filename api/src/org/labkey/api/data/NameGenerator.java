@@ -19,6 +19,8 @@ import org.apache.commons.beanutils.ConvertUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.junit.Assert;
+import org.junit.Test;
 import org.labkey.api.collections.CaseInsensitiveHashMap;
 import org.labkey.api.exp.api.ExpData;
 import org.labkey.api.exp.api.ExpMaterial;
@@ -31,6 +33,7 @@ import org.labkey.api.util.StringExpressionFactory.AbstractStringExpression.Null
 import org.labkey.api.util.StringExpressionFactory.FieldKeyStringExpression;
 import org.labkey.api.util.StringUtilsLabKey;
 import org.labkey.api.util.SubstitutionFormat;
+import org.labkey.api.util.TestContext;
 import org.labkey.api.util.Tuple3;
 
 import java.sql.SQLException;
@@ -40,6 +43,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.ListIterator;
@@ -58,8 +62,15 @@ import static org.labkey.api.util.SubstitutionFormat.monthlySampleCount;
 import static org.labkey.api.util.SubstitutionFormat.weeklySampleCount;
 import static org.labkey.api.util.SubstitutionFormat.yearlySampleCount;
 
+/**
+ * Generates names from a name expression, one row at a time or for a batch. For a batch, generateNames() reserves the
+ * batch's sample counter values in one go and looks up ${lookup/column} values for all of its rows with one IN query
+ * per lookup, rather than going to the database as each name is generated.
+ */
 public class NameGenerator
 {
+    private static final int LOOKUP_BATCH_SIZE = 1000;
+
     private final TableInfo _parentTable;
     private final FieldKeyStringExpression _parsedNameExpression;
 
@@ -67,6 +78,8 @@ public class NameGenerator
     private boolean _exprHasSampleCounterFormats = false;
     private boolean _exprHasLineageInputs = false;
     private Map<FieldKey, TableInfo> _exprLookups = Collections.emptyMap();
+    // propertyURI -> column name for the parent table's columns, so rows keyed by propertyURI can use short names
+    private Map<String, String> _columnNamesByPropertyURI = Collections.emptyMap();
 
     public NameGenerator(@NotNull String nameExpression, @Nullable TableInfo parentTable, boolean allowSideEffects, @Nullable Map<String, String> importAliases)
     {
@@ -201,6 +214,17 @@ public class NameGenerator
             _exprLookups = fieldKeyLookup;
         }
 
+        if (_parentTable != null)
+        {
+            Map<String, String> columnNames = new LinkedHashMap<>();
+            for (ColumnInfo col : _parentTable.getColumns())
+            {
+                if (col.getPropertyURI() != null)
+                    columnNames.put(col.getPropertyURI(), col.getName());
+            }
+            _columnNamesByPropertyURI = columnNames;
+        }
+
         _exprHasSampleCounterFormats = hasSampleCounterFormat;
         _exprHasLineageInputs = hasLineageInputs;
     }
@@ -212,6 +236,9 @@ public class NameGenerator
                               boolean skipDuplicates)
             throws NameGenerationException
     {
+        state.reserveSampleCounts(maps.size());
+        state.prefetchLookups(maps);
+
         ListIterator<Map<String, Object>> li = maps.listIterator();
         while (li.hasNext())
         {
@@ -268,6 +295,12 @@ public class NameGenerator
         private int _rowNumber = 0;
         private Map<Tuple3<String, Object, FieldKey>, Object> _lookupCache;
 
+        // Sample counter values reserved ahead of the names that will use them, see reserveSampleCounts()
+        private Map<String, DbSequence> _sampleCountSequences;
+        private final Map<String, Long> _reservedSampleCounts = new HashMap<>();
+        private int _reservedCount = 0;
+        private int _reservedUsed = 0;
+
         private State(boolean incrementSampleCounts)
         {
             _incrementSampleCounts = incrementSampleCounts;
@@ -285,9 +318,151 @@ public class NameGenerator
         @Override
         public void close()
         {
+            releaseSampleCounts();
             _rowNumber = -1;
         }
 
+        /**
+         * Reserve sample counter values for the next count names with one call per counter, rather than taking them
+         * one name at a time. Values that are still unused when the state is closed, or when the next block is
+         * reserved, are handed back unless something else has taken values from the counters since. Callers should
+         * reserve exactly as many values as they are about to name, since the counters are shared across containers
+         * and concurrent imports would otherwise skip the values held by this state.
+         */
+        public void reserveSampleCounts(int count)
+        {
+            if (!_incrementSampleCounts || _exprHasSampleCounterFormats || count < 2)
+                return;
+
+            releaseSampleCounts();
+
+            if (null == _sampleCountSequences)
+            {
+                Date now = (Date)_batchExpressionContext.get("now");
+                _sampleCountSequences = SampleTypeService.get().getSampleCountSequences(now);
+            }
+
+            for (Map.Entry<String, DbSequence> entry : _sampleCountSequences.entrySet())
+            {
+                _reservedSampleCounts.put(entry.getKey(), DbSequenceManager.reserveSequentialBlock(entry.getValue(), count));
+            }
+            _reservedCount = count;
+            _reservedUsed = 0;
+        }
+
+        private @Nullable Map<String, Long> nextReservedSampleCounts()
+        {
+            if (_reservedUsed == _reservedCount)
+                return null;
+
+            Map<String, Long> counts = new HashMap<>();
+            for (Map.Entry<String, Long> entry : _reservedSampleCounts.entrySet())
+            {
+                counts.put(entry.getKey(), entry.getValue() + _reservedUsed);
+            }
+            _reservedUsed++;
+            return counts;
+        }
+
+        private void releaseSampleCounts()
+        {
+            if (_reservedUsed < _reservedCount)
+            {
+                for (Map.Entry<String, Long> entry : _reservedSampleCounts.entrySet())
+                {
+                    DbSequenceManager.releaseSequentialBlock(_sampleCountSequences.get(entry.getKey()), entry.getValue() + _reservedUsed, _reservedCount - _reservedUsed);
+                }
+            }
+            _reservedSampleCounts.clear();
+            _reservedCount = 0;
+            _reservedUsed = 0;
+        }
+
+        /**
+         * Look up the values of ${lookup/column} tokens for all of these rows with one query per lookup, instead of a
+         * query per distinct value as names are generated.
+         */
+        public void prefetchLookups(List<Map<String, Object>> rows)
+        {
+            for (Map.Entry<FieldKey, TableInfo> pair : _exprLookups.entrySet())
+            {
+                FieldKey fieldKey = pair.getKey();
+                TableInfo lookupTable = pair.getValue();
+
+                List<ColumnInfo> pkCols = lookupTable.getPkColumns();
+                if (pkCols.size() != 1)
+                    continue;
+
+                ColumnInfo pkCol = pkCols.get(0);
+                String rootName = fieldKey.getRootName();
+
+                Set<Object> rootValues = new LinkedHashSet<>();
+                for (Map<String, Object> row : rows)
+                {
+                    Object rootValue = convertLookupKey(getRootValue(row, rootName), pkCol);
+                    if (rootValue != null && !_lookupCache.containsKey(Tuple3.of(rootName, rootValue, fieldKey)))
+                        rootValues.add(rootValue);
+                }
+
+                if (rootValues.isEmpty())
+                    continue;
+
+                FieldKey relativeFieldKey = fieldKey.removeParent(rootName);
+                Map<FieldKey, ColumnInfo> cols = QueryService.get().getColumns(lookupTable, Arrays.asList(pkCol.getFieldKey(), relativeFieldKey));
+
+                List<Object> values = new ArrayList<>(rootValues);
+                for (int i = 0; i < values.size(); i += LOOKUP_BATCH_SIZE)
+                {
+                    List<Object> batch = values.subList(i, Math.min(values.size(), i + LOOKUP_BATCH_SIZE));
+                    SimpleFilter filter = new SimpleFilter();
+                    filter.addInClause(pkCol.getFieldKey(), batch);
+
+                    Map<String, Object> found = new HashMap<>();
+                    try (Results results = QueryService.get().select(lookupTable, cols.values(), filter, null))
+                    {
+                        while (results.next())
+                        {
+                            Map<FieldKey, Object> row = results.getFieldKeyRowMap();
+                            found.put(String.valueOf(row.get(pkCol.getFieldKey())), row.get(relativeFieldKey));
+                        }
+                    }
+                    catch (SQLException e)
+                    {
+                        throw new RuntimeSQLException(e);
+                    }
+
+                    // Only cache what matched exactly. Anything else is left to the per-row query, which compares
+                    // values the way the database does.
+                    for (Object value : batch)
+                    {
+                        Object lookupValue = found.get(String.valueOf(value));
+                        if (lookupValue != null)
+                            _lookupCache.put(Tuple3.of(rootName, value, fieldKey), lookupValue);
+                    }
+                }
+            }
+        }
+
+        // The value additionalContext() would put in the context for name, without building the context
+        private @Nullable Object getRootValue(Map<String, Object> rowMap, String name)
+        {
+            for (Map.Entry<String, String> entry : _columnNamesByPropertyURI.entrySet())
+            {
+                if (entry.getValue().equalsIgnoreCase(name) && rowMap.containsKey(entry.getKey()))
+                    return rowMap.get(entry.getKey());
+            }
+
+            if (rowMap.containsKey(name))
+                return rowMap.get(name);
+
+            for (Map.Entry<String, Object> entry : rowMap.entrySet())
+            {
+                if (name.equalsIgnoreCase(entry.getKey()))
+                    return entry.getValue();
+            }
+            return null;
+        }
+
         private String nextName(Map<String, Object> rowMap, Set<ExpData> parentDatas, Set<ExpMaterial> parentSamples, @Nullable Supplier<Map<String, Object>> extraPropsFn)
                 throws NameGenerationException
         {
@@ -330,6 +505,8 @@ public class NameGenerator
             // It is important to do this even if a "name" is explicitly provided so the sample counts are accurate.
             Map<String, Long> sampleCounts = null;
             if (_incrementSampleCounts && !_exprHasSampleCounterFormats)
+                sampleCounts = nextReservedSampleCounts();
+            if (_incrementSampleCounts && !_exprHasSampleCounterFormats && sampleCounts == null)
             {
                 if (null == getSampleCountsFunction)
                 {
@@ -374,7 +551,7 @@ public class NameGenerator
                 @Nullable Map<String, Long> sampleCounts,
                 @Nullable Map<String, Object> extraProps)
         {
-            Map<String, Object> ctx = new CaseInsensitiveHashMap<>();
+            Map<String, Object> ctx = new CaseInsensitiveHashMap<>(_batchExpressionContext.size() + rowMap.size() + 8);
             ctx.putAll(_batchExpressionContext);
             ctx.put("_rowNumber", _rowNumber);
             ctx.put("RandomId", StringUtilsLabKey.getUniquifier(4));
@@ -385,14 +562,10 @@ public class NameGenerator
             ctx.putAll(rowMap);
 
             // UploadSamplesHelper uses propertyURIs in the rowMap -- add short column names to the map
-            if (_parentTable != null)
+            for (Map.Entry<String, String> entry : _columnNamesByPropertyURI.entrySet())
             {
-                for (ColumnInfo col : _parentTable.getColumns())
-                {
-                   String propURI = col.getPropertyURI();
-                   if (rowMap.containsKey(propURI))
-                       ctx.put(col.getName(), rowMap.get(propURI));
-                }
+                if (rowMap.containsKey(entry.getKey()))
+                    ctx.put(entry.getValue(), rowMap.get(entry.getKey()));
             }
 
             // If needed, add the parent names to the replacement map
@@ -459,9 +632,7 @@ public class NameGenerator
                             continue;
 
                         ColumnInfo pkCol = pkCols.get(0);
-                        // convert the rootValue to the target pkColumn type
-                        if (rootValue instanceof String && !pkCol.isStringType())
-                            rootValue = ConvertUtils.convert((String)rootValue, pkCol.getJavaClass());
+                        rootValue = convertLookupKey(rootValue, pkCol);
 
                         // Cache lookupValues by (rootName, rootValue, fieldKey) -> lookupValue
                         // CONSIDER: Cache key could be (lookupSchema, lookupQuery, lookupColName, value)
@@ -499,6 +670,14 @@ public class NameGenerator
             return ctx;
         }
 
+        // convert the rootValue to the target pkColumn type
+        private Object convertLookupKey(Object rootValue, ColumnInfo pkCol)
+        {
+            if (rootValue instanceof String && !pkCol.isStringType())
+                return ConvertUtils.convert((String)rootValue, pkCol.getJavaClass());
+            return rootValue;
+        }
+
         private Collection<String> parentNames(Object value, String parentColName)
         {
             return NameGenerator.parentNames(value, parentColName).collect(Collectors.toList());
@@ -570,6 +749,110 @@ public class NameGenerator
             return _name;
         }
     }
+
+
+    public static class TestCase extends Assert
+    {
+        private static final FieldKey CREATED_BY_EMAIL = FieldKey.fromParts("CreatedBy", "Email");
+
+        private static long count(Object name)
+        {
+            return Long.parseLong(((String)name).substring("NG-".length()));
+        }
+
+        @Test
+        public void testReserveSampleCounts() throws Exception
+        {
+            NameGenerator gen = new NameGenerator("NG-${dailySampleCount}", null, false);
+            List<Map<String, Object>> rows = new ArrayList<>();
+            for (int i = 0; i < 5; i++)
+                rows.add(new HashMap<>());
+
+            try (State state = gen.createState(true))
+            {
+                gen.generateNames(state, rows, null, null, null, false);
+            }
+
+            // The batch's counter values were reserved as one block
+            long first = count(rows.get(0).get("name"));
+            for (int i = 0; i < rows.size(); i++)
+                assertEquals("NG-" + (first + i), rows.get(i).get("name"));
+        }
+
+        @Test
+        public void testReleaseSampleCounts() throws Exception
+        {
+            NameGenerator gen = new NameGenerator("NG-${dailySampleCount}", null, false);
+            DbSequence daily = SampleTypeService.get().getSampleCountSequences(new Date()).get("dailySampleCount");
+
+            // Closing the state hands back the unused end of the block
+            long used;
+            try (State state = gen.createState(true))
+            {
+                state.reserveSampleCounts(10);
+                used = count(gen.generateName(state, new HashMap<>()));
+                assertEquals(used + 9, daily.current());
+            }
+            assertEquals(used, daily.current());
+
+            // Reserving the next block hands back the rest of the previous one
+            try (State state = gen.createState(true))
+            {
+                state.reserveSampleCounts(10);
+                used = count(gen.generateName(state, new HashMap<>()));
+                state.reserveSampleCounts(2);
+                assertEquals(used + 1, count(gen.generateName(state, new HashMap<>())));
+                assertEquals(used + 2, daily.current());
+            }
+            assertEquals(used + 1, daily.current());
+
+            // Once something else has taken a value, the block can't be handed back and the values are skipped
+            try (State state = gen.createState(true))
+            {
+                state.reserveSampleCounts(10);
+                used = count(gen.generateName(state, new HashMap<>()));
+                assertEquals(used + 10, daily.next());
+            }
+            assertEquals(used + 10, daily.current());
+        }
+
+        @Test
+        public void testPrefetchLookups() throws Exception
+        {
+            TableInfo users = CoreSchema.getInstance().getTableInfoUsers();
+            NameGenerator gen = new NameGenerator("NG-${CreatedBy/Email}", users, false);
+            int userId = TestContext.get().getUser().getUserId();
+            int missingId = -1;
+
+            List<Map<String, Object>> rows = new ArrayList<>();
+            rows.add(new HashMap<>(Map.of("CreatedBy", userId)));
+            rows.add(new HashMap<>(Map.of("CreatedBy", String.valueOf(userId))));
+            rows.add(new HashMap<>(Map.of("CreatedBy", missingId)));
+
+            // Only values that matched a row exactly are cached, anything else is left to the per-row query
+            try (State state = gen.createState(false))
+            {
+                state.prefetchLookups(rows);
+                assertTrue(state._lookupCache.containsKey(Tuple3.of("CreatedBy", userId, CREATED_BY_EMAIL)));
+                assertFalse(state._lookupCache.containsKey(Tuple3.of("CreatedBy", missingId, CREATED_BY_EMAIL)));
+            }
+
+            // Names are the same as those generated one row at a time without prefetching
+            List<String> expected = new ArrayList<>();
+            try (State state = gen.createState(false))
+            {
+                for (Map<String, Object> row : rows)
+                    expected.add(gen.generateName(state, new HashMap<>(row)));
+            }
+            try (State state = gen.createState(false))
+            {
+                gen.generateNames(state, rows, null, null, null, false);
+            }
+            for (int i = 0; i < rows.size(); i++)
+                assertEquals(expected.get(i), rows.get(i).get("name"));
+            assertEquals("NG-" + TestContext.get().getUser().getEmail(), expected.get(0));
+        }
+    }
 }
 
 
@@ -119,6 +119,7 @@ public class Parameter implements AutoCloseable
 
     // only allow setting once, do not clear
     boolean _constant = false;
+    private @Nullable Object _constantValue = null;
 
     PreparedStatement _stmt;
     private AutoCloseable _autoCloseable;
@@ -128,6 +129,9 @@ public class Parameter implements AutoCloseable
     boolean _isSet = false;
     boolean _isNull = false;
 
+    // last value passed to setValue(), after conversion; lets MultiRowInsertStatement buffer rows itself
+    @Nullable Object _boundValue = null;
+
 
     public Parameter(PreparedStatement stmt, int index)
     {
@@ -200,14 +204,33 @@ public class Parameter implements AutoCloseable
     public Parameter copy(PreparedStatement stmt)
     {
         Parameter copy = new Parameter(_name, _uri, _indexes, _type);
-        // not actually using constant parameters yet, if we were we'd have to remember the value so we could copy it
-        if (_constant)
-            throw new IllegalStateException("Copying constant parameters is not yet implemented");
         copy._stmt = stmt;
+        if (_constant)
+            copy.setConstant(_constantValue);
         return copy;
     }
 
 
+    /**
+     * Bind a value that holds for every row executed with this statement. clearParameters() leaves it bound and
+     * setValue() refuses to change it. Used where a literal won't do, e.g., a multi-row insert streamed with COPY.
+     */
+    void setConstant(@Nullable Object value)
+    {
+        if (_constant)
+            throw new IllegalStateException("Can't set constant parameter");
+        setValue(value);
+        _constantValue = value;
+        _constant = true;
+    }
+
+
+    public boolean isConstant()
+    {
+        return _constant;
+    }
+
+
     public void setName(String name)
     {
         _name = name;
@@ -247,6 +270,7 @@ public class Parameter implements AutoCloseable
         }
 
         Object value = getValueToBind(in, type);
+        _boundValue = value;
 
         try
         {
@@ -48,7 +48,7 @@ public class ParameterMapStatement implements AutoCloseable
     SqlDialect _dialect;
     boolean _closed = false;
 
-    private ExceptionFramework _exceptionFramework = ExceptionFramework.Spring;
+    ExceptionFramework _exceptionFramework = ExceptionFramework.Spring;
 
     protected ParameterMapStatement()
     {
@@ -372,7 +372,7 @@ public class ParameterMapStatement implements AutoCloseable
         return _objectURI;
     }
 
-    private void prepareParametersBeforeExecute()
+    void prepareParametersBeforeExecute()
     {
         try
         {
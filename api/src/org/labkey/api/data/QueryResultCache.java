@@ -0,0 +1,463 @@
+package org.labkey.api.data;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.junit.Assert;
+import org.junit.Test;
+import org.labkey.api.cache.Cache;
+import org.labkey.api.cache.CacheManager;
+import org.labkey.api.cache.Stats;
+import org.labkey.api.query.AliasedColumn;
+import org.labkey.api.query.FieldKey;
+import org.labkey.api.query.FilteredTable;
+import org.labkey.api.security.User;
+import org.labkey.api.util.GUID;
+import org.labkey.api.util.JunitUtil;
+import org.labkey.api.util.Path;
+import org.labkey.api.util.TestContext;
+import org.labkey.api.view.ActionURL;
+import org.labkey.api.view.ViewContext;
+
+import java.lang.reflect.Method;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Opt-in, server-wide cache of select results. Entries are keyed on the final generated SQL, its parameters, and the
+ * container & user the results were selected for, and hold a CachedResultSet of the complete results.
+ *
+ * Invalidation is generation based: every table that supports change notification (see TableInfo.getNotificationKey())
+ * has a counter that's bumped by Table.notifyTableUpdate(), TableInsertDataIterator, and AbstractQueryUpdateService.
+ * Each entry remembers the generation of each of its dependencies at the time the SQL was executed; an entry whose
+ * dependency has since changed is removed on the next get(). Counters are bumped immediately and again after the
+ * surrounding transaction commits, so readers on other threads can't re-cache pre-commit results.
+ *
+ * Callers opt in via SqlExecutingSelector.setResultCaching(); grids and selectRows opt in through RenderContext for
+ * the tables getDisplayDependencies() accepts. Statistics are reported on the admin console's caches page
+ * along with all other known caches; stale entries are counted as removes.
+ */
+public class QueryResultCache
+{
+    /** Results with more rows than this are returned to the caller but not cached */
+    public static final int MAX_CACHED_ROWS = 10000;
+    /** Cap on the estimated size of all cached results */
+    public static final long MAX_CACHED_BYTES = 256L * 1024 * 1024;
+
+    private static final QueryResultCache INSTANCE = new QueryResultCache();
+
+    private final Cache<String, CachedEntry> _cache = CacheManager.getCache(1000, MAX_CACHED_BYTES, CacheManager.HOUR, "Query results",
+        (key, entry) -> 40 + key.length() + entry._results.getEstimatedBytes());
+    private final Map<Path, AtomicLong> _generations = new ConcurrentHashMap<>();
+
+    public static QueryResultCache get()
+    {
+        return INSTANCE;
+    }
+
+    private QueryResultCache()
+    {
+    }
+
+    /**
+     * Returns the notification keys of all dependencies, or null if any dependency doesn't support change notification,
+     * in which case results can't be safely cached.
+     */
+    static @Nullable Collection<Path> getDependencyKeys(Collection<? extends TableInfo> dependencies)
+    {
+        if (dependencies.isEmpty())
+            return null;
+
+        Collection<Path> keys = new HashSet<>();
+
+        for (TableInfo table : dependencies)
+        {
+            Path key = table.getNotificationKey();
+
+            if (null == key)
+                return null;
+
+            keys.add(key);
+        }
+
+        return Collections.unmodifiableCollection(keys);
+    }
+
+    /**
+     * The tables a grid or selectRows read of these columns depends on, used by RenderContext to opt display selects into
+     * the cache. Only the simple case qualifies: a schema table that supports change notification, or a FilteredTable
+     * that adds nothing but a filter to one, and only its own non-calculated columns. Returns null for anything else
+     * (lookups, calculated columns, custom FROM SQL) because the other tables those read aren't watched.
+     */
+    public static @Nullable Collection<TableInfo> getDisplayDependencies(TableInfo table, Collection<ColumnInfo> columns)
+    {
+        TableInfo source = table;
+
+        if (table instanceof FilteredTable)
+        {
+            if (hasCustomFromSql(table.getClass()))
+                return null;
+            source = ((FilteredTable<?>) table).getRealTable();
+        }
+
+        if (!(source instanceof SchemaTableInfo) || null == source.getNotificationKey())
+            return null;
+
+        for (ColumnInfo column : columns)
+            if (null != column.getFieldKey().getParent() || column.isCalculated())
+                return null;
+
+        return Collections.singleton(source);
+    }
+
+    // Does this FilteredTable subclass build its own FROM clause, which might read more than the root table?
+    private static boolean hasCustomFromSql(Class<?> clazz)
+    {
+        for (Class<?> c = clazz; null != c && c != FilteredTable.class; c = c.getSuperclass())
+            for (Method m : c.getDeclaredMethods())
+                if (m.getName().startsWith("getFromSQL") || m.getName().equals("getFromTable") || m.getName().equals("getTransformedFromSQL"))
+                    return true;
+
+        return false;
+    }
+
+    String getCacheKey(DbScope scope, @Nullable Container c, @Nullable User user, SQLFragment sql, int maxRows, @Nullable Integer statementMaxRows)
+    {
+        StringBuilder key = new StringBuilder();
+        key.append(scope.getDataSourceName()).append('|');
+        key.append(null == c ? "" : c.getId()).append('|');
+        key.append(null == user ? "" : user.getUserId()).append('|');
+        key.append(maxRows).append('|');
+        key.append(null == statementMaxRows ? "" : statementMaxRows).append('|');
+        key.append(sql.getSQL());
+
+        for (Object param : sql.getParams())
+        {
+            key.append('|');
+
+            if (null != param)
+                key.append(param.getClass().getSimpleName()).append(':');
+
+            key.append(param);
+        }
+
+        return key.toString();
+    }
+
+    /** Capture the current generation of each dependency. Call this before executing the SQL. */
+    Map<Path, Long> getGenerations(Collection<Path> dependencies)
+    {
+        Map<Path, Long> generations = new HashMap<>();
+
+        for (Path dependency : dependencies)
+            generations.put(dependency, getGeneration(dependency));
+
+        return generations;
+    }
+
+    /**
+     * A token that changes whenever any of these tables is modified through Table or a QueryUpdateService, for callers
+     * that keep their own copies of derived data. Returns null if any table doesn't support change notification.
+     */
+    public @Nullable String getChangeToken(Collection<? extends TableInfo> tables)
+    {
+        Collection<Path> keys = getDependencyKeys(tables);
+
+        if (null == keys)
+            return null;
+
+        StringBuilder token = new StringBuilder();
+        keys.stream().sorted().forEach(key -> token.append(key).append('=').append(getGeneration(key)).append(';'));
+
+        return token.toString();
+    }
+
+    private long getGeneration(Path dependency)
+    {
+        AtomicLong generation = _generations.get(dependency);
+        return null == generation ? 0 : generation.get();
+    }
+
+    /**
+     * Returns a private copy of the cached results for this key, truncated to maxRows, or null if nothing's cached or
+     * the cached results are no longer current.
+     */
+    @Nullable CachedResultSet get(String key, int maxRows)
+    {
+        CachedEntry entry = _cache.get(key);
+
+        if (null == entry)
+            return null;
+
+        for (Map.Entry<Path, Long> e : entry._generations.entrySet())
+        {
+            if (getGeneration(e.getKey()) != e.getValue())
+            {
+                _cache.remove(key);
+                return null;
+            }
+        }
+
+        return entry._results.copy(maxRows);
+    }
+
+    /**
+     * Materializes the ResultSet, caches the results (if they're small enough), and returns a CachedResultSet the caller
+     * can consume, truncated to maxRows. All rows are cached (the SQL itself is expected to limit them), including any
+     * extra row beyond maxRows, so copies report isComplete() exactly as an uncached result would. The passed in
+     * ResultSet is closed.
+     */
+    @NotNull CachedResultSet put(String key, Map<Path, Long> generations, ResultSet rs, QueryLogging queryLogging, int maxRows) throws SQLException
+    {
+        CachedResultSet results = CachedResultSets.create(rs, true, Table.ALL_ROWS, null, queryLogging);
+
+        if (results.getSize() <= MAX_CACHED_ROWS)
+        {
+            // The cached instance is never handed out, so it never gets closed... don't complain about that
+            results.setRequireClose(false);
+            _cache.put(key, new CachedEntry(results, generations));
+        }
+
+        return results.copy(maxRows);
+    }
+
+    /**
+     * Discard all cached results that depend on this table. Safe to call for tables that don't support change
+     * notification; this is a no-op in that case.
+     */
+    public void invalidate(TableInfo table)
+    {
+        Path key = table.getNotificationKey();
+
+        if (null == key)
+            return;
+
+        Runnable bump = new GenerationBumpTask(key);
+        bump.run();
+
+        DbScope.Transaction t = table.getSchema().getScope().getCurrentTransaction();
+
+        if (null != t)
+            t.addCommitTask(bump, DbScope.CommitTaskOption.POSTCOMMIT, DbScope.CommitTaskOption.POSTROLLBACK);
+    }
+
+    public void clear()
+    {
+        _cache.clear();
+    }
+
+    Stats getStats()
+    {
+        return _cache.getTrackingCache().getStats();
+    }
+
+    private static class CachedEntry
+    {
+        private final CachedResultSet _results;
+        private final Map<Path, Long> _generations;
+
+        private CachedEntry(CachedResultSet results, Map<Path, Long> generations)
+        {
+            _results = results;
+            _generations = generations;
+        }
+    }
+
+    // Equality on the notification key lets DbScope skip duplicate tasks when a transaction writes a table many times
+    private class GenerationBumpTask implements Runnable
+    {
+        private final Path _key;
+
+        private GenerationBumpTask(Path key)
+        {
+            _key = key;
+        }
+
+        @Override
+        public void run()
+        {
+            _generations.computeIfAbsent(_key, k -> new AtomicLong()).incrementAndGet();
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            return _key.equals(((GenerationBumpTask) o)._key);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return _key.hashCode();
+        }
+    }
+
+
+    public static class TestCase extends Assert
+    {
+        @Test
+        public void testCachingAndInvalidation()
+        {
+            TableInfo containers = CoreSchema.getInstance().getTableInfoContainers();
+            Container root = ContainerManager.getRoot();
+            SimpleFilter filter = new SimpleFilter(FieldKey.fromParts("EntityId"), root.getId());
+            Stats stats = get().getStats();
+
+            long misses = stats.misses.get();
+            Map<String, Object> first = select(containers, filter, root);
+            assertEquals(root.getId(), first.get("EntityId"));
+            assertEquals(misses + 1, stats.misses.get());
+
+            // Same SQL, same scope: should be served from the cache
+            long gets = stats.gets.get();
+            misses = stats.misses.get();
+            Map<String, Object> second = select(containers, filter, root);
+            assertEquals(first, second);
+            assertNotSame("Cached rows should be copied before being handed out", first, second);
+            assertEquals(gets + 1, stats.gets.get());
+            assertEquals(misses, stats.misses.get());
+
+            // A write notification should force a trip to the database
+            Table.notifyTableUpdate(containers);
+            long removes = stats.removes.get();
+            Map<String, Object> third = select(containers, filter, root);
+            assertEquals(first, third);
+            assertEquals(removes + 1, stats.removes.get());
+        }
+
+        @Test
+        public void testMaxRows() throws SQLException
+        {
+            TableInfo containers = CoreSchema.getInstance().getTableInfoContainers();
+            Container root = ContainerManager.getRoot();
+            SQLFragment sql = new SQLFragment("SELECT EntityId FROM ").append(containers, "c").append(" ORDER BY RowId");
+            Stats stats = get().getStats();
+
+            int total = count(containers, sql, root, Table.ALL_ROWS, true);
+            assertTrue("Expected root, home, and shared containers at least", total >= 3);
+
+            // First call populates the cache, second is served from it; both must honor maxRows
+            Table.notifyTableUpdate(containers);
+            long misses = stats.misses.get();
+            assertEquals(2, count(containers, sql, root, 2, false));
+            assertEquals(2, count(containers, sql, root, 2, false));
+            assertEquals(misses + 1, stats.misses.get());
+
+            // A different maxRows can't share an entry with the unlimited query
+            assertEquals(total, count(containers, sql, root, Table.ALL_ROWS, true));
+        }
+
+        private int count(TableInfo table, SQLFragment sql, Container c, int maxRows, boolean expectComplete) throws SQLException
+        {
+            SqlSelector selector = new SqlSelector(table.getSchema(), sql).setMaxRows(maxRows);
+            selector.setResultCaching(c, null, Collections.singleton(table));
+
+            try (TableResultSet rs = selector.getResultSet())
+            {
+                assertEquals(expectComplete, rs.isComplete());
+
+                int count = 0;
+                while (rs.next())
+                    count++;
+
+                return count;
+            }
+        }
+
+        // The grid/selectRows path: RenderContext opts in, and an insert through Table invalidates the cached grid
+        @Test
+        public void testDisplaySelect() throws Exception
+        {
+            TableInfo testTable = TestSchema.getInstance().getTableInfoTestTable();
+            Container c = JunitUtil.getTestContainer();
+            User user = TestContext.get().getUser();
+            String marker = GUID.makeHash();
+            List<ColumnInfo> columns = List.of(testTable.getColumn("Text"), testTable.getColumn("IntNotNull"));
+            SimpleFilter filter = new SimpleFilter(FieldKey.fromParts("Text"), marker);
+            Stats stats = get().getStats();
+
+            assertNotNull(getDisplayDependencies(testTable, columns));
+            assertNull("Lookups aren't tracked", getDisplayDependencies(testTable, List.of(new AliasedColumn(testTable, FieldKey.fromParts("Container", "Name"), testTable.getColumn("Text"), true))));
+
+            RenderContext ctx = new RenderContext(ViewContext.getMockViewContext(user, c, new ActionURL(), false));
+            ctx.setCache(true);
+
+            try
+            {
+                insertTestRow(testTable, c, user, marker);
+                assertEquals(1, countDisplayRows(ctx, testTable, columns, filter));
+
+                long misses = stats.misses.get();
+                assertEquals(1, countDisplayRows(ctx, testTable, columns, filter));
+                assertEquals("Second render should be served from the cache", misses, stats.misses.get());
+
+                insertTestRow(testTable, c, user, marker);
+                assertEquals("Insert should invalidate the cached grid", 2, countDisplayRows(ctx, testTable, columns, filter));
+                assertEquals(misses + 1, stats.misses.get());
+            }
+            finally
+            {
+                new SqlExecutor(testTable.getSchema()).execute("DELETE FROM test.testtable WHERE Text = ?", marker);
+            }
+        }
+
+        private void insertTestRow(TableInfo testTable, Container c, User user, String text)
+        {
+            Map<String, Object> row = new HashMap<>();
+            row.put("Container", c.getId());
+            row.put("Text", text);
+            row.put("IntNotNull", 1);
+            row.put("DatetimeNotNull", new Date());
+            row.put("BitNotNull", true);
+            Table.insert(user, testTable, row);
+        }
+
+        private int countDisplayRows(RenderContext ctx, TableInfo table, List<ColumnInfo> columns, SimpleFilter filter) throws Exception
+        {
+            try (Results results = ctx.selectForDisplay(table, columns, Collections.emptyMap(), filter, null, Table.ALL_ROWS, Table.NO_OFFSET, false))
+            {
+                int count = 0;
+                while (results.next())
+                    count++;
+                return count;
+            }
+        }
+
+        @Test
+        public void testChangeToken()
+        {
+            TableInfo containers = CoreSchema.getInstance().getTableInfoContainers();
+            TableInfo principals = CoreSchema.getInstance().getTableInfoPrincipals();
+
+            String both = get().getChangeToken(List.of(containers, principals));
+            String principalsOnly = get().getChangeToken(List.of(principals));
+            assertNotNull(both);
+            assertEquals("Token shouldn't depend on table order", both, get().getChangeToken(List.of(principals, containers)));
+            assertEquals("Token should be stable until a table changes", both, get().getChangeToken(List.of(containers, principals)));
+
+            Table.notifyTableUpdate(containers);
+            assertNotEquals(both, get().getChangeToken(List.of(containers, principals)));
+            assertEquals("Unrelated tables keep their token", principalsOnly, get().getChangeToken(List.of(principals)));
+
+            // Tables without change notification can't be tracked
+            TableInfo virtual = new VirtualTable(CoreSchema.getInstance().getSchema(), "QueryResultCacheTest");
+            assertNull(get().getChangeToken(List.of(containers, virtual)));
+            assertNull(get().getChangeToken(List.of()));
+        }
+
+        private Map<String, Object> select(TableInfo table, SimpleFilter filter, Container c)
+        {
+            return new TableSelector(table, filter, null).setResultCaching(c, null).getMap();
+        }
+    }
+}
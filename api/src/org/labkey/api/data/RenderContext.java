@@ -77,6 +77,7 @@ public class RenderContext implements Map<String, Object>, Serializable
     private Map<FieldKey, List<String>> _analyticsProviderNamesByFieldKey;
 
     private Results _results;
+    private Sort _keysetSort;
 
     public RenderContext(ViewContext context)
     {
@@ -318,14 +319,81 @@ public class RenderContext implements Map<String, Object>, Serializable
         Sort sort = buildSort(tinfo, url, name);
         SimpleFilter filter = buildFilter(tinfo, getColumnInfos(displayColumns), url, name, maxRows, offset, sort);
 
+        _keysetSort = null;
+        if (null != settings && settings.isKeysetPagination())
+        {
+            sort = KeysetCursor.getKeysetSort(tinfo, sort);
+            offset = Table.NO_OFFSET;
+            _keysetSort = sort;
+        }
+
         Collection<ColumnInfo> cols = fieldMap.values();
         if (null != QueryService.get())
             cols = QueryService.get().ensureRequiredColumns(tinfo, cols, filter, sort, _ignoredColumnFilters);
 
+        // Added after buildFilter() so the aggregates and total row count still cover every page
+        if (null != _keysetSort && null != settings.getCursor())
+        {
+            KeysetCursor cursor = KeysetCursor.decode(settings.getCursor());
+            filter.addClause(cursor.createFilterClause(_keysetSort, Table.createColumnMap(tinfo, cols), tinfo.getSqlDialect()));
+        }
+
         _results = selectForDisplay(tinfo, cols, parameters, filter, sort, maxRows, offset, async);
         return _results;
     }
 
+    /**
+     * Build, but don't execute, the selector getResults() would use for all rows matching the view's sort and filter.
+     * Used to hand a query to a background thread; the caller owns execution.
+     */
+    public TableSelector getResultsSelector(Map<FieldKey, ColumnInfo> fieldMap, List<DisplayColumn> displayColumns, TableInfo tinfo, QuerySettings settings, Map<String, Object> parameters, int maxRows, String name)
+    {
+        ActionURL url;
+        if (null != settings)
+            url = settings.getSortFilterURL();
+        else
+            url = getViewContext().cloneActionURL();
+
+        Sort sort = buildSort(tinfo, url, name);
+        SimpleFilter filter = buildFilter(tinfo, getColumnInfos(displayColumns), url, name, maxRows, Table.NO_OFFSET, sort);
+
+        Collection<ColumnInfo> cols = fieldMap.values();
+        if (null != QueryService.get())
+            cols = QueryService.get().ensureRequiredColumns(tinfo, cols, filter, sort, _ignoredColumnFilters);
+
+        return new TableSelector(tinfo, cols, filter, sort)
+            .setNamedParameters(parameters)
+            .setMaxRows(maxRows)
+            .setForDisplay(true);
+    }
+
+    /**
+     * The sort used for the last getResults() call when it used keyset pagination (the requested sort plus the primary
+     * key), or null. The next page's cursor is built from the last row's values for these columns.
+     */
+    public @Nullable Sort getKeysetSort()
+    {
+        return _keysetSort;
+    }
+
+    /**
+     * Estimate the total row count (ignoring maxRows, offset and any cursor) from database statistics, or return null
+     * if the dialect can't.
+     */
+    public @Nullable Long getEstimatedRowCount(List<DisplayColumn> displayColumns, TableInfo tinfo, QuerySettings settings, String dataRegionName, Map<String, Object> parameters)
+    {
+        ActionURL url;
+        if (null != settings)
+            url = settings.getSortFilterURL();
+        else
+            url = getViewContext().cloneActionURL();
+
+        Sort sort = buildSort(tinfo, url, dataRegionName);
+        SimpleFilter filter = buildFilter(tinfo, getColumnInfos(displayColumns), url, dataRegionName, Table.ALL_ROWS, Table.NO_OFFSET, sort);
+
+        return new TableSelector(tinfo, filter, null).setNamedParameters(parameters).getEstimatedRowCount();
+    }
+
     @NotNull
     public Map<String, List<Aggregate.Result>> getAggregates(List<DisplayColumn> displayColumns, TableInfo tinfo, QuerySettings settings, String dataRegionName, List<Aggregate> aggregatesIn, Map<String, Object> parameters, boolean async) throws IOException
     {
@@ -502,6 +570,14 @@ public class RenderContext implements Map<String, Object>, Serializable
             .setOffset(offset)
             .setForDisplay(true);
 
+        // Grids and selectRows over a simple table share results until the table is written (see QueryResultCache)
+        if (getCache() && !async)
+        {
+            Collection<TableInfo> dependencies = QueryResultCache.getDisplayDependencies(table, columns);
+            if (null != dependencies)
+                selector.setResultCaching(getContainer(), getViewContext().getUser(), dependencies);
+        }
+
         if (async)
         {
             return selector.getResultsAsync(getCache(), false, getViewContext().getResponse());
@@ -108,7 +108,8 @@ public class SchemaTableInfoCache
             {
                 // Log all problems to mothership so admin and LabKey are made aware of the cause of the problem, but return
                 // null so other tables in this schema can load. One previous example: MV indicators on list columns with
-                // very long names used to be a problem, but that was fixed. There may be other scenarios that throw.
+                // very long names used to be a problem, but that was fixed. There may be other scenarios that throw. A
+                // refresh-ahead reload that fails this way keeps the previously loaded table; see BlockingCache.
                 ExceptionUtil.logExceptionToMothership(null, t);
 
                 return null;
@@ -131,6 +132,10 @@ public class SchemaTableInfoCache
         {
             super(createCache(scope), new SchemaTableLoader());
             setCacheTimeChooser(TABLE_CACHE_TIME_CHOOSER);
+            // Bare (one hour) and Fast (five second) tables get reloaded in the background instead of by the first request
+            // after they expire. Module and Provisioned tables are cached for a year and are removed explicitly when they
+            // change, so this rarely applies to them.
+            setRefreshAhead(0.8);
         }
     }
 
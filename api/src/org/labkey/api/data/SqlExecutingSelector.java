@@ -22,8 +22,10 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.labkey.api.data.dialect.SqlDialect;
 import org.labkey.api.data.dialect.StatementWrapper;
+import org.labkey.api.security.User;
 import org.labkey.api.util.ExceptionUtil;
 import org.labkey.api.util.MemTracker;
+import org.labkey.api.util.Path;
 import org.springframework.dao.ConcurrencyFailureException;
 import org.springframework.jdbc.BadSqlGrammarException;
 
@@ -48,6 +50,7 @@ public abstract class SqlExecutingSelector<FACTORY extends SqlFactory, SELECTOR
 
     private @Nullable AsyncQueryRequest _asyncRequest = null;
     private @Nullable StackTraceElement[] _loggingStacktrace = null;
+    private @Nullable ResultCaching _resultCaching = null;
     private final QueryLogging _queryLogging;
     private static final Logger LOGGER = LogManager.getLogger(SqlExecutingSelector.class);
 
@@ -158,6 +161,31 @@ public abstract class SqlExecutingSelector<FACTORY extends SqlFactory, SELECTOR
         return getThis();
     }
 
+    /**
+     * <p>Opt in to the server-wide {@link QueryResultCache}. Results are keyed on the generated SQL and its parameters
+     * plus the container and user passed here, so pass the container and user that the SQL is scoped to (e.g., the
+     * user whose permissions determined what the SQL selects). Cached results are discarded when any of the dependent
+     * tables is modified via Table, TableInsertDataIterator, or AbstractQueryUpdateService.</p>
+     *
+     * <p>The cache is bypassed (the query runs normally) when a transaction is active, when a Connection was provided
+     * at construction time, or when any dependency doesn't support change notification. Results are fully materialized
+     * in memory, so this is only appropriate for queries with reasonably small results.</p>
+     *
+     * @param dependencies every table the generated SQL reads from
+     * @return this SqlExecutingSelector, to allow chaining of setters
+     */
+    public SELECTOR setResultCaching(@Nullable Container c, @Nullable User user, Collection<? extends TableInfo> dependencies)
+    {
+        Collection<Path> keys = QueryResultCache.getDependencyKeys(dependencies);
+        _resultCaching = null != keys ? new ResultCaching(c, user, keys) : null;
+        return getThis();
+    }
+
+    private boolean isResultCachingEnabled()
+    {
+        return null != _resultCaching && null == _conn && !getScope().isTransactionActive();
+    }
+
     public SELECTOR setNamedParameters(@Nullable Map<String, Object> namedParameters)
     {
         _namedParameters = namedParameters;
@@ -209,7 +237,13 @@ public abstract class SqlExecutingSelector<FACTORY extends SqlFactory, SELECTOR
     @Override
     protected TableResultSet wrapResultSet(ResultSet rs, Connection conn, boolean cache, boolean requireClose) throws SQLException
     {
-        if (cache)
+        if (rs instanceof CachedResultSet)
+        {
+            // Results came from QueryResultCache, which has already cached them and applied _maxRows... and there's no
+            // connection to release
+            return ((CachedResultSet)rs).setRequireClose(requireClose);
+        }
+        else if (cache)
         {
             // Cache ResultSet and meta data
             return CachedResultSets.create(rs, true, _maxRows, _loggingStacktrace, getQueryLogging()).setRequireClose(requireClose);
@@ -311,6 +345,20 @@ public abstract class SqlExecutingSelector<FACTORY extends SqlFactory, SELECTOR
         return _asyncRequest;
     }
 
+    private static class ResultCaching
+    {
+        private final @Nullable Container _container;
+        private final @Nullable User _user;
+        private final Collection<Path> _dependencies;
+
+        private ResultCaching(@Nullable Container container, @Nullable User user, Collection<Path> dependencies)
+        {
+            _container = container;
+            _user = user;
+            _dependencies = dependencies;
+        }
+    }
+
     // Wraps the underlying factory's SQL with a SELECT COUNT(*) query
     private static class RowCountSqlFactory extends BaseSqlFactory
     {
@@ -395,8 +443,22 @@ public abstract class SqlExecutingSelector<FACTORY extends SqlFactory, SELECTOR
                 // Stash the generated SQL in case we need to log it later
                 _sql = _factory.getSql();
 
-                // Short circuit if no SQL is generated, e.g., AggregateSqlFactory
-                if (null != _sql)
+                String cacheKey = null;
+                Map<Path, Long> generations = null;
+
+                if (null != _sql && isResultCachingEnabled())
+                {
+                    QueryResultCache resultCache = QueryResultCache.get();
+                    cacheKey = resultCache.getCacheKey(getScope(), _resultCaching._container, _resultCaching._user, _sql, _maxRows, _factory.getStatementMaxRows());
+                    rs = resultCache.get(cacheKey, _maxRows);
+
+                    // Capture dependency generations before executing, so concurrent writes invalidate what we're about to cache
+                    if (null == rs)
+                        generations = resultCache.getGenerations(_resultCaching._dependencies);
+                }
+
+                // Short circuit if no SQL is generated (e.g., AggregateSqlFactory) or the results came from QueryResultCache
+                if (null != _sql && null == rs)
                 {
                     DbScope scope = getScope();
                     conn = getConnection();
@@ -431,6 +493,12 @@ public abstract class SqlExecutingSelector<FACTORY extends SqlFactory, SELECTOR
                         }
                     }
 
+                    if (null != cacheKey)
+                        rs = QueryResultCache.get().put(cacheKey, generations, rs, getQueryLogging(), _maxRows);
+                }
+
+                if (null != rs)
+                {
                     // Just to be safe: if processResultSet() throws SQLException then caller will close the result set; if it
                     // throws anything else, we will lose the result set, so we need to close it here.
                     boolean close = true;
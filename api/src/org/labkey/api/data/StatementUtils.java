@@ -51,6 +51,7 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 /**
@@ -81,6 +82,7 @@ public class StatementUtils
     private boolean _selectObjectUri = false;
     private boolean _allowUpdateAutoIncrement = false;
     private boolean _allowInsertByLookupDisplayValue = false;
+    private boolean _multiRowInsert = false;
 
     // variable/parameter tracking helpers
     private boolean useVariables = false;
@@ -168,6 +170,16 @@ public class StatementUtils
         return this;
     }
 
+    /**
+     * For a plain insert (no exp.Object handling, no reselected ids) return a MultiRowInsertStatement, which buffers
+     * batched rows and writes them many per statement. Ignored if the insert can't be expressed that way.
+     */
+    public StatementUtils multiRowInsert(boolean b)
+    {
+        _multiRowInsert = b;
+        return this;
+    }
+
     public StatementUtils setVocabularyProperties(Set<DomainProperty> vocabularyProperties)
     {
         _vocabularyProperties = vocabularyProperties;
@@ -471,11 +483,18 @@ public class StatementUtils
         String ifTHEN = _dialect.isSqlServer() ? " BEGIN " : " THEN ";
         String ifEND = _dialect.isSqlServer() ? " END " : " END IF ";
 
+        // COPY can't mix in literals, so a multi-row insert on PostgreSQL binds the container as a constant parameter
+        String boundContainerId = null;
         if (null != c)
         {
             assert null == _constants.get("container") || c.getId().equals(_constants.get("container"));
             if (null == _constants.get("container"))
-                _constants.put("container", c.getId());
+            {
+                if (_multiRowInsert && Operation.insert == _operation && _dialect.isPostgreSQL())
+                    boundContainerId = c.getId();
+                else
+                    _constants.put("container", c.getId());
+            }
         }
 
         String objectURIColumnName = updatable.getObjectUriType() == UpdateableTableInfo.ObjectUriType.schemaColumn
@@ -921,7 +940,22 @@ public class StatementUtils
             Stream.of(sqlfDeclare, sqlfPreselectObject, sqlfInsertObject, sqlfSelectObject, sqlfDelete, sqlfUpdate, sqlfInsertInto, sqlfObjectProperty, sqlfSelectIds)
                 .filter(f -> null != f && !f.isEmpty())
                 .forEach(script::append);
-            ret = new ParameterMapStatement(table.getSchema().getScope(), conn, script, remap);
+
+            boolean plainInsert = Operation.insert == _operation && !_selectIds && !_selectObjectUri && null == sqlfSelectIds &&
+                    Stream.of(sqlfDeclare, sqlfPreselectObject, sqlfInsertObject, sqlfSelectObject, sqlfDelete, sqlfObjectProperty).allMatch(SQLFragment::isEmpty);
+
+            if (_multiRowInsert && plainInsert && (_dialect.isPostgreSQL() || _dialect.isSqlServer()) && MultiRowInsertStatement.isSupported(values))
+            {
+                List<String> columnSelectNames = cols.stream().map(ColumnInfo::getSelectName).collect(Collectors.toList());
+                ret = new MultiRowInsertStatement(table.getSchema().getScope(), conn, script, remap, table.getSelectName(), columnSelectNames, values);
+            }
+            else
+            {
+                ret = new ParameterMapStatement(table.getSchema().getScope(), conn, script, remap);
+            }
+
+            if (null != boundContainerId && ret.containsKey("container"))
+                ret.getParameter("container").setConstant(boundContainerId);
         }
         else if (_dialect.isSqlServer())
         {
@@ -36,6 +36,7 @@ import org.labkey.api.data.validator.ColumnValidators;
 import org.labkey.api.dataiterator.AbstractDataIterator;
 import org.labkey.api.dataiterator.DataIteratorBuilder;
 import org.labkey.api.dataiterator.DataIteratorContext;
+import org.labkey.api.dataiterator.ListofMapsDataIterator;
 import org.labkey.api.dataiterator.Pump;
 import org.labkey.api.dataiterator.SimpleTranslator;
 import org.labkey.api.dataiterator.TableInsertDataIteratorBuilder;
@@ -48,6 +49,7 @@ import org.labkey.api.miniprofiler.MiniProfiler;
 import org.labkey.api.query.AliasedColumn;
 import org.labkey.api.query.FieldKey;
 import org.labkey.api.query.QueryService;
+import org.labkey.api.query.QueryUpdateService;
 import org.labkey.api.query.RuntimeValidationException;
 import org.labkey.api.security.User;
 import org.labkey.api.util.GUID;
@@ -1109,6 +1111,7 @@ public class Table
     public static void notifyTableUpdate(/*String operation,*/ TableInfo table/*, Container c*/)
     {
         DbCache.invalidateAll(table);
+        QueryResultCache.get().invalidate(table);
     }
 
 
@@ -1692,5 +1695,101 @@ public class Table
 
             new SqlExecutor(testTable.getSchema()).execute("DELETE FROM test.testtable WHERE EntityId = '" + extract.guid + "'");
         }
+
+        @Test
+        public void testMultiRowInsert()
+        {
+            TableInfo testTable = TestSchema.getInstance().getTableInfoTestTable();
+            String marker = GUID.makeHash();
+            Date date = new Date();
+            List<Map<String, Object>> rows = new ArrayList<>();
+            Set<String> expected = new HashSet<>();
+
+            // Enough rows for several multi-row statements, including values that need escaping for COPY
+            for (int i = 0; i < 2500; i++)
+            {
+                Map<String, Object> row = new CaseInsensitiveHashMap<>();
+                String text = marker + (i % 3 == 0 ? " tab\tnewline\nbackslash\\ " : " ") + i;
+                row.put("Text", text);
+                row.put("IntNotNull", i);
+                row.put("BitNotNull", i % 2 == 0);
+                row.put("DateTimeNotNull", date);
+                rows.add(row);
+                expected.add(text);
+            }
+
+            try
+            {
+                DataIteratorContext dic = new DataIteratorContext();
+                dic.setInsertOption(QueryUpdateService.InsertOption.IMPORT);
+                SimpleTranslator translate = new SimpleTranslator(new ListofMapsDataIterator(rows.get(0).keySet(), rows), dic);
+                translate.selectAll();
+                translate.addBuiltInColumns(dic, JunitUtil.getTestContainer(), TestContext.get().getUser(), testTable, false);
+
+                DataIteratorBuilder load = new TableInsertDataIteratorBuilder(translate, testTable, JunitUtil.getTestContainer());
+                new Pump(load.getDataIterator(dic), dic).run();
+                assertFalse(dic.getErrors().hasErrors());
+
+                Collection<String> actual = new SqlSelector(testTable.getSchema(), "SELECT Text FROM test.testtable WHERE Text LIKE ? AND Container = ?", marker + "%", JunitUtil.getTestContainer().getId()).getCollection(String.class);
+                assertEquals(expected, new HashSet<>(actual));
+            }
+            finally
+            {
+                new SqlExecutor(testTable.getSchema()).execute("DELETE FROM test.testtable WHERE Text LIKE ?", marker + "%");
+            }
+        }
+
+        // Same statement TableInsertDataIterator asks for, with a real container; checks that the rows skip the per-row batch
+        @Test
+        public void testMultiRowInsertPath() throws Exception
+        {
+            TableInfo testTable = TestSchema.getInstance().getTableInfoTestTable();
+            Container c = JunitUtil.getTestContainer();
+            String marker = GUID.makeHash();
+            int count = 1500;
+
+            try (Connection conn = testTable.getSchema().getScope().getConnection())
+            {
+                StatementUtils utils = new StatementUtils(StatementUtils.Operation.insert, testTable)
+                        .updateBuiltinColumns(false)
+                        .selectIds(false)
+                        .multiRowInsert(true);
+                ParameterMapStatement stmt = utils.createStatement(conn, c, TestContext.get().getUser());
+
+                try
+                {
+                    assertTrue(stmt instanceof MultiRowInsertStatement);
+                    MultiRowInsertStatement multi = (MultiRowInsertStatement) stmt;
+
+                    for (int i = 0; i < count; i++)
+                    {
+                        multi.clearParameters();
+                        multi.put("Text", marker + " " + i);
+                        multi.put("IntNotNull", i);
+                        multi.put("BitNotNull", i % 2 == 0);
+                        multi.put("DateTimeNotNull", new Date());
+                        multi.addBatch();
+                    }
+                    multi.executeBatch();
+
+                    assertEquals(0, multi.getBatchedRowCount());
+                    if (testTable.getSqlDialect().isPostgreSQL())
+                        assertEquals(count, multi.getCopiedRowCount());
+                    else
+                        assertEquals(count, multi.getValuesRowCount());
+                }
+                finally
+                {
+                    stmt.close();
+                }
+
+                long inserted = new SqlSelector(testTable.getSchema(), "SELECT COUNT(*) FROM test.testtable WHERE Text LIKE ? AND Container = ?", marker + "%", c.getId()).getObject(Long.class);
+                assertEquals(count, inserted);
+            }
+            finally
+            {
+                new SqlExecutor(testTable.getSchema()).execute("DELETE FROM test.testtable WHERE Text LIKE ?", marker + "%");
+            }
+        }
     }
 }
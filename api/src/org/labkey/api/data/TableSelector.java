@@ -23,9 +23,11 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.labkey.api.collections.CaseInsensitiveHashMap;
 import org.labkey.api.data.Aggregate.Result;
+import org.labkey.api.data.statistics.ColumnSummary;
 import org.labkey.api.query.ExprColumn;
 import org.labkey.api.query.FieldKey;
 import org.labkey.api.query.QueryService;
+import org.labkey.api.security.User;
 
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
@@ -342,6 +344,16 @@ public class TableSelector extends SqlExecutingSelector<TableSelector.TableSqlFa
         return this;
     }
 
+    /**
+     * Opt in to QueryResultCache, with this selector's table as the only dependency. Tables that don't support change
+     * notification (e.g., most query tables) won't be cached; use the overload that takes explicit dependencies if the
+     * generated SQL reads from tables beyond the one passed to the constructor (e.g., via lookups).
+     */
+    public TableSelector setResultCaching(@Nullable Container c, @Nullable User user)
+    {
+        return setResultCaching(c, user, Collections.singleton(_table));
+    }
+
     /** pk can be single value, an array of values, or a filter (??) */
     public <K> K getObject(Object pk, Class<K> clazz)
     {
@@ -401,6 +413,27 @@ public class TableSelector extends SqlExecutingSelector<TableSelector.TableSqlFa
         return super.getRowCount(sqlFactory) - sqlFactory._scrollOffset;      // Corner case -- asking for rowCount with offset on a dialect that doesn't support offset
     }
 
+    /**
+     * Estimate the row count from the database's statistics instead of running COUNT(*). Returns null if the dialect
+     * can't estimate, or if the table has required parameters that weren't provided; callers that need a number should
+     * fall back to getRowCount().
+     */
+    public @Nullable Long getEstimatedRowCount()
+    {
+        SQLFragment sql = new RowCountingSqlFactory(_table, _filter).getSql();
+
+        // The factory only binds parameters passed to setNamedParameters(); bind the defaults of the rest too, since
+        // the dialect runs this SQL directly
+        if (!_table.getNamedParameters().isEmpty())
+        {
+            QueryService.get().bindNamedParameters(sql, _namedParameters);
+            if (sql.getParams().stream().anyMatch(param -> param instanceof QueryService.ParameterDecl))
+                return null;
+        }
+
+        return getScope().getSqlDialect().estimateRowCount(getScope(), sql);
+    }
+
     @Override
     public boolean exists()
     {
@@ -416,7 +449,25 @@ public class TableSelector extends SqlExecutingSelector<TableSelector.TableSqlFa
     // TODO: forEachFieldKeyMap()
 
     // TODO: Convert to return Map<FieldKey, List<Aggregate.Result>>
-    public Map<String, List<Result>> getAggregates(final List<Aggregate> aggregates)
+    public Map<String, List<Result>> getAggregates(final List<Aggregate> allAggregates)
+    {
+        // Statistics SQL can't express are computed from one scan of the rows; the rest from one aggregate query
+        final List<Aggregate> aggregates = new ArrayList<>();
+        final List<Aggregate> scanAggregates = new ArrayList<>();
+        for (Aggregate agg : allAggregates)
+            (agg.getType().isComputedFromScan() ? scanAggregates : aggregates).add(agg);
+
+        Map<String, List<Result>> results = aggregates.isEmpty() ? new CaseInsensitiveHashMap<>() : getSqlAggregates(aggregates);
+        if (!scanAggregates.isEmpty())
+        {
+            getScanAggregates(scanAggregates).forEach((fieldKey, scanResults) ->
+                results.computeIfAbsent(fieldKey, key -> new ArrayList<>()).addAll(scanResults));
+        }
+
+        return results;
+    }
+
+    private Map<String, List<Result>> getSqlAggregates(final List<Aggregate> aggregates)
     {
         final AggregateSqlFactory sqlFactory = new AggregateSqlFactory(_filter, aggregates, _columns);
         ResultSetFactory resultSetFactory = new ExecutingResultSetFactory(sqlFactory);
@@ -449,6 +500,80 @@ public class TableSelector extends SqlExecutingSelector<TableSelector.TableSqlFa
         });
     }
 
+    // Stream just the columns these aggregates need, feeding each value into its column's summary. Every statistic
+    // for every column comes from the same pass, so enabling more of them costs CPU but no more queries. The scan runs
+    // in a transaction because PostgreSQL's driver only honors the dialect's fetch size with autoCommit off; otherwise
+    // it reads the whole result into memory before returning the first row. Numeric values are read as primitives.
+    private Map<String, List<Result>> getScanAggregates(final List<Aggregate> aggregates)
+    {
+        final PreventSortTableSqlFactory sqlFactory = new PreventSortTableSqlFactory(_filter, ensureAggregates(_table, _columns, aggregates));
+        final Map<FieldKey, ColumnInfo> columnMap = Table.createColumnMap(null, sqlFactory.getSelectedColumns());
+        final Map<FieldKey, ColumnSummary> summaries = new LinkedHashMap<>();
+
+        for (Aggregate agg : aggregates)
+        {
+            ColumnInfo col = columnMap.get(agg.getFieldKey());
+            if (null != col && agg.getType().isLegal(col.getJdbcType()))
+                agg.getType().prepareSummary(summaries.computeIfAbsent(agg.getFieldKey(), fieldKey -> new ColumnSummary()));
+        }
+
+        if (!summaries.isEmpty())
+        {
+            try (DbScope.Transaction transaction = getScope().ensureTransaction())
+            {
+                new ExecutingResultSetFactory(sqlFactory).handleResultSet((rs, conn) -> {
+                    ColumnSummary[] columnSummaries = summaries.values().toArray(new ColumnSummary[0]);
+                    int[] indexes = new int[columnSummaries.length];
+                    Class<?>[] classes = new Class<?>[columnSummaries.length];
+                    int i = 0;
+                    for (FieldKey fieldKey : summaries.keySet())
+                    {
+                        ColumnInfo col = columnMap.get(fieldKey);
+                        indexes[i] = rs.findColumn(col.getAlias());
+                        classes[i++] = col.getJdbcType().getJavaClass();
+                    }
+
+                    while (rs.next())
+                    {
+                        for (int col = 0; col < indexes.length; col++)
+                        {
+                            Class<?> cls = classes[col];
+                            if (cls == Long.class || cls == Integer.class || cls == Short.class || cls == Byte.class)
+                            {
+                                long l = rs.getLong(indexes[col]);
+                                if (!rs.wasNull())
+                                    columnSummaries[col].add(l);
+                            }
+                            else if (cls == Double.class || cls == Float.class || cls == BigDecimal.class)
+                            {
+                                double d = rs.getDouble(indexes[col]);
+                                if (!rs.wasNull())
+                                    columnSummaries[col].add(d);
+                            }
+                            else
+                            {
+                                columnSummaries[col].add(rs.getObject(indexes[col]));
+                            }
+                        }
+                    }
+
+                    return null;
+                });
+                transaction.commit();
+            }
+        }
+
+        Map<String, List<Result>> results = new CaseInsensitiveHashMap<>();
+        for (Aggregate agg : aggregates)
+        {
+            ColumnSummary summary = summaries.get(agg.getFieldKey());
+            Result result = null == summary ? new Result(agg, null) : agg.getType().getScanResult(agg, summary);
+            results.computeIfAbsent(agg.getFieldKey().toString(), key -> new ArrayList<>()).add(result);
+        }
+
+        return results;
+    }
+
     public Map<String, List<Result>> getAggregatesAsync(final List<Aggregate> aggregates, HttpServletResponse response) throws IOException
     {
         setLogger(ConnectionWrapper.getConnectionLogger());
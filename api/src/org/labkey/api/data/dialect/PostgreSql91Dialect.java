@@ -61,6 +61,7 @@ import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.LogManager;
 import java.util.logging.Logger;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
@@ -1818,6 +1819,27 @@ public abstract class PostgreSql91Dialect extends SqlDialect
         return new SqlSelector(scope, conn, copy).getCollection(String.class);
     }
 
+    @Override
+    public boolean isNullSortedHigh()
+    {
+        return true;
+    }
+
+    private static final Pattern PLAN_ROWS_PATTERN = Pattern.compile("rows=(\\d+)");
+
+    @Override
+    public @Nullable Long estimateRowCount(DbScope scope, SQLFragment select)
+    {
+        SQLFragment explain = new SQLFragment(select);
+        explain.insert(0, "EXPLAIN ");
+
+        // The first line is the top plan node, e.g., "Seq Scan on material  (cost=0.00..48312.00 rows=2000000 width=4)"
+        String topNode = new SqlSelector(scope, explain).getCollection(String.class).stream().findFirst().orElse(null);
+        Matcher matcher = null != topNode ? PLAN_ROWS_PATTERN.matcher(topNode) : null;
+
+        return null != matcher && matcher.find() ? Long.valueOf(matcher.group(1)) : null;
+    }
+
 
     // This list is definitely not exhaustive, can be used for any function where the parameter count and
     // order are exactly the same as the JDBC equivalent
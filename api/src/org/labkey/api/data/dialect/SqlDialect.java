@@ -1392,6 +1392,21 @@ public abstract class SqlDialect
         }
     }
 
+    /** Whether NULLs sort after all other values in ascending order (and before them in descending order) */
+    public boolean isNullSortedHigh()
+    {
+        return false;
+    }
+
+    /**
+     * Estimate how many rows the select returns from the query planner's statistics, which is much cheaper than running
+     * COUNT(*) over a large table. Returns null if this dialect can't estimate, in which case callers count exactly.
+     */
+    public @Nullable Long estimateRowCount(DbScope scope, SQLFragment select)
+    {
+        return null;
+    }
+
     // Add any database configuration warnings (e.g., missing aggregate function or deprecated database server version)
     // to display in the page header for administrators. This will be called:
     // - Only on the LabKey DataSource's dialect instance (not external data sources)
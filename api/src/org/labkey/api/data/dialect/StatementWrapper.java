@@ -1883,6 +1883,10 @@ public class StatementWrapper implements Statement, PreparedStatement, CallableS
         {
             throw _conn.logAndCheckException(e);
         }
+        finally
+        {
+            _conn.statementClosed(this);
+        }
     }
 
     @Override
@@ -496,6 +496,15 @@ public class QueryProfiler
         return _trackerSets;
     }
 
+    /** @return the statistics gathered so far for this SQL, or null if it hasn't completed or isn't being tracked */
+    public @Nullable QueryTracker getTracker(String sql)
+    {
+        synchronized (_lock)
+        {
+            return _queries.get(sql);
+        }
+    }
+
     public static class QueryStatTsvWriter extends TSVWriter
     {
         @Override
@@ -0,0 +1,380 @@
+/*
+ * Copyright (c) 2021 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.api.data.statistics;
+
+import org.jetbrains.annotations.Nullable;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Accumulates summary statistics for one column in a single pass over its values: count, mean and standard deviation
+ * (Welford's method) on primitives, plus quantiles and distinct counts when asked for. Quantiles and distinct counts
+ * are exact up to EXACT_LIMIT values, after which they switch to a TDigest and a HyperLogLog so memory stays bounded
+ * on very large tables; results computed from a sketch report themselves as approximate.
+ *
+ * Summaries can be merged, so partitions of a table can be scanned independently. Not thread safe.
+ */
+public class ColumnSummary
+{
+    public static final int EXACT_LIMIT = 10_000;
+
+    private boolean _trackQuantiles = false;
+    private boolean _trackDistinct = false;
+
+    private long _count = 0;
+    private long _numericCount = 0;
+    private double _mean = 0;
+    private double _m2 = 0;
+
+    // Exact values until EXACT_LIMIT, then the digest
+    private double[] _values = new double[16];
+    private int _valueCount = 0;
+    private @Nullable TDigest _digest;
+
+    // Exact distinct values (integral numbers as Long, other numbers as Double) until EXACT_LIMIT, then the sketch
+    private @Nullable Set<Object> _distinct;
+    private @Nullable HyperLogLog _hll;
+
+    public void trackQuantiles()
+    {
+        _trackQuantiles = true;
+    }
+
+    public void trackDistinct()
+    {
+        _trackDistinct = true;
+    }
+
+    public void add(@Nullable Object value)
+    {
+        if (null == value)
+            return;
+
+        _count++;
+
+        if (value instanceof Number)
+        {
+            double d = ((Number) value).doubleValue();
+            if (!Double.isNaN(d))
+                addNumeric(d);
+        }
+
+        if (_trackDistinct)
+            addDistinct(value);
+    }
+
+    /** Same as add(Object) for a non-null floating point value, without boxing it unless distinct values are tracked */
+    public void add(double d)
+    {
+        _count++;
+
+        if (!Double.isNaN(d))
+            addNumeric(d);
+
+        if (_trackDistinct)
+            addDistinct(d);
+    }
+
+    /** Same as add(Object) for a non-null integer value, without boxing it unless distinct values are tracked */
+    public void add(long l)
+    {
+        _count++;
+        addNumeric(l);
+
+        if (_trackDistinct)
+            addDistinct(l);
+    }
+
+    private void addNumeric(double d)
+    {
+        _numericCount++;
+        double delta = d - _mean;
+        _mean += delta / _numericCount;
+        _m2 += delta * (d - _mean);
+
+        if (_trackQuantiles)
+        {
+            if (null != _digest)
+            {
+                _digest.add(d);
+            }
+            else if (_valueCount < EXACT_LIMIT)
+            {
+                if (_valueCount == _values.length)
+                    _values = Arrays.copyOf(_values, Math.min(EXACT_LIMIT, _values.length * 2));
+                _values[_valueCount++] = d;
+            }
+            else
+            {
+                _digest = new TDigest();
+                for (int i = 0; i < _valueCount; i++)
+                    _digest.add(_values[i]);
+                _digest.add(d);
+                _values = null;
+                _valueCount = 0;
+            }
+        }
+    }
+
+    private void addDistinct(Object value)
+    {
+        if (null != _hll)
+        {
+            _hll.add(value);
+            return;
+        }
+
+        if (null == _distinct)
+            _distinct = new HashSet<>();
+
+        if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte)
+            value = ((Number) value).longValue();
+        else if (value instanceof Number)
+            value = ((Number) value).doubleValue();
+
+        _distinct.add(value);
+
+        if (_distinct.size() > EXACT_LIMIT)
+        {
+            _hll = new HyperLogLog();
+            for (Object o : _distinct)
+                _hll.add(o);
+            _distinct = null;
+        }
+    }
+
+    public void merge(ColumnSummary other)
+    {
+        if (other._numericCount > 0)
+        {
+            long n = _numericCount + other._numericCount;
+            double delta = other._mean - _mean;
+            _m2 += other._m2 + delta * delta * _numericCount * other._numericCount / n;
+            _mean += delta * other._numericCount / n;
+            _numericCount = n;
+        }
+        _count += other._count;
+
+        if (_trackQuantiles)
+        {
+            if (null == _digest && null == other._digest && _valueCount + other._valueCount <= EXACT_LIMIT)
+            {
+                if (_valueCount + other._valueCount > _values.length)
+                    _values = Arrays.copyOf(_values, _valueCount + other._valueCount);
+                System.arraycopy(other._values, 0, _values, _valueCount, other._valueCount);
+                _valueCount += other._valueCount;
+            }
+            else
+            {
+                TDigest digest = toDigest();
+                digest.merge(other.toDigest());
+                _digest = digest;
+                _values = null;
+                _valueCount = 0;
+            }
+        }
+
+        if (_trackDistinct)
+        {
+            if (null != other._hll || null != _hll)
+            {
+                HyperLogLog hll = toHyperLogLog();
+                hll.merge(other.toHyperLogLog());
+                _hll = hll;
+                _distinct = null;
+            }
+            else if (null != other._distinct)
+            {
+                for (Object o : other._distinct)
+                    addDistinct(o);
+            }
+        }
+    }
+
+    private TDigest toDigest()
+    {
+        if (null != _digest)
+            return _digest;
+
+        TDigest digest = new TDigest();
+        for (int i = 0; i < _valueCount; i++)
+            digest.add(_values[i]);
+        return digest;
+    }
+
+    private HyperLogLog toHyperLogLog()
+    {
+        if (null != _hll)
+            return _hll;
+
+        HyperLogLog hll = new HyperLogLog();
+        if (null != _distinct)
+        {
+            for (Object o : _distinct)
+                hll.add(o);
+        }
+        return hll;
+    }
+
+    /** Number of non-null values */
+    public long getCount()
+    {
+        return _count;
+    }
+
+    public @Nullable Double getMean()
+    {
+        return _numericCount == 0 ? null : _mean;
+    }
+
+    /** Sample standard deviation, or null with fewer than two numeric values */
+    public @Nullable Double getStdDev()
+    {
+        return _numericCount < 2 ? null : Math.sqrt(_m2 / (_numericCount - 1));
+    }
+
+    /**
+     * Value at quantile q (0 to 1), interpolating between the closest ranks as PERCENTILE_CONT does, or null if there
+     * are no numeric values
+     */
+    public @Nullable Double getQuantile(double q)
+    {
+        if (!_trackQuantiles)
+            throw new IllegalStateException("Quantiles weren't tracked for this column");
+
+        if (null != _digest)
+            return _digest.quantile(q);
+
+        if (_valueCount == 0)
+            return null;
+
+        double[] sorted = Arrays.copyOf(_values, _valueCount);
+        Arrays.sort(sorted);
+        double rank = q * (_valueCount - 1);
+        int lower = (int) Math.floor(rank);
+        int upper = (int) Math.ceil(rank);
+
+        return sorted[lower] + (sorted[upper] - sorted[lower]) * (rank - lower);
+    }
+
+    public boolean isQuantileApproximate()
+    {
+        return null != _digest;
+    }
+
+    public long getDistinctCount()
+    {
+        if (!_trackDistinct)
+            throw new IllegalStateException("Distinct values weren't tracked for this column");
+
+        if (null != _hll)
+            return _hll.estimate();
+
+        return null == _distinct ? 0 : _distinct.size();
+    }
+
+    public boolean isDistinctCountApproximate()
+    {
+        return null != _hll;
+    }
+
+    public static class TestCase extends Assert
+    {
+        @Test
+        public void testExact()
+        {
+            ColumnSummary summary = new ColumnSummary();
+            summary.trackQuantiles();
+            summary.trackDistinct();
+
+            for (Object value : new Object[]{1, 2L, 3.0, 4, null, 4})
+                summary.add(value);
+
+            assertEquals(5, summary.getCount());
+            assertEquals(2.8, summary.getMean(), 1e-9);
+            assertEquals(Math.sqrt(1.7), summary.getStdDev(), 1e-9);
+            assertEquals(3.0, summary.getQuantile(0.5), 1e-9);
+            assertEquals(2.0, summary.getQuantile(0.25), 1e-9);
+            assertEquals(4, summary.getDistinctCount());
+            assertFalse(summary.isQuantileApproximate());
+            assertFalse(summary.isDistinctCountApproximate());
+
+            ColumnSummary empty = new ColumnSummary();
+            empty.trackQuantiles();
+            assertNull(empty.getMean());
+            assertNull(empty.getStdDev());
+            assertNull(empty.getQuantile(0.5));
+        }
+
+        @Test
+        public void testPrimitives()
+        {
+            ColumnSummary boxed = new ColumnSummary();
+            ColumnSummary primitive = new ColumnSummary();
+            for (ColumnSummary s : new ColumnSummary[]{boxed, primitive})
+            {
+                s.trackQuantiles();
+                s.trackDistinct();
+            }
+
+            for (Object value : new Object[]{1L, 2.5, 4L, 4.0, Double.NaN})
+                boxed.add(value);
+            primitive.add(1L);
+            primitive.add(2.5);
+            primitive.add(4L);
+            primitive.add(4.0);
+            primitive.add(Double.NaN);
+
+            assertEquals(boxed.getCount(), primitive.getCount());
+            assertEquals(boxed.getMean(), primitive.getMean(), 1e-9);
+            assertEquals(boxed.getStdDev(), primitive.getStdDev(), 1e-9);
+            assertEquals(boxed.getQuantile(0.5), primitive.getQuantile(0.5), 1e-9);
+            assertEquals(boxed.getDistinctCount(), primitive.getDistinctCount());
+        }
+
+        @Test
+        public void testLargeAndMerge()
+        {
+            ColumnSummary a = new ColumnSummary();
+            ColumnSummary b = new ColumnSummary();
+            for (ColumnSummary s : new ColumnSummary[]{a, b})
+            {
+                s.trackQuantiles();
+                s.trackDistinct();
+            }
+
+            for (int i = 0; i < 100_000; i++)
+            {
+                a.add(i);
+                b.add(100_000 + i);
+            }
+
+            assertTrue(a.isQuantileApproximate());
+            assertTrue(a.isDistinctCountApproximate());
+
+            a.merge(b);
+            assertEquals(200_000, a.getCount());
+            assertEquals(99_999.5, a.getMean(), 1e-6);
+            assertEquals(Math.sqrt((200_000.0 * 200_000 - 1) / 12 * 200_000 / 199_999), a.getStdDev(), 1e-3);
+            assertEquals(100_000, a.getQuantile(0.5), 1_000);
+            assertEquals(200_000, a.getDistinctCount(), 6_000);
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (c) 2021 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.api.data.statistics;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Merging t-digest (Dunning and Ertl) for estimating quantiles of a stream of doubles in bounded memory. Values are
+ * buffered and periodically merged into a sorted list of weighted centroids; centroids near the tails are kept small,
+ * so extreme quantiles stay accurate while the middle of the distribution is summarized more coarsely. Two digests
+ * can be merged, e.g. to combine per-partition results.
+ *
+ * Not thread safe.
+ */
+public class TDigest
+{
+    public static final double DEFAULT_COMPRESSION = 100;
+
+    private final double _compression;
+
+    // Sorted by mean after compress()
+    private double[] _means = new double[0];
+    private double[] _weights = new double[0];
+    private int _centroidCount = 0;
+
+    private final double[] _buffer;
+    private int _bufferCount = 0;
+
+    private double _totalWeight = 0;
+    private double _min = Double.POSITIVE_INFINITY;
+    private double _max = Double.NEGATIVE_INFINITY;
+
+    public TDigest()
+    {
+        this(DEFAULT_COMPRESSION);
+    }
+
+    public TDigest(double compression)
+    {
+        _compression = compression;
+        _buffer = new double[(int) (10 * compression)];
+    }
+
+    public void add(double value)
+    {
+        if (Double.isNaN(value))
+            return;
+
+        if (_bufferCount == _buffer.length)
+            compress();
+
+        _buffer[_bufferCount++] = value;
+        _totalWeight++;
+        _min = Math.min(_min, value);
+        _max = Math.max(_max, value);
+    }
+
+    public void merge(TDigest other)
+    {
+        other.compress();
+        compress();
+
+        _totalWeight += other._totalWeight;
+        _min = Math.min(_min, other._min);
+        _max = Math.max(_max, other._max);
+        mergeRuns(other._means, other._weights, other._centroidCount);
+    }
+
+    public long size()
+    {
+        return (long) _totalWeight;
+    }
+
+    /** @return the estimated value at quantile q (0 to 1), or NaN if nothing has been added */
+    public double quantile(double q)
+    {
+        if (q < 0 || q > 1)
+            throw new IllegalArgumentException("Quantile must be between 0 and 1: " + q);
+
+        compress();
+
+        if (_centroidCount == 0)
+            return Double.NaN;
+        if (_centroidCount == 1)
+            return _means[0];
+
+        // Each centroid's mean sits at the middle of its weight; interpolate between neighbouring centers
+        double index = q * _totalWeight;
+        double center = _weights[0] / 2;
+
+        if (index < center)
+            return _min + (_means[0] - _min) * (index / center);
+
+        for (int i = 0; i < _centroidCount - 1; i++)
+        {
+            double nextCenter = center + (_weights[i] + _weights[i + 1]) / 2;
+            if (index <= nextCenter)
+                return _means[i] + (_means[i + 1] - _means[i]) * ((index - center) / (nextCenter - center));
+            center = nextCenter;
+        }
+
+        double remaining = _totalWeight - center;
+        return remaining <= 0 ? _max : _means[_centroidCount - 1] + (_max - _means[_centroidCount - 1]) * ((index - center) / remaining);
+    }
+
+    private void compress()
+    {
+        if (_bufferCount == 0)
+            return;
+
+        Arrays.sort(_buffer, 0, _bufferCount);
+        mergeRuns(_buffer, null, _bufferCount);
+        _bufferCount = 0;
+    }
+
+    // Merge a sorted run of (mean, weight) pairs with the current centroids; null weights means every weight is 1
+    private void mergeRuns(double[] means, double[] weights, int count)
+    {
+        int total = _centroidCount + count;
+        double[] newMeans = new double[total];
+        double[] newWeights = new double[total];
+        int newCount = 0;
+
+        // Weight of the centroids before the current (last) one
+        double weightSoFar = 0;
+        int i = 0;
+        int j = 0;
+
+        while (i < _centroidCount || j < count)
+        {
+            double mean;
+            double weight;
+
+            if (j >= count || (i < _centroidCount && _means[i] <= means[j]))
+            {
+                mean = _means[i];
+                weight = _weights[i];
+                i++;
+            }
+            else
+            {
+                mean = means[j];
+                weight = null == weights ? 1 : weights[j];
+                j++;
+            }
+
+            if (newCount > 0)
+            {
+                double proposed = newWeights[newCount - 1] + weight;
+                double q = (weightSoFar + proposed / 2) / _totalWeight;
+                double limit = 4 * _totalWeight * q * (1 - q) / _compression;
+
+                if (proposed <= Math.max(1, limit))
+                {
+                    newMeans[newCount - 1] += (mean - newMeans[newCount - 1]) * weight / proposed;
+                    newWeights[newCount - 1] = proposed;
+                    continue;
+                }
+
+                weightSoFar += newWeights[newCount - 1];
+            }
+
+            newMeans[newCount] = mean;
+            newWeights[newCount] = weight;
+            newCount++;
+        }
+
+        _means = Arrays.copyOf(newMeans, newCount);
+        _weights = Arrays.copyOf(newWeights, newCount);
+        _centroidCount = newCount;
+    }
+
+    public static class TestCase extends Assert
+    {
+        @Test
+        public void testUniform()
+        {
+            TDigest digest = new TDigest();
+            Random random = new Random(42);
+            double[] values = new double[100_000];
+
+            for (int i = 0; i < values.length; i++)
+            {
+                values[i] = random.nextDouble() * 1000;
+                digest.add(values[i]);
+            }
+
+            Arrays.sort(values);
+            assertEquals(values.length, digest.size());
+            assertEquals(values[0], digest.quantile(0), 0);
+            assertEquals(values[values.length - 1], digest.quantile(1), 0);
+
+            for (double q : new double[]{0.01, 0.25, 0.5, 0.75, 0.99})
+                assertEquals("q=" + q, values[(int) (q * (values.length - 1))], digest.quantile(q), 5);
+        }
+
+        @Test
+        public void testMerge()
+        {
+            TDigest a = new TDigest();
+            TDigest b = new TDigest();
+
+            for (int i = 0; i < 50_000; i++)
+            {
+                a.add(i);
+                b.add(50_000 + i);
+            }
+
+            a.merge(b);
+            assertEquals(100_000, a.size());
+            assertEquals(50_000, a.quantile(0.5), 500);
+            assertEquals(25_000, a.quantile(0.25), 500);
+            assertTrue(Double.isNaN(new TDigest().quantile(0.5)));
+        }
+    }
+}
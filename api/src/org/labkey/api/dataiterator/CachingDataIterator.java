@@ -65,7 +65,15 @@ public class CachingDataIterator extends AbstractDataIterator implements Scrolla
     {
         if (in instanceof ScrollableDataIterator && ((ScrollableDataIterator)in).isScrollable())
             return (ScrollableDataIterator)in;
-        return new DiskCachingDataIterator(in);
+        return overflowToDisk ? new DiskCachingDataIterator(in) : new CachingDataIterator(in);
+    }
+
+    /** Rows beyond the context's heap budget (see DataIteratorContext.setCacheHeapBudget()) are spilled to disk */
+    public static ScrollableDataIterator wrap(DataIterator in, DataIteratorContext context)
+    {
+        if (in instanceof ScrollableDataIterator && ((ScrollableDataIterator)in).isScrollable())
+            return (ScrollableDataIterator)in;
+        return new DiskCachingDataIterator(in, context);
     }
 
 
@@ -55,6 +55,11 @@ public class DataIteratorContext
 
     int _maxRowErrors = 1;
 
+    // Heap that caching iterators in this context may use before they spill rows to disk, see DiskCachingDataIterator
+    public static final long DEFAULT_CACHE_HEAP_BUDGET = 64L * 1024 * 1024;
+    long _cacheHeapBudget = DEFAULT_CACHE_HEAP_BUDGET;
+    private final SpillStore.Counters _spillCounters = new SpillStore.Counters();
+
     private final Map<Enum, Object> _configParameters = new HashMap<>();
 
     public DataIteratorContext()
@@ -67,6 +72,25 @@ public class DataIteratorContext
         _errors = errors;
     }
 
+    /** Copy the settings of another context, but report errors to the given BatchValidationException */
+    public DataIteratorContext(DataIteratorContext copy, BatchValidationException errors)
+    {
+        _errors = errors;
+        _insertOption = copy._insertOption;
+        _selectIds = copy._selectIds;
+        _failFast = copy._failFast;
+        _verbose = copy._verbose;
+        _supportAutoIncrementKey = copy._supportAutoIncrementKey;
+        _allowImportLookupByAlternateKey = copy._allowImportLookupByAlternateKey;
+        _passThroughBuiltInColumnNames.addAll(copy._passThroughBuiltInColumnNames);
+        _dontUpdateColumnNames.addAll(copy._dontUpdateColumnNames);
+        _alternateKeys.addAll(copy._alternateKeys);
+        _dataSource = copy._dataSource;
+        _maxRowErrors = copy._maxRowErrors;
+        _cacheHeapBudget = copy._cacheHeapBudget;
+        _configParameters.putAll(copy._configParameters);
+    }
+
     public QueryUpdateService.InsertOption getInsertOption()
     {
         return _insertOption;
@@ -136,6 +160,28 @@ public class DataIteratorContext
         return _errors;
     }
 
+    public long getCacheHeapBudget()
+    {
+        return _cacheHeapBudget;
+    }
+
+    /**
+     * Estimated bytes of row data that scrollable iterators in this context may hold on heap before spilling to disk.
+     * Applies to iterators made with DataIteratorUtil.wrapScrollable(di, context), which can rewind to the first row.
+     * The mark()/reset() windows used by ExistingRecordDataIterator and GenerateUniqueDataIterator drop rows as they
+     * move forward, so they hold at most one batch and don't count against this budget.
+     */
+    public void setCacheHeapBudget(long cacheHeapBudget)
+    {
+        _cacheHeapBudget = cacheHeapBudget;
+    }
+
+    /** Rows & bytes spilled to disk, and heap currently used, by scrollable iterators in this context */
+    public SpillStore.Counters getSpillCounters()
+    {
+        return _spillCounters;
+    }
+
     public boolean supportsAutoIncrementKey()
     {
         return _supportAutoIncrementKey;
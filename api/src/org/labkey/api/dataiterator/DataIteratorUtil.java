@@ -368,11 +368,18 @@ public class DataIteratorUtil
      * Wrapping functions to add functionality to existing DataIterators
      */
 
+    /** Holds every row on the heap; use wrapScrollable(di, context) when the input may be large */
     public static ScrollableDataIterator wrapScrollable(DataIterator di)
     {
         return CachingDataIterator.wrap(di);
     }
 
+    /** Like wrapScrollable(di), but bounds memory use to the context's heap budget by spilling rows to disk */
+    public static ScrollableDataIterator wrapScrollable(DataIterator di, DataIteratorContext context)
+    {
+        return CachingDataIterator.wrap(di, context);
+    }
+
 
     public static MapDataIterator wrapMap(DataIterator in, boolean mutable)
     {
@@ -1,68 +1,87 @@
 package org.labkey.api.dataiterator;
 
-import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
-import com.fasterxml.jackson.databind.util.ByteBufferBackedOutputStream;
-import org.apache.commons.collections.map.AbstractReferenceMap;
-import org.apache.commons.collections.map.ReferenceMap;
-import org.apache.tika.io.IOUtils;
 import org.junit.Assert;
 import org.junit.Test;
-import org.labkey.api.arrays.IntegerArray;
 import org.labkey.api.query.BatchValidationException;
 import org.labkey.api.util.GUID;
-import org.labkey.api.util.UnexpectedException;
 
-import java.io.File;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.RandomAccessFile;
-import java.nio.Buffer;
-import java.nio.BufferOverflowException;
-import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Map;
+import java.util.List;
 
+/**
+ * A CachingDataIterator that holds a bounded number of rows in memory. Rows beyond the limit, or beyond the heap
+ * budget of the DataIteratorContext (shared with other caching iterators in the same context), are moved to a
+ * SpillStore and read back from there when the caller scrolls back to them.
+ *
+ * All rows before the in-memory window are always in the SpillStore, so any row read so far can be returned.
+ */
 public class DiskCachingDataIterator extends CachingDataIterator
 {
     final int limit;         // max _data.size()
     final int batchSize;     // number or rows to read/write at a time <= limit
+    final long _heapBudget;
+    final SpillStore.Counters _counters;
 
     int _diskMarkPosition;
+    long _heapBytes = 0;     // estimated heap used by the rows in _data
+    SpillStore _store = null;
 
     DiskCachingDataIterator(DataIterator in)
     {
-        super(in);
-        limit = 50_000;
-        batchSize = 1000;
+        this(in, 50_000, 1000, Long.MAX_VALUE, new SpillStore.Counters());
+    }
+
+    DiskCachingDataIterator(DataIterator in, DataIteratorContext context)
+    {
+        this(in, Integer.MAX_VALUE, 1000, context.getCacheHeapBudget(), context.getSpillCounters());
     }
 
     /* for testing */
     DiskCachingDataIterator(DataIterator in, int limit, int batch)
+    {
+        this(in, limit, batch, Long.MAX_VALUE, new SpillStore.Counters());
+    }
+
+    DiskCachingDataIterator(DataIterator in, int limit, int batch, long heapBudget, SpillStore.Counters counters)
     {
         super(in);
         this.limit = limit;
         batchSize = Math.min(batch,limit);
+        _heapBudget = heapBudget;
+        _counters = counters;
     }
 
-    @Override
-    public boolean next() throws BatchValidationException
+    public SpillStore.Counters getCounters()
     {
-        return super.next();
+        return _counters;
+    }
+
+    /** Number of rows moved to disk so far */
+    public int getRowsOnDisk()
+    {
+        return null == _store ? 0 : _store.size();
     }
 
     @Override
     protected void populateRows() throws BatchValidationException
     {
-        if (_data.size() >= limit)
-            writeToDisk(); // maybe write rows to disk
+        if (_data.size() >= limit || (_counters.getHeapBytes() > _heapBudget && !_data.isEmpty()))
+            evict();
 
         // if our position matches the input position, just advance as normal (_currentPosition is already incremented)
         if (_currentPosition == _inputPosition+1)
+        {
+            int size = _data.size();
             super.populateRows();
+            if (_data.size() > size)
+                addHeap(SpillStore.estimateHeapSize(_data.get(size)));
+        }
         else
+        {
             loadFromDisk(_currentPosition);
+        }
     }
 
     @Override
@@ -82,126 +101,80 @@ public class DiskCachingDataIterator extends CachingDataIterator
     protected void reset()
     {
         _currentPosition = _diskMarkPosition-1;
-        if (_currentPosition < _markPosition-1 || _currentPosition >= _markPosition+_data.size())
+        _currentRowArray = null;
+        if (_diskMarkPosition < _markPosition || _diskMarkPosition > _markPosition+_data.size())
         {
+            // The rows we want aren't in memory. Make sure everything in memory is on disk before dropping it.
+            spill(_data.size());
+            clearData(_data.size());
             _markPosition = _diskMarkPosition;
-            _data.clear();
         }
     }
 
-    File _tempFile;
-    RandomAccessFile _randomAccessFile;
-    MappedByteBuffer _buffer;
-    ObjectOutputStream _objectOutputStream;
-
-    int _bufferEndPosition=0;     // I don't think the buffer will tell where the end of the data is???
-    IntegerArray _index = new IntegerArray();
-    Map<Integer,Object[]> _map = (Map<Integer,Object[]>)new ReferenceMap(AbstractReferenceMap.HARD, AbstractReferenceMap.SOFT);
-    int firstRowOnDisk = -1;    // index of first row written to disk
-    int lastRowOnDisk = -1;     // index of last row written (number or rows = lastRowOnDisk-firstRowOnDisk+1)
+    // Make room: move the oldest batch of in-memory rows to disk (if they aren't there already)
+    private void evict()
+    {
+        int count = Math.min(batchSize, _data.size());
+        spill(count);
+        clearData(count);
+        _markPosition += count;
+    }
 
-    private void writeToDisk()
+    // Append the first count rows of _data to the store, skipping those already there
+    private void spill(int count)
     {
-        if (null == _buffer)
-        {
-            try
-            {
-                _tempFile = File.createTempFile("buffer", "dat");
-                _tempFile.deleteOnExit();
-                _randomAccessFile = new RandomAccessFile(_tempFile, "rw");
-                _buffer = _randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 128 * 1024);
-            }
-                catch (IOException x)
-            {
-                throw UnexpectedException.wrap(x);
-            }
-        }
-        int copyCount = Math.min(batchSize, _data.size());
-        for (int i=0 ; i<copyCount ; i++)
+        if (0 == count)
+            return;
+        if (null == _store)
+            _store = new SpillStore(SpillStore.getJdbcTypes(_in), _counters);
+
+        for (int i = _store.size() - _markPosition; i < count; i++)
         {
-            writeRowToDisk(_markPosition + i, _data.get(i));
+            if (i < 0)
+                throw new IllegalStateException("Rows before " + _markPosition + " are missing from disk");
+            _store.append(_data.get(i));
         }
-        _data.removeRange(0,copyCount);
-        _markPosition += copyCount;
     }
 
-    void writeRowToDisk(int pos, Object[] row)
+    private void clearData(int count)
     {
-        _map.put(pos, row);
-        if (pos == lastRowOnDisk+1)
-        {
-            try
-            {
-                _index.add(_bufferEndPosition);
-                while (true)
-                {
-                    try
-                    {
-                        _buffer.position(_bufferEndPosition);
-                        ObjectOutputStream objectOutputStream = new ObjectOutputStream(new ByteBufferBackedOutputStream(_buffer));
-                        objectOutputStream.writeObject(row);
-                        objectOutputStream.close();
-                        break;
-                    }
-                    catch (BufferOverflowException x)
-                    {
-                        int capacity = _buffer.capacity();
-                        if (capacity < 1025*1024)
-                            capacity += capacity < 1024*1024 ? 128 * 1024 : 1024*1024;
-                        _buffer = _randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
-                    }
-                }
-                _bufferEndPosition = _buffer.position();
-                lastRowOnDisk = pos;
-            }
-            catch (IOException x)
-            {
-                throw UnexpectedException.wrap(x);
-            }
-        }
-        if (pos > lastRowOnDisk+1 || pos < firstRowOnDisk)
-            throw new IllegalStateException();
+        for (int i = 0; i < count; i++)
+            addHeap(-SpillStore.estimateHeapSize(_data.get(i)));
+        _data.removeRange(0, count);
+    }
+
+    private void addHeap(long bytes)
+    {
+        _heapBytes += bytes;
+        _counters.addHeapBytes(bytes);
     }
 
     private void loadFromDisk(int start)
     {
-        int end = start + batchSize;
-        boolean assertEnabled = false;
-        assert true==(assertEnabled=true);
+        int end = Math.min(start + batchSize, getRowsOnDisk());
         for (int row=start ; row<end ; row++)
         {
-            try
-            {
-                Object[] data = _map.get(row);
-                if (null == data || assertEnabled)
-                {
-                    int pos = _index.get(row);
-                    _buffer.position(pos);
-                    ObjectInputStream objectInputStream = new ObjectInputStream(new ByteBufferBackedInputStream(_buffer));
-                    Object[] dataDisk = (Object[])objectInputStream.readObject();
-                    objectInputStream.close();
-                    assert null==data || Arrays.equals(data,dataDisk);
-                    data = dataDisk;
-                }
-                _data.add(data);
-            }
-            catch (IOException|ClassNotFoundException x)
-            {
-                throw UnexpectedException.wrap(x);
-            }
+            Object[] data = _store.get(row);
+            _data.add(data);
+            addHeap(SpillStore.estimateHeapSize(data));
         }
-        //return (_cu) < _data.size();
     }
 
     @Override
     public void close() throws IOException
     {
-        //_map.clear();
-        IOUtils.closeQuietly(_objectOutputStream);
-        if (null != _randomAccessFile)
-            _randomAccessFile.close();
-        if (null != _tempFile && _tempFile.isFile())
-            _tempFile.delete();
+        try
+        {
+            if (null != _store)
+                _store.close();
+        }
+        finally
+        {
+            _counters.addHeapBytes(-_heapBytes);
+            _heapBytes = 0;
+            _data.clear();
+            super.close();
+        }
     }
 
     private static String[] as(String... arr)
@@ -265,5 +238,43 @@ public class DiskCachingDataIterator extends CachingDataIterator
             assertEquals("2",scrollable.get(1));
             scrollable.close();
         }
+
+        @Test
+        public void heapBudgetTest() throws Exception
+        {
+            List<String[]> rows = new ArrayList<>();
+            for (int i = 1; i <= 5000; i++)
+                rows.add(as(String.valueOf(i), "row " + i, GUID.makeGUID(), i % 10 == 0 ? null : String.valueOf(i * 3)));
+            StringTestIterator data = new StringTestIterator(Arrays.asList("IntNotNull", "Text", "EntityId", "Int"), rows);
+            data.setScrollable(false);
+
+            // Room for a few hundred rows
+            DataIteratorContext context = new DataIteratorContext();
+            context.setCacheHeapBudget(64 * 1024);
+            SpillStore.Counters counters = context.getSpillCounters();
+
+            try (DiskCachingDataIterator scrollable = (DiskCachingDataIterator)CachingDataIterator.wrap(data, context))
+            {
+                for (int pass = 0; pass < 2; pass++)
+                {
+                    int count = 0;
+                    while (scrollable.next())
+                    {
+                        count++;
+                        assertEquals(String.valueOf(count), scrollable.get(1));
+                        assertEquals(rows.get(count - 1)[3], scrollable.get(4));
+                        assertTrue(counters.getHeapBytes() <= 2 * context.getCacheHeapBudget());
+                    }
+                    assertEquals(5000, count);
+                    scrollable.beforeFirst();
+                }
+
+                assertTrue(scrollable.getRowsOnDisk() > 4000);
+                assertTrue(counters.getRowsWritten() > 4000);
+                assertTrue(counters.getBytesWritten() > 0);
+                assertTrue(counters.getRowsRead() > 4000);
+            }
+            assertEquals(0, counters.getHeapBytes());
+        }
     }
 }
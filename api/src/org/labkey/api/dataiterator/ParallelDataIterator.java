@@ -0,0 +1,714 @@
+/*
+ * Copyright (c) 2021 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.api.dataiterator;
+
+import org.apache.commons.lang3.StringUtils;
+import org.junit.Assert;
+import org.junit.Test;
+import org.labkey.api.data.ColumnInfo;
+import org.labkey.api.data.JdbcType;
+import org.labkey.api.query.BatchValidationException;
+import org.labkey.api.query.QueryUpdateService;
+import org.labkey.api.query.ValidationException;
+import org.labkey.api.util.JobRunner;
+import org.labkey.api.util.UnexpectedException;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a CPU-bound stage of a DataIterator pipeline (e.g. SimpleTranslator conversion and ValidatorIterator) on a pool
+ * of worker threads, then hands the rows back in their original order.
+ *
+ * The input is only ever read on the calling thread, so it can safely share the caller's transaction. Input rows are
+ * copied into batches; each batch is processed by one of several independent copies of the stage, each created by the
+ * StageFactory with its own DataIteratorContext. At most getMaxBatchesInFlight() batches are outstanding at any time,
+ * so memory use is bounded no matter how large the input is. Pool threads never wait for a copy of the stage: a batch is
+ * queued, and an idle copy is handed to the pool to drain the queue, so a pool thread only ever runs with a copy in hand.
+ *
+ * Errors a worker's stage records against a row are moved into this iterator's context as that row is returned, so
+ * Pump and DataIteratorContext see the same errors, in the same order, as if the stage had run serially. If the stage
+ * throws for a row, the exception is re-thrown when the caller reaches that row.
+ *
+ * A stage is a candidate only if it:
+ *  - returns exactly one output row per input row, and preserves the row number (column 0)
+ *  - doesn't use the database; workers run outside the caller's transaction and would take their own connections
+ *  - doesn't carry state from one row to the next (e.g. uniqueness checks), since each copy sees only some rows
+ */
+public class ParallelDataIterator extends AbstractDataIterator
+{
+    /** Create one copy of the stage, reading from source and reporting errors to context */
+    @FunctionalInterface
+    public interface StageFactory
+    {
+        DataIterator create(DataIterator source, DataIteratorContext context);
+    }
+
+    public static final int DEFAULT_BATCH_SIZE = 500;
+    public static final int MAX_WORKERS = Runtime.getRuntime().availableProcessors();
+    /** Workers for bulk file imports (see StudyManager.importDatasetData()); leaves processors free for concurrent requests */
+    public static final int BULK_IMPORT_WORKERS = Math.max(1, Math.min(4, MAX_WORKERS / 2));
+
+    private static final JobRunner WORKER_POOL = new JobRunner("DataIterator", MAX_WORKERS);
+
+    private final DataIterator _input;
+    private final DataIterator _columns;
+    private final Queue<Worker> _idleWorkers = new ConcurrentLinkedQueue<>();
+    private final Queue<Batch> _pending = new ConcurrentLinkedQueue<>();
+    private final List<Worker> _workers = new ArrayList<>();
+    private final ArrayDeque<Batch> _inFlight = new ArrayDeque<>();
+    private final int _workerCount;
+    private final int _batchSize;
+    private final int _maxBatchesInFlight;
+
+    private boolean _inputExhausted = false;
+    private volatile boolean _closed = false;
+    private Batch _current = null;
+    private int _currentIndex = -1;
+
+    /**
+     * Returns the number of workers requested by QueryUpdateService.ConfigParameters.ParallelWorkers, capped at the
+     * number of available processors. A return value of 1 means the stage should run serially.
+     */
+    public static int getWorkerCount(DataIteratorContext context)
+    {
+        Object workers = context.getConfigParameter(QueryUpdateService.ConfigParameters.ParallelWorkers);
+        if (!(workers instanceof Number))
+            return 1;
+        return Math.max(1, Math.min(((Number) workers).intValue(), MAX_WORKERS));
+    }
+
+    /**
+     * Wrap a stage. Runs the stage serially, directly over input, unless the context asks for more than one worker.
+     */
+    public static DataIterator wrap(DataIterator input, DataIteratorContext context, StageFactory stage)
+    {
+        int workers = getWorkerCount(context);
+        if (workers <= 1)
+            return stage.create(input, context);
+        return new ParallelDataIterator(input, context, stage, workers, DEFAULT_BATCH_SIZE);
+    }
+
+    public ParallelDataIterator(DataIterator input, DataIteratorContext context, StageFactory stage, int workers, int batchSize)
+    {
+        super(context);
+        if (workers < 1 || batchSize < 1)
+            throw new IllegalArgumentException("workers and batchSize must be positive");
+
+        _input = input;
+        _workerCount = workers;
+        _batchSize = batchSize;
+        // Enough batches to keep every worker busy while the caller drains finished ones
+        _maxBatchesInFlight = workers * 2;
+
+        // Create all copies of the stage up front, on this thread, so setup errors surface the usual way
+        Worker first = null;
+        for (int i = 0; i < workers; i++)
+        {
+            Worker worker = new Worker(stage);
+            if (null == first)
+                first = worker;
+            _workers.add(worker);
+            _idleWorkers.add(worker);
+        }
+        _columns = first._stage;
+    }
+
+    int getMaxBatchesInFlight()
+    {
+        return _maxBatchesInFlight;
+    }
+
+    @Override
+    public int getColumnCount()
+    {
+        return _columns.getColumnCount();
+    }
+
+    @Override
+    public ColumnInfo getColumnInfo(int i)
+    {
+        return _columns.getColumnInfo(i);
+    }
+
+    @Override
+    public boolean isConstant(int i)
+    {
+        return _columns.isConstant(i);
+    }
+
+    @Override
+    public Object getConstantValue(int i)
+    {
+        return _columns.getConstantValue(i);
+    }
+
+    @Override
+    public boolean supportsGetExistingRecord()
+    {
+        return _columns.supportsGetExistingRecord();
+    }
+
+    @Override
+    public boolean next() throws BatchValidationException
+    {
+        if (null != _current && ++_currentIndex < _current._size)
+            return deliver();
+
+        _current = null;
+        fill();
+
+        Batch batch = _inFlight.poll();
+        if (null == batch)
+            return false;
+
+        await(batch);
+        _current = batch;
+        _currentIndex = 0;
+
+        // Keep the workers busy while the caller consumes this batch
+        fill();
+
+        return deliver();
+    }
+
+    // Move the current row's errors into our context, then behave as the serial stage would have
+    private boolean deliver() throws BatchValidationException
+    {
+        RowResult row = _current._results[_currentIndex];
+
+        for (ValidationException error : row._errors)
+            _errors.addRowError(error);
+
+        if (null != row._exception)
+        {
+            if (row._exception instanceof BatchValidationException)
+                throw _errors;
+            if (row._exception instanceof RuntimeException)
+                throw (RuntimeException) row._exception;
+            if (row._exception instanceof Error)
+                throw (Error) row._exception;
+            throw UnexpectedException.wrap(row._exception);
+        }
+
+        if (!row._errors.isEmpty())
+            checkShouldCancel();
+
+        return true;
+    }
+
+    @Override
+    public Object get(int i)
+    {
+        return _current._results[_currentIndex]._values[i];
+    }
+
+    // Read input batches, on this thread, and hand them to the workers until the buffer is full
+    private void fill() throws BatchValidationException
+    {
+        while (!_inputExhausted && _inFlight.size() < _maxBatchesInFlight)
+        {
+            int columnCount = _input.getColumnCount();
+            List<Object[]> rows = new ArrayList<>(_batchSize);
+
+            while (rows.size() < _batchSize)
+            {
+                if (!_input.next())
+                {
+                    _inputExhausted = true;
+                    break;
+                }
+
+                Object[] row = new Object[columnCount + 1];
+                for (int i = 0; i <= columnCount; i++)
+                    row[i] = _input.get(i);
+                rows.add(row);
+            }
+
+            if (rows.isEmpty())
+                break;
+
+            Batch batch = new Batch(rows);
+            _inFlight.add(batch);
+            _pending.add(batch);
+            dispatch();
+        }
+    }
+
+    // Start an idle copy of the stage on the pool for each pending batch. Called by the caller's thread after queueing
+    // a batch, and by a worker after it goes idle, so a batch queued while every copy was busy is never stranded.
+    private void dispatch()
+    {
+        while (!_pending.isEmpty())
+        {
+            Worker worker = _idleWorkers.poll();
+            if (null == worker)
+                return;
+            WORKER_POOL.submit(worker::drain);
+        }
+    }
+
+    private void await(Batch batch)
+    {
+        try
+        {
+            batch._done.get();
+        }
+        catch (InterruptedException | CancellationException x)
+        {
+            throw UnexpectedException.wrap(x);
+        }
+        catch (ExecutionException x)
+        {
+            throw UnexpectedException.wrap(x.getCause());
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        // Batches that haven't started yet return without processing; wait for the ones that have, so no worker is
+        // still using its stage when we close it
+        _closed = true;
+        boolean interrupted = false;
+        for (Batch batch : _inFlight)
+        {
+            while (true)
+            {
+                try
+                {
+                    batch._done.get();
+                    break;
+                }
+                catch (InterruptedException x)
+                {
+                    interrupted = true;
+                }
+                catch (ExecutionException | CancellationException ignored)
+                {
+                    break;
+                }
+            }
+        }
+        _inFlight.clear();
+        _current = null;
+
+        try
+        {
+            for (Worker worker : _workers)
+                worker._stage.close();
+        }
+        finally
+        {
+            _input.close();
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void debugLogInfo(StringBuilder sb)
+    {
+        super.debugLogInfo(sb);
+        sb.append("    ").append(_workerCount).append(" workers\n");
+        _columns.debugLogInfo(sb);
+        _input.debugLogInfo(sb);
+    }
+
+
+    // The captured output of one row
+    private static class RowResult
+    {
+        private final Object[] _values;
+        private final List<ValidationException> _errors;
+        private final Throwable _exception;
+
+        private RowResult(Object[] values, List<ValidationException> errors, Throwable exception)
+        {
+            _values = values;
+            _errors = errors;
+            _exception = exception;
+        }
+    }
+
+
+    private static class Batch
+    {
+        private final List<Object[]> _rows;
+        private final RowResult[] _results;
+        private final CompletableFuture<Void> _done = new CompletableFuture<>();
+        private int _size = 0;
+
+        private Batch(List<Object[]> rows)
+        {
+            _rows = rows;
+            _results = new RowResult[rows.size()];
+        }
+    }
+
+
+    // One copy of the stage plus the context and input it reads from. Used by only one thread at a time.
+    private class Worker
+    {
+        private final DataIteratorContext _workerContext;
+        private final BatchSource _source;
+        private final DataIterator _stage;
+        private boolean _failed = false;
+
+        private Worker(StageFactory factory)
+        {
+            _workerContext = new DataIteratorContext(_context, new BatchValidationException());
+            // Never let a worker throw on its own; the caller decides when to stop, based on the real context
+            _workerContext.setFailFast(false);
+            _workerContext.setMaxRowErrors(Integer.MAX_VALUE);
+            _source = new BatchSource(_workerContext);
+            _stage = factory.create(_source, _workerContext);
+        }
+
+        // Runs on a pool thread: process queued batches until there are none, then go back to the idle list
+        private void drain()
+        {
+            try
+            {
+                Batch batch;
+                while (null != (batch = _pending.poll()))
+                {
+                    try
+                    {
+                        // Once closed, batches that haven't started are skipped
+                        if (!_closed)
+                            process(batch);
+                        batch._done.complete(null);
+                    }
+                    catch (Throwable t)
+                    {
+                        batch._done.completeExceptionally(t);
+                    }
+                }
+            }
+            finally
+            {
+                _idleWorkers.add(this);
+                dispatch();
+            }
+        }
+
+        private void process(Batch batch)
+        {
+            BatchValidationException errors = _workerContext.getErrors();
+            _source.setRows(batch._rows);
+
+            for (int r = 0; r < batch._results.length; r++)
+            {
+                Object[] values = null;
+                Throwable exception = null;
+                errors.clear();
+
+                if (_failed)
+                {
+                    // A previous row threw and the stage may be in an unknown state; the caller will stop before getting here
+                    exception = new IllegalStateException("Stage failed on an earlier row");
+                }
+                else
+                {
+                    try
+                    {
+                        if (!_stage.next())
+                            throw new IllegalStateException(_stage.getDebugName() + " did not return a row for input row " + batch._rows.get(r)[0]);
+
+                        int columnCount = _stage.getColumnCount();
+                        values = new Object[columnCount + 1];
+                        for (int i = 0; i <= columnCount; i++)
+                            values[i] = _stage.get(i);
+                    }
+                    catch (Throwable t)
+                    {
+                        _failed = true;
+                        exception = t;
+                    }
+                }
+
+                batch._results[r] = new RowResult(values, errors.hasErrors() ? new ArrayList<>(errors.getRowErrors()) : List.of(), exception);
+                batch._size = r + 1;
+
+                if (null != exception)
+                    break;
+            }
+
+            errors.clear();
+        }
+    }
+
+
+    // Serves the rows of the current batch to a worker's stage, with the same columns as the real input
+    private class BatchSource extends AbstractDataIterator
+    {
+        private List<Object[]> _rows = List.of();
+        private int _index = -1;
+
+        private BatchSource(DataIteratorContext context)
+        {
+            super(context);
+            setDebugName("ParallelDataIterator batch");
+        }
+
+        private void setRows(List<Object[]> rows)
+        {
+            _rows = rows;
+            _index = -1;
+        }
+
+        @Override
+        public int getColumnCount()
+        {
+            return _input.getColumnCount();
+        }
+
+        @Override
+        public ColumnInfo getColumnInfo(int i)
+        {
+            return _input.getColumnInfo(i);
+        }
+
+        @Override
+        public boolean supportsGetExistingRecord()
+        {
+            return _input.supportsGetExistingRecord();
+        }
+
+        @Override
+        public boolean next()
+        {
+            return ++_index < _rows.size();
+        }
+
+        @Override
+        public Object get(int i)
+        {
+            return _rows.get(_index)[i];
+        }
+
+        @Override
+        public void close()
+        {
+            // the real input is closed by ParallelDataIterator, on the calling thread
+        }
+    }
+
+
+    public static class TestCase extends Assert
+    {
+        private static final int ROWS = 5000;
+
+        private DataIterator createInput(DataIteratorContext context)
+        {
+            List<Map<String, Object>> rows = new ArrayList<>(ROWS);
+            for (int i = 1; i <= ROWS; i++)
+            {
+                Map<String, Object> row = new HashMap<>();
+                row.put("Value", i % 100 == 0 ? "bad" + i : String.valueOf(i));
+                rows.add(row);
+            }
+            return new ListofMapsDataIterator.Builder(Set.of("Value"), rows).getDataIterator(context);
+        }
+
+        // Converts "Value" to an integer, adding a field error for the rows it can't convert
+        private DataIterator createStage(DataIterator source, DataIteratorContext context)
+        {
+            SimpleTranslator convert = new SimpleTranslator(source, context);
+            convert.addConvertColumn("Value", 1, JdbcType.INTEGER, null, false);
+            return convert;
+        }
+
+        @Test
+        public void testOrdering() throws Exception
+        {
+            DataIteratorContext context = new DataIteratorContext();
+            context.setFailFast(false);
+            context.setMaxRowErrors(ROWS);
+            context.setVerbose(true);
+
+            try (DataIterator it = new ParallelDataIterator(createInput(context), context, this::createStage, 4, 37))
+            {
+                assertEquals(1, it.getColumnCount());
+                assertEquals("Value", it.getColumnInfo(1).getName());
+
+                int expected = 0;
+                while (it.next())
+                {
+                    expected++;
+                    assertEquals(expected, it.get(0));
+                    if (expected % 100 != 0)
+                        assertEquals(expected, it.get(1));
+                }
+                assertEquals(ROWS, expected);
+            }
+
+            // One error per bad row, in row order, just like the serial pipeline
+            List<ValidationException> errors = context.getErrors().getRowErrors();
+            assertEquals(ROWS / 100, errors.size());
+            for (int i = 0; i < errors.size(); i++)
+                assertEquals((i + 1) * 100, errors.get(i).getRowNumber());
+        }
+
+        @Test
+        public void testFailFast() throws Exception
+        {
+            DataIteratorContext context = new DataIteratorContext();
+
+            int count = 0;
+            try (DataIterator it = new ParallelDataIterator(createInput(context), context, this::createStage, 4, 37))
+            {
+                while (it.next())
+                    count++;
+                fail("Expected BatchValidationException");
+            }
+            catch (BatchValidationException x)
+            {
+                assertSame(context.getErrors(), x);
+            }
+
+            // Rows before the first bad row are returned; the error is reported exactly once
+            assertEquals(99, count);
+            assertEquals(1, context.getErrors().getRowErrors().size());
+            assertEquals(100, context.getErrors().getRowErrors().get(0).getRowNumber());
+        }
+
+        @Test
+        public void testStageException() throws Exception
+        {
+            DataIteratorContext context = new DataIteratorContext();
+            StageFactory throwing = (source, c) -> new WrapperDataIterator(source)
+            {
+                @Override
+                public boolean next() throws BatchValidationException
+                {
+                    boolean ret = super.next();
+                    if (ret && Integer.valueOf(1234).equals(get(0)))
+                        throw new IllegalArgumentException("row 1234");
+                    return ret;
+                }
+            };
+
+            int count = 0;
+            try (DataIterator it = new ParallelDataIterator(createInput(context), context, throwing, 3, 100))
+            {
+                while (it.next())
+                    count++;
+                fail("Expected IllegalArgumentException");
+            }
+            catch (IllegalArgumentException x)
+            {
+                assertTrue(StringUtils.contains(x.getMessage(), "1234"));
+            }
+            assertEquals(1233, count);
+        }
+
+        @Test
+        public void testCloseWaitsForWorkers() throws Exception
+        {
+            DataIteratorContext context = new DataIteratorContext();
+            AtomicInteger active = new AtomicInteger();
+            AtomicInteger closed = new AtomicInteger();
+            StageFactory slow = (source, c) -> new WrapperDataIterator(source)
+            {
+                @Override
+                public boolean next() throws BatchValidationException
+                {
+                    active.incrementAndGet();
+                    try
+                    {
+                        Thread.sleep(1);
+                        return super.next();
+                    }
+                    catch (InterruptedException x)
+                    {
+                        throw UnexpectedException.wrap(x);
+                    }
+                    finally
+                    {
+                        active.decrementAndGet();
+                    }
+                }
+
+                @Override
+                public void close() throws IOException
+                {
+                    closed.incrementAndGet();
+                    super.close();
+                }
+            };
+
+            // Stop early, with batches still in flight
+            try (DataIterator it = new ParallelDataIterator(createInput(context), context, slow, 3, 20))
+            {
+                for (int i = 0; i < 10; i++)
+                    assertTrue(it.next());
+            }
+
+            assertEquals("close() returned while a worker was still running", 0, active.get());
+            assertEquals("every copy of the stage should be closed", 3, closed.get());
+        }
+
+        // Two iterators sharing the pool, each with as many copies of the stage as the pool has threads
+        @Test
+        public void testSharedPool() throws Exception
+        {
+            DataIteratorContext context1 = new DataIteratorContext();
+            DataIteratorContext context2 = new DataIteratorContext();
+            context1.setFailFast(false);
+            context2.setFailFast(false);
+            context1.setMaxRowErrors(ROWS);
+            context2.setMaxRowErrors(ROWS);
+
+            try (DataIterator it1 = new ParallelDataIterator(createInput(context1), context1, this::createStage, MAX_WORKERS, 50);
+                 DataIterator it2 = new ParallelDataIterator(createInput(context2), context2, this::createStage, MAX_WORKERS, 50))
+            {
+                for (int expected = 1; expected <= ROWS; expected++)
+                {
+                    assertTrue(it1.next());
+                    assertTrue(it2.next());
+                    assertEquals(expected, it1.get(0));
+                    assertEquals(expected, it2.get(0));
+                }
+                assertFalse(it1.next());
+                assertFalse(it2.next());
+            }
+        }
+
+        @Test
+        public void testSerialWrap()
+        {
+            DataIteratorContext context = new DataIteratorContext();
+            DataIterator input = createInput(context);
+            assertFalse(wrap(input, context, this::createStage) instanceof ParallelDataIterator);
+
+            context.putConfigParameter(QueryUpdateService.ConfigParameters.ParallelWorkers, 2);
+            assertEquals(Math.min(2, MAX_WORKERS), getWorkerCount(context));
+        }
+    }
+}
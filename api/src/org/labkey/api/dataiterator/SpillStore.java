@@ -0,0 +1,788 @@
+/*
+ * Copyright (c) 2021 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.api.dataiterator;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+import org.junit.Assert;
+import org.junit.Test;
+import org.labkey.api.data.JdbcType;
+import org.labkey.api.util.FileUtil;
+import org.labkey.api.util.UnexpectedException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Append-only store of DataIterator rows in a temp file, read back by row position. Used by DiskCachingDataIterator
+ * to keep the rows of a large import off the heap.
+ *
+ * The file is memory mapped in segments, so reads and writes don't go through the heap or a system call per row. Rows
+ * use a compact binary encoding chosen by each column's JdbcType: a null bitmap, then each value without a type tag.
+ * A value whose class doesn't match its column's type (e.g. a String that hasn't been converted yet) is written with a
+ * tag, falling back to Java serialization for classes we don't know. Values come back with the same class they went in
+ * with, so a spilled row is indistinguishable from one held in memory.
+ *
+ * Not thread safe.
+ */
+public class SpillStore implements Closeable
+{
+    private static final Logger LOG = LogManager.getLogger(SpillStore.class);
+
+    static final int DEFAULT_SEGMENT_SIZE = 8 * 1024 * 1024;
+
+    private final Codec[] _columnCodecs;
+    private final int _segmentSize;
+    private final Counters _counters;
+
+    private File _file;
+    private FileChannel _channel;
+    private final List<MappedByteBuffer> _segments = new ArrayList<>();
+    private long _fileSize = 0;
+
+    // (segment index << 32) | offset within segment, for each row
+    private long[] _index = new long[1024];
+    private int _rowCount = 0;
+    private long _bytesWritten = 0;
+
+    // Reused for every row: encoded rows are built here, then copied into the mapped segment
+    private ByteBuffer _scratch = ByteBuffer.allocate(8 * 1024);
+    private byte[] _stringBytes = new byte[256];
+    private ByteBuffer _readView = null;
+    private int _readSegment = -1;
+
+    /** Rows and bytes spilled, plus heap currently held by caching iterators, for all iterators sharing a DataIteratorContext */
+    public static class Counters
+    {
+        private final AtomicLong _heapBytes = new AtomicLong();
+        private final AtomicLong _rowsWritten = new AtomicLong();
+        private final AtomicLong _bytesWritten = new AtomicLong();
+        private final AtomicLong _rowsRead = new AtomicLong();
+
+        /** Estimated heap used by rows that caching iterators are currently holding in memory */
+        public long getHeapBytes()
+        {
+            return _heapBytes.get();
+        }
+
+        public long getRowsWritten()
+        {
+            return _rowsWritten.get();
+        }
+
+        public long getBytesWritten()
+        {
+            return _bytesWritten.get();
+        }
+
+        public long getRowsRead()
+        {
+            return _rowsRead.get();
+        }
+
+        void addHeapBytes(long bytes)
+        {
+            _heapBytes.addAndGet(bytes);
+        }
+
+        @Override
+        public String toString()
+        {
+            return "heap: " + getHeapBytes() + ", rows written: " + getRowsWritten() + ", bytes written: " + getBytesWritten() + ", rows read: " + getRowsRead();
+        }
+    }
+
+    /** @param types JdbcType of each column, including the row number at index 0; null for unknown */
+    public SpillStore(JdbcType[] types, Counters counters)
+    {
+        this(types, counters, DEFAULT_SEGMENT_SIZE);
+    }
+
+    SpillStore(JdbcType[] types, Counters counters, int segmentSize)
+    {
+        _columnCodecs = new Codec[types.length];
+        for (int i = 0; i < types.length; i++)
+            _columnCodecs[i] = Codec.forJdbcType(types[i]);
+        _segmentSize = segmentSize;
+        _counters = counters;
+    }
+
+    public static JdbcType[] getJdbcTypes(DataIterator it)
+    {
+        JdbcType[] types = new JdbcType[it.getColumnCount() + 1];
+        for (int i = 0; i < types.length; i++)
+            types[i] = null == it.getColumnInfo(i) ? null : it.getColumnInfo(i).getJdbcType();
+        return types;
+    }
+
+    /** Number of rows appended so far */
+    public int size()
+    {
+        return _rowCount;
+    }
+
+    /** Bytes of encoded rows, not counting unused space at the end of each segment */
+    public long getBytesWritten()
+    {
+        return _bytesWritten;
+    }
+
+    /** Append a row; returns its position (rows are numbered from 0 in the order they are added) */
+    public int append(Object[] row)
+    {
+        if (row.length != _columnCodecs.length)
+            throw new IllegalArgumentException("Expected " + _columnCodecs.length + " values, found " + row.length);
+
+        _scratch.clear();
+        encode(row);
+        _scratch.flip();
+        int length = _scratch.remaining();
+
+        try
+        {
+            MappedByteBuffer segment = _segments.isEmpty() ? null : _segments.get(_segments.size() - 1);
+            if (null == segment || segment.remaining() < length)
+                segment = addSegment(Math.max(_segmentSize, length));
+
+            if (_rowCount == _index.length)
+                _index = Arrays.copyOf(_index, _index.length * 2);
+            _index[_rowCount] = ((long) (_segments.size() - 1) << 32) | segment.position();
+            segment.put(_scratch);
+        }
+        catch (IOException x)
+        {
+            throw UnexpectedException.wrap(x);
+        }
+
+        _bytesWritten += length;
+        _counters._rowsWritten.incrementAndGet();
+        _counters._bytesWritten.addAndGet(length);
+        return _rowCount++;
+    }
+
+    /** Returns a new array holding the row at this position */
+    public Object[] get(int position)
+    {
+        if (position < 0 || position >= _rowCount)
+            throw new IndexOutOfBoundsException("Row: " + position + ", Size: " + _rowCount);
+
+        int segment = (int) (_index[position] >>> 32);
+        int offset = (int) _index[position];
+
+        if (segment != _readSegment)
+        {
+            // A separate view, so reading doesn't disturb the write position
+            _readView = _segments.get(segment).duplicate();
+            _readSegment = segment;
+        }
+        _readView.limit(_readView.capacity());
+        _readView.position(offset);
+
+        _counters._rowsRead.incrementAndGet();
+        return decode(_readView);
+    }
+
+    private MappedByteBuffer addSegment(int size) throws IOException
+    {
+        if (null == _channel)
+        {
+            _file = File.createTempFile("spill", ".dat", FileUtil.getTempDirectory());
+            _channel = FileChannel.open(_file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        MappedByteBuffer segment = _channel.map(FileChannel.MapMode.READ_WRITE, _fileSize, size);
+        _fileSize += size;
+        _segments.add(segment);
+        return segment;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        _segments.clear();
+        _readView = null;
+        _readSegment = -1;
+        if (null != _channel)
+        {
+            _channel.close();
+            _channel = null;
+        }
+        if (null != _file)
+        {
+            // Callers close every store (see DiskCachingDataIterator.close()), so no deleteOnExit() hook. On Windows the
+            // delete can fail while the mapped segments are still reachable; the file is then left in the temp directory.
+            if (!_file.delete() && _file.exists())
+                LOG.warn("Unable to delete spill file " + _file.getAbsolutePath());
+            _file = null;
+        }
+    }
+
+
+    /*
+     * Row encoding: null bitmap, "untyped" bitmap, then the non-null values. Untyped values are preceded by a Codec tag.
+     */
+
+    private void encode(Object[] row)
+    {
+        int bitmapBytes = (row.length + 7) / 8;
+        ensureCapacity(2 * bitmapBytes);
+        int bitmapPosition = _scratch.position();
+        for (int i = 0; i < 2 * bitmapBytes; i++)
+            _scratch.put((byte) 0);
+
+        for (int i = 0; i < row.length; i++)
+        {
+            Object value = row[i];
+            if (null == value)
+            {
+                setBit(bitmapPosition, i);
+                continue;
+            }
+
+            Codec codec = i < _columnCodecs.length ? _columnCodecs[i] : null;
+            if (null == codec || !codec.accepts(value))
+            {
+                setBit(bitmapPosition + bitmapBytes, i);
+                codec = Codec.forValue(value);
+                ensureCapacity(1);
+                _scratch.put((byte) codec.ordinal());
+            }
+            codec.write(this, value);
+        }
+    }
+
+    private Object[] decode(ByteBuffer in)
+    {
+        int columns = _columnCodecs.length;
+        int bitmapBytes = (columns + 7) / 8;
+        int bitmapPosition = in.position();
+        in.position(bitmapPosition + 2 * bitmapBytes);
+
+        Object[] row = new Object[columns];
+        for (int i = 0; i < columns; i++)
+        {
+            if (getBit(in, bitmapPosition, i))
+                continue;
+
+            Codec codec = _columnCodecs[i];
+            if (getBit(in, bitmapPosition + bitmapBytes, i))
+                codec = Codec.values()[in.get()];
+            row[i] = codec.read(this, in);
+        }
+        return row;
+    }
+
+    private void setBit(int bitmapPosition, int i)
+    {
+        int p = bitmapPosition + i / 8;
+        _scratch.put(p, (byte) (_scratch.get(p) | (1 << (i % 8))));
+    }
+
+    private static boolean getBit(ByteBuffer in, int bitmapPosition, int i)
+    {
+        return 0 != (in.get(bitmapPosition + i / 8) & (1 << (i % 8)));
+    }
+
+    private void ensureCapacity(int bytes)
+    {
+        if (_scratch.remaining() < bytes)
+        {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(_scratch.capacity() * 2, _scratch.position() + bytes));
+            _scratch.flip();
+            bigger.put(_scratch);
+            _scratch = bigger;
+        }
+    }
+
+    private void writeBytes(byte[] bytes)
+    {
+        ensureCapacity(5 + bytes.length);
+        writeVarInt(bytes.length);
+        _scratch.put(bytes);
+    }
+
+    private byte[] readBytes(ByteBuffer in)
+    {
+        byte[] bytes = new byte[readVarInt(in)];
+        in.get(bytes);
+        return bytes;
+    }
+
+    private void writeString(String s)
+    {
+        // Most strings are ASCII; write those a char at a time rather than allocating a byte[]
+        int length = s.length();
+        boolean ascii = length < 64 * 1024;
+        for (int i = 0; ascii && i < length; i++)
+            ascii = s.charAt(i) < 0x80;
+
+        if (ascii)
+        {
+            ensureCapacity(5 + length);
+            writeVarInt(length);
+            for (int i = 0; i < length; i++)
+                _scratch.put((byte) s.charAt(i));
+        }
+        else
+        {
+            writeBytes(s.getBytes(UTF_8));
+        }
+    }
+
+    private String readString(ByteBuffer in)
+    {
+        int length = readVarInt(in);
+        if (_stringBytes.length < length)
+            _stringBytes = new byte[Math.max(length, _stringBytes.length * 2)];
+        in.get(_stringBytes, 0, length);
+        return new String(_stringBytes, 0, length, UTF_8);
+    }
+
+    private void writeVarInt(int value)
+    {
+        ensureCapacity(5);
+        while ((value & ~0x7F) != 0)
+        {
+            _scratch.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        _scratch.put((byte) value);
+    }
+
+    private static int readVarInt(ByteBuffer in)
+    {
+        int value = 0;
+        for (int shift = 0; ; shift += 7)
+        {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+    }
+
+
+    /** Rough heap footprint of a row of values, used to decide when to spill */
+    public static long estimateHeapSize(Object[] row)
+    {
+        long bytes = 16 + 4L * row.length;
+        for (Object value : row)
+        {
+            if (null == value)
+                continue;
+            if (value instanceof String)
+                bytes += 40 + ((String) value).length();
+            else if (value instanceof byte[])
+                bytes += 16 + ((byte[]) value).length;
+            else if (value instanceof BigDecimal)
+                bytes += 64;
+            else
+                bytes += 24;
+        }
+        return bytes;
+    }
+
+
+    private enum Codec
+    {
+        STRING(String.class)
+        {
+            @Override
+            void write(SpillStore s, Object value)
+            {
+                s.writeString((String) value);
+            }
+
+            @Override
+            Object read(SpillStore s, ByteBuffer in)
+            {
+                return s.readString(in);
+            }
+        },
+        INTEGER(Integer.class)
+        {
+            @Override
+            void write(SpillStore s, Object value)
+            {
+                s.ensureCapacity(4);
+                s._scratch.putInt((Integer) value);
+            }
+
+            @Override
+            Object read(SpillStore s, ByteBuffer in)
+            {
+                return in.getInt();
+            }
+        },
+        LONG(Long.class)
+        {
+            @Override
+            void write(SpillStore s, Object value)
+            {
+                s.ensureCapacity(8);
+                s._scratch.putLong((Long) value);
+            }
+
+            @Override
+            Object read(SpillStore s, ByteBuffer in)
+            {
+                return in.getLong();
+            }
+        },
+        SHORT(Short.class)
+        {
+            @Override
+            void write(SpillStore s, Object value)
+            {
+                s.ensureCapacity(2);
+                s._scratch.putShort((Short) value);
+            }
+
+            @Override
+            Object read(SpillStore s, ByteBuffer in)
+            {
+                return in.getShort();
+            }
+        },
+        DOUBLE(Double.class)
+        {
+            @Override
+            void write(SpillStore s, Object value)
+            {
+                s.ensureCapacity(8);
+                s._scratch.putDouble((Double) value);
+            }
+
+            @Override
+            Object read(SpillStore s, ByteBuffer in)
+            {
+                return in.getDouble();
+            }
+        },
+        FLOAT(Float.class)
+        {
+            @Override
+            void write(SpillStore s, Object value)
+            {
+                s.ensureCapacity(4);
+                s._scratch.putFloat((Float) value);
+            }
+
+            @Override
+            Object read(SpillStore s, ByteBuffer in)
+            {
+                return in.getFloat();
+            }
+        },
+        BOOLEAN(Boolean.class)
+        {
+            @Override
+            void write(SpillStore s, Object value)
+            {
+                s.ensureCapacity(1);
+                s._scratch.put((byte) ((Boolean) value ? 1 : 0));
+            }
+
+            @Override
+            Object read(SpillStore s, ByteBuffer in)
+            {
+                return in.get() != 0;
+            }
+        },
+        TIMESTAMP(Timestamp.class)
+        {
+            @Override
+            void write(SpillStore s, Object value)
+            {
+                s.ensureCapacity(12);
+                s._scratch.putLong(((Timestamp) value).getTime());
+                s._scratch.putInt(((Timestamp) value).getNanos());
+            }
+
+            @Override
+            Object read(SpillStore s, ByteBuffer in)
+            {
+                Timestamp ts = new Timestamp(in.getLong());
+                ts.setNanos(in.getInt());
+                return ts;
+            }
+        },
+        SQL_DATE(java.sql.Date.class)
+        {
+            @Override
+            void write(SpillStore s, Object value)
+            {
+                s.ensureCapacity(8);
+                s._scratch.putLong(((Date) value).getTime());
+            }
+
+            @Override
+            Object read(SpillStore s, ByteBuffer in)
+            {
+                return new java.sql.Date(in.getLong());
+            }
+        },
+        TIME(Time.class)
+        {
+            @Override
+            void write(SpillStore s, Object value)
+            {
+                s.ensureCapacity(8);
+                s._scratch.putLong(((Date) value).getTime());
+            }
+
+            @Override
+            Object read(SpillStore s, ByteBuffer in)
+            {
+                return new Time(in.getLong());
+            }
+        },
+        DATE(Date.class)
+        {
+            @Override
+            void write(SpillStore s, Object value)
+            {
+                s.ensureCapacity(8);
+                s._scratch.putLong(((Date) value).getTime());
+            }
+
+            @Override
+            Object read(SpillStore s, ByteBuffer in)
+            {
+                return new Date(in.getLong());
+            }
+        },
+        DECIMAL(BigDecimal.class)
+        {
+            @Override
+            void write(SpillStore s, Object value)
+            {
+                BigDecimal d = (BigDecimal) value;
+                s.ensureCapacity(4);
+                s._scratch.putInt(d.scale());
+                s.writeBytes(d.unscaledValue().toByteArray());
+            }
+
+            @Override
+            Object read(SpillStore s, ByteBuffer in)
+            {
+                int scale = in.getInt();
+                return new BigDecimal(new BigInteger(s.readBytes(in)), scale);
+            }
+        },
+        BYTES(byte[].class)
+        {
+            @Override
+            void write(SpillStore s, Object value)
+            {
+                s.writeBytes((byte[]) value);
+            }
+
+            @Override
+            Object read(SpillStore s, ByteBuffer in)
+            {
+                return s.readBytes(in);
+            }
+        },
+        SERIALIZED(Object.class)
+        {
+            @Override
+            boolean accepts(Object value)
+            {
+                return true;
+            }
+
+            @Override
+            void write(SpillStore s, Object value)
+            {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                try (ObjectOutputStream out = new ObjectOutputStream(bytes))
+                {
+                    out.writeObject(value);
+                }
+                catch (IOException x)
+                {
+                    throw UnexpectedException.wrap(x);
+                }
+                s.writeBytes(bytes.toByteArray());
+            }
+
+            @Override
+            Object read(SpillStore s, ByteBuffer in)
+            {
+                try (ObjectInputStream objectIn = new ObjectInputStream(new ByteArrayInputStream(s.readBytes(in))))
+                {
+                    return objectIn.readObject();
+                }
+                catch (IOException | ClassNotFoundException x)
+                {
+                    throw UnexpectedException.wrap(x);
+                }
+            }
+        };
+
+        private static final Map<Class<?>, Codec> BY_CLASS = new HashMap<>();
+
+        static
+        {
+            for (Codec codec : values())
+                BY_CLASS.put(codec._class, codec);
+        }
+
+        private final Class<?> _class;
+
+        Codec(Class<?> clazz)
+        {
+            _class = clazz;
+        }
+
+        // Exact class match, so values are read back with the class they were written with
+        boolean accepts(Object value)
+        {
+            return value.getClass() == _class;
+        }
+
+        abstract void write(SpillStore s, Object value);
+
+        abstract Object read(SpillStore s, ByteBuffer in);
+
+        static Codec forValue(Object value)
+        {
+            return BY_CLASS.getOrDefault(value.getClass(), SERIALIZED);
+        }
+
+        static @Nullable Codec forJdbcType(@Nullable JdbcType type)
+        {
+            if (null == type)
+                return null;
+
+            return switch (type)
+            {
+                case VARCHAR, CHAR, LONGVARCHAR, GUID -> STRING;
+                case INTEGER -> INTEGER;
+                case BIGINT -> LONG;
+                case SMALLINT, TINYINT -> SHORT;
+                case DOUBLE -> DOUBLE;
+                case REAL -> FLOAT;
+                case BOOLEAN -> BOOLEAN;
+                case TIMESTAMP -> TIMESTAMP;
+                case DATE -> SQL_DATE;
+                case TIME -> TIME;
+                case DECIMAL -> DECIMAL;
+                default -> null;
+            };
+        }
+    }
+
+
+    public static class TestCase extends Assert
+    {
+        private static final JdbcType[] TYPES = {JdbcType.INTEGER, JdbcType.VARCHAR, JdbcType.INTEGER, JdbcType.DOUBLE, JdbcType.TIMESTAMP, JdbcType.DECIMAL, JdbcType.OTHER};
+
+        private Object[] row(int i)
+        {
+            Timestamp ts = new Timestamp(1_600_000_000_000L + i);
+            ts.setNanos(123_456_789);
+            return new Object[] {
+                i,
+                i % 3 == 0 ? null : "row " + i + (i % 5 == 0 ? " \u00e9\u4e2d" : ""),
+                i % 4 == 0 ? "not converted" : (Object) (i * 2),
+                i / 7.0,
+                ts,
+                new BigDecimal("12345.6789").add(BigDecimal.valueOf(i)),
+                i % 2 == 0 ? new ArrayList<>(List.of("a", i)) : Boolean.TRUE
+            };
+        }
+
+        @Test
+        public void testRoundTrip() throws Exception
+        {
+            Counters counters = new Counters();
+
+            // Small segments so rows span several mappings
+            try (SpillStore store = new SpillStore(TYPES, counters, 4096))
+            {
+                for (int i = 0; i < 2000; i++)
+                    assertEquals(i, store.append(row(i)));
+
+                assertEquals(2000, store.size());
+                assertEquals(2000, counters.getRowsWritten());
+                assertEquals(store.getBytesWritten(), counters.getBytesWritten());
+
+                // Random order, to exercise switching between segments
+                for (int i = 1999; i >= 0; i -= 7)
+                {
+                    Object[] expected = row(i);
+                    Object[] actual = store.get(i);
+                    assertArrayEquals(expected, actual);
+                    for (int c = 0; c < expected.length; c++)
+                        if (null != expected[c])
+                            assertSame(expected[c].getClass(), actual[c].getClass());
+                }
+            }
+        }
+
+        @Test
+        public void testCloseDeletesFile() throws Exception
+        {
+            SpillStore store = new SpillStore(new JdbcType[] {JdbcType.INTEGER}, new Counters(), 1024);
+            for (int i = 0; i < 1000; i++)
+                store.append(new Object[] {i});
+            File file = store._file;
+            assertTrue(file.exists());
+            store.close();
+            // Mapped files can't be deleted on Windows until they're unmapped, which Java leaves to the garbage collector
+            if (!System.getProperty("os.name").startsWith("Windows"))
+                assertFalse(file.exists());
+        }
+
+        @Test
+        public void testLargeRow() throws Exception
+        {
+            try (SpillStore store = new SpillStore(new JdbcType[] {JdbcType.INTEGER, JdbcType.VARCHAR}, new Counters(), 1024))
+            {
+                String big = "x".repeat(10_000);
+                store.append(new Object[] {1, "small"});
+                store.append(new Object[] {2, big});
+                store.append(new Object[] {3, "small"});
+                assertEquals(big, store.get(1)[1]);
+                assertEquals("small", store.get(2)[1]);
+            }
+        }
+    }
+}
@@ -237,21 +237,16 @@ public class StandardDataIteratorBuilder implements DataIteratorBuilder
             }
         }
 
-        SimpleTranslator convert = new SimpleTranslator(input, context);
-        convert.setDebugName("StandardDIB convert");
-        convert.setMvContainer(_c);
-
-        for (TranslateHelper pair : convertTargetCols)
-        {
-            PropertyDescriptor pd = pair.dp == null ? null : pair.dp.getPropertyDescriptor();
-            PropertyType pt = pd == null ? null : pd.getPropertyType();
-            boolean isAttachment = pt == PropertyType.ATTACHMENT || pt == PropertyType.FILE_LINK;
-
-            if (null == pair.target || isAttachment)
-                convert.addColumn(pair.indexFrom);
-            else
-                convert.addConvertColumn(pair.target, pair.indexFrom, pair.indexMv, pd, pt, false);
-        }
+        //
+        // Conversion and validation are CPU-bound and, for wide files, most of the cost of an import. If requested via
+        // ConfigParameters.ParallelWorkers, they run on several threads (see ParallelDataIterator). Remapping lookups by
+        // alternate key queries the database and caches per-iterator, so conversion stays serial in that case.
+        //
+        DataIterator convert;
+        if (context.isAllowImportLookupByAlternateKey())
+            convert = createConvert(input, context, convertTargetCols);
+        else
+            convert = ParallelDataIterator.wrap(input, context, (source, c) -> createConvert(source, c, convertTargetCols));
 
 
         //
@@ -271,25 +266,60 @@ public class StandardDataIteratorBuilder implements DataIteratorBuilder
 
         if (_validate)
         {
-            ValidatorIterator validate = new ValidatorIterator(LoggingDataIterator.wrap(validateInput), context, _c, _user);
-            validate.setDebugName("StandardDIB validate");
-
-            for (int index = 1; index <= validateInput.getColumnCount(); index++)
+            // Check for validators up front so we don't pay for an extra (possibly parallel) pass that does nothing
+            ValidatorIterator validate = createValidate(validateInput, context, translateHelperMap);
+            if (validate.hasValidators())
             {
-                ColumnInfo col = validateInput.getColumnInfo(index);
-                TranslateHelper pair = translateHelperMap.get(getTranslateHelperKey(col));
-                if (null == pair)
-                    continue;
-                List<ColumnValidator> validators = ColumnValidators.create(pair.target, pair.dp, context.getConfigParameterBoolean(QueryUpdateService.ConfigParameters.PreserveEmptyString));
-                validate.addValidators(index, validators);
+                int workers = validate.isParallelSafe() ? ParallelDataIterator.getWorkerCount(context) : 1;
+                if (workers > 1)
+                    last = new ParallelDataIterator(validateInput, context, (source, c) -> createValidate(source, c, translateHelperMap), workers, ParallelDataIterator.DEFAULT_BATCH_SIZE);
+                else
+                    last = validate;
             }
-            if (validate.hasValidators())
-                last = validate;
         }
 
         return LoggingDataIterator.wrap(ErrorIterator.wrap(last, context, false, setupError));
     }
 
+    private SimpleTranslator createConvert(DataIterator input, DataIteratorContext context, List<TranslateHelper> convertTargetCols)
+    {
+        SimpleTranslator convert = new SimpleTranslator(input, context);
+        convert.setDebugName("StandardDIB convert");
+        convert.setMvContainer(_c);
+
+        for (TranslateHelper pair : convertTargetCols)
+        {
+            PropertyDescriptor pd = pair.dp == null ? null : pair.dp.getPropertyDescriptor();
+            PropertyType pt = pd == null ? null : pd.getPropertyType();
+            boolean isAttachment = pt == PropertyType.ATTACHMENT || pt == PropertyType.FILE_LINK;
+
+            if (null == pair.target || isAttachment)
+                convert.addColumn(pair.indexFrom);
+            else
+                convert.addConvertColumn(pair.target, pair.indexFrom, pair.indexMv, pd, pt, false);
+        }
+
+        return convert;
+    }
+
+    private ValidatorIterator createValidate(DataIterator validateInput, DataIteratorContext context, Map<String, TranslateHelper> translateHelperMap)
+    {
+        ValidatorIterator validate = new ValidatorIterator(LoggingDataIterator.wrap(validateInput), context, _c, _user);
+        validate.setDebugName("StandardDIB validate");
+
+        for (int index = 1; index <= validateInput.getColumnCount(); index++)
+        {
+            ColumnInfo col = validateInput.getColumnInfo(index);
+            TranslateHelper pair = translateHelperMap.get(getTranslateHelperKey(col));
+            if (null == pair)
+                continue;
+            List<ColumnValidator> validators = ColumnValidators.create(pair.target, pair.dp, context.getConfigParameterBoolean(QueryUpdateService.ConfigParameters.PreserveEmptyString));
+            validate.addValidators(index, validators);
+        }
+
+        return validate;
+    }
+
     private String getTranslateHelperKey(ColumnInfo col)
     {
         return col.getPropertyURI() + ":" + col.getName().toLowerCase();
@@ -201,7 +201,7 @@ public class StatementDataIterator extends AbstractDataIterator
                     to = stmt.getParameter(col.getPropertyURI());
                 if (to == null)
                     to = stmt.getParameter(col.getName());
-                if (null != to)
+                if (null != to && !to.isConstant())
                 {
                     FieldKey mvName = col.getMvColumnName();
                     bindings.add(new Triple(_data.getSupplier(i), to,
@@ -26,6 +26,7 @@ import org.labkey.api.data.Container;
 import org.labkey.api.data.DbScope;
 import org.labkey.api.data.Parameter;
 import org.labkey.api.data.ParameterMapStatement;
+import org.labkey.api.data.QueryResultCache;
 import org.labkey.api.data.RuntimeSQLException;
 import org.labkey.api.data.SQLFragment;
 import org.labkey.api.data.SqlExecutor;
@@ -33,6 +34,7 @@ import org.labkey.api.data.StatementUtils;
 import org.labkey.api.data.TableInfo;
 import org.labkey.api.data.UpdateableTableInfo;
 import org.labkey.api.exp.property.DomainProperty;
+import org.labkey.api.gwt.client.AuditBehaviorType;
 import org.labkey.api.query.FieldKey;
 import org.labkey.api.query.QueryUpdateService.InsertOption;
 import org.labkey.api.query.column.BuiltInColumnTypes;
@@ -60,6 +62,7 @@ public class TableInsertDataIterator extends StatementDataIterator implements Da
     private DbScope _scope = null;
     private Connection _conn = null;
     private Set<DomainProperty> _adhocPropColumns = new LinkedHashSet<>();
+    private boolean _multiRowInsert = true;
 
     /**
      * Creates and configures a TableInsertDataIterator. DO NOT call this method directly.
@@ -68,7 +71,8 @@ public class TableInsertDataIterator extends StatementDataIterator implements Da
      */
     public static DataIterator create(DataIteratorBuilder data, TableInfo table, @Nullable Container container, DataIteratorContext context,
          @Nullable Set<String> keyColumns, @Nullable Set<String> addlSkipColumns, @Nullable Set<String> dontUpdate,
-         @Nullable Set<DomainProperty> vocabularyColumns, boolean commitRowsBeforeContinuing, @Nullable Map<String, String> remapSchemaColumns)
+         @Nullable Set<DomainProperty> vocabularyColumns, boolean commitRowsBeforeContinuing, @Nullable Map<String, String> remapSchemaColumns,
+         boolean multiRowInsert)
             //extra param @NUllable Set<PDs/Names?CIs> VOCCOls
     {
         // TODO it would be better to postpone calling data.getDataIterator() until the TableInsertDataIterator.getDataIterator() is called
@@ -137,6 +141,8 @@ public class TableInsertDataIterator extends StatementDataIterator implements Da
             ti.setAdhocPropColumns(vocabularyColumns);
         }
 
+        ti.setMultiRowInsert(multiRowInsert);
+
         return ret;
     }
 
@@ -241,6 +247,11 @@ public class TableInsertDataIterator extends StatementDataIterator implements Da
             {
                 stmt = getMergeStatement(constants);
             }
+            else if (isMultiRowInsertAllowed())
+            {
+                // On PostgreSQL, bind constants like any other value so every column can be streamed with COPY
+                stmt = getMultiRowInsertStatement(_scope.getSqlDialect().isPostgreSQL() ? Collections.emptyMap() : constants);
+            }
             else
             {
                 stmt = getInsertStatement(constants);
@@ -285,6 +296,39 @@ public class TableInsertDataIterator extends StatementDataIterator implements Da
         return stmt;
     }
 
+    /*
+     * Multi-row inserts (and COPY) don't produce per-row results, so fall back to row-at-a-time batches whenever something
+     * needs them: reselected ids (which includes tables with triggers), existing records, or detailed auditing.
+     */
+    private boolean isMultiRowInsertAllowed()
+    {
+        if (!_multiRowInsert || _insertOption.mergeRows || _selectIds || !_adhocPropColumns.isEmpty())
+            return false;
+        if (null != _rowIdIndex || null != _objectIdIndex || null != _objectUriIndex)
+            return false;
+        if (_table.hasTriggers(_container) || _data.supportsGetExistingRecord())
+            return false;
+
+        AuditBehaviorType auditType = _table.getAuditBehavior((AuditBehaviorType) _context.getConfigParameter(DetailedAuditLogDataIterator.AuditConfigs.AuditBehavior));
+        return AuditBehaviorType.DETAILED != auditType;
+    }
+
+    protected ParameterMapStatement getMultiRowInsertStatement(Map<String, Object> constants) throws SQLException
+    {
+        if (_insertOption.identity_insert)
+            setAutoIncrement(INSERT.ON);
+
+        // StatementUtils returns a regular statement if the table needs more than a plain INSERT (e.g., exp.Object rows)
+        StatementUtils utils = new StatementUtils(StatementUtils.Operation.insert, _table)
+                .skip(_skipColumnNames)
+                .allowSetAutoIncrement(_context.supportsAutoIncrementKey())
+                .updateBuiltinColumns(false)
+                .selectIds(false)
+                .constants(constants)
+                .multiRowInsert(true);
+        return utils.createStatement(_conn, _container, null);
+    }
+
     protected ParameterMapStatement getMergeStatement(Map<String, Object> constants) throws SQLException
     {
         ParameterMapStatement stmt;
@@ -337,6 +381,8 @@ public class TableInsertDataIterator extends StatementDataIterator implements Da
             return;
         _closed = true;
         super.close();
+        if (null != _scope)
+            QueryResultCache.get().invalidate(((UpdateableTableInfo)_table).getSchemaTableInfo());
         if (null != _scope && null != _conn)
         {
             if (_insertOption.identity_insert ||
@@ -401,4 +447,9 @@ public class TableInsertDataIterator extends StatementDataIterator implements Da
     {
         _adhocPropColumns = adhocPropColumns;
     }
+
+    public void setMultiRowInsert(boolean multiRowInsert)
+    {
+        _multiRowInsert = multiRowInsert;
+    }
 }
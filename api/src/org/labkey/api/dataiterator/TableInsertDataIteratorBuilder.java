@@ -17,6 +17,7 @@ public class TableInsertDataIteratorBuilder implements DataIteratorBuilder
     Set<String> addlSkipColumns = null;
     Set<String> dontUpdate = null;
     boolean commitRowsBeforeContinuing = false;
+    boolean multiRowInsert = true;
     private Set<DomainProperty> vocabularyProperties;
     Map<String, String> remapSchemaColumns = null;
 
@@ -71,6 +72,17 @@ public class TableInsertDataIteratorBuilder implements DataIteratorBuilder
         return this;
     }
 
+    /**
+     * Batched plain inserts are written many rows per statement (multi-row VALUES, or COPY on PostgreSQL) unless something
+     * needs per-row results, e.g., triggers, reselected ids, existing records, or detailed auditing. Pass false to always
+     * insert row-at-a-time through JDBC batches.
+     */
+    public TableInsertDataIteratorBuilder setMultiRowInsert(boolean multiRowInsert)
+    {
+        this.multiRowInsert = multiRowInsert;
+        return this;
+    }
+
     public TableInsertDataIteratorBuilder setVocabularyProperties(Set<DomainProperty> vocabularyProperties)
     {
         this.vocabularyProperties = vocabularyProperties;
@@ -81,7 +93,7 @@ public class TableInsertDataIteratorBuilder implements DataIteratorBuilder
     public DataIterator getDataIterator(DataIteratorContext context)
     {
         DataIterator di = TableInsertDataIterator.create(builder, table, container, context, keyColumns, addlSkipColumns,
-                dontUpdate, vocabularyProperties, commitRowsBeforeContinuing, remapSchemaColumns);
+                dontUpdate, vocabularyProperties, commitRowsBeforeContinuing, remapSchemaColumns, multiRowInsert);
         if (null == di)
         {
             //noinspection ThrowableNotThrown
@@ -23,7 +23,11 @@ import org.labkey.api.data.ColumnInfo;
 import org.labkey.api.data.Container;
 import org.labkey.api.data.validator.ColumnValidator;
 import org.labkey.api.data.validator.ColumnValidators;
+import org.labkey.api.data.validator.DateValidator;
+import org.labkey.api.data.validator.LengthValidator;
+import org.labkey.api.data.validator.NumberValidator;
 import org.labkey.api.data.validator.PropertyValidator;
+import org.labkey.api.data.validator.RequiredValidator;
 import org.labkey.api.data.validator.RowValidator;
 import org.labkey.api.exp.property.DomainProperty;
 import org.labkey.api.exp.property.ValidatorContext;
@@ -131,6 +135,30 @@ public class ValidatorIterator extends AbstractDataIterator implements DataItera
     }
 
 
+    /**
+     * True if every validator looks only at the value in hand, so disjoint batches of rows can be validated on
+     * separate threads (see ParallelDataIterator). Property validators may query the database (e.g. lookup
+     * validators) outside the caller's transaction, and row and unique validators carry state across rows, so
+     * any of those keeps validation on the calling thread.
+     */
+    public boolean isParallelSafe()
+    {
+        if (!_rowValidators.isEmpty())
+            return false;
+
+        for (ArrayList<ColumnValidator> a : _validators)
+        {
+            for (ColumnValidator v : a)
+            {
+                if (!(v instanceof RequiredValidator || v instanceof LengthValidator || v instanceof DateValidator || v instanceof NumberValidator))
+                    return false;
+            }
+        }
+
+        return true;
+    }
+
+
     /* DataIterator */
 
     @Override
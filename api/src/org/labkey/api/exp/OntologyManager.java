@@ -70,6 +70,7 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -242,6 +243,8 @@ public class OntologyManager
 
     public static final int MAX_PROPS_IN_BATCH = 1000;  // Keep this reasonably small so progress indicator is updated regularly
     public static final int UPDATE_STATS_BATCH_COUNT = 1000;
+    public static final int BULK_INSERT_THRESHOLD = 100;  // Below this many rows, creating the staging table costs more than it saves
+    public static final int MAX_OBJECTS_IN_BULK_BATCH = 5000;
 
     /**
      * @return LSIDs/ObjectURIs of inserted objects
@@ -261,6 +264,9 @@ public class OntologyManager
      */
     public static List<String> insertTabDelimited(Container c, User user, @Nullable Integer ownerObjectId, ImportHelper helper, List<PropertyDescriptor> descriptors, List<Map<String, Object>> rows, boolean ensureObjects) throws SQLException, ValidationException
     {
+        if (rows.size() >= BULK_INSERT_THRESHOLD)
+            return insertTabDelimitedBulk(c, user, ownerObjectId, helper, descriptors, rows, ensureObjects);
+
         CPUTimer total = new CPUTimer("insertTabDelimited");
         CPUTimer before = new CPUTimer("beforeImport");
         CPUTimer ensure = new CPUTimer("ensureObject");
@@ -282,15 +288,7 @@ public class OntologyManager
                 objInsert.setOwnerObjectId(ownerObjectId);
 
             List<ValidationError> errors = new ArrayList<>();
-            Map<Integer, List<? extends IPropertyValidator>> validatorMap = new HashMap<>();
-
-            // cache all the property validators for this upload
-            for (PropertyDescriptor pd : descriptors)
-            {
-                List<? extends IPropertyValidator> validators = PropertyService.get().getPropertyValidators(pd);
-                if (!validators.isEmpty())
-                    validatorMap.put(pd.getPropertyId(), validators);
-            }
+            Map<Integer, List<? extends IPropertyValidator>> validatorMap = getPropertyValidators(descriptors);
 
             int rowCount = 0;
             int batchCount = 0;
@@ -317,33 +315,7 @@ public class OntologyManager
                     objectId = objInsert.getObjectId();
                 }
 
-                for (PropertyDescriptor pd : descriptors)
-                {
-                    Object value = map.get(pd.getPropertyURI());
-                    if (null == value)
-                    {
-                        if (pd.isRequired())
-                            throw new ValidationException("Missing value for required property " + pd.getName());
-                        else
-                        {
-                            continue;
-                        }
-                    }
-                    else
-                    {
-                        if (validatorMap.containsKey(pd.getPropertyId()))
-                            validateProperty(validatorMap.get(pd.getPropertyId()), pd, new ObjectProperty(lsid, c, pd, value), errors, validatorCache);
-                    }
-                    try
-                    {
-                        PropertyRow row = new PropertyRow(objectId, pd, value, pd.getPropertyType());
-                        propsToInsert.add(row);
-                    }
-                    catch (ConversionException e)
-                    {
-                        throw new ValidationException(ConvertHelper.getStandardConversionErrorMessage(value, pd.getName(), pd.getPropertyType().getJavaType()));
-                    }
-                }
+                addPropertyRows(c, lsid, objectId, map, descriptors, validatorMap, errors, validatorCache, propsToInsert);
                 assert ensure.stop();
 
                 rowCount++;
@@ -392,6 +364,212 @@ public class OntologyManager
     }
 
 
+    // cache all the property validators for this upload
+    private static Map<Integer, List<? extends IPropertyValidator>> getPropertyValidators(List<PropertyDescriptor> descriptors)
+    {
+        Map<Integer, List<? extends IPropertyValidator>> validatorMap = new HashMap<>();
+
+        for (PropertyDescriptor pd : descriptors)
+        {
+            List<? extends IPropertyValidator> validators = PropertyService.get().getPropertyValidators(pd);
+            if (!validators.isEmpty())
+                validatorMap.put(pd.getPropertyId(), validators);
+        }
+
+        return validatorMap;
+    }
+
+
+    // Validate and convert the values of one object. Validator errors are collected in errors; missing required values
+    // and conversion failures throw immediately.
+    private static void addPropertyRows(Container c, String lsid, int objectId, Map<String, Object> map, List<PropertyDescriptor> descriptors,
+                                        Map<Integer, List<? extends IPropertyValidator>> validatorMap, List<ValidationError> errors,
+                                        ValidatorContext validatorCache, List<PropertyRow> propsToInsert) throws ValidationException
+    {
+        for (PropertyDescriptor pd : descriptors)
+        {
+            Object value = map.get(pd.getPropertyURI());
+            if (null == value)
+            {
+                if (pd.isRequired())
+                    throw new ValidationException("Missing value for required property " + pd.getName());
+                else
+                {
+                    continue;
+                }
+            }
+            else
+            {
+                if (validatorMap.containsKey(pd.getPropertyId()))
+                    validateProperty(validatorMap.get(pd.getPropertyId()), pd, new ObjectProperty(lsid, c, pd, value), errors, validatorCache);
+            }
+            try
+            {
+                PropertyRow row = new PropertyRow(objectId, pd, value, pd.getPropertyType());
+                propsToInsert.add(row);
+            }
+            catch (ConversionException e)
+            {
+                throw new ValidationException(ConvertHelper.getStandardConversionErrorMessage(value, pd.getName(), pd.getPropertyType().getJavaType()));
+            }
+        }
+    }
+
+
+    /**
+     * Set-based version of insertTabDelimited() for larger imports. Instead of an ensureObject() or insert per row,
+     * each batch of object URIs is staged in a temp table, the missing exp.Object rows are created with a single
+     * INSERT ... SELECT, and the ObjectIds are read back with one join. Properties are then written by
+     * insertPropertiesBulk(), with one batched statement per storage type. Validation is the same as the row-at-a-time
+     * path: errors from property validators are collected and thrown after all rows are processed.
+     */
+    private static List<String> insertTabDelimitedBulk(Container c, User user, @Nullable Integer ownerObjectId, ImportHelper helper, List<PropertyDescriptor> descriptors, List<Map<String, Object>> rows, boolean ensureObjects) throws SQLException, ValidationException
+    {
+        CPUTimer total = new CPUTimer("insertTabDelimitedBulk");
+        CPUTimer ensure = new CPUTimer("ensureObjects");
+        CPUTimer insert = new CPUTimer("insertProperties");
+
+        assert total.start();
+        assert getExpSchema().getScope().isTransactionActive();
+        List<String> resultingLsids = new ArrayList<>(rows.size());
+        ValidatorContext validatorCache = new ValidatorContext(c, user);
+        List<ValidationError> errors = new ArrayList<>();
+        Map<Integer, List<? extends IPropertyValidator>> validatorMap = getPropertyValidators(descriptors);
+        Integer owner = ownerObjectId != null && ownerObjectId > 0 ? ownerObjectId : null;
+
+        TempTableInfo staging = createObjectStagingTable();
+
+        try
+        {
+            int rowCount = 0;
+            int batchCount = 0;
+            List<String> batchLsids = new ArrayList<>(MAX_OBJECTS_IN_BULK_BATCH);
+            List<PropertyRow> propsToInsert = new ArrayList<>();
+            List<String> propLsids = new ArrayList<>();
+
+            for (Map<String, Object> map : rows)
+            {
+                // TODO: hack -- should exit and return cancellation status instead of throwing
+                if (Thread.currentThread().isInterrupted())
+                    throw new CancellationException();
+
+                String lsid = helper.beforeImportObject(map);
+                resultingLsids.add(lsid);
+                batchLsids.add(lsid);
+
+                // ObjectId isn't known yet; it's filled in once the batch's objects have been created
+                int first = propsToInsert.size();
+                addPropertyRows(c, lsid, 0, map, descriptors, validatorMap, errors, validatorCache, propsToInsert);
+                for (int i = first; i < propsToInsert.size(); i++)
+                    propLsids.add(lsid);
+
+                rowCount++;
+
+                if (batchLsids.size() >= MAX_OBJECTS_IN_BULK_BATCH || propsToInsert.size() > MAX_OBJECTS_IN_BULK_BATCH * 10)
+                {
+                    insertObjectsAndPropertiesBulk(c, owner, ensureObjects, staging, batchLsids, propsToInsert, propLsids, ensure, insert);
+                    helper.afterBatchInsert(rowCount);
+                    batchLsids.clear();
+                    propsToInsert.clear();
+                    propLsids.clear();
+
+                    if (++batchCount % UPDATE_STATS_BATCH_COUNT == 0)
+                    {
+                        getExpSchema().getSqlDialect().updateStatistics(getTinfoObject());
+                        getExpSchema().getSqlDialect().updateStatistics(getTinfoObjectProperty());
+                        helper.updateStatistics(rowCount);
+                    }
+                }
+            }
+
+            if (!errors.isEmpty())
+                throw new ValidationException(errors);
+
+            insertObjectsAndPropertiesBulk(c, owner, ensureObjects, staging, batchLsids, propsToInsert, propLsids, ensure, insert);
+            helper.afterBatchInsert(rowCount);
+        }
+        catch (SQLException x)
+        {
+            SQLException next = x.getNextException();
+            if (x instanceof java.sql.BatchUpdateException && null != next)
+                x = next;
+            _log.debug("Exception uploading: ", x);
+            throw x;
+        }
+        finally
+        {
+            staging.delete();
+        }
+
+        assert total.stop();
+        _log.debug("\t" + total.toString());
+        _log.debug("\t" + ensure.toString());
+        _log.debug("\t" + insert.toString());
+
+        return resultingLsids;
+    }
+
+
+    private static TempTableInfo createObjectStagingTable()
+    {
+        ColumnInfo uriColumn = getTinfoObject().getColumn("ObjectURI");
+        int size = null == uriColumn ? 300 : Math.max(300, uriColumn.getScale());
+        TempTableInfo staging = new TempTableInfo("ObjectStaging", Collections.singletonList(new BaseColumnInfo("ObjectURI", JdbcType.VARCHAR, size, false)), null);
+        String sql = "CREATE TABLE " + staging.getSelectName() + " (ObjectURI " + DbSchema.getTemp().getSqlDialect().getSqlTypeName(JdbcType.VARCHAR) + "(" + size + ") NOT NULL)";
+        new SqlExecutor(DbSchema.getTemp()).execute(sql);
+        staging.track();
+        return staging;
+    }
+
+
+    // Create (or, if ensureObjects, find) the exp.Object rows for one batch of URIs, then insert their properties
+    private static void insertObjectsAndPropertiesBulk(Container c, @Nullable Integer ownerObjectId, boolean ensureObjects, TempTableInfo staging,
+                                                       List<String> lsids, List<PropertyRow> props, List<String> propLsids,
+                                                       CPUTimer ensure, CPUTimer insert) throws SQLException
+    {
+        if (lsids.isEmpty())
+            return;
+
+        assert ensure.start();
+        String stagingName = staging.getSelectName();
+        new SqlExecutor(DbSchema.getTemp()).execute(new SQLFragment("DELETE FROM " + stagingName));
+        Collection<String> uris = ensureObjects ? new LinkedHashSet<>(lsids) : lsids;
+        Table.batchExecute(DbSchema.getTemp(), "INSERT INTO " + stagingName + " (ObjectURI) VALUES (?)", uris.stream().map(Collections::singletonList).collect(Collectors.toList()));
+
+        // Container and OwnerObjectId are in-lined: untyped parameters in a SELECT list are a problem on PostgreSQL
+        SQLFragment insertObjects = new SQLFragment("INSERT INTO " + getTinfoObject().getSelectName() + " (Container, ObjectURI, OwnerObjectId)\n");
+        insertObjects.append("SELECT ").append(c).append(", s.ObjectURI, ").append(null == ownerObjectId ? "CAST(NULL AS INTEGER)" : String.valueOf(ownerObjectId.intValue()));
+        insertObjects.append("\nFROM ").append(stagingName).append(" s");
+        if (ensureObjects)
+        {
+            insertObjects.append("\nWHERE NOT EXISTS (SELECT 1 FROM ").append(getTinfoObject().getSelectName()).append(" o WHERE o.Container = ? AND o.ObjectURI = s.ObjectURI)");
+            insertObjects.add(c.getId());
+        }
+        new SqlExecutor(getExpSchema()).execute(insertObjects);
+
+        SQLFragment selectIds = new SQLFragment("SELECT o.ObjectURI, o.ObjectId FROM " + getTinfoObject().getSelectName() + " o");
+        selectIds.append(" INNER JOIN ").append(stagingName).append(" s ON o.ObjectURI = s.ObjectURI WHERE o.Container = ?");
+        selectIds.add(c.getId());
+        Map<String, Integer> objectIds = new HashMap<>(lsids.size() * 2);
+        new SqlSelector(getExpSchema(), selectIds).forEach(rs -> objectIds.put(rs.getString(1), rs.getInt(2)));
+
+        if (ensureObjects)
+            objectIds.forEach(objectIdCache::put);
+        assert ensure.stop();
+
+        assert insert.start();
+        for (int i = 0; i < props.size(); i++)
+        {
+            Integer objectId = objectIds.get(propLsids.get(i));
+            if (null == objectId)
+                throw new IllegalStateException("Object not found after insert: " + propLsids.get(i));
+            props.get(i).setObjectId(objectId);
+        }
+        insertPropertiesBulk(c, props, false);
+        assert insert.stop();
+    }
+
+
     /**
      * As an incremental step of QueryUpdateService cleanup, this is a version of insertTabDelimited that works on a
      * tableInfo that implements UpdateableTableInfo. Does not support ownerObjectid.
@@ -3020,6 +3198,42 @@ public class OntologyManager
             assertEquals(62, m.get(intPropURI));
             assertEquals(72L, m.get(longPropURI));
 
+            // enough rows for the bulk path; one object already exists and must be reused by ensureObjects
+            List<Map<String, Object>> bulkRows = new ArrayList<>();
+            for (int i = 0; i < BULK_INSERT_THRESHOLD * 3; i++)
+            {
+                Map<String, Object> row = new HashMap<>();
+                row.put("lsid", new Lsid("Junit", "OntologyManager", "bulk" + i).toString());
+                row.put(strPropURI, "Bulk value " + i);
+                if (i % 2 == 0)
+                    row.put(intPropURI, i);
+                bulkRows.add(row);
+            }
+            String existingLsid = (String)bulkRows.get(7).get("lsid");
+            int existingId = ensureObject(c, existingLsid, oParent.getObjectId());
+            long objectCount = getObjectCount(c);
+
+            List<String> lsids;
+            try (Transaction tx = getExpSchema().getScope().ensureTransaction())
+            {
+                lsids = insertTabDelimited(c, TestContext.get().getUser(), oParent.getObjectId(), helper, pds, bulkRows, true);
+                tx.commit();
+            }
+
+            assertEquals(bulkRows.size(), lsids.size());
+            assertEquals(existingLsid, lsids.get(7));
+            assertEquals(objectCount + bulkRows.size() - 1, getObjectCount(c));
+            assertEquals(existingId, getOntologyObject(c, existingLsid).getObjectId());
+            assertEquals(Integer.valueOf(oParent.getObjectId()), getOntologyObject(c, lsids.get(42)).getOwnerObjectId());
+
+            m = getProperties(c, lsids.get(42));
+            assertEquals(2, m.size());
+            assertEquals("Bulk value 42", m.get(strPropURI));
+            assertEquals(42, m.get(intPropURI));
+            m = getProperties(c, lsids.get(43));
+            assertEquals(1, m.size());
+            assertEquals("Bulk value 43", m.get(strPropURI));
+
             deleteType(domURIa, c);
             assertEquals(0L, getObjectCount(c));
             assertTrue(ContainerManager.delete(c, TestContext.get().getUser()));
@@ -33,6 +33,7 @@ import org.labkey.api.util.FileUtil;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -73,6 +74,16 @@ public abstract class XarSource implements Serializable
 
     public abstract ExperimentArchiveDocument getDocument() throws XmlException, IOException;
 
+    /**
+     * @return the xar.xml as a stream, so it can be imported without parsing the whole document up front, or null if
+     * this source can only provide the parsed document
+     */
+    @Nullable
+    public InputStream getDocumentStream() throws IOException
+    {
+        return null;
+    }
+
     @Deprecated
     public abstract File getRoot();
 
@@ -25,6 +25,7 @@ import org.labkey.api.util.FileUtil;
 import org.labkey.api.util.NetworkDrive;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.file.Files;
@@ -58,7 +59,10 @@ public abstract class AbstractExperimentDataHandler implements ExperimentDataHan
         {
             try
             {
-                Files.copy(dataFile, out);
+                if (out instanceof FileOutputStream && !FileUtil.hasCloudScheme(dataFile))
+                    FileUtil.transferFile(dataFile, ((FileOutputStream) out).getChannel());
+                else
+                    Files.copy(dataFile, out);
             }
             catch (IOException e)
             {
@@ -511,6 +511,11 @@ public interface ExperimentService extends ExperimentRunTypeSource
 
     TableInfo getTinfoMaterialAliasMap();
 
+    /**
+     * Code that inserts, updates or deletes exp.Edge rows directly, rather than through saving or deleting runs and
+     * their inputs, must call LineageIndex.get().invalidate() (in the experiment module) in the same transaction, or
+     * lineage queries answered from the index won't see the change.
+     */
     TableInfo getTinfoEdge();
 
     /**
@@ -20,6 +20,7 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.labkey.api.data.Container;
 import org.labkey.api.data.ContainerFilter;
+import org.labkey.api.data.DbSequence;
 import org.labkey.api.exp.ExperimentException;
 import org.labkey.api.exp.Lsid;
 import org.labkey.api.exp.TemplateInfo;
@@ -143,6 +144,13 @@ public interface SampleTypeService
      */
     Function<Map<String,Long>,Map<String,Long>> getSampleCountsFunction(@Nullable Date counterDate);
 
+    /**
+     * The sequences behind the sample counters for the given date, or the current date if no date is supplied, with
+     * the same keys as getSampleCountsFunction(). Use DbSequenceManager.reserveSequentialBlock() on them to take
+     * counter values for many samples at once.
+     */
+    Map<String, DbSequence> getSampleCountSequences(@Nullable Date counterDate);
+
     void deleteSampleType(int rowId, Container c, User user) throws ExperimentException;
 
     // used by DomainKind.invalidate()
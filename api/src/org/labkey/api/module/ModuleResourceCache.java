@@ -167,6 +167,7 @@ public final class ModuleResourceCache<V> implements ModuleChangeListener
         };
 
         _cache = CacheManager.getBlockingCache(Constants.getMaxModules(), CacheManager.DAY, description, _loader);  // Cache is one entry per module
+        _cache.setRefreshAhead(0.9);
         _handler = handler;
 
         ContextListener.addModuleChangeListener(this);
@@ -44,6 +44,7 @@ import org.labkey.api.data.DbSequenceManager;
 import org.labkey.api.data.ImportAliasable;
 import org.labkey.api.data.MultiValuedForeignKey;
 import org.labkey.api.data.PropertyStorageSpec;
+import org.labkey.api.data.QueryResultCache;
 import org.labkey.api.data.RuntimeSQLException;
 import org.labkey.api.data.Sort;
 import org.labkey.api.data.TableInfo;
@@ -701,6 +702,7 @@ public abstract class AbstractQueryUpdateService implements QueryUpdateService
         if (errors.hasErrors())
             throw errors;
 
+        invalidateResultCache();
         addAuditEvent(user, container, QueryService.AuditAction.UPDATE, configParameters, result, oldRows);
 
         return result;
@@ -765,11 +767,19 @@ public abstract class AbstractQueryUpdateService implements QueryUpdateService
         // Fire triggers, if any, and also throw if there are any errors
         getQueryTable().fireBatchTrigger(container, user, TableInfo.TriggerType.DELETE, false, errors, extraScriptContext);
 
+        invalidateResultCache();
         addAuditEvent(user, container,  QueryService.AuditAction.DELETE, configParameters, result, null);
 
         return result;
     }
 
+    // Subclasses don't always write through Table or TableInsertDataIterator, so make sure cached selects are discarded
+    private void invalidateResultCache()
+    {
+        if (getQueryTable() instanceof UpdateableTableInfo)
+            QueryResultCache.get().invalidate(((UpdateableTableInfo)getQueryTable()).getSchemaTableInfo());
+    }
+
     protected int truncateRows(User user, Container container)
             throws QueryUpdateServiceException, SQLException
     {
@@ -790,6 +800,7 @@ public abstract class AbstractQueryUpdateService implements QueryUpdateService
         int result = truncateRows(user, container);
 
         getQueryTable().fireBatchTrigger(container, user, TableInfo.TriggerType.TRUNCATE, false, errors, extraScriptContext);
+        invalidateResultCache();
         addAuditEvent(user, container,  QueryService.AuditAction.TRUNCATE, configParameters, null, null);
 
         return result;
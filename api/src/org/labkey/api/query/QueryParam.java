@@ -31,6 +31,9 @@ public enum QueryParam implements SafeToRenderEnum
     maxRows,
     showRows,
     ignoreFilter,
+    /** Keyset pagination token; see {@link org.labkey.api.data.KeysetCursor} */
+    cursor,
+    estimateRowCount,
 
     defaultTab,
 
@@ -76,6 +76,9 @@ public class QuerySettings
     private int _maxRows = 100;
     private boolean _maxRowsSet = false; // Explicitly track setting maxRows, allows for different defaults
     private long _offset = 0;
+    private boolean _keysetPagination = false;
+    private String _cursor = null;
+    private boolean _estimateRowCount = false;
     private String _selectionKey = null;
 
     @NotNull
@@ -290,6 +293,25 @@ public class QuerySettings
                     throw new BadRequestException(String.format(parseError, "maxRows", maxRowsParam), nfe);
                 }
             }
+
+            // Any cursor parameter, even an empty one for the first page, switches to keyset pagination
+            String cursorParam = _getParameter(param(QueryParam.cursor));
+            if (null != cursorParam)
+            {
+                _keysetPagination = true;
+                _cursor = StringUtils.trimToNull(cursorParam);
+            }
+        }
+
+        String estimateRowCount = _getParameter(param(QueryParam.estimateRowCount));
+        try
+        {
+            if (isNotBlank(estimateRowCount))
+                _estimateRowCount = (Boolean) ConvertUtils.convert(estimateRowCount, Boolean.class);
+        }
+        catch (ConversionException e)
+        {
+            throw new BadRequestException(String.format(parseError, "estimateRowCount", estimateRowCount), e);
         }
 
         String containerFilterNameParam = _getParameter(param(QueryParam.containerFilterName));
@@ -627,10 +649,10 @@ public class QuerySettings
         return _maxRowsSet;
     }
 
-    /** @return The offset parameter when {@link ShowRows#PAGINATED}, otherwise 0. */
+    /** @return The offset parameter when {@link ShowRows#PAGINATED} without keyset pagination, otherwise 0. */
     public long getOffset()
     {
-        if (_showRows != ShowRows.PAGINATED)
+        if (_showRows != ShowRows.PAGINATED || isKeysetPagination())
             return Table.NO_OFFSET;
         return _offset;
     }
@@ -641,6 +663,42 @@ public class QuerySettings
         _offset = offset;
     }
 
+    /**
+     * Keyset pagination selects each page with a WHERE clause that starts after the previous page's last row (see
+     * {@link org.labkey.api.data.KeysetCursor}) instead of using an offset, so deep pages of large tables stay fast.
+     */
+    public boolean isKeysetPagination()
+    {
+        return _keysetPagination && _showRows == ShowRows.PAGINATED;
+    }
+
+    public void setKeysetPagination(boolean keysetPagination)
+    {
+        _keysetPagination = keysetPagination;
+    }
+
+    /** @return The cursor returned with the previous page, or null for the first page */
+    public String getCursor()
+    {
+        return isKeysetPagination() ? _cursor : null;
+    }
+
+    public void setCursor(String cursor)
+    {
+        _cursor = cursor;
+    }
+
+    /** @return Whether the total row count may be estimated from database statistics rather than counted exactly */
+    public boolean isEstimateRowCount()
+    {
+        return _estimateRowCount;
+    }
+
+    public void setEstimateRowCount(boolean estimateRowCount)
+    {
+        _estimateRowCount = estimateRowCount;
+    }
+
     public ShowRows getShowRows()
     {
         return _showRows;
@@ -43,9 +43,11 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.security.DigestInputStream;
 import java.security.MessageDigest;
@@ -632,6 +634,30 @@ public class FileUtil
         }
     }
 
+    /**
+     * Copy a local file to a channel with FileChannel.transferTo(), which lets the OS move the bytes without reading
+     * them into the heap
+     * @return the number of bytes copied
+     */
+    public static long transferFile(Path src, WritableByteChannel out) throws IOException
+    {
+        try (FileChannel in = FileChannel.open(src, StandardOpenOption.READ))
+        {
+            long size = in.size();
+            long position = 0;
+            // transferTo() may copy fewer bytes than asked for, e.g. past 2GB on some platforms
+            while (position < size)
+            {
+                long n = in.transferTo(position, size - position, out);
+                // Nothing copied means the file shrank after size() was read; stop instead of spinning
+                if (n <= 0)
+                    break;
+                position += n;
+            }
+            return position;
+        }
+    }
+
     /**
      * Copies an entire file system branch to another location, including the root directory itself
      * @param src The source file root
@@ -2663,11 +2663,11 @@ public class PageFlowUtil
             return;
         ActionURL clone = url.clone();
 
-        // Don't store offset. It's especially bad because there may not be that many rows the next time you
+        // Don't store offset or cursor. It's especially bad because there may not be that many rows the next time you
         // get to a URL that uses the .lastFilter
         for (String paramName : clone.getParameterMap().keySet())
         {
-            if (paramName.endsWith("." + QueryParam.offset))
+            if (paramName.endsWith("." + QueryParam.offset) || paramName.endsWith("." + QueryParam.cursor))
             {
                 clone.deleteParameter(paramName);
             }
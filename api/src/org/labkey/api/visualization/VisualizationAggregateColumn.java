@@ -37,7 +37,7 @@ public class VisualizationAggregateColumn extends VisualizationSourceColumn
         SummaryStatisticRegistry registry = SummaryStatisticRegistry.get();
         _aggregate = registry != null ? registry.getByName(aggregate) : null;
 
-        if (_aggregate == null)
+        if (_aggregate == null || _aggregate.isComputedFromScan())
             throw new IllegalArgumentException("Invalid aggregate type: '" + aggregate + "'.");
     }
 
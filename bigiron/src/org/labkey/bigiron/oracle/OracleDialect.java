@@ -308,6 +308,12 @@ abstract class OracleDialect extends SimpleSqlDialect
         return true;
     }
 
+    @Override
+    public boolean isNullSortedHigh()
+    {
+        return true;
+    }
+
     @Override
     public boolean supportsRoundDouble()
     {
@@ -376,6 +376,12 @@ LABKEY.Query = new function()
         *        If you want to return all possible rows, set this config property to -1.
         * @param {Integer} [config.offset] The index of the first row to return from the server (defaults to 0).
         *        Use this along with the maxRows config property to request pages of data.
+        * @param {String} [config.cursor] Use keyset pagination instead of offset, which stays fast on deep pages of large tables.
+        *        Pass an empty string for the first page, then the <code>nextCursor</code> value from each response to get the
+        *        page after it. The sort is completed with the primary key, and <code>nextCursor</code> is absent on the last page.
+        * @param {Boolean} [config.estimateRowCount] Allow the total number of rows to be estimated from database statistics
+        *       instead of counted, which is much faster for large tables. The response's <code>rowCountEstimated</code> property
+        *       is true when an estimate was used.
         * @param {Boolean} [config.includeTotalCount] Include the total number of rows available (defaults to true).
         *       If false totalCount will equal number of rows returned (equal to maxRows unless maxRows == 0).
         * @param {Boolean} [config.includeDetailsColumn] Include the Details link column in the set of columns (defaults to false).
@@ -468,6 +474,9 @@ LABKEY.Query = new function()
                 if (config.offset)
                     dataObject[config.dataRegionName + '.offset'] = config.offset;
 
+                if (config.cursor !== undefined && config.cursor !== null)
+                    dataObject[config.dataRegionName + '.cursor'] = config.cursor;
+
                 if (config.maxRows != undefined)
                 {
                     if (config.maxRows < 0)
@@ -494,6 +503,9 @@ LABKEY.Query = new function()
             if (config.ignoreFilter)
                 dataObject[config.dataRegionName + '.ignoreFilter'] = 1;
 
+            if (config.estimateRowCount)
+                dataObject[config.dataRegionName + '.estimateRowCount'] = true;
+
             if (config.parameters)
             {
                 for (var propName in config.parameters)
@@ -1024,6 +1024,7 @@ public class CoreModule extends SpringModule implements SearchService.DocumentPr
         // ping, and then once every 24 hours.
         AppProps.getInstance().getUsageReportingLevel().scheduleUpgradeCheck();
         TempTableTracker.init();
+        CacheManager.startInvalidationTransport();
     }
 
     @Override
@@ -2774,6 +2774,10 @@ public class AdminController extends SpringActionController
             html.append(PageFlowUtil.textLink("Refresh", getCachesURL(false, false)));
 
             html.append("<br/><br/>\n");
+            long budget = CacheManager.getMemoryBudget();
+            html.append("<p>Estimated memory used by weighed caches: ").append(PageFlowUtil.filter(FileUtils.byteCountToDisplaySize(CacheManager.getEstimatedBytes())));
+            html.append(CacheManager.UNLIMITED == budget ? " (no budget)" : " of " + PageFlowUtil.filter(FileUtils.byteCountToDisplaySize(budget)) + " budget");
+            html.append(". Only caches created with a CacheWeigher are weighed; the others show no estimate.</p>\n");
             appendStats(html, "Caches", cacheStats);
 
             html.append("<br/><br/>\n");
@@ -2795,12 +2799,18 @@ public class AdminController extends SpringActionController
             html.append("<td class=\"labkey-column-header\">Limit</td>");
             html.append("<td class=\"labkey-column-header\">Max&nbsp;Size</td>");
             html.append("<td class=\"labkey-column-header\">Current&nbsp;Size</td>");
+            html.append("<td class=\"labkey-column-header\">Estimated&nbsp;KB</td>");
+            html.append("<td class=\"labkey-column-header\">Limit&nbsp;KB</td>");
             html.append("<td class=\"labkey-column-header\">Gets</td>");
             html.append("<td class=\"labkey-column-header\">Misses</td>");
             html.append("<td class=\"labkey-column-header\">Puts</td>");
             html.append("<td class=\"labkey-column-header\">Expirations</td>");
             html.append("<td class=\"labkey-column-header\">Removes</td>");
             html.append("<td class=\"labkey-column-header\">Clears</td>");
+            html.append("<td class=\"labkey-column-header\">Evictions</td>");
+            html.append("<td class=\"labkey-column-header\">Refreshes</td>");
+            html.append("<td class=\"labkey-column-header\">Refresh&nbsp;Failures</td>");
+            html.append("<td class=\"labkey-column-header\">Avg&nbsp;Refresh&nbsp;ms</td>");
             html.append("<td class=\"labkey-column-header\">Miss Percentage</td>");
             html.append("<td class=\"labkey-column-header\">Clear</td></tr>");
 
@@ -2811,6 +2821,10 @@ public class AdminController extends SpringActionController
             long expirations = 0;
             long removes = 0;
             long clears = 0;
+            long evictions = 0;
+            long refreshes = 0;
+            long refreshFailures = 0;
+            Long bytes = null;     // stays null unless some cache is weighed
             int rowCount = 0;
 
             for (CacheStats stat : stats)
@@ -2822,6 +2836,12 @@ public class AdminController extends SpringActionController
                 expirations += stat.getExpirations();
                 removes += stat.getRemoves();
                 clears += stat.getClears();
+                evictions += stat.getEvictions();
+                refreshes += stat.getRefreshes();
+                refreshFailures += stat.getRefreshFailures();
+                Long estimatedBytes = stat.getEstimatedBytes();
+                if (null != estimatedBytes)
+                    bytes = (null == bytes ? 0 : bytes) + estimatedBytes;
 
                 html.append("<tr class=\"").append(rowCount % 2 == 0 ? "labkey-alternate-row" : "labkey-row").append("\">");
 
@@ -2829,14 +2849,16 @@ public class AdminController extends SpringActionController
 
                 Long limit = stat.getLimit();
                 Long maxSize = stat.getMaxSize();
+                Long maxBytes = stat.getMaxBytes();
 
-                appendLongs(html, limit, maxSize, stat.getSize(), stat.getGets(), stat.getMisses(), stat.getPuts(), stat.getExpirations(), stat.getRemoves(), stat.getClears());
+                appendLongs(html, limit, maxSize, stat.getSize(), null == estimatedBytes ? null : estimatedBytes / 1024, null == maxBytes ? null : maxBytes / 1024, stat.getGets(), stat.getMisses(), stat.getPuts(), stat.getExpirations(), stat.getRemoves(), stat.getClears(), stat.getEvictions(),
+                    stat.getRefreshes(), stat.getRefreshFailures(), 0 == stat.getRefreshes() ? null : Math.round(stat.getAverageRefreshMillis()));
                 appendDoubles(html, stat.getMissRatio());
 
 
                 html.append("<td>").append(PageFlowUtil.textLink("Clear", getCacheURL(stat.getDescription()))).append("</td>\n");
 
-                if (null != limit && maxSize >= limit)
+                if ((null != limit && maxSize >= limit) || (null != maxBytes && stat.getEvictions() > 0))
                     html.append("<td><font class=\"labkey-error\">This cache has been limited</font></td>");
 
                 html.append("</tr>\n");
@@ -2846,7 +2868,7 @@ public class AdminController extends SpringActionController
             double ratio = 0 != gets ? misses / (double)gets : 0;
             html.append("<tr class=\"labkey-row\"><td><b>Total</b></td>");
 
-            appendLongs(html, null, null, size, gets, misses, puts, expirations, removes, clears);
+            appendLongs(html, null, null, size, null == bytes ? null : bytes / 1024, null, gets, misses, puts, expirations, removes, clears, evictions, refreshes, refreshFailures, null);
             appendDoubles(html, ratio);
 
             html.append("</tr>\n");
@@ -3282,6 +3304,8 @@ public class AdminController extends SpringActionController
         public final List<HeldReference> references;
         public final List<String> graphNames = new ArrayList<>();
         public final List<String> activeThreads = new LinkedList<>();
+        // Weighed caches only, largest first by estimated bytes
+        public final List<CacheStats> caches = new ArrayList<>();
 
         public boolean assertsEnabled = false;
 
@@ -3405,6 +3429,15 @@ public class AdminController extends SpringActionController
             if (null != cacheMem)
                 systemProperties.add(new Pair<>("Most Recent Estimated Cache Memory Usage", cacheMem));
 
+            long cacheBudget = CacheManager.getMemoryBudget();
+            systemProperties.add(new Pair<>("Live Estimated Cache Memory Usage (weighed caches)", FileUtils.byteCountToDisplaySize(CacheManager.getEstimatedBytes()) +
+                (CacheManager.UNLIMITED == cacheBudget ? "" : " of " + FileUtils.byteCountToDisplaySize(cacheBudget) + " budget")));
+
+            for (TrackingCache cache : CacheManager.getKnownCaches())
+                if (cache.isWeighed())
+                    caches.add(CacheManager.getCacheStats(cache));
+            caches.sort(Comparator.comparing(CacheStats::getEstimatedBytes).reversed());
+
             systemProperties.add(new Pair<>("In-Use DB Connections", ConnectionWrapper.getActiveConnectionCount()));
 
             //noinspection ConstantConditions
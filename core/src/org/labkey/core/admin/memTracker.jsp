@@ -15,6 +15,8 @@
  * limitations under the License.
  */
 %>
+<%@ page import="org.apache.commons.io.FileUtils" %>
+<%@ page import="org.labkey.api.cache.CacheStats" %>
 <%@ page import="org.labkey.api.util.DateUtil"%>
 <%@ page import="org.labkey.api.util.MemTracker" %>
 <%@ page import="org.labkey.api.util.Pair" %>
@@ -28,6 +30,7 @@
     JspView<MemBean> me = (JspView<MemBean>)HttpView.currentView();
     MemBean bean = me.getModelBean();
     boolean hasAdminPerm = getUser().hasRootAdminPermission();
+    final int MAX_CACHES = 20;
 
     if (!bean.activeThreads.isEmpty()) { %>
         <div class="labkey-error">Active thread(s) may have objects in use:
@@ -109,6 +112,37 @@
             %>
             </table>
             <p/>
+            <table name="caches" class="labkey-data-region-legacy labkey-show-borders">
+                <tr>
+                    <th>Weighed Cache (largest <%= MAX_CACHES %>, estimated)</th>
+                    <th>Entries</th>
+                    <th>Estimated Size</th>
+                    <th>Size Limit</th>
+                    <th>Evictions</th>
+                </tr>
+            <%
+                counter = 0;
+                for (CacheStats stats : bean.caches)
+                {
+                    if (counter >= MAX_CACHES)
+                        break;
+                    Long maxBytes = stats.getMaxBytes();
+            %>
+                <tr class="<%=getShadeRowClass(counter)%>">
+                    <td><%= h(stats.getDescription()) %></td>
+                    <td align="right"><%= stats.getSize() %></td>
+                    <td align="right"><%= h(FileUtils.byteCountToDisplaySize(stats.getEstimatedBytes())) %></td>
+                    <td align="right"><%= h(null == maxBytes ? "" : FileUtils.byteCountToDisplaySize(maxBytes)) %></td>
+                    <td align="right"><%= stats.getEvictions() %></td>
+                </tr>
+            <%
+                    counter++;
+                }
+            %>
+            </table>
+            <p>Only caches created with a CacheWeigher are weighed and listed here.</p>
+            <%=link("All Cache Statistics", AdminController.getCachesURL(false, false))%>
+            <p/>
             <table name="systemProperties" class="labkey-data-region-legacy labkey-show-borders">
                 <tr>
                     <th>System Property Name</th>
@@ -94,6 +94,7 @@ import org.labkey.experiment.api.ExpSampleTypeImpl;
 import org.labkey.experiment.api.ExperimentServiceImpl;
 import org.labkey.experiment.api.ExperimentStressTest;
 import org.labkey.experiment.api.GraphAlgorithms;
+import org.labkey.experiment.api.LineageIndex;
 import org.labkey.experiment.api.LineagePerfTest;
 import org.labkey.experiment.api.LineageTest;
 import org.labkey.experiment.api.LogDataType;
@@ -124,6 +125,7 @@ import org.labkey.experiment.samples.SampleTypeAndDataClassFolderWriter;
 import org.labkey.experiment.types.TypesController;
 import org.labkey.experiment.xar.FolderXarImporterFactory;
 import org.labkey.experiment.xar.FolderXarWriterFactory;
+import org.labkey.experiment.xar.XarStreamReader;
 
 import java.util.ArrayList;
 import java.util.Collection;
@@ -204,6 +206,10 @@ public class ExperimentModule extends SpringModule implements SearchService.Docu
 
         AdminConsole.addExperimentalFeatureFlag(AppProps.EXPERIMENTAL_RESOLVE_PROPERTY_URI_COLUMNS, "Resolve property URIs as columns on experiment tables",
                 "If a column is not found on an experiment table, attempt to resolve the column name as a Property URI and add it as a property column", false);
+        AdminConsole.addExperimentalFeatureFlag(LineageIndex.EXPERIMENTAL_LINEAGE_INDEX, "In-memory lineage index",
+                "Keep an in-memory index of lineage edges and use it to answer lineage queries instead of recursive SQL queries", false);
+        AdminConsole.addExperimentalFeatureFlag(XarReader.EXPERIMENTAL_STREAMING_XAR_IMPORT, "Streaming XAR import",
+                "Import xar.xml files a protocol application at a time instead of parsing the whole document first, to reduce memory use for very large XARs", false);
 
         RoleManager.registerPermission(new DesignVocabularyPermission(), true);
 
@@ -583,10 +589,12 @@ public class ExperimentModule extends SpringModule implements SearchService.Docu
     {
         return Set.of(
             GraphAlgorithms.TestCase.class,
+            LineageIndex.TestCase.class,
             LSIDRelativizer.TestCase.class,
             Lsid.TestCase.class,
             LsidUtils.TestCase.class,
-            PropertyController.TestCase.class
+            PropertyController.TestCase.class,
+            XarStreamReader.TestCase.class
         );
     }
 
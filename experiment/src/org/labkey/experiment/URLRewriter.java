@@ -25,6 +25,7 @@ import org.labkey.api.util.FileUtil;
 import org.labkey.api.util.NetworkDrive;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.file.Files;
@@ -137,6 +138,30 @@ public abstract class URLRewriter
             }
         }
 
+        /**
+         * Write to a new file. Handlers get the FileOutputStream itself, and files without a handler are copied with
+         * FileChannel.transferTo(), so plain copies don't pass through the heap.
+         */
+        public void writeFile(File target) throws ExperimentException, IOException
+        {
+            try (FileOutputStream out = new FileOutputStream(target))
+            {
+                if (_handler != null)
+                {
+                    // No need to guard against the handler closing the stream, since nothing else writes to it
+                    _handler.exportFile(_data, _path, _user, out);
+                }
+                else if (!FileUtil.hasCloudScheme(_path))
+                {
+                    FileUtil.transferFile(_path, out.getChannel());
+                }
+                else
+                {
+                    Files.copy(_path, out);
+                }
+            }
+        }
+
         public boolean hasContentToExport()
         {
             if (_handler != null)
@@ -93,10 +93,11 @@ public class XarExportPipelineJob extends PipelineJob
         setStatus("EXPORTING");
 
         FileOutputStream fOut = null;
+        XarExporter exporter = null;
         try
         {
             getLogger().info("Starting to write XAR to " + _exportFile.getPath());
-            XarExporter exporter = new XarExporter(_lsidRelativizer, _selection, getUser(), _xarXmlFileName, getLogger());
+            exporter = new XarExporter(_lsidRelativizer, _selection, getUser(), _xarXmlFileName, getLogger());
             _exportFile.getParentFile().mkdirs();
             fOut = new FileOutputStream(_exportFile);
             exporter.write(fOut);
@@ -110,6 +111,7 @@ public class XarExportPipelineJob extends PipelineJob
         finally
         {
             if (fOut != null) { try { fOut.close(); } catch (IOException ignored) {} }
+            if (exporter != null) { exporter.close(); }
         }
     }
 
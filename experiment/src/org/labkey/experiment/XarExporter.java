@@ -65,6 +65,7 @@ import org.labkey.api.security.User;
 import org.labkey.api.study.publish.StudyPublishService;
 import org.labkey.api.util.DateUtil;
 import org.labkey.api.util.FileUtil;
+import org.labkey.api.util.JobRunner;
 import org.labkey.api.util.Pair;
 import org.labkey.experiment.api.Data;
 import org.labkey.experiment.api.DataInput;
@@ -80,6 +81,18 @@ import org.labkey.experiment.xar.AutoFileLSIDReplacer;
 import org.labkey.experiment.xar.XarExportSelection;
 
 import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -87,8 +100,10 @@ import java.io.OutputStream;
 import java.io.PrintStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
@@ -97,24 +112,48 @@ import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
 /**
+ * Runs aren't kept in the document: each one is validated and appended to a spool file as it's added, and dumpXML()
+ * streams them into the ExperimentRuns element (which is always last) after the rest of the document. Only the
+ * protocols, sample types, domains and other shared definitions stay in memory, so large folder exports don't have to
+ * fit in the heap.
+ *
+ * The spool is deleted once the XML is written, when adding a run fails, or by close(), for callers that stop
+ * before writing.
+ *
  * User: jeckels
  * Date: Nov 21, 2005
  */
-public class XarExporter
+public class XarExporter implements Closeable
 {
+    private static final int LOADER_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+    /** Runs whose graphs are loaded ahead of the one being written, which bounds how many are in memory at once */
+    private static final int MAX_GRAPHS_IN_FLIGHT = 2 * LOADER_THREADS;
+    private static final JobRunner GRAPH_LOADER = new JobRunner("XAR export", LOADER_THREADS);
+
     private final URLRewriter _urlRewriter;
     private final User _user;
     private final ExperimentArchiveDocument _document;
     private final ExperimentArchiveType _archive;
 
+    private @Nullable File _runSpool;
+    private @Nullable OutputStream _runSpoolOut;
+    private boolean _runsWritten = false;
+    private boolean _runsAbandoned = false;
+    private final StringBuilder _runValidationErrors = new StringBuilder();
+    /** Graph of the run being added, whose properties are used instead of querying them one object at a time */
+    private @Nullable RunGraph _currentGraph;
+
     private String _xarXmlFileName = "experiment.xar.xml";
 
     /**
@@ -172,7 +211,15 @@ public class XarExporter
         this(relativizedLSIDs, selection.createURLRewriter(), user);
         _log = log;
 
-        selection.addContent(this);
+        try
+        {
+            selection.addContent(this);
+        }
+        catch (ExperimentException | RuntimeException e)
+        {
+            abandonRuns();
+            throw e;
+        }
 
         if (xarXmlFileName != null)
         {
@@ -214,14 +261,116 @@ public class XarExporter
         u.addFile(data, data.getFilePath(), "", rootPath, data.findDataHandler(), _user);
     }
 
+    /**
+     * Add many runs, loading their protocol applications, inputs, outputs and properties on a small pool of threads
+     * while earlier runs are written. Runs are still written in order. When a transaction is active the pool's
+     * connections couldn't see its changes, so the runs are loaded on this thread instead.
+     */
+    public void addExperimentRuns(Collection<? extends ExpRun> runs) throws ExperimentException
+    {
+        if (runs.size() < 2 || ExperimentService.get().getSchema().getScope().isTransactionActive())
+        {
+            for (ExpRun run : runs)
+            {
+                addExperimentRun(run);
+            }
+            return;
+        }
+
+        Iterator<? extends ExpRun> iter = runs.iterator();
+        ArrayDeque<FutureTask<RunGraph>> inFlight = new ArrayDeque<>();
+        try
+        {
+            while (iter.hasNext() || !inFlight.isEmpty())
+            {
+                while (iter.hasNext() && inFlight.size() < MAX_GRAPHS_IN_FLIGHT)
+                {
+                    ExpRun run = iter.next();
+                    if (_experimentRunLSIDs.contains(run.getLSID()))
+                        continue;
+
+                    FutureTask<RunGraph> task = new FutureTask<>(() -> new RunGraph(run));
+                    GRAPH_LOADER.submit(task);
+                    inFlight.add(task);
+                }
+
+                if (!inFlight.isEmpty())
+                {
+                    addExperimentRun(getGraph(inFlight.remove()));
+                }
+            }
+        }
+        catch (ExperimentException | RuntimeException e)
+        {
+            abandonRuns();
+            throw e;
+        }
+        finally
+        {
+            for (FutureTask<RunGraph> task : inFlight)
+            {
+                task.cancel(true);
+            }
+        }
+    }
+
+    private RunGraph getGraph(FutureTask<RunGraph> task) throws ExperimentException
+    {
+        try
+        {
+            return task.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new ExperimentException("Interrupted while loading runs to export", e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new ExperimentException(e.getCause());
+        }
+    }
+
     public void addExperimentRun(ExpRun run) throws ExperimentException
     {
         if (_experimentRunLSIDs.contains(run.getLSID()))
         {
             return;
         }
+        addExperimentRun(new RunGraph(run));
+    }
+
+    private void addExperimentRun(RunGraph graph) throws ExperimentException
+    {
+        // Another graph for the same run may have been loaded ahead
+        if (!_experimentRunLSIDs.add(graph._run.getLSID()))
+        {
+            return;
+        }
+
+        _currentGraph = graph;
+        try
+        {
+            spoolRun(createRun(graph));
+        }
+        catch (ExperimentException | RuntimeException e)
+        {
+            // The export can't complete, and callers that catch this may never write or close the exporter
+            abandonRuns();
+            throw e;
+        }
+        finally
+        {
+            _currentGraph = null;
+        }
+    }
+
+    private ExperimentRunType createRun(RunGraph graph) throws ExperimentException
+    {
+        ExpRun run = graph._run;
         logProgress("Adding experiment run " + run.getLSID());
-        _experimentRunLSIDs.add(run.getLSID());
 
         ExpExperiment batch = run.getBatch();
         if (batch != null)
@@ -229,12 +378,7 @@ public class XarExporter
             addExperiment((ExpExperimentImpl)batch);
         }
 
-        ExperimentArchiveType.ExperimentRuns runs = _archive.getExperimentRuns();
-        if (runs == null)
-        {
-            runs = _archive.addNewExperimentRuns();
-        }
-        ExperimentRunType xRun = runs.addNewExperimentRun();
+        ExperimentRunType xRun = ExperimentRunType.Factory.newInstance();
         xRun.setAbout(_relativizedLSIDs.relativize(run.getLSID()));
 
         // The XAR schema only supports one experiment (run group) association per run, so choose the first one that it belongs to
@@ -263,7 +407,7 @@ public class XarExporter
 
         addProtocol(protocol, true);
 
-        Set<Map.Entry<ExpData, String>> inputData = run.getDataInputs().entrySet();
+        Set<Map.Entry<ExpData, String>> inputData = graph._dataInputs.entrySet();
         ExperimentArchiveType.StartingInputDefinitions inputDefs = _archive.getStartingInputDefinitions();
         if (inputData.size() > 0 && inputDefs == null)
         {
@@ -281,7 +425,7 @@ public class XarExporter
             }
         }
 
-        List<Material> inputMaterials = ExperimentServiceImpl.get().getRunInputMaterial(run.getLSID());
+        List<Material> inputMaterials = graph._inputMaterials;
         if (inputMaterials.size() > 0 && inputDefs == null)
         {
             inputDefs = _archive.addNewStartingInputDefinitions();
@@ -298,7 +442,7 @@ public class XarExporter
         }
 
         ExperimentRunType.ProtocolApplications xApplications = xRun.addNewProtocolApplications();
-        for (ExpProtocolApplication application : ExperimentService.get().getExpProtocolApplicationsForRun(run.getRowId()))
+        for (ApplicationGraph application : graph._applications)
         {
             addProtocolApplication(application, run, xApplications);
         }
@@ -319,6 +463,86 @@ public class XarExporter
                     assayCallbacks.beforeXarExportRun(run, xRun);
             }
         }
+
+        return xRun;
+    }
+
+    private void spoolRun(ExperimentRunType xRun) throws ExperimentException
+    {
+        if (_runsWritten)
+        {
+            throw new IllegalStateException("The XAR XML has already been written");
+        }
+        checkRunsAbandoned();
+
+        XmlOptions validateOptions = new XmlOptions();
+        ArrayList<XmlError> errorList = new ArrayList<>();
+        validateOptions.setErrorListener(errorList);
+        if (!xRun.validate(validateOptions))
+        {
+            appendValidationErrors(_runValidationErrors, errorList);
+        }
+
+        XmlOptions options = new XmlOptions();
+        options.setSaveSyntheticDocumentElement(new QName(ExperimentArchiveDocument.type.getDocumentElementName().getNamespaceURI(), "ExperimentRun"));
+        options.setSaveAggressiveNamespaces();
+        options.setSavePrettyPrint();
+        options.setSaveNoXmlDecl();
+        options.setCharacterEncoding(StandardCharsets.UTF_8.name());
+
+        try
+        {
+            if (_runSpoolOut == null)
+            {
+                _runSpool = File.createTempFile("xarExportRuns", ".xml", FileUtil.getTempDirectory());
+                _runSpoolOut = new BufferedOutputStream(new FileOutputStream(_runSpool));
+            }
+            xRun.save(_runSpoolOut, options);
+            _runSpoolOut.write('\n');
+        }
+        catch (IOException e)
+        {
+            deleteRunSpool();
+            throw new ExperimentException("Failed to write run " + xRun.getAbout() + " to a temporary file", e);
+        }
+    }
+
+    // Adding a run failed: the runs spooled so far are deleted, and the exporter can't be used to write a XAR
+    private void abandonRuns()
+    {
+        _runsAbandoned = true;
+        deleteRunSpool();
+    }
+
+    private void checkRunsAbandoned()
+    {
+        if (_runsAbandoned)
+        {
+            throw new IllegalStateException("Adding an earlier run failed, so the export would be incomplete");
+        }
+    }
+
+    /** Delete the spooled runs, if they haven't been written already */
+    @Override
+    public void close()
+    {
+        deleteRunSpool();
+    }
+
+    private void deleteRunSpool()
+    {
+        try
+        {
+            if (_runSpoolOut != null)
+                _runSpoolOut.close();
+        }
+        catch (IOException ignored) {}
+
+        if (_runSpool != null)
+            _runSpool.delete();
+
+        _runSpoolOut = null;
+        _runSpool = null;
     }
 
     private Calendar getGregorianCalender(Date date)
@@ -328,9 +552,10 @@ public class XarExporter
         return cal;
     }
 
-    private void addProtocolApplication(ExpProtocolApplication application, ExpRun run, ExperimentRunType.ProtocolApplications xApplications)
+    private void addProtocolApplication(ApplicationGraph graph, ExpRun run, ExperimentRunType.ProtocolApplications xApplications)
         throws ExperimentException
     {
+        ExpProtocolApplication application = graph._application;
         ProtocolApplicationBaseType xApplication = xApplications.addNewProtocolApplication();
         xApplication.setAbout(_relativizedLSIDs.relativize(application.getLSID()));
         xApplication.setActionSequence(application.getActionSequence());
@@ -362,9 +587,8 @@ public class XarExporter
         }
 
         InputOutputRefsType inputRefs = null;
-        List<Data> inputDataRefs = ExperimentServiceImpl.get().getDataInputReferencesForApplication(application.getRowId());
-        List<DataInput> dataInputs = ExperimentServiceImpl.get().getDataInputsForApplication(application.getRowId());
-        for (Data data : inputDataRefs)
+        List<DataInput> dataInputs = graph._dataInputs;
+        for (Data data : graph._inputDataRefs)
         {
             if (inputRefs == null)
             {
@@ -409,9 +633,8 @@ public class XarExporter
                 dataLSID.setCpasType(data.getCpasType());
         }
 
-        List<Material> inputMaterial = ExperimentServiceImpl.get().getMaterialInputReferencesForApplication(application.getRowId());
-        List<MaterialInput> materialInputs = ExperimentServiceImpl.get().getMaterialInputsForApplication(application.getRowId());
-        for (Material material : inputMaterial)
+        List<MaterialInput> materialInputs = graph._materialInputs;
+        for (Material material : graph._inputMaterials)
         {
             if (inputRefs == null)
             {
@@ -446,7 +669,7 @@ public class XarExporter
         xApplication.setName(application.getName());
 
         ProtocolApplicationBaseType.OutputDataObjects outputDataObjects = xApplication.addNewOutputDataObjects();
-        List<? extends ExpData> outputData = application.getOutputDatas();
+        List<? extends ExpData> outputData = graph._outputData;
         if (!outputData.isEmpty())
         {
             for (ExpData data : outputData)
@@ -466,14 +689,13 @@ public class XarExporter
         }
 
         ProtocolApplicationBaseType.OutputMaterials outputMaterialObjects = xApplication.addNewOutputMaterials();
-        for (ExpMaterial material : application.getOutputMaterials())
+        for (ExpMaterial material : graph._outputMaterials)
         {
             MaterialBaseType xMaterial = outputMaterialObjects.addNewMaterial();
             populateMaterial(xMaterial, material);
         }
 
-        ProvenanceService pvs = ProvenanceService.get();
-        var provURIs = pvs.getProvenanceObjectUris(application.getRowId());
+        var provURIs = graph._provenanceURIs;
         if (!provURIs.isEmpty())
         {
             ProtocolApplicationBaseType.ProvenanceMap xProvMap = xApplication.addNewProvenanceMap();
@@ -501,7 +723,7 @@ public class XarExporter
             xApplication.setProperties(appProperties);
         }
 
-        List<ProtocolApplicationParameter> parameters = ExperimentService.get().getProtocolApplicationParameters(application.getRowId());
+        List<ProtocolApplicationParameter> parameters = graph._parameters;
         if (!parameters.isEmpty())
         {
             SimpleValueCollectionType xParameters = xApplication.addNewProtocolApplicationParameters();
@@ -549,7 +771,11 @@ public class XarExporter
         xMaterial.setCpasType(material.getCpasType() == null ? ExpMaterial.DEFAULT_CPAS_TYPE : _relativizedLSIDs.relativize(material.getCpasType()));
         xMaterial.setName(material.getName());
 
-        Map<String, ObjectProperty> objectProperties = material.getObjectProperties();
+        Map<String, ObjectProperty> objectProperties = null == _currentGraph ? null : _currentGraph._materialProperties.get(material.getLSID());
+        if (objectProperties == null)
+        {
+            objectProperties = material.getObjectProperties();
+        }
         Collection<String> aliases = material.getAliases();
         if (!aliases.isEmpty())
         {
@@ -1302,42 +1528,124 @@ public class XarExporter
 
     private Map<String, ObjectProperty> getObjectProperties(Container container, String lsid)
     {
+        if (_currentGraph != null)
+        {
+            Map<String, ObjectProperty> properties = _currentGraph._properties.get(lsid);
+            if (properties != null)
+                return properties;
+        }
         return OntologyManager.getPropertyObjects(container, lsid);
     }
 
+    private static void appendValidationErrors(StringBuilder sb, List<XmlError> errorList)
+    {
+        for (XmlError error : errorList)
+        {
+            sb.append("Schema validation error: ");
+            sb.append(error.getMessage());
+            sb.append("\n");
+            sb.append("Location of invalid XML: ");
+            sb.append(error.getCursorLocation().xmlText());
+            sb.append("\n");
+        }
+    }
+
+    /** Write the XAR XML. The runs are streamed from the spool, which is deleted afterwards, so this can only be called once. */
     public void dumpXML(OutputStream out) throws IOException, ExperimentException
     {
-        ensureDomainsWritten();
+        if (_runsWritten)
+        {
+            throw new IllegalStateException("The XAR XML has already been written");
+        }
+        checkRunsAbandoned();
+        _runsWritten = true;
 
-        XmlOptions validateOptions = new XmlOptions();
-        ArrayList<XmlError> errorList = new ArrayList<>();
-        validateOptions.setErrorListener(errorList);
-        if (!_document.validate(validateOptions))
+        try
         {
+            ensureDomainsWritten();
+
+            XmlOptions validateOptions = new XmlOptions();
+            ArrayList<XmlError> errorList = new ArrayList<>();
+            validateOptions.setErrorListener(errorList);
             StringBuilder sb = new StringBuilder();
-            for (XmlError error : errorList)
+            if (!_document.validate(validateOptions))
             {
-                sb.append("Schema validation error: ");
-                sb.append(error.getMessage());
-                sb.append("\n");
-                sb.append("Location of invalid XML: ");
-                sb.append(error.getCursorLocation().xmlText());
-                sb.append("\n");
+                appendValidationErrors(sb, errorList);
+            }
+            sb.append(_runValidationErrors);
+            if (sb.length() > 0)
+            {
+                throw new ExperimentException("Failed to create a valid XML file\n" + sb.toString());
             }
-            throw new ExperimentException("Failed to create a valid XML file\n" + sb.toString());
-        }
 
-        XmlOptions options = new XmlOptions();
-        options.setSaveAggressiveNamespaces();
-        options.setSavePrettyPrint();
+            XmlOptions options = new XmlOptions();
+            options.setSaveAggressiveNamespaces();
+            options.setSavePrettyPrint();
+            options.setCharacterEncoding(StandardCharsets.UTF_8.name());
 
-        XmlCursor cursor = _document.newCursor();
-        if (cursor.toFirstChild())
+            XmlCursor cursor = _document.newCursor();
+            if (cursor.toFirstChild())
+            {
+              cursor.setAttributeText(new QName("http://www.w3.org/2001/XMLSchema-instance","schemaLocation"), ExperimentService.SCHEMA_LOCATION);
+            }
+
+            if (_runSpoolOut == null)
+            {
+                _document.save(out, options);
+                return;
+            }
+            _runSpoolOut.close();
+
+            // Everything but the runs is small enough to save with XmlBeans. Copy it through StAX to add the spooled
+            // runs just before the root element ends.
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            _document.save(header, options);
+            writeWithRuns(new ByteArrayInputStream(header.toByteArray()), out);
+        }
+        catch (XMLStreamException e)
+        {
+            throw new ExperimentException("Failed to write the XAR XML", e);
+        }
+        finally
         {
-          cursor.setAttributeText(new QName("http://www.w3.org/2001/XMLSchema-instance","schemaLocation"), ExperimentService.SCHEMA_LOCATION);
+            deleteRunSpool();
+        }
+    }
+
+    private void writeWithRuns(ByteArrayInputStream header, OutputStream out) throws XMLStreamException, IOException
+    {
+        XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        XMLEventReader reader = inputFactory.createXMLEventReader(header, StandardCharsets.UTF_8.name());
+        XMLEventWriter writer = XMLOutputFactory.newInstance().createXMLEventWriter(out, StandardCharsets.UTF_8.name());
+        XMLEventFactory events = XMLEventFactory.newInstance();
+
+        StartElement root = null;
+        int depth = 0;
+        while (reader.hasNext())
+        {
+            XMLEvent event = reader.nextEvent();
+            if (event.isStartElement())
+            {
+                if (depth++ == 0)
+                    root = event.asStartElement();
+            }
+            else if (event.isEndElement() && --depth == 0 && root != null)
+            {
+                QName name = root.getName();
+                writer.add(events.createStartElement(name.getPrefix(), name.getNamespaceURI(), "ExperimentRuns"));
+                // Characters close the start tag, so the spooled runs can be copied straight to the output
+                writer.add(events.createCharacters("\n"));
+                writer.flush();
+                Files.copy(_runSpool.toPath(), out);
+                writer.add(events.createEndElement(name.getPrefix(), name.getNamespaceURI(), "ExperimentRuns"));
+                writer.add(events.createCharacters("\n"));
+            }
+            writer.add(event);
         }
 
-        _document.save(out, options);
+        writer.flush();
+        reader.close();
     }
 
     private void ensureDomainsWritten() throws ExperimentException
@@ -1384,6 +1692,7 @@ public class XarExporter
             {
                 if (_includeXML)
                 {
+                    // The XML is streamed into the entry as it's written, and so are the files below
                     ZipEntry xmlEntry = new ZipEntry(_xarXmlFileName);
                     zOut.putNextEntry(xmlEntry);
                     logProgress("Adding XAR XML to archive");
@@ -1416,6 +1725,11 @@ public class XarExporter
                 zOut.closeEntry();
             }
         }
+        finally
+        {
+            // The spooled runs are only needed while the XML is written, if it's written at all
+            deleteRunSpool();
+        }
     }
 
     public void writeAsDirectory(File dir) throws IOException
@@ -1439,10 +1753,7 @@ public class XarExporter
                     logProgress("Adding data file to archive: " + fileInfo.getName());
                     File fileEntry = new File(dir, fileInfo.getName());
                     fileEntry.getParentFile().mkdirs();
-                    try (FileOutputStream os = new FileOutputStream(fileEntry))
-                    {
-                        fileInfo.writeFile(os);
-                    }
+                    fileInfo.writeFile(fileEntry);
                 }
             }
         }
@@ -1457,6 +1768,10 @@ public class XarExporter
                 e.printStackTrace(ps);
             }
         }
+        finally
+        {
+            deleteRunSpool();
+        }
     }
 
     private ContactType getContactType(String parentLSID, Container parentContainer) throws ExperimentException
@@ -1504,4 +1819,88 @@ public class XarExporter
     {
         return OntologyManager.getProperties(container, contactLSID);
     }
+
+    /** Everything about a run that's read from the database to export it, so it can be loaded off the exporting thread */
+    private static class RunGraph
+    {
+        private final ExpRun _run;
+        private final Map<ExpData, String> _dataInputs;
+        private final List<Material> _inputMaterials;
+        private final List<ApplicationGraph> _applications = new ArrayList<>();
+        /** Properties of the run, its applications and data, by LSID */
+        private final Map<String, Map<String, ObjectProperty>> _properties = new HashMap<>();
+        /** Properties of materials, including the sample type's columns, by LSID */
+        private final Map<String, Map<String, ObjectProperty>> _materialProperties = new HashMap<>();
+
+        private RunGraph(ExpRun run)
+        {
+            _run = run;
+            _properties.put(run.getLSID(), OntologyManager.getPropertyObjects(run.getContainer(), run.getLSID()));
+
+            _dataInputs = run.getDataInputs();
+            for (ExpData data : _dataInputs.keySet())
+            {
+                addDataProperties(data);
+            }
+
+            _inputMaterials = ExperimentServiceImpl.get().getRunInputMaterial(run.getLSID());
+            for (Material material : _inputMaterials)
+            {
+                addMaterialProperties(new ExpMaterialImpl(material));
+            }
+
+            for (ExpProtocolApplication application : ExperimentService.get().getExpProtocolApplicationsForRun(run.getRowId()))
+            {
+                ApplicationGraph graph = new ApplicationGraph(application);
+                _applications.add(graph);
+
+                _properties.put(application.getLSID(), OntologyManager.getPropertyObjects(run.getContainer(), application.getLSID()));
+                for (ExpData data : graph._outputData)
+                {
+                    addDataProperties(data);
+                }
+                for (ExpMaterial material : graph._outputMaterials)
+                {
+                    addMaterialProperties(material);
+                }
+            }
+        }
+
+        private void addDataProperties(ExpData data)
+        {
+            _properties.put(data.getLSID(), OntologyManager.getPropertyObjects(data.getContainer(), data.getLSID()));
+        }
+
+        private void addMaterialProperties(ExpMaterial material)
+        {
+            _materialProperties.put(material.getLSID(), material.getObjectProperties());
+        }
+    }
+
+    private static class ApplicationGraph
+    {
+        private final ExpProtocolApplication _application;
+        private final List<Data> _inputDataRefs;
+        private final List<DataInput> _dataInputs;
+        private final List<Material> _inputMaterials;
+        private final List<MaterialInput> _materialInputs;
+        private final List<? extends ExpData> _outputData;
+        private final List<? extends ExpMaterial> _outputMaterials;
+        private final Set<Pair<String, String>> _provenanceURIs;
+        private final List<ProtocolApplicationParameter> _parameters;
+
+        private ApplicationGraph(ExpProtocolApplication application)
+        {
+            int rowId = application.getRowId();
+            _application = application;
+            _inputDataRefs = ExperimentServiceImpl.get().getDataInputReferencesForApplication(rowId);
+            _dataInputs = ExperimentServiceImpl.get().getDataInputsForApplication(rowId);
+            _inputMaterials = ExperimentServiceImpl.get().getMaterialInputReferencesForApplication(rowId);
+            _materialInputs = ExperimentServiceImpl.get().getMaterialInputsForApplication(rowId);
+            _outputData = application.getOutputDatas();
+            _outputMaterials = application.getOutputMaterials();
+            _provenanceURIs = ProvenanceService.get().getProvenanceObjectUris(rowId);
+            _parameters = ExperimentService.get().getProtocolApplicationParameters(rowId);
+        }
+    }
 }
@@ -79,6 +79,7 @@ import org.labkey.api.query.FieldKey;
 import org.labkey.api.query.QueryService;
 import org.labkey.api.query.UserSchema;
 import org.labkey.api.query.ValidationException;
+import org.labkey.api.settings.AppProps;
 import org.labkey.api.study.SpecimenService;
 import org.labkey.api.study.publish.StudyPublishService;
 import org.labkey.api.util.DateUtil;
@@ -91,8 +92,10 @@ import org.labkey.experiment.pipeline.MoveRunsPipelineJob;
 import org.labkey.experiment.xar.AbstractXarImporter;
 import org.labkey.experiment.xar.AutoFileLSIDReplacer;
 import org.labkey.experiment.xar.XarExpander;
+import org.labkey.experiment.xar.XarStreamReader;
 
 import javax.xml.namespace.QName;
+import javax.xml.stream.XMLStreamException;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -143,6 +146,12 @@ public class XarReader extends AbstractXarImporter
     private final List<String> _processedRunsLSIDs = new ArrayList<>();
     private AuditBehaviorType _auditBehaviorType = null;
 
+    /** Read the xar.xml a protocol application at a time instead of parsing the whole document up front */
+    public static final String EXPERIMENTAL_STREAMING_XAR_IMPORT = "expStreamingXarImport";
+
+    // Output LSIDs are looked up in batches of this size
+    private static final int LSID_BATCH_SIZE = 1000;
+
     public XarReader(XarSource source, PipelineJob job)
     {
         super(source, job);
@@ -174,23 +183,20 @@ public class XarReader extends AbstractXarImporter
     {
         try
         {
-            ExperimentArchiveDocument document = _xarSource.getDocument();
+            Path expDir = null == _xarSource.getRootPath() ? null : _xarSource.getRootPath().resolve("export");
+            boolean export = null != expDir && Files.exists(expDir) && Files.isDirectory(expDir);
 
-            // Create an XmlOptions instance and set the error listener.
-            XmlOptions validateOptions = new XmlOptions();
-            ArrayList<XmlError> errorList = new ArrayList<>();
-            validateOptions.setErrorListener(errorList);
+            // Exporting rewrites the whole document, so it needs the document
+            if (!export && AppProps.getInstance().isExperimentalFeatureEnabled(EXPERIMENTAL_STREAMING_XAR_IMPORT) && streamAndLoad())
+                return;
 
-            // Validate the XML.
-            if (!document.validate(validateOptions))
-                checkValidationErrors(document, errorList);
+            ExperimentArchiveDocument document = _xarSource.getDocument();
+            validate(document);
 
             _experimentArchive = document.getExperimentArchive();
             loadDoc();
 
-            Path expDir = _xarSource.getRootPath().resolve("export");
-            if (Files.exists(expDir) && Files.isDirectory(expDir) &&
-                _experimentArchive.getExperimentRuns() != null && _experimentArchive.getExperimentRuns().getExperimentRunArray().length > 0)
+            if (export && _experimentArchive.getExperimentRuns() != null && _experimentArchive.getExperimentRuns().getExperimentRunArray().length > 0)
             {
                 ExperimentRunType a = _experimentArchive.getExperimentRuns().getExperimentRunArray(0);
                 a.setCreateNewIfDuplicate(false);
@@ -211,7 +217,86 @@ public class XarReader extends AbstractXarImporter
         }
     }
 
-    private void checkValidationErrors(ExperimentArchiveDocument xd, ArrayList<XmlError> errorList) throws XarFormatException
+    /**
+     * Import the xar.xml without parsing it all up front, see XarStreamReader. Runs are read one at a time, and their
+     * protocol applications are loaded as they're read.
+     *
+     * @return false if the source can't provide the document as a stream
+     */
+    private boolean streamAndLoad() throws IOException, XmlException, ExperimentException
+    {
+        // Existing runs are deleted before anything is loaded, so find out which runs are in the document first
+        List<String> runAbouts;
+        try (InputStream in = _xarSource.getDocumentStream())
+        {
+            if (null == in)
+                return false;
+
+            try (XarStreamReader reader = new XarStreamReader(in))
+            {
+                runAbouts = reader.readRunAbouts();
+            }
+        }
+        catch (XMLStreamException e)
+        {
+            throw new XarFormatException(e);
+        }
+
+        try (InputStream in = _xarSource.getDocumentStream(); XarStreamReader reader = new XarStreamReader(in))
+        {
+            ExperimentArchiveDocument header = reader.readHeader();
+            validate(header);
+            _experimentArchive = header.getExperimentArchive();
+
+            loadDoc(runAbouts, (startingMaterials, startingData) -> {
+                ExperimentRunType run;
+                while (null != (run = next(reader::nextRun)))
+                {
+                    loadExperimentRun(run, startingMaterials, startingData, reader);
+                }
+            });
+        }
+        catch (XMLStreamException e)
+        {
+            throw new XarFormatException(e);
+        }
+
+        return true;
+    }
+
+    private interface StreamedElement<T extends XmlObject>
+    {
+        T read() throws XMLStreamException, XmlException;
+    }
+
+    private @Nullable <T extends XmlObject> T next(StreamedElement<T> element) throws XarFormatException
+    {
+        try
+        {
+            T ret = element.read();
+            if (null != ret)
+                validate(ret);
+            return ret;
+        }
+        catch (XMLStreamException | XmlException e)
+        {
+            throw new XarFormatException(e);
+        }
+    }
+
+    private void validate(XmlObject xml) throws XarFormatException
+    {
+        // Create an XmlOptions instance and set the error listener.
+        XmlOptions validateOptions = new XmlOptions();
+        ArrayList<XmlError> errorList = new ArrayList<>();
+        validateOptions.setErrorListener(errorList);
+
+        // Validate the XML.
+        if (!xml.validate(validateOptions))
+            checkValidationErrors(errorList);
+    }
+
+    private void checkValidationErrors(ArrayList<XmlError> errorList) throws XarFormatException
     {
         StringBuilder errorSB = new StringBuilder();
 
@@ -235,7 +320,7 @@ public class XarReader extends AbstractXarImporter
                             if (typeName.endsWith("BaseType"))
                             {
                                 String wType = "org.fhcrc.cpas.exp.xml." + typeName.substring(0, typeName.indexOf("BaseType")) + "Type";
-                                SchemaType swType = xd.schemaType().getTypeSystem().typeForClassname(wType);
+                                SchemaType swType = ExperimentArchiveDocument.type.getTypeSystem().typeForClassname(wType);
                                 if (null != swType)
                                 {
                                     getLog().warn("Schema validation error: " + error.getMessage());
@@ -272,16 +357,42 @@ public class XarReader extends AbstractXarImporter
         }
     }
 
+    private interface RunLoader
+    {
+        void loadRuns(List<ExpMaterial> startingMaterials, List<Data> startingData) throws SQLException, ExperimentException;
+    }
+
     private void loadDoc() throws ExperimentException
     {
-        try (DbScope.Transaction transaction = ExperimentService.get().getSchema().getScope().ensureTransaction())
+        ExperimentArchiveType.ExperimentRuns experimentRuns = _experimentArchive.getExperimentRuns();
+        List<String> runAbouts = new ArrayList<>();
+        if (experimentRuns != null)
         {
-            ExperimentArchiveType.ExperimentRuns experimentRuns = _experimentArchive.getExperimentRuns();
-            // Start by clearing out existing things that we're going to be importing
+            for (ExperimentRunType experimentRun : experimentRuns.getExperimentRunArray())
+                runAbouts.add(experimentRun.getAbout());
+        }
+
+        loadDoc(runAbouts, (startingMaterials, startingData) -> {
             if (experimentRuns != null)
             {
-                deleteExistingExperimentRuns(experimentRuns);
+                for (ExperimentRunType experimentRun : experimentRuns.getExperimentRunArray())
+                {
+                    loadExperimentRun(experimentRun, startingMaterials, startingData, null);
+                }
             }
+        });
+    }
+
+    /**
+     * @param runAbouts the rdf:about of each run in the document
+     * @param runLoader loads the runs, after everything they can reference has been loaded
+     */
+    private void loadDoc(List<String> runAbouts, RunLoader runLoader) throws ExperimentException
+    {
+        try (DbScope.Transaction transaction = ExperimentService.get().getSchema().getScope().ensureTransaction())
+        {
+            // Start by clearing out existing things that we're going to be importing
+            deleteExistingExperimentRuns(runAbouts);
 
             ExperimentArchiveType.ProtocolActionDefinitions actionDefs = _experimentArchive.getProtocolActionDefinitions();
             if (actionDefs != null)
@@ -361,23 +472,17 @@ public class XarReader extends AbstractXarImporter
                 for (MaterialBaseType material : _experimentArchive.getStartingInputDefinitions().getMaterialArray())
                 {
                     // ignore dups of starting inputs
-                    startingMaterials.add(loadMaterial(material, null, null, getRootContext()));
+                    startingMaterials.add(loadMaterial(material, null, null, getRootContext(), null));
                 }
                 for (DataBaseType data : _experimentArchive.getStartingInputDefinitions().getDataArray())
                 {
-                    startingData.add(loadData(data, null, null, getRootContext()));
+                    startingData.add(loadData(data, null, null, getRootContext(), null));
                 }
 
                 getLog().debug("Starting input import complete");
             }
 
-            if (experimentRuns != null)
-            {
-                for (ExperimentRunType experimentRun : experimentRuns.getExperimentRunArray())
-                {
-                    loadExperimentRun(experimentRun, startingMaterials, startingData);
-                }
-            }
+            runLoader.loadRuns(startingMaterials, startingData);
 
             transaction.commit();
         }
@@ -742,11 +847,11 @@ public class XarReader extends AbstractXarImporter
         }
     }
 
-    private void deleteExistingExperimentRuns(ExperimentArchiveType.ExperimentRuns experimentRuns) throws ExperimentException
+    private void deleteExistingExperimentRuns(List<String> runAbouts) throws ExperimentException
     {
-        for (ExperimentRunType experimentRun : experimentRuns.getExperimentRunArray())
+        for (String runAbout : runAbouts)
         {
-            String runLSID = LsidUtils.resolveLsidFromTemplate(experimentRun.getAbout(), getRootContext(), "ExperimentRun", "ExperimentRun");
+            String runLSID = LsidUtils.resolveLsidFromTemplate(runAbout, getRootContext(), "ExperimentRun", "ExperimentRun");
 
             // Clear out any existing runs with the same LSID
             ExpRun existingRun = ExperimentService.get().getExpRun(runLSID);
@@ -848,7 +953,11 @@ public class XarReader extends AbstractXarImporter
         return _loadedDataClasses;
     }
 
-    private void loadExperimentRun(ExperimentRunType a, List<ExpMaterial> startingMaterials, List<Data> startingData) throws SQLException, ExperimentException
+    /**
+     * @param protocolApplications when streaming, the reader to read the run's protocol applications from
+     */
+    private void loadExperimentRun(ExperimentRunType a, List<ExpMaterial> startingMaterials, List<Data> startingData,
+                                   @Nullable XarStreamReader protocolApplications) throws SQLException, ExperimentException
     {
         XarContext runContext = new XarContext(getRootContext());
 
@@ -972,33 +1081,40 @@ public class XarReader extends AbstractXarImporter
         // if ExperimentLog is present and ProtocolApps section is not, generate from log
         // if both are present, look for generatedata attribute
 
-        if ((a.getProtocolApplications().getProtocolApplicationArray().length == 0) || a.getGenerateDataFromStepRecord())
-        {
-            ExperimentLogEntryType [] steps = a.getExperimentLog().getExperimentLogEntryArray();
+        // When streaming, runs that generate data from the log are read whole; the others' protocol applications follow
+        boolean streamed = null != protocolApplications && !a.getGenerateDataFromStepRecord() &&
+                loadProtocolApplications(protocolApplications, run, runContext);
 
-            if ((null != steps) && (steps.length > 0))
+        if (!streamed)
+        {
+            if (a.getProtocolApplications() == null || (a.getProtocolApplications().getProtocolApplicationArray().length == 0) || a.getGenerateDataFromStepRecord())
             {
-                ProtocolActionStepDetail stepProtocol = ExperimentServiceImpl.get().getProtocolActionStepDetail(runProtocolLSID, steps[0].getActionSequenceRef());
-                if (stepProtocol == null)
-                {
-                    throw new XarFormatException("Protocol Not Found for Action Sequence =" + steps[0].getActionSequenceRef() + " in parent protocol " + runProtocolLSID);
-                }
-                String stepProtocolLSID = trimString(stepProtocol.getLSID());
-                if (!stepProtocolLSID.equals(runProtocolLSID))
+                ExperimentLogEntryType [] steps = a.getExperimentLog().getExperimentLogEntryArray();
+
+                if ((null != steps) && (steps.length > 0))
                 {
-                    throw new XarFormatException("Invalid ExperimentRun start action: " + stepProtocolLSID);
-                }
+                    ProtocolActionStepDetail stepProtocol = ExperimentServiceImpl.get().getProtocolActionStepDetail(runProtocolLSID, steps[0].getActionSequenceRef());
+                    if (stepProtocol == null)
+                    {
+                        throw new XarFormatException("Protocol Not Found for Action Sequence =" + steps[0].getActionSequenceRef() + " in parent protocol " + runProtocolLSID);
+                    }
+                    String stepProtocolLSID = trimString(stepProtocol.getLSID());
+                    if (!stepProtocolLSID.equals(runProtocolLSID))
+                    {
+                        throw new XarFormatException("Invalid ExperimentRun start action: " + stepProtocolLSID);
+                    }
 
-                XarExpander expander = new XarExpander(_xarSource, _job, run, startingData, startingMaterials, _experimentArchive);
+                    XarExpander expander = new XarExpander(_xarSource, _job, run, startingData, startingMaterials, _experimentArchive);
 
-                expander.expandSteps(steps, runContext, a);
+                    expander.expandSteps(steps, runContext, a);
+                    loadProtocolApplications(a, run, runContext);
+                }
+            }
+            else
+            {
                 loadProtocolApplications(a, run, runContext);
             }
         }
-        else
-        {
-            loadProtocolApplications(a, run, runContext);
-        }
         _processedRunsLSIDs.add(runLSID);
         ExpRun loadedRun = ExperimentService.get().getExpRun(runLSID);
         assert loadedRun != null;
@@ -1025,6 +1141,20 @@ public class XarReader extends AbstractXarImporter
         }
     }
 
+    /** @return false if the run has no protocol applications */
+    private boolean loadProtocolApplications(XarStreamReader reader, ExperimentRun run, XarContext context)
+            throws SQLException, ExperimentException
+    {
+        boolean firstApp = true;
+        ProtocolApplicationBaseType protApp;
+        while (null != (protApp = next(reader::nextProtocolApplication)))
+        {
+            loadProtocolApplication(protApp, run, context, firstApp);
+            firstApp = false;
+        }
+        return !firstApp;
+    }
+
     private java.sql.Timestamp getSqlTimestamp(Calendar date)
     {
         if (date != null)
@@ -1091,6 +1221,7 @@ public class XarReader extends AbstractXarImporter
         int runId = experimentRun.getRowId();
 
         ProtocolApplication protocolApp = ExperimentServiceImpl.get().getProtocolApplication(protAppLSID);
+        boolean newProtocolApp = protocolApp == null;
         if (protocolApp == null)
         {
             protocolApp = new ProtocolApplication();
@@ -1127,6 +1258,18 @@ public class XarReader extends AbstractXarImporter
 
         //todo  extended protocolApp types??
 
+        // Find the inputs we already have with one query each (none for a new protocol application), and insert the rest in batches
+        Set<Integer> materialInputIds = new HashSet<>();
+        Set<Integer> dataInputIds = new HashSet<>();
+        if (!newProtocolApp)
+        {
+            SimpleFilter protAppFilter = new SimpleFilter(FieldKey.fromParts("TargetApplicationId"), protAppId);
+            materialInputIds.addAll(new TableSelector(tiMaterialInput, Collections.singleton("MaterialId"), protAppFilter, null).getCollection(Integer.class));
+            dataInputIds.addAll(new TableSelector(tiDataInput, Collections.singleton("DataId"), protAppFilter, null).getCollection(Integer.class));
+        }
+        List<List<?>> materialInputParams = new ArrayList<>();
+        List<List<?>> dataInputParams = new ArrayList<>();
+
         for (InputOutputRefsType.MaterialLSID inputMaterialLSID : inputMaterialLSIDs)
         {
             String declaredType = (inputMaterialLSID.isSetCpasType() ? inputMaterialLSID.getCpasType() : ExpMaterial.DEFAULT_CPAS_TYPE);
@@ -1138,16 +1281,10 @@ public class XarReader extends AbstractXarImporter
             {
                 _xarSource.addMaterial(experimentRun.getLSID(), inputRow, null);
             }
-            SimpleFilter filter = new SimpleFilter(FieldKey.fromParts("MaterialId"), inputRow.getRowId());
-            filter = filter.addCondition(FieldKey.fromParts("TargetApplicationId"), protAppId);
-            if (new TableSelector(tiMaterialInput, filter, null).getObject(MaterialInput.class) == null)
+            if (materialInputIds.add(inputRow.getRowId()))
             {
-                MaterialInput mi = new MaterialInput();
-                mi.setMaterialId(inputRow.getRowId());
-                mi.setTargetApplicationId(protAppId);
                 String roleName = inputMaterialLSID.getRoleName();
-                mi.setRole(roleName);
-                Table.insert(getUser(), tiMaterialInput, mi);
+                materialInputParams.add(Arrays.asList(inputRow.getRowId(), protAppId, roleName));
             }
         }
 
@@ -1163,41 +1300,45 @@ public class XarReader extends AbstractXarImporter
                 _xarSource.addData(experimentRun.getLSID(), data, null);
             }
 
-            SimpleFilter filter = new SimpleFilter(FieldKey.fromParts("DataId"), data.getRowId());
-            filter = filter.addCondition(FieldKey.fromParts("TargetApplicationId"), protAppId);
-            if (new TableSelector(tiDataInput, filter, null).getObject(DataInput.class) == null)
+            if (dataInputIds.add(data.getRowId()))
             {
-                DataInput input = new DataInput();
-                input.setDataId(data.getRowId());
-                input.setTargetApplicationId(protAppId);
                 String roleName = inputDataLSID.getRoleName();
-                input.setRole(roleName);
-
-                Table.insert(getUser(), tiDataInput, input);
+                dataInputParams.add(Arrays.asList(data.getRowId(), protAppId, roleName));
             }
         }
 
+        if (!materialInputParams.isEmpty())
+        {
+            Table.batchExecute(ExperimentServiceImpl.get().getExpSchema(), "INSERT INTO " + tiMaterialInput +
+                    " (MaterialId, TargetApplicationId, Role) VALUES (?,?,?)", materialInputParams);
+            // Raw SQL bypasses Table.insert(), so send the change notification ourselves
+            Table.notifyTableUpdate(tiMaterialInput);
+        }
+        if (!dataInputParams.isEmpty())
+        {
+            Table.batchExecute(ExperimentServiceImpl.get().getExpSchema(), "INSERT INTO " + tiDataInput +
+                    " (DataId, TargetApplicationId, Role) VALUES (?,?,?)", dataInputParams);
+            Table.notifyTableUpdate(tiDataInput);
+        }
+
         MaterialBaseType [] outputMaterials = xmlProtocolApp.getOutputMaterials().getMaterialArray();
+        Map<String, ExpMaterialImpl> existingMaterials = getExistingMaterials(outputMaterials, context);
         for (MaterialBaseType outputMaterial : outputMaterials)
         {
-            loadMaterial(outputMaterial, experimentRun, protAppId, context);
+            loadMaterial(outputMaterial, experimentRun, protAppId, context, existingMaterials);
         }
 
         DataBaseType [] outputData = xmlProtocolApp.getOutputDataObjects().getDataArray();
+        Map<String, ExpDataImpl> existingDatas = getExistingDatas(outputData, context);
         for (DataBaseType d : outputData)
         {
-            loadData(d, experimentRun, protAppId, context);
+            loadData(d, experimentRun, protAppId, context, existingDatas);
         }
         getLog().debug("Finished loading ProtocolApplication with LSID '" + protocolLSID + "'");
     }
 
-    private ExpMaterial loadMaterial(MaterialBaseType xbMaterial,
-                                  @Nullable ExperimentRun run,
-                                  Integer sourceApplicationId,
-                                  XarContext context) throws XarFormatException
+    private String getMaterialCpasType(MaterialBaseType xbMaterial, XarContext context) throws XarFormatException
     {
-        TableInfo tiMaterial = ExperimentServiceImpl.get().getTinfoMaterial();
-
         String declaredType = xbMaterial.getCpasType();
         if (null == declaredType)
             declaredType = ExpMaterial.DEFAULT_CPAS_TYPE;
@@ -1205,11 +1346,55 @@ public class XarReader extends AbstractXarImporter
         {
             declaredType = LsidUtils.resolveLsidFromTemplate(declaredType, context, "SampleSet");
         }
+        return declaredType;
+    }
+
+    private String getMaterialLSID(MaterialBaseType xbMaterial, String declaredType, XarContext context) throws XarFormatException
+    {
+        return LsidUtils.resolveLsidFromTemplate(xbMaterial.getAbout(), context, declaredType, ExpMaterial.DEFAULT_CPAS_TYPE);
+    }
+
+    /**
+     * Look up the materials that already exist for a protocol application's outputs with a query per batch, rather
+     * than one per output. LSIDs that don't exist map to null.
+     */
+    private Map<String, ExpMaterialImpl> getExistingMaterials(MaterialBaseType[] xbMaterials, XarContext context) throws XarFormatException
+    {
+        List<String> lsids = new ArrayList<>(xbMaterials.length);
+        for (MaterialBaseType xbMaterial : xbMaterials)
+            lsids.add(getMaterialLSID(xbMaterial, getMaterialCpasType(xbMaterial, context), context));
+
+        Map<String, ExpMaterialImpl> ret = new HashMap<>();
+        for (int i = 0; i < lsids.size(); i += LSID_BATCH_SIZE)
+        {
+            List<String> batch = lsids.subList(i, Math.min(lsids.size(), i + LSID_BATCH_SIZE));
+            for (String lsid : batch)
+                ret.put(lsid, null);
+            for (ExpMaterialImpl material : ExperimentServiceImpl.get().getExpMaterialsByLSID(batch))
+                ret.put(material.getLSID(), material);
+        }
+        return ret;
+    }
+
+    /**
+     * @param existingMaterials materials already looked up by LSID, see getExistingMaterials()
+     */
+    private ExpMaterial loadMaterial(MaterialBaseType xbMaterial,
+                                  @Nullable ExperimentRun run,
+                                  Integer sourceApplicationId,
+                                  XarContext context,
+                                  @Nullable Map<String, ExpMaterialImpl> existingMaterials) throws XarFormatException
+    {
+        TableInfo tiMaterial = ExperimentServiceImpl.get().getTinfoMaterial();
+
+        String declaredType = getMaterialCpasType(xbMaterial, context);
         ExpSampleTypeImpl sampleSet = checkMaterialCpasType(declaredType);
 
-        String materialLSID = LsidUtils.resolveLsidFromTemplate(xbMaterial.getAbout(), context, declaredType, ExpMaterial.DEFAULT_CPAS_TYPE);
+        String materialLSID = getMaterialLSID(xbMaterial, declaredType, context);
 
-        ExpMaterialImpl material = ExperimentServiceImpl.get().getExpMaterial(materialLSID);
+        ExpMaterialImpl material = null != existingMaterials && existingMaterials.containsKey(materialLSID) ?
+                existingMaterials.get(materialLSID) :
+                ExperimentServiceImpl.get().getExpMaterial(materialLSID);
         if (material == null && sampleSet != null)
         {
             // Try resolving it by name within the sample type in case we have it under a different LSID
@@ -1276,6 +1461,8 @@ public class XarReader extends AbstractXarImporter
         }
 
         _xarSource.addMaterial(run == null ? null : run.getLSID(), material, null);
+        if (null != existingMaterials)
+            existingMaterials.put(materialLSID, material);
 
         getLog().debug("Finished loading material with LSID '" + materialLSID + "'");
         return material;
@@ -1345,13 +1532,8 @@ public class XarReader extends AbstractXarImporter
     }
 
 
-    private Data loadData(DataBaseType xbData,
-                          ExperimentRun experimentRun,
-                          Integer sourceApplicationId,
-                          XarContext context) throws SQLException, ExperimentException
+    private String getDataCpasType(DataBaseType xbData, XarContext context) throws XarFormatException
     {
-        TableInfo tiData = ExperimentServiceImpl.get().getTinfoData();
-
         String declaredType = xbData.getCpasType();
         if (null == declaredType)
             declaredType = "Data";
@@ -1359,10 +1541,58 @@ public class XarReader extends AbstractXarImporter
         {
             declaredType = LsidUtils.resolveLsidFromTemplate(declaredType, context, "Data");
         }
+        return declaredType;
+    }
+
+    private String getDataLSID(DataBaseType xbData, String declaredType, XarContext context) throws XarFormatException
+    {
+        return LsidUtils.resolveLsidFromTemplate(xbData.getAbout(), context, declaredType, new AutoFileLSIDReplacer(xbData.getDataFileUrl(), getContainer(), _xarSource));
+    }
+
+    /**
+     * Look up the data that already exist for a protocol application's outputs with a query per batch, rather than
+     * one per output. LSIDs that don't exist map to null. Outputs with AutoFileLSID are left out, as resolving their
+     * LSID takes a query of its own.
+     */
+    private Map<String, ExpDataImpl> getExistingDatas(DataBaseType[] xbDatas, XarContext context) throws XarFormatException
+    {
+        List<String> lsids = new ArrayList<>(xbDatas.length);
+        for (DataBaseType xbData : xbDatas)
+        {
+            if (!xbData.getAbout().contains(AutoFileLSIDReplacer.AUTO_FILE_LSID_SUBSTITUTION))
+                lsids.add(getDataLSID(xbData, getDataCpasType(xbData, context), context));
+        }
+
+        Map<String, ExpDataImpl> ret = new HashMap<>();
+        for (int i = 0; i < lsids.size(); i += LSID_BATCH_SIZE)
+        {
+            List<String> batch = lsids.subList(i, Math.min(lsids.size(), i + LSID_BATCH_SIZE));
+            for (String lsid : batch)
+                ret.put(lsid, null);
+            for (ExpDataImpl data : ExperimentServiceImpl.get().getExpDatasByLSID(batch))
+                ret.put(data.getLSID(), data);
+        }
+        return ret;
+    }
+
+    /**
+     * @param existingDatas data already looked up by LSID, see getExistingDatas()
+     */
+    private Data loadData(DataBaseType xbData,
+                          ExperimentRun experimentRun,
+                          Integer sourceApplicationId,
+                          XarContext context,
+                          @Nullable Map<String, ExpDataImpl> existingDatas) throws SQLException, ExperimentException
+    {
+        TableInfo tiData = ExperimentServiceImpl.get().getTinfoData();
+
+        String declaredType = getDataCpasType(xbData, context);
         checkDataCpasType(declaredType);
 
-        String dataLSID = LsidUtils.resolveLsidFromTemplate(xbData.getAbout(), context, declaredType, new AutoFileLSIDReplacer(xbData.getDataFileUrl(), getContainer(), _xarSource));
-        ExpDataImpl expData = ExperimentServiceImpl.get().getExpData(dataLSID);
+        String dataLSID = getDataLSID(xbData, declaredType, context);
+        ExpDataImpl expData = null != existingDatas && existingDatas.containsKey(dataLSID) ?
+                existingDatas.get(dataLSID) :
+                ExperimentServiceImpl.get().getExpData(dataLSID);
         ExpDataClassImpl expDataClass = ExperimentServiceImpl.get().getDataClass(declaredType);
         if (expData == null && expDataClass != null)
         {
@@ -1514,6 +1744,8 @@ public class XarReader extends AbstractXarImporter
 
 
         _xarSource.addData(experimentRun == null ? null : experimentRun.getLSID(), expData, null);
+        if (null != existingDatas)
+            existingDatas.put(dataLSID, expData);
         getLog().debug("Finished loading Data with LSID '" + dataLSID + "'");
         return expData.getDataObject();
     }
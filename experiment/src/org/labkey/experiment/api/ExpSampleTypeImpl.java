@@ -407,9 +407,24 @@ public class ExpSampleTypeImpl extends ExpIdentifiableEntityImpl<MaterialSource>
 
         try (NameGenerator.State state = nameGen.createState(true))
         {
+            // Every row takes a genId, so reserve them all at once
             DbSequence sequence = genIdSequence();
-            Supplier<Map<String, Object>> extraPropsFn = () -> Map.of("genId", sequence.next());
-            nameGen.generateNames(state, maps, parentDatas, parentSamples, extraPropsFn, skipDuplicates);
+            int count = maps.size();
+            long start = count == 0 ? 0 : DbSequenceManager.reserveSequentialBlock(sequence, count);
+            long[] genId = {start};
+            Supplier<Map<String, Object>> extraPropsFn = () -> Map.of("genId", genId[0]++);
+            try
+            {
+                nameGen.generateNames(state, maps, parentDatas, parentSamples, extraPropsFn, skipDuplicates);
+            }
+            catch (NameGenerator.NameGenerationException | RuntimeException e)
+            {
+                // Hand back the genIds no row got to, so a failed import doesn't leave a gap
+                long used = genId[0] - start;
+                if (used < count)
+                    DbSequenceManager.releaseSequentialBlock(sequence, genId[0], (int)(count - used));
+                throw e;
+            }
         }
         catch (NameGenerator.DuplicateNameException dup)
         {
@@ -1611,22 +1611,24 @@ public class ExperimentServiceImpl implements ExperimentService
             // TODO using Set<roles> is adequate for now (as long as the caller knows all the roles of interest)
             if (options.isFilterDataRoles())
                 selection.addRoles(options.getDataRoles());
-            XarExporter exporter = new XarExporter(
+            try (XarExporter exporter = new XarExporter(
                     LSIDRelativizer.valueOf(options.getLsidRelativizer()),
                     selection,
                     user,
                     options.getXarXmlFileName(),
                     options.getLog()
-            );
-            if (options.getExportFile().isDirectory())
-            {
-                exporter.writeAsDirectory(options.getExportFile());
-            }
-            else
+            ))
             {
-                try (FileOutputStream fOut = new FileOutputStream(options.getExportFile().getPath()))
+                if (options.getExportFile().isDirectory())
                 {
-                    exporter.writeAsArchive(fOut);
+                    exporter.writeAsDirectory(options.getExportFile());
+                }
+                else
+                {
+                    try (FileOutputStream fOut = new FileOutputStream(options.getExportFile().getPath()))
+                    {
+                        exporter.writeAsArchive(fOut);
+                    }
                 }
             }
             return options.getExportFile();
@@ -2319,11 +2321,11 @@ public class ExperimentServiceImpl implements ExperimentService
             sqlf.append(comma).append("(").append(objectId).append(")");
             comma = ",";
         }
-        return generateExperimentTreeSQL(sqlf, options);
+        return generateExperimentTreeSQL(sqlf, objectIds, options);
     }
 
     /* return <ParentsQuery,ChildrenQuery> */
-    private Pair<String,String> getRunGraphCommonTableExpressions(SQLFragment ret, SQLFragment lsidsFrag, ExpLineageOptions options)
+    private Pair<String,String> getRunGraphCommonTableExpressions(SQLFragment ret, SQLFragment lsidsFrag, @Nullable Collection<Integer> seedObjectIds, ExpLineageOptions options)
     {
         String jspPath = options.isForLookup() ? "/org/labkey/experiment/api/ExperimentRunGraphForLookup2.jsp" : "/org/labkey/experiment/api/ExperimentRunGraph2.jsp";
 
@@ -2361,6 +2363,19 @@ public class ExperimentServiceImpl implements ExperimentService
 
         boolean recursive = getExpSchema().getSqlDialect().isPostgreSQL();
 
+        // When the seeds are known, the lineage index can replace the recursive part of the query
+        LineageIndex.State index = null == seedObjectIds ? null : LineageIndex.get().getState();
+        if (null != index)
+        {
+            String parentsIndexSelect = options.isParents() ? getLineageIndexSelect(index, seedObjectIds, true, options) : null;
+            if (null != parentsIndexSelect)
+                map.put("$PARENTS_INNER$", parentsIndexSelect);
+
+            String childrenIndexSelect = options.isChildren() ? getLineageIndexSelect(index, seedObjectIds, false, options) : null;
+            if (null != childrenIndexSelect)
+                map.put("$CHILDREN_INNER$", childrenIndexSelect);
+        }
+
         String parentsInnerSelect = map.get("$PARENTS_INNER$");
         SQLFragment parentsInnerSelectFrag = new SQLFragment(parentsInnerSelect);
         parentsInnerSelectFrag.addAll(lsidsFrag.getParams());
@@ -2385,10 +2400,49 @@ public class ExperimentServiceImpl implements ExperimentService
         return new Pair<>(parentsToken,childrenToken);
     }
 
+    /**
+     * Same columns as $PARENTS_INNER$ or $CHILDREN_INNER$, from the lineage index instead of a recursive query.
+     * Edges are listed once, at the depth they are first reached, and all rows have an empty path.
+     * @return null if the traversal is too large to send as a VALUES list
+     */
+    private @Nullable String getLineageIndexSelect(LineageIndex.State index, Collection<Integer> seedObjectIds, boolean parents, ExpLineageOptions options)
+    {
+        // match the default depth in ExperimentRunGraph2.jsp
+        int depth = Math.abs(options.getDepth());
+        if (depth == 0)
+            depth = getExpSchema().getSqlDialect().isSqlServer() ? 100 : 1000;
+
+        List<int[]> edges = index.traverse(seedObjectIds, parents, depth, options.isForLookup());
+        if (null == edges)
+            return null;
+
+        StringBuilder values = new StringBuilder();
+        String comma = "";
+        for (Integer seed : seedObjectIds)
+        {
+            values.append(comma).append("(0, ").append(seed).append(", ");
+            if (parents)
+                values.append(seed).append(", CAST(NULL AS INT))");
+            else
+                values.append("CAST(NULL AS INT), ").append(seed).append(")");
+            comma = ",\n";
+        }
+        for (int[] edge : edges)
+            values.append(",\n(").append(edge[0]).append(", ").append(edge[1]).append(", ").append(edge[2]).append(", ").append(edge[3]).append(")");
+
+        return "SELECT depth, " + (options.isForLookup() ? "self, " : "") + "fromObjectId, toObjectId, CAST('/' AS VARCHAR(8000)) AS path\n" +
+                "FROM (VALUES " + values + ") AS _lineage_(depth, self, fromObjectId, toObjectId)";
+    }
+
     public SQLFragment generateExperimentTreeSQL(SQLFragment lsidsFrag, ExpLineageOptions options)
+    {
+        return generateExperimentTreeSQL(lsidsFrag, null, options);
+    }
+
+    private SQLFragment generateExperimentTreeSQL(SQLFragment lsidsFrag, @Nullable Collection<Integer> seedObjectIds, ExpLineageOptions options)
     {
         SQLFragment sqlf = new SQLFragment();
-        Pair<String,String> tokens = getRunGraphCommonTableExpressions(sqlf, lsidsFrag, options);
+        Pair<String,String> tokens = getRunGraphCommonTableExpressions(sqlf, lsidsFrag, seedObjectIds, options);
         boolean up = options.isParents();
         boolean down = options.isChildren();
 
@@ -2540,6 +2594,7 @@ public class ExperimentServiceImpl implements ExperimentService
         TableInfo edge = getTinfoEdge();
         int count = new SqlExecutor(edge.getSchema().getScope()).execute("DELETE FROM " + edge /* + (edge.getSqlDialect().isSqlServer() ? " WITH (TABLOCK, HOLDLOCK)" : "")  */ + " WHERE runId="+runId);
         LOG.debug("Removed edges for run " + runId + "; count = " + count);
+        LineageIndex.get().removeRun(runId);
     }
 
     // prepare for bulk insert of edges
@@ -3047,7 +3102,10 @@ public class ExperimentServiceImpl implements ExperimentService
                 if (verifyEdgesNoInsert)
                     verifyEdges(runId, runObjectId, params);
                 else
+                {
                     insertEdges(params);
+                    LineageIndex.get().setRunEdges(runId, params);
+                }
             }
             else
             {
@@ -3070,6 +3128,7 @@ public class ExperimentServiceImpl implements ExperimentService
             {
                 LOG.debug("Deleting all edges");
                 Table.delete(getTinfoEdge());
+                LineageIndex.get().removeAll();
             }
 
             // Local cache of SampleType LSID to objectId. The SampleType objectId will be used as the node's ownerObjectId.
@@ -4109,6 +4168,7 @@ public class ExperimentServiceImpl implements ExperimentService
                         .append("fromObjectId ").append(objectIdFrag)
                         .append(" OR toObjectId ").append(objectIdFrag);
                 executor.execute(deleteEdgeSql);
+                LineageIndex.get().removeNodes(materials.stream().map(ExpMaterial::getObjectId).collect(Collectors.toList()));
             }
 
             // Delete MaterialInput exp.object and properties
@@ -4406,6 +4466,7 @@ public class ExperimentServiceImpl implements ExperimentService
                 }
                 allLsids.add(data.getLSID());
             }
+            LineageIndex.get().removeNodes(datas.stream().map(Data::getObjectId).collect(Collectors.toList()));
 
             SqlDialect dialect = getExpSchema().getSqlDialect();
 
@@ -4571,10 +4632,12 @@ public class ExperimentServiceImpl implements ExperimentService
             // These are usually deleted when the run is deleted (unless the run is in a different container)
             // and would be cleaned up when deleting the exp.Material and exp.Data in this container at the end of this method.
             // However, we need to delete any exp.edge referenced by exp.object before calling deleteAllObjects() for this container.
+            List<Integer> objectIds = new SqlSelector(getExpSchema(), "SELECT ObjectId FROM " + getTinfoObject() + " WHERE Container = ?", c).getArrayList(Integer.class);
             String deleteObjEdges =
                     "DELETE FROM " + getTinfoEdge() + "\nWHERE fromObjectId IN (SELECT ObjectId FROM " + getTinfoObject() + " WHERE Container = ?);\n"+
                     "DELETE FROM " + getTinfoEdge() + "\nWHERE toObjectId IN (SELECT ObjectId FROM " + getTinfoObject() + " WHERE Container = ?);";
             new SqlExecutor(getExpSchema()).execute(deleteObjEdges, c, c);
+            LineageIndex.get().removeNodes(objectIds);
 
             SimpleFilter containerFilter = SimpleFilter.createContainerFilter(c);
             Table.delete(getTinfoDataAliasMap(), containerFilter);
@@ -27,10 +27,15 @@ import org.labkey.api.query.UserSchema;
 
 import java.io.IOException;
 import java.io.Writer;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 import static java.util.Objects.requireNonNull;
@@ -41,6 +46,10 @@ import static org.labkey.api.util.PageFlowUtil.filter;
 
 public class LineageDisplayColumn extends DataColumn implements IMultiValuedDisplayColumn, ILineageDisplayColumn
 {
+    // Number of rows whose lineage is selected together when the outer results can be read ahead
+    static final int BATCH_SIZE = 1000;
+
+    private final UserSchema schema;
     private final FieldKey boundFieldKey;
 
     private ReexecutableDataregion innerDataRegion;
@@ -48,6 +57,15 @@ public class LineageDisplayColumn extends DataColumn implements IMultiValuedDisp
     private ColumnInfo innerBoundColumn;
     private DisplayColumn innerDisplayColumn;
 
+    // Lineage of the current batch of rows, see prefetch()
+    private ReexecutableRenderContext batchCtx;
+    private DisplayColumn batchDisplayColumn;
+    private final Map<Integer, Map<String, Object>> batchRows = new HashMap<>();
+
+    // The context and column that render the current row
+    private RenderContext renderCtx;
+    private DisplayColumn renderColumn;
+
     public static DisplayColumn create(QuerySchema schema, ColumnInfo objectid, FieldKey boundFieldKey)
     {
         return new LineageDisplayColumn(schema, objectid, boundFieldKey);
@@ -57,12 +75,25 @@ public class LineageDisplayColumn extends DataColumn implements IMultiValuedDisp
     private LineageDisplayColumn(QuerySchema schema, ColumnInfo objectId, FieldKey boundFieldKey)
     {
         super(objectId, false);
+        this.schema = (UserSchema) schema;
         this.boundFieldKey = boundFieldKey;
 
         /* SET UP DataRegion */
 
         // TODO ContainerFilter
-        TableInfo seedTable = new SeedTable((UserSchema) schema);
+        TableInfo seedTable = new SeedTable(this.schema, null);
+        ColumnInfo bound = getBoundColumn(seedTable);
+        // This is an error, probably in recreating the fieldkey correctly
+        if (null == bound)
+            return;
+
+        innerBoundColumn = bound;
+        innerDataRegion = createDataRegion(seedTable, bound);
+        innerDisplayColumn = innerDataRegion.getDisplayColumn(0);
+    }
+
+    private @Nullable ColumnInfo getBoundColumn(TableInfo seedTable)
+    {
         ColumnInfo bound = null;
         for (String part : boundFieldKey.getParts())
         {
@@ -73,17 +104,17 @@ public class LineageDisplayColumn extends DataColumn implements IMultiValuedDisp
             if (null == bound)
                 break;
         }
-        // This is an error, probably in recreating the fieldkey correctly
-        if (null == bound)
-            return;
+        return bound;
+    }
 
-        innerBoundColumn = bound;
-        innerDataRegion = new ReexecutableDataregion();
-        innerDataRegion.setTable(seedTable);
-        innerDataRegion.addColumn(bound);
-        innerDisplayColumn = innerDataRegion.getDisplayColumn(0);
+    private ReexecutableDataregion createDataRegion(TableInfo seedTable, ColumnInfo bound)
+    {
+        ReexecutableDataregion dr = new ReexecutableDataregion();
+        dr.setTable(seedTable);
+        dr.addColumn(bound);
         // apply date and number formats
-        innerDataRegion.prepareDisplayColumns(schema.getContainer());
+        dr.prepareDisplayColumns(schema.getContainer());
+        return dr;
     }
 
     @Override
@@ -113,12 +144,27 @@ public class LineageDisplayColumn extends DataColumn implements IMultiValuedDisp
     private void updateInnerContext(RenderContext outerCtx)
     {
         if (null == innerCtx)
+        {
             innerCtx = new ReexecutableRenderContext(outerCtx);
+            renderCtx = innerCtx;
+            renderColumn = innerDisplayColumn;
+        }
         int currentObjectId = requireNonNullElse((Integer) getValue(outerCtx), -1);
         if (innerCtxObjectId == currentObjectId)
             return;
 
         innerCtxObjectId = currentObjectId;
+
+        if (-1 != currentObjectId && (batchRows.containsKey(currentObjectId) || prefetch(outerCtx, currentObjectId)))
+        {
+            batchCtx.setRow(batchRows.get(currentObjectId));
+            renderCtx = batchCtx;
+            renderColumn = batchDisplayColumn;
+            return;
+        }
+
+        renderCtx = innerCtx;
+        renderColumn = innerDisplayColumn;
         innerDataRegion.reset(innerCtx, Collections.singletonMap(SeedTable.OBJECTID_PARAMETER, currentObjectId));
         if (-1 != currentObjectId)
         {
@@ -143,6 +189,73 @@ public class LineageDisplayColumn extends DataColumn implements IMultiValuedDisp
         }
     }
 
+    /*
+     * Rather than one lineage query per row, read ahead in the outer results (when they're scrollable, e.g. cached
+     * grid results) and select the lineage for the next BATCH_SIZE rows at once.
+     */
+    private boolean prefetch(RenderContext outerCtx, int currentObjectId)
+    {
+        Results outer = outerCtx.getResults();
+        Set<Integer> seeds = new LinkedHashSet<>();
+        try
+        {
+            if (null == outer || outer.getType() == ResultSet.TYPE_FORWARD_ONLY || !outer.hasColumn(getColumnInfo().getFieldKey()))
+                return false;
+
+            int row = outer.getRow();
+            if (row <= 0)
+                return false;
+
+            int column = outer.findColumn(getColumnInfo().getFieldKey());
+            seeds.add(currentObjectId);
+            while (seeds.size() < BATCH_SIZE && outer.next())
+            {
+                Object value = outer.getObject(column);
+                if (value instanceof Number)
+                    seeds.add(((Number) value).intValue());
+            }
+            outer.absolute(row);
+        }
+        catch (SQLException x)
+        {
+            throw new RuntimeSQLException(x);
+        }
+
+        if (seeds.size() < 2)
+            return false;
+
+        TableInfo seedTable = new SeedTable(schema, seeds);
+        ColumnInfo bound = getBoundColumn(seedTable);
+        if (null == bound)
+            return false;
+
+        ReexecutableDataregion dr = createDataRegion(seedTable, bound);
+        dr.addColumn(seedTable.getColumn("objectid"));
+        ReexecutableRenderContext ctx = new ReexecutableRenderContext(outerCtx);
+        dr.reset(ctx, Collections.emptyMap());
+
+        batchRows.clear();
+        try (Results results = requireNonNull(dr.getResults(ctx)))
+        {
+            ResultSetRowMapFactory factory = ResultSetRowMapFactory.create(results);
+            int objectidColumn = results.findColumn(FieldKey.fromParts("objectid"));
+            while (results.next())
+                batchRows.put(results.getInt(objectidColumn), factory.getRowMap(results));
+        }
+        catch (SQLException x)
+        {
+            throw new RuntimeSQLException(x);
+        }
+        catch (IOException x)
+        {
+            throw new RuntimeException(x);
+        }
+
+        batchCtx = ctx;
+        batchDisplayColumn = dr.getDisplayColumn(0);
+        return batchRows.containsKey(currentObjectId);
+    }
+
     @Override
     public void renderGridCellContents(RenderContext ctx, Writer out) throws IOException
     {
@@ -154,7 +267,7 @@ public class LineageDisplayColumn extends DataColumn implements IMultiValuedDisp
             return;
         }
         updateInnerContext(ctx);
-        innerDisplayColumn.renderGridCellContents(innerCtx, out);
+        renderColumn.renderGridCellContents(renderCtx, out);
     }
 
     @Override
@@ -163,7 +276,7 @@ public class LineageDisplayColumn extends DataColumn implements IMultiValuedDisp
         if (null == innerDisplayColumn)
             return Collections.emptyList();
         updateInnerContext(ctx);
-        return ((IMultiValuedDisplayColumn)innerDisplayColumn).renderURLs(innerCtx);
+        return ((IMultiValuedDisplayColumn)renderColumn).renderURLs(renderCtx);
     }
 
     @Override
@@ -172,7 +285,7 @@ public class LineageDisplayColumn extends DataColumn implements IMultiValuedDisp
         if (null == innerDisplayColumn)
             return Collections.emptyList();
         updateInnerContext(ctx);
-        return ((IMultiValuedDisplayColumn)innerDisplayColumn).getDisplayValues(innerCtx);
+        return ((IMultiValuedDisplayColumn)renderColumn).getDisplayValues(renderCtx);
     }
 
     @Override
@@ -188,7 +301,7 @@ public class LineageDisplayColumn extends DataColumn implements IMultiValuedDisp
         if (null == innerDisplayColumn)
             return Collections.emptyList();
         updateInnerContext(ctx);
-        return ((IMultiValuedDisplayColumn)innerDisplayColumn).getTsvFormattedValues(innerCtx);
+        return ((IMultiValuedDisplayColumn)renderColumn).getTsvFormattedValues(renderCtx);
     }
 
     @Override
@@ -197,7 +310,7 @@ public class LineageDisplayColumn extends DataColumn implements IMultiValuedDisp
         if (null == innerDisplayColumn)
             return Collections.emptyList();
         updateInnerContext(ctx);
-        return ((IMultiValuedDisplayColumn)innerDisplayColumn).getFormattedTexts(innerCtx);
+        return ((IMultiValuedDisplayColumn)renderColumn).getFormattedTexts(renderCtx);
     }
 
     @Override
@@ -206,7 +319,7 @@ public class LineageDisplayColumn extends DataColumn implements IMultiValuedDisp
         if (null == innerDisplayColumn)
             return Collections.emptyList();
         updateInnerContext(ctx);
-        return ((IMultiValuedDisplayColumn)innerDisplayColumn).getJsonValues(innerCtx);
+        return ((IMultiValuedDisplayColumn)renderColumn).getJsonValues(renderCtx);
     }
 
     @Override
@@ -260,22 +373,34 @@ public class LineageDisplayColumn extends DataColumn implements IMultiValuedDisp
         static final String OBJECTID_PARAMETER = "_$_OBJECTID_$_";
         final UserSchema schema;
         final SQLFragment sqlf;
-        final List<QueryService.ParameterDecl> parameters = Collections.singletonList(new QueryService.ParameterDeclaration(OBJECTID_PARAMETER, JdbcType.INTEGER));
+        final List<QueryService.ParameterDecl> parameters;
 
-        SeedTable(UserSchema schema)
+        /** @param seeds the objectids to select, or null for a single objectid bound as OBJECTID_PARAMETER */
+        SeedTable(UserSchema schema, @Nullable Collection<Integer> seeds)
         {
             super(schema.getDbSchema(), "seed");
             SqlDialect d = schema.getDbSchema().getScope().getSqlDialect();
             this.schema = schema;
-            this.sqlf = new SQLFragment("SELECT CAST( ? AS " + d.getSqlCastTypeName(JdbcType.INTEGER)+ ") AS objectid");
-            this.sqlf.addAll(parameters);
+            if (null == seeds)
+            {
+                this.parameters = Collections.singletonList(new QueryService.ParameterDeclaration(OBJECTID_PARAMETER, JdbcType.INTEGER));
+                this.sqlf = new SQLFragment("SELECT CAST( ? AS " + d.getSqlCastTypeName(JdbcType.INTEGER)+ ") AS objectid");
+                this.sqlf.addAll(parameters);
+            }
+            else
+            {
+                this.parameters = Collections.emptyList();
+                this.sqlf = new SQLFragment("SELECT objectid FROM (VALUES ");
+                this.sqlf.append(seeds.stream().map(seed -> "(" + seed + ")").collect(Collectors.joining(",")));
+                this.sqlf.append(") AS _seeds_(objectid)");
+            }
             var objectidCol = new BaseColumnInfo("objectid", this, JdbcType.INTEGER);
             addColumn(objectidCol);
             var inputs = new AliasedColumn(this, "Inputs", objectidCol);
-            inputs.setFk(LineageForeignKey.createWithMultiValuedColumn(schema, sqlf, true));
+            inputs.setFk(null == seeds ? LineageForeignKey.createWithMultiValuedColumn(schema, sqlf, true) : LineageForeignKey.createForBatch(schema, sqlf, true));
             addColumn(inputs);
             var outputs = new AliasedColumn(this, "Outputs", objectidCol);
-            outputs.setFk(LineageForeignKey.createWithMultiValuedColumn(schema, sqlf, false));
+            outputs.setFk(null == seeds ? LineageForeignKey.createWithMultiValuedColumn(schema, sqlf, false) : LineageForeignKey.createForBatch(schema, sqlf, false));
             addColumn(outputs);
         }
 
@@ -57,6 +57,7 @@ class LineageForeignKey extends AbstractForeignKey
     private final SQLFragment _seedSql;
     private final UserSchema _userSchema;
     private final boolean _parents;
+    private final boolean _batch;
 
     /* generate a ForeignKey that returns a wrapper over objectid with a LineageDisplayColumn */
     public static LineageForeignKey createWithDisplayColumn(UserSchema schema, ExpTableImpl seedTable, boolean parents)
@@ -67,19 +68,40 @@ class LineageForeignKey extends AbstractForeignKey
     /* generate a real MultiValued ForeignKey, use for one row at a time */
     public static LineageForeignKey createWithMultiValuedColumn(UserSchema schema, SQLFragment seedSql, boolean parents)
     {
-        return new LineageForeignKey(schema, null, seedSql, parents, false);
+        return new LineageForeignKey(schema, null, seedSql, parents, false, false);
+    }
+
+    /* same as createWithMultiValuedColumn(), for seed SQL that inlines a batch of objectids */
+    public static LineageForeignKey createForBatch(UserSchema schema, SQLFragment seedSql, boolean parents)
+    {
+        return new LineageForeignKey(schema, null, seedSql, parents, false, true);
     }
 
     protected LineageForeignKey(UserSchema schema, ExpTableImpl seedTable, SQLFragment seedSql, boolean parents, boolean useLineageDisplayColumn)
+    {
+        this(schema, seedTable, seedSql, parents, useLineageDisplayColumn, false);
+    }
+
+    private LineageForeignKey(UserSchema schema, ExpTableImpl seedTable, SQLFragment seedSql, boolean parents, boolean useLineageDisplayColumn, boolean batch)
     {
         super(schema, null);
         _seedTable = seedTable;
         _seedSql = seedSql;
         _userSchema = schema;
         _parents = parents;
+        _batch = batch;
         this._useLineageDisplayColumn = useLineageDisplayColumn;
     }
 
+    // The lookup tables select from the seed SQL. A batch's SQL holds its objectids, so its tables are only good for
+    // that batch: build them each time rather than filling the schema's cache with a key per batch.
+    private TableInfo getLookupTable(UserSchema schema, Path cacheKey, Supplier<TableInfo> create)
+    {
+        if (_batch)
+            return create.get();
+        return schema.getCachedLookupTableInfo(cacheKey.toString(), create::get);
+    }
+
     @Override
     public StringExpression getURL(ColumnInfo parent)
     {
@@ -90,7 +112,7 @@ class LineageForeignKey extends AbstractForeignKey
     public TableInfo getLookupTableInfo()
     {
         Path cacheKey = new Path(this.getClass().getName(), (_useLineageDisplayColumn ? "LDC": "MVFK"), (_parents ? "Inputs" : "Outputs"));
-        return _userSchema.getCachedLookupTableInfo(cacheKey.toString(), () ->
+        return getLookupTable(_userSchema, cacheKey, () ->
         {
             var ret = new LineageForeignKeyLookupTable(_parents ? "Inputs" : "Outputs", _userSchema, cacheKey).init();
             ret.setLocked(true);
@@ -320,7 +342,7 @@ class LineageForeignKey extends AbstractForeignKey
                     if (null == _table)
                     {
                         Path cacheKey = cacheKeyPrefix.append(_MultiValuedForeignKey.class.getSimpleName(), String.valueOf(_parents), null==depth?"-":String.valueOf(depth), defaultString(expType,"-"), defaultString(cpasType,"-"));
-                            _table = LineageForeignKey.this._userSchema.getCachedLookupTableInfo(cacheKey.toString(), () ->
+                            _table = getLookupTable(LineageForeignKey.this._userSchema, cacheKey, () ->
                             {
                             SQLFragment objectids;
                             if (null != _seedSql)
@@ -438,7 +460,7 @@ class LineageForeignKey extends AbstractForeignKey
             if (null == _table)
             {
                 Path cacheKey = _cacheKeyPrefix.append(getClass().getSimpleName(), _level.name());
-                _table = _schema.getCachedLookupTableInfo(cacheKey.toString(), () ->
+                _table = getLookupTable(_schema, cacheKey, () ->
                 {
                     var ret = new ByTypeLineageForeignKeyLookupTable("Foo", _schema, cacheKey, _level.expType, ()->_level.getItems(_schema)).init();
                     ret.setLocked(true);
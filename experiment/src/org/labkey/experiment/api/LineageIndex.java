@@ -0,0 +1,651 @@
+/*
+ * Copyright (c) 2021 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.experiment.api;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.junit.Assert;
+import org.junit.Test;
+import org.labkey.api.data.DbScope;
+import org.labkey.api.data.SqlSelector;
+import org.labkey.api.data.TableInfo;
+import org.labkey.api.settings.AppProps;
+import org.labkey.api.util.JobRunner;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory adjacency index of exp.Edge, so lineage traversals can be answered without a recursive query. The bulk
+ * of the graph is an immutable snapshot in compressed sparse row form (sorted objectIds, with the parents and the
+ * children of the node at index i in parents[parentStart[i] .. parentStart[i+1]) and likewise for children). Runs
+ * saved or deleted since the snapshot was built are kept in a small overlay that replaces the snapshot's edges for
+ * those runs, along with the objects deleted since then (deleting materials or data deletes their edges from every
+ * run); once the overlay grows past MAX_OVERLAY_EDGES the snapshot is rebuilt in the background.
+ *
+ * Changes are queued until the transaction that made them commits, then applied together. Until then, lineage queries
+ * in that transaction use SQL, as do all queries while the index is being built or after a change it can't track.
+ */
+public class LineageIndex
+{
+    public static final String EXPERIMENTAL_LINEAGE_INDEX = "expLineageIndex";
+
+    private static final Logger LOG = LogManager.getLogger(LineageIndex.class);
+    private static final LineageIndex INSTANCE = new LineageIndex();
+
+    private static final int MAX_OVERLAY_EDGES = 100_000;
+
+    /** Traversals reaching more edges than this are left to SQL */
+    public static final int MAX_EDGES = 10_000;
+
+    private static final int[] EMPTY = new int[0];
+    private static final Snapshot EMPTY_SNAPSHOT = new Snapshot(EMPTY, EMPTY, EMPTY, 0);
+
+    // null until the first snapshot is built, or after invalidate()
+    private volatile @Nullable State _state;
+
+    // Edge changes queued by each open transaction, applied together when it commits
+    private final Map<String, List<Runnable>> _pendingChanges = new ConcurrentHashMap<>();
+
+    // Guarded by this: runs changed and objects deleted since the snapshot started building, kept so they survive a
+    // rebuild. Deleted objects map to the change count of their deletion.
+    private final Map<Integer, RunEdges> _runs = new HashMap<>();
+    private final Map<Integer, Long> _removedNodes = new HashMap<>();
+    private long _changeCount = 0;
+    private boolean _building = false;
+    private boolean _buildAgain = false;
+
+    public static LineageIndex get()
+    {
+        return INSTANCE;
+    }
+
+    public static boolean isEnabled()
+    {
+        return AppProps.getInstance().isExperimentalFeatureEnabled(EXPERIMENTAL_LINEAGE_INDEX);
+    }
+
+    /**
+     * Replace the edges for a run once the current transaction commits.
+     * @param edges (fromObjectId, toObjectId, runId) rows, as inserted into exp.Edge
+     */
+    public void setRunEdges(int runId, List<List<Object>> edges)
+    {
+        int[] from = new int[edges.size()];
+        int[] to = new int[edges.size()];
+        for (int i = 0; i < edges.size(); i++)
+        {
+            from[i] = ((Number) edges.get(i).get(0)).intValue();
+            to[i] = ((Number) edges.get(i).get(1)).intValue();
+        }
+
+        afterCommit(() -> putRun(runId, from, to));
+    }
+
+    public void removeRun(int runId)
+    {
+        afterCommit(() -> putRun(runId, EMPTY, EMPTY));
+    }
+
+    /** Remove all edges to and from these objects once the current transaction commits */
+    public void removeNodes(Collection<Integer> objectIds)
+    {
+        // edges of an object we don't know the id of can't be found, so start over
+        if (objectIds.stream().anyMatch(Objects::isNull))
+        {
+            invalidate();
+            return;
+        }
+
+        int[] nodes = objectIds.stream().mapToInt(Integer::intValue).toArray();
+        if (nodes.length > 0)
+            afterCommit(() -> putRemovedNodes(nodes));
+    }
+
+    /** Remove every edge once the current transaction commits; edges saved after that are added to the overlay as usual */
+    public void removeAll()
+    {
+        afterCommit(this::clear);
+    }
+
+    /** Drop the index once the current transaction commits, and rebuild it in the background */
+    public void invalidate()
+    {
+        afterCommit(this::reset);
+    }
+
+    private void afterCommit(Runnable change)
+    {
+        if (!isEnabled())
+        {
+            if (null != _state)
+                apply(List.of(this::reset));
+            return;
+        }
+
+        DbScope.Transaction tx = ExperimentServiceImpl.get().getExpSchema().getScope().getCurrentTransaction();
+        if (null == tx)
+        {
+            apply(List.of(change));
+            return;
+        }
+
+        // A transaction is only used by one thread, so its list needs no locking. The overlay is rebuilt once per
+        // commit, however many runs the transaction saved.
+        String id = tx.getId();
+        List<Runnable> changes = _pendingChanges.get(id);
+        if (null == changes)
+        {
+            changes = new ArrayList<>();
+            _pendingChanges.put(id, changes);
+            tx.addCommitTask(() -> apply(_pendingChanges.remove(id)), DbScope.CommitTaskOption.POSTCOMMIT);
+            tx.addCommitTask(() -> _pendingChanges.remove(id), DbScope.CommitTaskOption.POSTROLLBACK);
+        }
+        changes.add(change);
+    }
+
+    private synchronized void apply(@Nullable List<Runnable> changes)
+    {
+        if (null == changes)
+            return;
+
+        for (Runnable change : changes)
+            change.run();
+
+        updateState();
+    }
+
+    // Must hold the lock
+    private void putRun(int runId, int[] from, int[] to)
+    {
+        _runs.put(runId, new RunEdges(++_changeCount, from, to));
+    }
+
+    // Must hold the lock
+    private void putRemovedNodes(int[] nodes)
+    {
+        long changeCount = ++_changeCount;
+        for (int node : nodes)
+            _removedNodes.put(node, changeCount);
+    }
+
+    // Must hold the lock
+    private void updateState()
+    {
+        State state = _state;
+        if (null != state)
+        {
+            State next = new State(state._snapshot, _runs, _removedNodes.keySet());
+            _state = next;
+            if (next._overlayEdgeCount > MAX_OVERLAY_EDGES)
+                startBuild();
+        }
+    }
+
+    // Must hold the lock
+    private void clear()
+    {
+        ++_changeCount;
+        _runs.clear();
+        _removedNodes.clear();
+        if (null != _state)
+            _state = new State(EMPTY_SNAPSHOT, _runs, _removedNodes.keySet());
+        if (_building)
+            _buildAgain = true;
+    }
+
+    // Must hold the lock
+    private void reset()
+    {
+        _state = null;
+        _runs.clear();
+        _removedNodes.clear();
+        if (_building)
+            _buildAgain = true;
+    }
+
+    /**
+     * @return the index, or null if lineage queries should use SQL (the index is disabled, not built yet, or the
+     * current transaction has changed edges)
+     */
+    public @Nullable State getState()
+    {
+        if (!isEnabled())
+            return null;
+
+        State state = _state;
+        if (null == state)
+        {
+            synchronized (this)
+            {
+                startBuild();
+            }
+            return null;
+        }
+
+        DbScope.Transaction tx = ExperimentServiceImpl.get().getExpSchema().getScope().getCurrentTransaction();
+        if (null != tx && _pendingChanges.containsKey(tx.getId()))
+            return null;
+
+        return state;
+    }
+
+    // Must hold the lock
+    private void startBuild()
+    {
+        if (_building)
+            return;
+
+        _building = true;
+        JobRunner.getDefault().execute(this::build);
+    }
+
+    private void build()
+    {
+        try
+        {
+            while (true)
+            {
+                long startCount;
+                synchronized (this)
+                {
+                    _buildAgain = false;
+                    startCount = _changeCount;
+                }
+
+                Snapshot snapshot = Snapshot.select(ExperimentServiceImpl.get().getTinfoEdge());
+
+                synchronized (this)
+                {
+                    if (_buildAgain)
+                        continue;
+
+                    // Changes made before the scan started are already in the snapshot; re-apply the rest
+                    _runs.values().removeIf(run -> run._changeCount <= startCount);
+                    _removedNodes.values().removeIf(changeCount -> changeCount <= startCount);
+                    _state = new State(snapshot, _runs, _removedNodes.keySet());
+                    LOG.debug("Built lineage index: " + snapshot._nodes.length + " nodes, " + snapshot._edgeCount + " edges");
+                    return;
+                }
+            }
+        }
+        catch (Throwable t)
+        {
+            LOG.warn("Failed to build lineage index; lineage queries will use SQL", t);
+        }
+        finally
+        {
+            synchronized (this)
+            {
+                _building = false;
+            }
+        }
+    }
+
+    private static class RunEdges
+    {
+        private final long _changeCount;
+        private final int[] _from;
+        private final int[] _to;
+
+        private RunEdges(long changeCount, int[] from, int[] to)
+        {
+            _changeCount = changeCount;
+            _from = from;
+            _to = to;
+        }
+    }
+
+    /** Edges of exp.Edge in CSR form, with the run of each edge so runs can be replaced by the overlay */
+    static class Snapshot
+    {
+        private final int[] _nodes;
+        private final int[] _parentStart;
+        private final int[] _parents;
+        private final int[] _parentRuns;
+        private final int[] _childStart;
+        private final int[] _children;
+        private final int[] _childRuns;
+        private final int _edgeCount;
+
+        private static Snapshot select(TableInfo edge)
+        {
+            EdgeList edges = new EdgeList();
+            new SqlSelector(edge.getSchema(), "SELECT fromObjectId, toObjectId, runId FROM " + edge).forEach(rs ->
+                edges.add(rs.getInt(1), rs.getInt(2), rs.getInt(3)));
+            return new Snapshot(edges._from, edges._to, edges._runs, edges._count);
+        }
+
+        Snapshot(int[] from, int[] to, int[] runs, int count)
+        {
+            _edgeCount = count;
+
+            int[] all = new int[count * 2];
+            System.arraycopy(from, 0, all, 0, count);
+            System.arraycopy(to, 0, all, count, count);
+            _nodes = unique(all);
+
+            // Index of each edge's endpoints, so they're only looked up once
+            int[] fromIndex = new int[count];
+            int[] toIndex = new int[count];
+            _parentStart = new int[_nodes.length + 1];
+            _childStart = new int[_nodes.length + 1];
+            for (int i = 0; i < count; i++)
+            {
+                fromIndex[i] = Arrays.binarySearch(_nodes, from[i]);
+                toIndex[i] = Arrays.binarySearch(_nodes, to[i]);
+                _parentStart[toIndex[i] + 1]++;
+                _childStart[fromIndex[i] + 1]++;
+            }
+            for (int i = 0; i < _nodes.length; i++)
+            {
+                _parentStart[i + 1] += _parentStart[i];
+                _childStart[i + 1] += _childStart[i];
+            }
+
+            _parents = new int[count];
+            _parentRuns = new int[count];
+            _children = new int[count];
+            _childRuns = new int[count];
+            int[] parentNext = Arrays.copyOf(_parentStart, _nodes.length);
+            int[] childNext = Arrays.copyOf(_childStart, _nodes.length);
+            for (int i = 0; i < count; i++)
+            {
+                int p = parentNext[toIndex[i]]++;
+                _parents[p] = from[i];
+                _parentRuns[p] = runs[i];
+
+                int c = childNext[fromIndex[i]]++;
+                _children[c] = to[i];
+                _childRuns[c] = runs[i];
+            }
+        }
+
+        private static int[] unique(int[] values)
+        {
+            if (values.length == 0)
+                return values;
+
+            Arrays.sort(values);
+            int n = 1;
+            for (int i = 1; i < values.length; i++)
+            {
+                if (values[i] != values[n - 1])
+                    values[n++] = values[i];
+            }
+            return Arrays.copyOf(values, n);
+        }
+    }
+
+    private static class EdgeList
+    {
+        private int[] _from = new int[1024];
+        private int[] _to = new int[1024];
+        private int[] _runs = new int[1024];
+        private int _count = 0;
+
+        private void add(int from, int to, int run)
+        {
+            if (_count == _from.length)
+            {
+                _from = Arrays.copyOf(_from, _count * 2);
+                _to = Arrays.copyOf(_to, _count * 2);
+                _runs = Arrays.copyOf(_runs, _count * 2);
+            }
+            _from[_count] = from;
+            _to[_count] = to;
+            _runs[_count] = run;
+            _count++;
+        }
+    }
+
+    /** A snapshot plus the runs that replace its edges and the objects removed from it. Immutable, so traversals don't need to lock. */
+    public static class State
+    {
+        private final Snapshot _snapshot;
+        private final Set<Integer> _replacedRuns;
+        private final Set<Integer> _removedNodes;
+        private final Map<Integer, int[]> _overlayParents = new HashMap<>();
+        private final Map<Integer, int[]> _overlayChildren = new HashMap<>();
+        private final int _overlayEdgeCount;
+
+        private State(Snapshot snapshot, Map<Integer, RunEdges> runs, Set<Integer> removedNodes)
+        {
+            _snapshot = snapshot;
+            _replacedRuns = Set.copyOf(runs.keySet());
+            _removedNodes = Set.copyOf(removedNodes);
+
+            // Count the edges of each node, then fill arrays of exactly that size; the counters double as fill positions
+            Map<Integer, int[]> parentCounts = new HashMap<>();
+            Map<Integer, int[]> childCounts = new HashMap<>();
+            int count = _removedNodes.size();
+            for (RunEdges run : runs.values())
+            {
+                for (int i = 0; i < run._from.length; i++)
+                {
+                    if (isRemoved(run, i))
+                        continue;
+                    parentCounts.computeIfAbsent(run._to[i], k -> new int[1])[0]++;
+                    childCounts.computeIfAbsent(run._from[i], k -> new int[1])[0]++;
+                }
+                count += run._from.length;
+            }
+            _overlayEdgeCount = count;
+
+            allocate(parentCounts, _overlayParents);
+            allocate(childCounts, _overlayChildren);
+            for (RunEdges run : runs.values())
+            {
+                for (int i = 0; i < run._from.length; i++)
+                {
+                    if (isRemoved(run, i))
+                        continue;
+                    _overlayParents.get(run._to[i])[parentCounts.get(run._to[i])[0]++] = run._from[i];
+                    _overlayChildren.get(run._from[i])[childCounts.get(run._from[i])[0]++] = run._to[i];
+                }
+            }
+        }
+
+        private boolean isRemoved(RunEdges run, int i)
+        {
+            return _removedNodes.contains(run._from[i]) || _removedNodes.contains(run._to[i]);
+        }
+
+        private static void allocate(Map<Integer, int[]> counts, Map<Integer, int[]> overlay)
+        {
+            counts.forEach((node, n) -> {
+                overlay.put(node, new int[n[0]]);
+                n[0] = 0;
+            });
+        }
+
+        /**
+         * Breadth-first traversal from each seed, returning every edge within maxDepth steps once, at the depth it is
+         * first reached: {depth, seed, fromObjectId, toObjectId}, with negative depths for parents as in the recursive
+         * lineage query.
+         *
+         * @param perSeed traverse from each seed separately (edges reachable from several seeds are returned for each),
+         *                or from all of them at once (the seed of each edge is then 0)
+         * @return the edges, or null if there are more than MAX_EDGES
+         */
+        public @Nullable List<int[]> traverse(Collection<Integer> seeds, boolean parents, int maxDepth, boolean perSeed)
+        {
+            List<int[]> ret = new ArrayList<>();
+
+            if (perSeed)
+            {
+                for (Integer seed : seeds)
+                {
+                    if (!traverse(Collections.singleton(seed), seed, parents, maxDepth, ret))
+                        return null;
+                }
+            }
+            else if (!traverse(seeds, 0, parents, maxDepth, ret))
+            {
+                return null;
+            }
+
+            return ret;
+        }
+
+        private boolean traverse(Collection<Integer> seeds, int self, boolean parents, int maxDepth, List<int[]> ret)
+        {
+            Set<Integer> visited = new HashSet<>(seeds);
+            ArrayDeque<Integer> queue = new ArrayDeque<>(seeds);
+            int sign = parents ? -1 : 1;
+
+            for (int depth = 1; depth <= maxDepth && !queue.isEmpty(); depth++)
+            {
+                ArrayDeque<Integer> next = new ArrayDeque<>();
+                for (int node : queue)
+                {
+                    for (int adjacent : getAdjacent(node, parents))
+                    {
+                        if (parents)
+                            ret.add(new int[]{sign * depth, self, adjacent, node});
+                        else
+                            ret.add(new int[]{sign * depth, self, node, adjacent});
+
+                        if (visited.add(adjacent))
+                            next.add(adjacent);
+                    }
+
+                    if (ret.size() > MAX_EDGES)
+                        return false;
+                }
+                queue = next;
+            }
+
+            return true;
+        }
+
+        @NotNull int[] getAdjacent(int node, boolean parents)
+        {
+            int[] overlay = (parents ? _overlayParents : _overlayChildren).getOrDefault(node, EMPTY);
+
+            int i = Arrays.binarySearch(_snapshot._nodes, node);
+            if (i < 0 || _removedNodes.contains(node))
+                return overlay;
+
+            int[] start = parents ? _snapshot._parentStart : _snapshot._childStart;
+            int[] adjacent = parents ? _snapshot._parents : _snapshot._children;
+            int[] runs = parents ? _snapshot._parentRuns : _snapshot._childRuns;
+
+            int[] ret = new int[start[i + 1] - start[i] + overlay.length];
+            int n = 0;
+            for (int e = start[i]; e < start[i + 1]; e++)
+            {
+                if (!_replacedRuns.contains(runs[e]) && !_removedNodes.contains(adjacent[e]))
+                    ret[n++] = adjacent[e];
+            }
+            System.arraycopy(overlay, 0, ret, n, overlay.length);
+            n += overlay.length;
+
+            return n == ret.length ? ret : Arrays.copyOf(ret, n);
+        }
+    }
+
+    public static class TestCase extends Assert
+    {
+        // 1 -> 2 -> 3 -> 4 in runs 10, 11, 12 and 5 -> 3 in run 13
+        private Snapshot snapshot()
+        {
+            return new Snapshot(new int[]{1, 2, 3, 5}, new int[]{2, 3, 4, 3}, new int[]{10, 11, 12, 13}, 4);
+        }
+
+        @Test
+        public void testTraverse()
+        {
+            State state = new State(snapshot(), Collections.emptyMap(), Collections.emptySet());
+
+            assertArrayEquals(new int[]{2, 5}, sorted(state.getAdjacent(3, true)));
+            assertArrayEquals(new int[]{4}, state.getAdjacent(3, false));
+            assertEquals(0, state.getAdjacent(42, true).length);
+
+            List<int[]> parents = state.traverse(List.of(4), true, 100, true);
+            assertEquals(Set.of("-1,4,3,4", "-2,4,2,3", "-2,4,5,3", "-3,4,1,2"), toStrings(parents));
+
+            List<int[]> limited = state.traverse(List.of(4), true, 2, true);
+            assertEquals(Set.of("-1,4,3,4", "-2,4,2,3", "-2,4,5,3"), toStrings(limited));
+
+            List<int[]> children = state.traverse(List.of(1, 5), false, 100, false);
+            assertEquals(Set.of("1,0,1,2", "1,0,5,3", "2,0,2,3", "2,0,3,4"), toStrings(children));
+        }
+
+        @Test
+        public void testOverlay()
+        {
+            // Run 11 now makes 2 -> 6 instead of 2 -> 3, and run 13 is deleted
+            Map<Integer, RunEdges> runs = new HashMap<>();
+            runs.put(11, new RunEdges(1, new int[]{2}, new int[]{6}));
+            runs.put(13, new RunEdges(2, EMPTY, EMPTY));
+            State state = new State(snapshot(), runs, Collections.emptySet());
+
+            assertEquals(0, state.getAdjacent(3, true).length);
+            assertArrayEquals(new int[]{6}, sorted(state.traverse(List.of(2), false, 100, true).stream().mapToInt(e -> e[3]).toArray()));
+            assertEquals(Set.of("1,1,1,2", "2,1,2,6"), toStrings(state.traverse(List.of(1), false, 100, true)));
+        }
+
+        @Test
+        public void testRemovedNodes()
+        {
+            // Deleting 3 removes its edges from runs 11, 12 and 13 in the snapshot, and from run 14 in the overlay
+            Map<Integer, RunEdges> runs = new HashMap<>();
+            runs.put(14, new RunEdges(1, new int[]{3, 2}, new int[]{7, 8}));
+            State state = new State(snapshot(), runs, Set.of(3));
+
+            assertEquals(0, state.getAdjacent(3, true).length);
+            assertEquals(0, state.getAdjacent(3, false).length);
+            assertEquals(0, state.getAdjacent(4, true).length);
+            assertArrayEquals(new int[]{8}, state.getAdjacent(2, false));
+            assertEquals(Set.of("1,1,1,2", "2,1,2,8"), toStrings(state.traverse(List.of(1), false, 100, true)));
+
+            // Everything removed, then run 11 saved again
+            runs = new HashMap<>();
+            runs.put(11, new RunEdges(1, new int[]{2}, new int[]{3}));
+            state = new State(EMPTY_SNAPSHOT, runs, Collections.emptySet());
+            assertEquals(0, state.getAdjacent(1, false).length);
+            assertEquals(Set.of("-1,3,2,3"), toStrings(state.traverse(List.of(3), true, 100, true)));
+        }
+
+        private static int[] sorted(int[] values)
+        {
+            int[] ret = values.clone();
+            Arrays.sort(ret);
+            return ret;
+        }
+
+        private static Set<String> toStrings(List<int[]> edges)
+        {
+            Set<String> ret = new HashSet<>();
+            for (int[] edge : edges)
+                ret.add(edge[0] + "," + edge[1] + "," + edge[2] + "," + edge[3]);
+            return ret;
+        }
+    }
+}
@@ -1,6 +1,13 @@
 package org.labkey.experiment.api;
 
 import org.apache.commons.collections4.ListUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.xmlbeans.XmlError;
+import org.apache.xmlbeans.XmlOptions;
+import org.fhcrc.cpas.exp.xml.ExperimentArchiveDocument;
+import org.fhcrc.cpas.exp.xml.ExperimentArchiveType;
+import org.fhcrc.cpas.exp.xml.ExperimentRunType;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.junit.After;
@@ -11,16 +18,20 @@ import org.junit.Test;
 import org.labkey.api.collections.CaseInsensitiveHashMap;
 import org.labkey.api.data.ColumnInfo;
 import org.labkey.api.data.Container;
+import org.labkey.api.data.ContainerManager;
 import org.labkey.api.data.DisplayColumn;
 import org.labkey.api.data.JdbcType;
 import org.labkey.api.data.PropertyStorageSpec;
 import org.labkey.api.data.RenderContext;
 import org.labkey.api.data.Results;
+import org.labkey.api.data.SQLFragment;
+import org.labkey.api.data.SqlSelector;
 import org.labkey.api.data.Table;
 import org.labkey.api.data.TableInfo;
 import org.labkey.api.data.TableSelector;
 import org.labkey.api.dataiterator.DataIteratorContext;
 import org.labkey.api.dataiterator.ListofMapsDataIterator;
+import org.labkey.api.exp.FileXarSource;
 import org.labkey.api.exp.Identifiable;
 import org.labkey.api.exp.Lsid;
 import org.labkey.api.exp.LsidManager;
@@ -43,6 +54,7 @@ import org.labkey.api.exp.property.Lookup;
 import org.labkey.api.exp.query.SamplesSchema;
 import org.labkey.api.gwt.client.model.GWTPropertyDescriptor;
 import org.labkey.api.pipeline.PipeRoot;
+import org.labkey.api.pipeline.PipelineJob;
 import org.labkey.api.pipeline.PipelineService;
 import org.labkey.api.query.BatchValidationException;
 import org.labkey.api.query.FieldKey;
@@ -52,17 +64,32 @@ import org.labkey.api.query.SchemaKey;
 import org.labkey.api.query.UserSchema;
 import org.labkey.api.reader.MapLoader;
 import org.labkey.api.security.User;
+import org.labkey.api.settings.AppProps;
+import org.labkey.api.settings.ExperimentalFeatureService;
+import org.labkey.api.util.FileUtil;
 import org.labkey.api.util.JunitUtil;
 import org.labkey.api.util.TestContext;
+import org.labkey.api.util.URLHelper;
 import org.labkey.api.view.ActionURL;
 import org.labkey.api.view.ViewBackgroundInfo;
 import org.labkey.api.view.ViewContext;
 import org.labkey.api.writer.ContainerUser;
 import org.labkey.api.writer.DefaultContainerUser;
-
+import org.labkey.experiment.DataURLRelativizer;
+import org.labkey.experiment.LSIDRelativizer;
+import org.labkey.experiment.XarExporter;
+import org.labkey.experiment.XarReader;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -70,6 +97,7 @@ import java.util.Set;
 import static java.util.Collections.emptyList;
 import static java.util.Collections.emptyMap;
 import static java.util.stream.Collectors.joining;
+import static java.util.stream.Collectors.toSet;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
@@ -79,6 +107,8 @@ import static org.labkey.api.exp.api.ExperimentService.SAMPLE_DERIVATION_PROTOCO
 
 public class LineageTest extends ExpProvisionedTableTestHelper
 {
+    private static final Logger LOG = LogManager.getLogger(LineageTest.class);
+
     Container c;
 
     @Before
@@ -518,6 +548,7 @@ public class LineageTest extends ExpProvisionedTableTestHelper
                 "runId", run.getRowId(), "fromObjectId", runObjectId, "toObjectId", b1ObjectId));
         Table.insert(null, edgeTable, Map.of(
                 "runId", run.getRowId(), "fromObjectId", runObjectId, "toObjectId", b2ObjectId));
+        LineageIndex.get().invalidate();
 
         // query the lineage
         ExpLineageOptions options = new ExpLineageOptions();
@@ -552,4 +583,286 @@ public class LineageTest extends ExpProvisionedTableTestHelper
         assertEquals(run.getLSID(), a1childrenJson.getJSONObject(0).getString("lsid"));
 
     }
+
+    // The lineage index should give the same lineage as the recursive query, including after deletes
+    @Test
+    public void testLineageIndexParity() throws Exception
+    {
+        final User user = TestContext.get().getUser();
+
+        List<GWTPropertyDescriptor> sampleProps = new ArrayList<>();
+        sampleProps.add(new GWTPropertyDescriptor("name", "string"));
+        final ExpSampleType st = SampleTypeService.get().createSampleType(c, user, "IndexSamples", null, sampleProps, emptyList(), -1, -1, -1, -1, null, null);
+
+        // S-1 and S-2 are the parents of S-3, which is the parent of S-4 and S-5
+        TableInfo samplesTable = QueryService.get().getUserSchema(user, c, SamplesSchema.SCHEMA_NAME).getTable("IndexSamples");
+        insertSamples(user, samplesTable, List.of(CaseInsensitiveHashMap.of("Name", "S-1"), CaseInsensitiveHashMap.of("Name", "S-2")));
+        insertSamples(user, samplesTable, List.of(CaseInsensitiveHashMap.of("Name", "S-3", "MaterialInputs/IndexSamples", "S-1,S-2")));
+        insertSamples(user, samplesTable, List.of(
+                CaseInsensitiveHashMap.of("Name", "S-4", "MaterialInputs/IndexSamples", "S-3"),
+                CaseInsensitiveHashMap.of("Name", "S-5", "MaterialInputs/IndexSamples", "S-3")));
+
+        ExpMaterial s3 = st.getSample(c, "S-3");
+        ExpMaterial s4 = st.getSample(c, "S-4");
+        ExpMaterial s5 = st.getSample(c, "S-5");
+
+        boolean enabled = LineageIndex.isEnabled();
+        try
+        {
+            ExperimentalFeatureService.get().setFeatureEnabled(LineageIndex.EXPERIMENTAL_LINEAGE_INDEX, true, user);
+            LineageIndex.get().invalidate();
+            long stop = System.currentTimeMillis() + 10_000;
+            while (null == LineageIndex.get().getState())
+            {
+                assertTrue("Timed out waiting for the lineage index", System.currentTimeMillis() < stop);
+                Thread.sleep(50);
+            }
+
+            assertLineageParity(user, s3, 0);
+            assertLineageParity(user, s3, 1);
+            assertLineageParity(user, s4, 0);
+
+            // Deleting a sample removes its edges from the index without rebuilding it
+            ExperimentServiceImpl.get().deleteMaterialByRowIds(user, c, List.of(s5.getRowId()));
+            assertNotNull(LineageIndex.get().getState());
+            Set<String> edges = assertLineageParity(user, s3, 0);
+            assertFalse(edges.stream().anyMatch(edge -> edge.contains(s5.getLSID())));
+        }
+        finally
+        {
+            ExperimentalFeatureService.get().setFeatureEnabled(LineageIndex.EXPERIMENTAL_LINEAGE_INDEX, enabled, user);
+        }
+    }
+
+    // Runs are spooled separately and spliced into the XML, so make sure the result is still a valid XAR with every run
+    @Test
+    public void testXarExportRuns() throws Exception
+    {
+        final User user = TestContext.get().getUser();
+
+        List<GWTPropertyDescriptor> sampleProps = new ArrayList<>();
+        sampleProps.add(new GWTPropertyDescriptor("name", "string"));
+        SampleTypeService.get().createSampleType(c, user, "ExportSamples", null, sampleProps, emptyList(), -1, -1, -1, -1, null, null);
+
+        TableInfo samplesTable = QueryService.get().getUserSchema(user, c, SamplesSchema.SCHEMA_NAME).getTable("ExportSamples");
+        insertSamples(user, samplesTable, List.of(CaseInsensitiveHashMap.of("Name", "S-1"), CaseInsensitiveHashMap.of("Name", "S-2")));
+        insertSamples(user, samplesTable, List.of(CaseInsensitiveHashMap.of("Name", "S-3", "MaterialInputs/ExportSamples", "S-1,S-2")));
+        insertSamples(user, samplesTable, List.of(CaseInsensitiveHashMap.of("Name", "S-4", "MaterialInputs/ExportSamples", "S-3")));
+
+        List<? extends ExpRun> runs = ExperimentService.get().getExpRuns(c, null, null);
+        assertTrue("Expected a run per derivation", runs.size() >= 2);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (XarExporter exporter = new XarExporter(LSIDRelativizer.FOLDER_RELATIVE, DataURLRelativizer.ARCHIVE.createURLRewriter(), user))
+        {
+            exporter.addExperimentRuns(runs);
+            exporter.dumpXML(out);
+        }
+
+        ExperimentArchiveDocument doc = ExperimentArchiveDocument.Factory.parse(new ByteArrayInputStream(out.toByteArray()));
+        List<XmlError> errors = new ArrayList<>();
+        XmlOptions options = new XmlOptions();
+        options.setErrorListener(errors);
+        assertTrue("Invalid XAR: " + errors, doc.validate(options));
+
+        ExperimentArchiveType.ExperimentRuns xRuns = doc.getExperimentArchive().getExperimentRuns();
+        assertNotNull(xRuns);
+        assertEquals(runs.stream().map(ExpRun::getName).collect(toSet()),
+                Arrays.stream(xRuns.getExperimentRunArray()).map(ExperimentRunType::getName).collect(toSet()));
+        assertEquals(runs.size(), xRuns.getExperimentRunArray().length);
+    }
+
+    // Importing a XAR a run at a time should load the same runs, materials, data and edges as importing the whole document
+    @Test
+    public void testStreamingXarImport() throws Exception
+    {
+        final User user = TestContext.get().getUser();
+
+        List<GWTPropertyDescriptor> sampleProps = new ArrayList<>();
+        sampleProps.add(new GWTPropertyDescriptor("name", "string"));
+        SampleTypeService.get().createSampleType(c, user, "XarSamples", null, sampleProps, emptyList(), -1, -1, -1, -1, null, null);
+
+        List<GWTPropertyDescriptor> dcProps = new ArrayList<>();
+        dcProps.add(new GWTPropertyDescriptor("age", "int"));
+        final ExpDataClassImpl dataClass = ExperimentServiceImpl.get().createDataClass(c, user, "XarData", null, dcProps, emptyList(), null);
+
+        TableInfo samplesTable = QueryService.get().getUserSchema(user, c, SamplesSchema.SCHEMA_NAME).getTable("XarSamples");
+        insertSamples(user, samplesTable, List.of(CaseInsensitiveHashMap.of("Name", "S-1"), CaseInsensitiveHashMap.of("Name", "S-2")));
+        insertSamples(user, samplesTable, List.of(CaseInsensitiveHashMap.of("Name", "S-3", "MaterialInputs/XarSamples", "S-1,S-2")));
+        insertSamples(user, samplesTable, List.of(CaseInsensitiveHashMap.of("Name", "S-4", "MaterialInputs/XarSamples", "S-3")));
+
+        TableInfo dataTable = QueryService.get().getUserSchema(user, c, expDataSchemaKey).getTable("XarData");
+        DataIteratorContext diContext = new DataIteratorContext();
+        dataTable.getUpdateService().loadRows(user, c, new MapLoader(List.of(CaseInsensitiveHashMap.of("Name", "D-1", "age", "10", "MaterialInputs/XarSamples", "S-3"))), diContext, null);
+        if (diContext.getErrors().hasErrors())
+            throw diContext.getErrors();
+
+        List<? extends ExpRun> runs = ExperimentService.get().getExpRuns(c, null, null);
+        assertEquals("Expected a run per derivation", 3, runs.size());
+
+        File dir = FileUtil.createTempDirectory("streamingXarImport");
+        try
+        {
+            File xarFile = new File(dir, "runs.xar.xml");
+            try (XarExporter exporter = new XarExporter(LSIDRelativizer.FOLDER_RELATIVE, DataURLRelativizer.ARCHIVE.createURLRewriter(), user);
+                 OutputStream out = new FileOutputStream(xarFile))
+            {
+                exporter.addDataClass(dataClass);
+                exporter.addExperimentRuns(runs);
+                exporter.dumpXML(out);
+            }
+
+            Map<String, Set<String>> whole = importXar(user, xarFile, "WholeDocument", false);
+            Map<String, Set<String>> streamed = importXar(user, xarFile, "Streamed", true);
+
+            assertEquals(Set.of("S-1", "S-2", "S-3", "S-4"), whole.get("materials"));
+            assertEquals(Set.of("D-1"), whole.get("data"));
+            assertEquals(3, whole.get("runs").size());
+            assertEquals(whole, streamed);
+        }
+        finally
+        {
+            FileUtil.deleteDir(dir);
+        }
+    }
+
+    // Import the XAR into a new child folder and describe what was loaded by name, since the LSIDs differ per folder
+    private Map<String, Set<String>> importXar(User user, File xarFile, String folderName, boolean streaming) throws Exception
+    {
+        Container target = ContainerManager.createContainer(c, folderName);
+        PipelineJob job = new PipelineJob()
+        {
+            @Override
+            public User getUser()
+            {
+                return user;
+            }
+
+            @Override
+            public Container getContainer()
+            {
+                return target;
+            }
+
+            @Override
+            public synchronized Logger getLogger()
+            {
+                return LOG;
+            }
+
+            @Override
+            public URLHelper getStatusHref()
+            {
+                return null;
+            }
+
+            @Override
+            public String getDescription()
+            {
+                return "Streaming XAR import test";
+            }
+        };
+
+        boolean wasEnabled = AppProps.getInstance().isExperimentalFeatureEnabled(XarReader.EXPERIMENTAL_STREAMING_XAR_IMPORT);
+        ExperimentalFeatureService.get().setFeatureEnabled(XarReader.EXPERIMENTAL_STREAMING_XAR_IMPORT, streaming, user);
+        try
+        {
+            ExperimentService.get().importXar(new FileXarSource(xarFile, job), job, false);
+        }
+        finally
+        {
+            ExperimentalFeatureService.get().setFeatureEnabled(XarReader.EXPERIMENTAL_STREAMING_XAR_IMPORT, wasEnabled, user);
+        }
+
+        List<? extends ExpRun> runs = ExperimentService.get().getExpRuns(target, null, null);
+        Map<Integer, String> names = new HashMap<>();
+        Set<String> runNames = new HashSet<>();
+        Set<String> materials = new HashSet<>();
+        Set<String> datas = new HashSet<>();
+        for (ExpRun run : runs)
+        {
+            names.put(run.getObjectId(), "run:" + run.getName());
+            runNames.add(run.getName());
+            List<ExpMaterial> runMaterials = new ArrayList<>(run.getMaterialInputs().keySet());
+            runMaterials.addAll(run.getMaterialOutputs());
+            for (ExpMaterial material : runMaterials)
+            {
+                assertEquals(target, material.getContainer());
+                names.put(material.getObjectId(), "material:" + material.getName());
+                materials.add(material.getName());
+            }
+            List<ExpData> runDatas = new ArrayList<>(run.getDataInputs().keySet());
+            runDatas.addAll(run.getDataOutputs());
+            for (ExpData data : runDatas)
+            {
+                assertEquals(target, data.getContainer());
+                names.put(data.getObjectId(), "data:" + data.getName());
+                datas.add(data.getName());
+            }
+        }
+
+        Set<String> edges = new HashSet<>();
+        SQLFragment sql = new SQLFragment("SELECT fromObjectId, toObjectId FROM ").append(ExperimentServiceImpl.get().getTinfoEdge(), "e");
+        sql.append(" WHERE runId ");
+        ExperimentServiceImpl.get().getSchema().getSqlDialect().appendInClauseSql(sql, runs.stream().map(ExpRun::getRowId).collect(toSet()));
+        new SqlSelector(ExperimentServiceImpl.get().getSchema(), sql).forEach(rs ->
+                edges.add(names.get(rs.getInt("fromObjectId")) + " -> " + names.get(rs.getInt("toObjectId"))));
+
+        return Map.of("runs", runNames, "materials", materials, "data", datas, "edges", edges);
+    }
+
+    private void insertSamples(User user, TableInfo samplesTable, List<Map<String, Object>> rows) throws Exception
+    {
+        BatchValidationException errors = new BatchValidationException();
+        samplesTable.getUpdateService().insertRows(user, c, rows, errors, null, null);
+        if (errors.hasErrors())
+            throw errors;
+    }
+
+    // Compare the lineage of the seed from the index and from SQL, returning its edges
+    private Set<String> assertLineageParity(User user, ExpMaterial seed, int depth)
+    {
+        ExpLineageOptions options = new ExpLineageOptions();
+        options.setDepth(depth);
+        options.setParents(true);
+        options.setChildren(true);
+
+        assertNotNull(LineageIndex.get().getState());
+        Set<String> indexed = getEdges(ExperimentService.get().getLineage(c, user, seed, options));
+
+        // the index is kept while the feature is off, it just isn't used
+        Set<String> sql;
+        ExperimentalFeatureService.get().setFeatureEnabled(LineageIndex.EXPERIMENTAL_LINEAGE_INDEX, false, user);
+        try
+        {
+            sql = getEdges(ExperimentService.get().getLineage(c, user, seed, options));
+        }
+        finally
+        {
+            ExperimentalFeatureService.get().setFeatureEnabled(LineageIndex.EXPERIMENTAL_LINEAGE_INDEX, true, user);
+        }
+
+        assertFalse(sql.isEmpty());
+        assertEquals(sql, indexed);
+        return indexed;
+    }
+
+    private static Set<String> getEdges(ExpLineage lineage)
+    {
+        Set<Identifiable> nodes = new HashSet<>(lineage.getSeeds());
+        nodes.addAll(lineage.getDatas());
+        nodes.addAll(lineage.getMaterials());
+        nodes.addAll(lineage.getRuns());
+        nodes.addAll(lineage.getObjects());
+
+        Set<String> edges = new HashSet<>();
+        for (Identifiable node : nodes)
+        {
+            for (Identifiable parent : lineage.getNodeParents(node))
+                edges.add(parent.getLSID() + " -> " + node.getLSID());
+            for (Identifiable child : lineage.getNodeChildren(node))
+                edges.add(node.getLSID() + " -> " + child.getLSID());
+        }
+        return edges;
+    }
 }
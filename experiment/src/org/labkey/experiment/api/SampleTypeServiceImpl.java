@@ -830,6 +830,17 @@ public class SampleTypeServiceImpl extends AbstractAuditHandler implements Sampl
         };
     }
 
+    @Override
+    public Map<String, DbSequence> getSampleCountSequences(@Nullable Date counterDate)
+    {
+        Map<String, DbSequence> sequences = new LinkedHashMap<>();
+        sequences.put("dailySampleCount",   SampleSequenceType.DAILY.getDbSequence(counterDate));
+        sequences.put("weeklySampleCount",  SampleSequenceType.WEEKLY.getDbSequence(counterDate));
+        sequences.put("monthlySampleCount", SampleSequenceType.MONTHLY.getDbSequence(counterDate));
+        sequences.put("yearlySampleCount",  SampleSequenceType.YEARLY.getDbSequence(counterDate));
+        return sequences;
+    }
+
 
     @Override
     public ValidationException updateSampleType(GWTDomain<? extends GWTPropertyDescriptor> original, GWTDomain<? extends GWTPropertyDescriptor> update, SampleTypeDomainKindProperties options, Container container, User user, boolean includeWarnings)
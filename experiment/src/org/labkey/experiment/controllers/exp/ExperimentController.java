@@ -4137,13 +4137,14 @@ public class ExperimentController extends SpringActionController
         switch (exportType)
         {
             case BROWSER_DOWNLOAD:
-                XarExporter exporter = new XarExporter(lsidRelativizer, selection, getUser(), xarXmlFileName, null);
-
-                getViewContext().getResponse().setContentType("application/zip");
-                getViewContext().getResponse().setHeader("Content-Disposition", "attachment; filename=\"" + fileName + "\"");
-                ResponseHelper.setPrivate(getViewContext().getResponse());
+                try (XarExporter exporter = new XarExporter(lsidRelativizer, selection, getUser(), xarXmlFileName, null))
+                {
+                    getViewContext().getResponse().setContentType("application/zip");
+                    getViewContext().getResponse().setHeader("Content-Disposition", "attachment; filename=\"" + fileName + "\"");
+                    ResponseHelper.setPrivate(getViewContext().getResponse());
 
-                exporter.write(getViewContext().getResponse().getOutputStream());
+                    exporter.write(getViewContext().getResponse().getOutputStream());
+                }
                 return null;
             case PIPELINE_FILE:
                 if (!PipelineService.get().hasValidPipelineRoot(getContainer()))
@@ -96,11 +96,12 @@ public class MoveRunsTask extends PipelineJob.Task<MoveRunsTaskFactory>
 
     private void moveRun(MoveRunsPipelineJob job, ExpRunImpl experimentRun) throws ExperimentException, IOException
     {
-        XarExporter exporter = new XarExporter(LSIDRelativizer.PARTIAL_FOLDER_RELATIVE, DataURLRelativizer.ORIGINAL_FILE_LOCATION.createURLRewriter(), getJob().getUser());
-        exporter.addExperimentRun(experimentRun);
-
         ByteArrayOutputStream bOut = new ByteArrayOutputStream();
-        exporter.dumpXML(bOut);
+        try (XarExporter exporter = new XarExporter(LSIDRelativizer.PARTIAL_FOLDER_RELATIVE, DataURLRelativizer.ORIGINAL_FILE_LOCATION.createURLRewriter(), getJob().getUser()))
+        {
+            exporter.addExperimentRun(experimentRun);
+            exporter.dumpXML(bOut);
+        }
 
         try (DbScope.Transaction transaction = ExperimentService.get().getSchema().getScope().ensureTransaction())
         {
@@ -222,9 +222,8 @@ public class XarGeneratorTask extends PipelineJob.Task<XarGeneratorTask.Factory>
         File tempFile = new File(f.getPath() + ".temp");
 
         FileOutputStream fOut = null;
-        try
+        try (XarExporter exporter = new XarExporter(LSIDRelativizer.FOLDER_RELATIVE, DataURLRelativizer.RUN_RELATIVE_LOCATION.createURLRewriter(), getJob().getUser()))
         {
-            XarExporter exporter = new XarExporter(LSIDRelativizer.FOLDER_RELATIVE, DataURLRelativizer.RUN_RELATIVE_LOCATION.createURLRewriter(), getJob().getUser());
             exporter.addExperimentRun(run);
 
             fOut = new FileOutputStream(tempFile);
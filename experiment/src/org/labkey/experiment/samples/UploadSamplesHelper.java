@@ -36,6 +36,7 @@ import org.labkey.api.data.MultiValuedForeignKey;
 import org.labkey.api.data.NameGenerator;
 import org.labkey.api.data.RemapCache;
 import org.labkey.api.data.TableInfo;
+import org.labkey.api.dataiterator.CachingDataIterator;
 import org.labkey.api.dataiterator.DataIterator;
 import org.labkey.api.dataiterator.DataIteratorBuilder;
 import org.labkey.api.dataiterator.DataIteratorContext;
@@ -78,6 +79,7 @@ import org.labkey.experiment.api.MaterialSource;
 import org.labkey.experiment.controllers.exp.RunInputOutputBean;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
@@ -85,6 +87,7 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.Consumer;
 import java.util.function.Supplier;
 
 import static org.labkey.api.exp.api.ExpRunItem.PARENT_IMPORT_ALIAS_MAP_PROP;
@@ -749,13 +752,72 @@ public abstract class UploadSamplesHelper
 
             // sampleset.createSampleNames() + generate lsid
             // TODO does not handle insertIgnore
-            DataIterator names = new _GenerateNamesDataIterator(sampletype, DataIteratorUtil.wrapMap(dataIterator, false), context, batchSize);
+            DataIterator names = new _GenerateNamesDataIterator(sampletype, new _BatchLookaheadDataIterator(dataIterator, batchSize), context, batchSize);
 
             return LoggingDataIterator.wrap(names);
         }
     }
 
 
+    /**
+     * Reads each batch of rows ahead and hands it to a listener before returning the first row of the batch, so the
+     * rows can be prepared together rather than one at a time.
+     */
+    static class _BatchLookaheadDataIterator extends CachingDataIterator
+    {
+        final int _batchSize;
+        Consumer<List<Map<String, Object>>> _batchListener = null;
+        int _remaining = 0;     // rows of the current batch not yet returned
+        boolean _done = false;
+
+        _BatchLookaheadDataIterator(DataIterator in, int batchSize)
+        {
+            super(in);
+            _batchSize = batchSize;
+        }
+
+        void setBatchListener(Consumer<List<Map<String, Object>>> batchListener)
+        {
+            _batchListener = batchListener;
+        }
+
+        @Override
+        public boolean next() throws BatchValidationException
+        {
+            if (_done)
+                return false;
+            if (_remaining == 0)
+                readAhead();
+            if (!super.next())
+            {
+                _done = true;
+                return false;
+            }
+            _remaining--;
+            return true;
+        }
+
+        private void readAhead() throws BatchValidationException
+        {
+            // forget the rows already returned, then scroll back to here once the batch has been read
+            mark();
+            List<Map<String, Object>> rows = new ArrayList<>(_batchSize);
+            while (rows.size() < _batchSize && super.next())
+            {
+                Map<String, Object> row = new CaseInsensitiveHashMap<>();
+                for (int i = 1; i <= getColumnCount(); i++)
+                    row.put(getColumnInfo(i).getName(), get(i));
+                rows.add(row);
+            }
+            reset();
+
+            _remaining = rows.size();
+            if (!rows.isEmpty() && null != _batchListener)
+                _batchListener.accept(rows);
+        }
+    }
+
+
     static class _GenerateNamesDataIterator extends SimpleTranslator
     {
         final ExpSampleTypeImpl sampletype;
@@ -772,9 +834,9 @@ public abstract class UploadSamplesHelper
 
         private Map<String, DbSequence> _aliquotSequences = new HashMap<>();
 
-        _GenerateNamesDataIterator(ExpSampleTypeImpl sampletype, MapDataIterator source, DataIteratorContext context, int batchSize)
+        _GenerateNamesDataIterator(ExpSampleTypeImpl sampletype, _BatchLookaheadDataIterator source, DataIteratorContext context, int batchSize)
         {
-            super(source, context);
+            super(DataIteratorUtil.wrapMap(source, false), context);
             this.sampletype = sampletype;
             try
             {
@@ -789,6 +851,7 @@ public abstract class UploadSamplesHelper
             lsidBuilder = generateSampleLSID(sampletype.getDataObject());
             _container = sampletype.getContainer();
             _batchSize = batchSize;
+            source.setBatchListener(this::prepareBatch);
             CaseInsensitiveHashSet skip = new CaseInsensitiveHashSet();
             skip.addAll("name","lsid", "rootmateriallsid");
             selectAll(skip);
@@ -804,25 +867,42 @@ public abstract class UploadSamplesHelper
             first = false;
         }
 
+        /**
+         * Reserve sample counter values for exactly the rows of this batch that will be named by the name generator,
+         * and fetch their lookup values together.
+         */
+        private void prepareBatch(List<Map<String, Object>> rows)
+        {
+            List<Map<String, Object>> named = new ArrayList<>(rows.size());
+            for (Map<String, Object> row : rows)
+            {
+                if (StringUtils.isEmpty(getAliquotedFrom(row)))
+                    named.add(row);
+            }
+            if (named.isEmpty())
+                return;
+
+            nameState.reserveSampleCounts(named.size());
+            nameState.prefetchLookups(named);
+        }
+
+        private static @Nullable String getAliquotedFrom(Map<String, Object> map)
+        {
+            Object aliquotedFromObj = map.get("AliquotedFrom");
+            if (aliquotedFromObj instanceof String)
+                return (String) aliquotedFromObj;
+            else if (aliquotedFromObj instanceof Number)
+                return aliquotedFromObj.toString();
+            return null;
+        }
+
         @Override
         protected void processNextInput()
         {
             Map<String,Object> map = ((MapDataIterator)getInput()).getMap();
             try
             {
-                String aliquotedFrom = null;
-                Object aliquotedFromObj = map.get("AliquotedFrom");
-                if (aliquotedFromObj != null)
-                {
-                    if (aliquotedFromObj instanceof String)
-                    {
-                        aliquotedFrom = (String) aliquotedFromObj;
-                    }
-                    else if (aliquotedFromObj instanceof Number)
-                    {
-                        aliquotedFrom = aliquotedFromObj.toString();
-                    }
-                }
+                String aliquotedFrom = getAliquotedFrom(map);
 
                 boolean isAliquot = !StringUtils.isEmpty(aliquotedFrom);
                 if (isAliquot)
@@ -130,9 +130,8 @@ public class FolderXarWriterFactory implements FolderWriterFactory
             ctx.getXml().addNewXar().setDir(XAR_DIRECTORY);
             VirtualFile xarDir = vf.getDir(XAR_DIRECTORY);
 
-            XarExporter exporter = new XarExporter(LSIDRelativizer.FOLDER_RELATIVE, selection, ctx.getUser(), XAR_XML_FILE_NAME, ctx.getLogger());
-
-            try (OutputStream fOut = xarDir.getOutputStream(XAR_FILE_NAME))
+            try (XarExporter exporter = new XarExporter(LSIDRelativizer.FOLDER_RELATIVE, selection, ctx.getUser(), XAR_XML_FILE_NAME, ctx.getLogger());
+                 OutputStream fOut = xarDir.getOutputStream(XAR_FILE_NAME))
             {
                 exporter.write(fOut);
             }
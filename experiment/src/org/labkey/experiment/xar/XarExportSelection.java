@@ -122,10 +122,7 @@ public class XarExportSelection implements Serializable
             exporter.addExperiment(ExperimentServiceImpl.get().getExpExperiment(expId));
         }
 
-        for (ExpRun run : _runs)
-        {
-            exporter.addExperimentRun(run);
-        }
+        exporter.addExperimentRuns(_runs);
 
         for (int protocolId : _protocolIds)
         {
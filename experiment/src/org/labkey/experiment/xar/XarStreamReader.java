@@ -0,0 +1,396 @@
+/*
+ * Copyright (c) 2021 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.experiment.xar;
+
+import org.apache.xmlbeans.XmlException;
+import org.fhcrc.cpas.exp.xml.ExperimentArchiveDocument;
+import org.fhcrc.cpas.exp.xml.ExperimentRunType;
+import org.fhcrc.cpas.exp.xml.ProtocolApplicationBaseType;
+import org.jetbrains.annotations.Nullable;
+import org.junit.Assert;
+import org.junit.Test;
+import org.labkey.api.reader.SimpleXMLStreamReader;
+import org.labkey.api.util.XmlBeansUtil;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reads a xar.xml a piece at a time, so that XARs with hundreds of thousands of objects can be imported without
+ * holding the whole document in memory. Everything before the ExperimentRuns section (protocols, sample types, starting
+ * inputs...) is read as one ExperimentArchiveDocument. Each run is then read without its ProtocolApplications, which
+ * are read one at a time. Runs that generate their protocol applications from the experiment log are read whole.
+ *
+ * Each piece is copied out of the stream with its namespace declarations and parsed with XmlBeans, so the existing
+ * XmlBeans-based loading code works unchanged.
+ */
+public class XarStreamReader implements AutoCloseable
+{
+    private static final String RDF_NAMESPACE = "http://www.w3.org/1999/02/22-rdf-syntax-ns#";
+    private static final String EXPERIMENT_RUNS = "ExperimentRuns";
+    private static final String PROTOCOL_APPLICATIONS = "ProtocolApplications";
+    private static final String GENERATE_DATA_FROM_STEP_RECORD = "GenerateDataFromStepRecord";
+
+    private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+
+    private final SimpleXMLStreamReader _reader;
+
+    // Namespaces declared by the elements we've stepped into rather than copied; each piece redeclares them
+    private final Map<String, String> _namespaces = new LinkedHashMap<>();
+
+    private boolean _inRuns = false;
+    private boolean _inRun = false;
+    private boolean _inProtocolApplications = false;
+
+    public XarStreamReader(InputStream in) throws XMLStreamException
+    {
+        _reader = new SimpleXMLStreamReader(in);
+    }
+
+    /** The ExperimentArchive with everything but its ExperimentRuns. Must be called first. */
+    public ExperimentArchiveDocument readHeader() throws XMLStreamException, XmlException
+    {
+        return ExperimentArchiveDocument.Factory.parse(readHeaderXml(), XmlBeansUtil.getDefaultParseOptions());
+    }
+
+    /**
+     * The next ExperimentRun. Unless it generates its data from the experiment log, it has no ProtocolApplications;
+     * read those with nextProtocolApplication() before moving on to the next run.
+     */
+    public @Nullable ExperimentRunType nextRun() throws XMLStreamException, XmlException
+    {
+        String xml = nextRunXml();
+        return null == xml ? null : ExperimentRunType.Factory.parse(xml, XmlBeansUtil.getDefaultParseOptions());
+    }
+
+    /** The next ProtocolApplication of the current run, or null after the last one */
+    public @Nullable ProtocolApplicationBaseType nextProtocolApplication() throws XMLStreamException, XmlException
+    {
+        String xml = nextProtocolApplicationXml();
+        return null == xml ? null : ProtocolApplicationBaseType.Factory.parse(xml, XmlBeansUtil.getDefaultParseOptions());
+    }
+
+    /** The rdf:about of every run, without reading anything else. Use a reader of its own. */
+    public List<String> readRunAbouts() throws XMLStreamException
+    {
+        List<String> ret = new ArrayList<>();
+        if (!_reader.skipToStart(EXPERIMENT_RUNS))
+            return ret;
+
+        while (nextChild() == XMLStreamConstants.START_ELEMENT)
+        {
+            ret.add(_reader.getAttributeValue(RDF_NAMESPACE, "about"));
+            skipElement();
+        }
+        return ret;
+    }
+
+    String readHeaderXml() throws XMLStreamException
+    {
+        while (_reader.next() != XMLStreamConstants.START_ELEMENT)
+        {
+        }
+        addNamespaces();
+
+        StringWriter out = new StringWriter();
+        XMLStreamWriter writer = OUTPUT_FACTORY.createXMLStreamWriter(out);
+        writer.writeStartDocument();
+        writeStartElement(writer, false);
+
+        while (nextChild() == XMLStreamConstants.START_ELEMENT)
+        {
+            if (EXPERIMENT_RUNS.equals(_reader.getLocalName()))
+            {
+                addNamespaces();
+                _inRuns = true;
+                break;
+            }
+            copyElement(writer);
+        }
+
+        writer.writeEndElement();
+        writer.writeEndDocument();
+        writer.close();
+        return out.toString();
+    }
+
+    @Nullable String nextRunXml() throws XMLStreamException
+    {
+        // Skip whatever the caller didn't read of the previous run
+        if (_inProtocolApplications)
+        {
+            skipElement();
+            _inProtocolApplications = false;
+        }
+        if (_inRun)
+        {
+            skipElement();
+            _inRun = false;
+        }
+
+        if (!_inRuns)
+            return null;
+
+        if (nextChild() == XMLStreamConstants.END_ELEMENT)
+        {
+            _inRuns = false;
+            return null;
+        }
+
+        StringWriter out = new StringWriter();
+        XMLStreamWriter writer = OUTPUT_FACTORY.createXMLStreamWriter(out);
+
+        String generate = _reader.getAttributeValue(null, GENERATE_DATA_FROM_STEP_RECORD);
+        if ("true".equals(generate) || "1".equals(generate))
+        {
+            writeStartElement(writer, true);
+            _reader.next();
+            copyContent(writer);
+        }
+        else
+        {
+            writeStartElement(writer, true);
+            _inRun = true;
+            while (nextChild() == XMLStreamConstants.START_ELEMENT)
+            {
+                if (PROTOCOL_APPLICATIONS.equals(_reader.getLocalName()))
+                {
+                    addNamespaces();
+                    _inProtocolApplications = true;
+                    break;
+                }
+                copyElement(writer);
+            }
+            if (!_inProtocolApplications)
+                _inRun = false;
+            writer.writeEndElement();
+        }
+
+        writer.close();
+        return out.toString();
+    }
+
+    @Nullable String nextProtocolApplicationXml() throws XMLStreamException
+    {
+        if (!_inProtocolApplications)
+            return null;
+
+        if (nextChild() == XMLStreamConstants.END_ELEMENT)
+        {
+            _inProtocolApplications = false;
+            return null;
+        }
+
+        StringWriter out = new StringWriter();
+        XMLStreamWriter writer = OUTPUT_FACTORY.createXMLStreamWriter(out);
+        writeStartElement(writer, true);
+        _reader.next();
+        copyContent(writer);
+        writer.close();
+        return out.toString();
+    }
+
+    // Advance to the next child element's start, or the end of the current element
+    private int nextChild() throws XMLStreamException
+    {
+        int event;
+        do
+        {
+            event = _reader.next();
+        }
+        while (event != XMLStreamConstants.START_ELEMENT && event != XMLStreamConstants.END_ELEMENT);
+        return event;
+    }
+
+    // Skip through the end of the element that starts at the current event, or that the current event is inside of
+    private void skipElement() throws XMLStreamException
+    {
+        while (nextChild() == XMLStreamConstants.START_ELEMENT)
+            skipElement();
+    }
+
+    // Copy the element that starts at the current event, through its end
+    private void copyElement(XMLStreamWriter writer) throws XMLStreamException
+    {
+        writeStartElement(writer, false);
+        _reader.next();
+        copyContent(writer);
+    }
+
+    // Copy events up to and including the end of the current element
+    private void copyContent(XMLStreamWriter writer) throws XMLStreamException
+    {
+        int depth = 1;
+        while (true)
+        {
+            switch (_reader.getEventType())
+            {
+                case XMLStreamConstants.START_ELEMENT:
+                    writeStartElement(writer, false);
+                    depth++;
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    writer.writeEndElement();
+                    depth--;
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    writer.writeCharacters(_reader.getTextCharacters(), _reader.getTextStart(), _reader.getTextLength());
+                    break;
+                default:
+                    break;
+            }
+            if (depth == 0)
+                return;
+            _reader.next();
+        }
+    }
+
+    private void writeStartElement(XMLStreamWriter writer, boolean redeclareNamespaces) throws XMLStreamException
+    {
+        writer.writeStartElement(emptyIfNull(_reader.getPrefix()), _reader.getLocalName(), emptyIfNull(_reader.getNamespaceURI()));
+
+        Set<String> declared = new HashSet<>();
+        for (int i = 0; i < _reader.getNamespaceCount(); i++)
+        {
+            String prefix = emptyIfNull(_reader.getNamespacePrefix(i));
+            declared.add(prefix);
+            writeNamespace(writer, prefix, _reader.getNamespaceURI(i));
+        }
+
+        if (redeclareNamespaces)
+        {
+            for (Map.Entry<String, String> ns : _namespaces.entrySet())
+            {
+                if (!declared.contains(ns.getKey()))
+                    writeNamespace(writer, ns.getKey(), ns.getValue());
+            }
+        }
+
+        for (int i = 0; i < _reader.getAttributeCount(); i++)
+        {
+            String prefix = _reader.getAttributePrefix(i);
+            if (null == prefix || prefix.isEmpty())
+                writer.writeAttribute(_reader.getAttributeLocalName(i), _reader.getAttributeValue(i));
+            else
+                writer.writeAttribute(prefix, _reader.getAttributeNamespace(i), _reader.getAttributeLocalName(i), _reader.getAttributeValue(i));
+        }
+    }
+
+    private void writeNamespace(XMLStreamWriter writer, String prefix, String uri) throws XMLStreamException
+    {
+        if (prefix.isEmpty())
+            writer.writeDefaultNamespace(uri);
+        else
+            writer.writeNamespace(prefix, uri);
+    }
+
+    private void addNamespaces()
+    {
+        for (int i = 0; i < _reader.getNamespaceCount(); i++)
+            _namespaces.put(emptyIfNull(_reader.getNamespacePrefix(i)), _reader.getNamespaceURI(i));
+    }
+
+    private static String emptyIfNull(@Nullable String s)
+    {
+        return null == s ? "" : s;
+    }
+
+    @Override
+    public void close() throws XMLStreamException
+    {
+        _reader.close();
+    }
+
+    public static class TestCase extends Assert
+    {
+        private static final String XAR =
+                "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                "<exp:ExperimentArchive xmlns:exp=\"http://cpas.fhcrc.org/exp/xml\" xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\">\n" +
+                "  <exp:ProtocolDefinitions><exp:Protocol rdf:about=\"urn:lsid:p\"><exp:Name>P</exp:Name></exp:Protocol></exp:ProtocolDefinitions>\n" +
+                "  <exp:ExperimentRuns>\n" +
+                "    <exp:ExperimentRun rdf:about=\"urn:lsid:run1\">\n" +
+                "      <exp:Name>Run &amp; one</exp:Name>\n" +
+                "      <exp:ProtocolApplications>\n" +
+                "        <exp:ProtocolApplication rdf:about=\"urn:lsid:app1\"><exp:Name>A1</exp:Name></exp:ProtocolApplication>\n" +
+                "        <!-- comment -->\n" +
+                "        <exp:ProtocolApplication rdf:about=\"urn:lsid:app2\"><exp:Name>A2</exp:Name></exp:ProtocolApplication>\n" +
+                "      </exp:ProtocolApplications>\n" +
+                "    </exp:ExperimentRun>\n" +
+                "    <exp:ExperimentRun rdf:about=\"urn:lsid:run2\" GenerateDataFromStepRecord=\"true\">\n" +
+                "      <exp:Name>Run two</exp:Name>\n" +
+                "      <exp:ProtocolApplications><exp:ProtocolApplication rdf:about=\"urn:lsid:app3\"/></exp:ProtocolApplications>\n" +
+                "    </exp:ExperimentRun>\n" +
+                "    <exp:ExperimentRun rdf:about=\"urn:lsid:run3\"><exp:Name>Run three</exp:Name></exp:ExperimentRun>\n" +
+                "  </exp:ExperimentRuns>\n" +
+                "</exp:ExperimentArchive>\n";
+
+        private static XarStreamReader reader() throws XMLStreamException
+        {
+            return new XarStreamReader(new ByteArrayInputStream(XAR.getBytes(StandardCharsets.UTF_8)));
+        }
+
+        @Test
+        public void testPieces() throws XMLStreamException
+        {
+            try (XarStreamReader reader = reader())
+            {
+                String header = reader.readHeaderXml();
+                assertTrue(header.contains("<exp:Protocol rdf:about=\"urn:lsid:p\"><exp:Name>P</exp:Name></exp:Protocol>"));
+                assertFalse(header.contains("ExperimentRun"));
+
+                String run1 = reader.nextRunXml();
+                assertTrue(run1.startsWith("<exp:ExperimentRun xmlns:exp=\"http://cpas.fhcrc.org/exp/xml\" xmlns:rdf="));
+                assertTrue(run1.contains("<exp:Name>Run &amp; one</exp:Name>"));
+                assertFalse(run1.contains("ProtocolApplication"));
+
+                String app1 = reader.nextProtocolApplicationXml();
+                assertTrue(app1.contains("rdf:about=\"urn:lsid:app1\""));
+                assertTrue(app1.contains("xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\""));
+                assertTrue(app1.contains("<exp:Name>A1</exp:Name>"));
+
+                // The rest of run 1 is skipped
+                String run2 = reader.nextRunXml();
+                assertTrue(run2.contains("urn:lsid:app3"));
+                assertNull(reader.nextProtocolApplicationXml());
+
+                String run3 = reader.nextRunXml();
+                assertTrue(run3.contains("Run three"));
+                assertNull(reader.nextProtocolApplicationXml());
+                assertNull(reader.nextRunXml());
+                assertNull(reader.nextRunXml());
+            }
+
+            try (XarStreamReader reader = reader())
+            {
+                assertEquals(List.of("urn:lsid:run1", "urn:lsid:run2", "urn:lsid:run3"), reader.readRunAbouts());
+            }
+        }
+    }
+}
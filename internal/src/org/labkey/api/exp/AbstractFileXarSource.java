@@ -26,9 +26,11 @@ import org.labkey.api.util.FileUtil;
 import org.labkey.api.util.NetworkDrive;
 import org.labkey.api.util.XmlBeansUtil;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.nio.file.Path;
 
@@ -86,6 +88,13 @@ public abstract class AbstractFileXarSource extends XarSource
         }
     }
 
+    @Override
+    public InputStream getDocumentStream() throws IOException
+    {
+        NetworkDrive.exists(getXmlFile());
+        return new BufferedInputStream(new FileInputStream(getXmlFile()));
+    }
+
     @Override
     public File getRoot()
     {
@@ -79,6 +79,15 @@ public class CompressedInputStreamXarSource extends AbstractFileXarSource
             throw new RuntimeException("XML source not found.");
     }
 
+    @Override
+    public InputStream getDocumentStream()
+    {
+        if (_xml != null)
+            return new ByteArrayInputStream(_xml.getBytes(StandardCharsets.UTF_8));
+        else
+            throw new RuntimeException("XML source not found.");
+    }
+
     @Override
     public File getLogFile() throws IOException
     {
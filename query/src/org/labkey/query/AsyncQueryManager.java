@@ -0,0 +1,650 @@
+/*
+ * Copyright (c) 2021 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.query;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.junit.Assert;
+import org.junit.Test;
+import org.labkey.api.action.ApiUsageException;
+import org.labkey.api.data.ColumnInfo;
+import org.labkey.api.data.ConnectionWrapper;
+import org.labkey.api.data.Container;
+import org.labkey.api.data.ContainerManager;
+import org.labkey.api.data.CoreSchema;
+import org.labkey.api.data.JdbcType;
+import org.labkey.api.data.Results;
+import org.labkey.api.data.Sort;
+import org.labkey.api.data.TableInfo;
+import org.labkey.api.data.TableSelector;
+import org.labkey.api.data.queryprofiler.QueryProfiler;
+import org.labkey.api.data.queryprofiler.QueryTracker;
+import org.labkey.api.dataiterator.SpillStore;
+import org.labkey.api.query.FieldKey;
+import org.labkey.api.query.QueryService;
+import org.labkey.api.security.User;
+import org.labkey.api.util.ContextListener;
+import org.labkey.api.util.GUID;
+import org.labkey.api.util.JobRunner;
+import org.labkey.api.util.ShutdownListener;
+import org.labkey.api.util.TestContext;
+import org.labkey.api.view.NotFoundException;
+import org.labkey.api.view.UnauthorizedException;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Runs queries on a background thread and hands the client a handle it can poll for status, page through while rows
+ * are still arriving, and cancel. Rows are spooled to a SpillStore as they're read, so the database connection is
+ * released as soon as the query finishes and a slow client never holds a cursor open.
+ *
+ * Queries run on POOL_SIZE threads shared by all users. Each user may have MAX_ACTIVE_PER_USER queries queued or
+ * running, but only MAX_RUNNING_PER_USER of them run at once, so one user can't take every thread; queued queries
+ * start in submission order as threads free up.
+ *
+ * Each user keeps at most MAX_RETAINED_PER_USER handles; submitting another discards their least recently read
+ * finished results. Spools of all users together are limited to MAX_SPOOL_BYTES: a query that reaches it stops and
+ * is marked truncated, and no new queries are accepted until enough results are discarded.
+ *
+ * Cancelling stops the worker between rows and calls Statement.cancel() on whatever the worker thread has executing.
+ * A timer checks every REAP_INTERVAL for queries nobody has polled for IDLE_TIMEOUT and cancels them the same way,
+ * and discards finished handles (along with their spool file) RETENTION after they were last read.
+ */
+public class AsyncQueryManager
+{
+    private static final Logger LOG = LogManager.getLogger(AsyncQueryManager.class);
+
+    static final int POOL_SIZE = 4;
+    static final int MAX_ACTIVE_PER_USER = 5;
+    static final int MAX_RUNNING_PER_USER = 2;
+    static final int MAX_RETAINED_PER_USER = 20;
+    static final int MAX_ROWS = 5_000_000;
+    public static final int MAX_PAGE_ROWS = 10_000;
+    static final long MAX_SPOOL_BYTES = 2L * 1024 * 1024 * 1024;
+    static final long IDLE_TIMEOUT = TimeUnit.MINUTES.toMillis(5);
+    static final long RETENTION = TimeUnit.MINUTES.toMillis(30);
+    static final long REAP_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+
+    private static final AsyncQueryManager INSTANCE = new AsyncQueryManager();
+
+    private final JobRunner _runner = new JobRunner("Async queries", POOL_SIZE);
+    private final Map<String, QueryHandle> _handles = new ConcurrentHashMap<>();
+    private final Timer _reaper = new Timer("Async query reaper", true);
+    private final AtomicLong _spoolBytes = new AtomicLong();
+
+    // Guarded by this
+    private final List<QueryHandle> _queue = new ArrayList<>();
+    private final Map<User, Integer> _runningByUser = new HashMap<>();
+    private int _running = 0;
+
+    public enum Status
+    {
+        QUEUED, RUNNING, COMPLETE, CANCELLED, FAILED;
+
+        public boolean isDone()
+        {
+            return this != QUEUED && this != RUNNING;
+        }
+    }
+
+    private AsyncQueryManager()
+    {
+        _reaper.schedule(new TimerTask()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    reap();
+                }
+                catch (Throwable t)
+                {
+                    LOG.error("Failed to reap async queries", t);
+                }
+            }
+        }, REAP_INTERVAL, REAP_INTERVAL);
+
+        ContextListener.addShutdownListener(new ShutdownListener()
+        {
+            @Override
+            public String getName()
+            {
+                return "Async query manager";
+            }
+
+            @Override
+            public void shutdownPre()
+            {
+                _reaper.cancel();
+                for (QueryHandle handle : _handles.values())
+                    handle.cancel();
+            }
+
+            @Override
+            public void shutdownStarted()
+            {
+                for (QueryHandle handle : _handles.values())
+                    handle.discard();
+                _handles.clear();
+            }
+        });
+    }
+
+    public static AsyncQueryManager get()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * Start executing the selector in the background.
+     * @param columns The columns to return, in order; each must be selected by the selector
+     */
+    public QueryHandle submit(User user, Container c, String description, TableSelector selector, List<ColumnInfo> columns)
+    {
+        QueryHandle handle = new QueryHandle(user, c, description, selector, columns);
+
+        // Checked and added under the lock, so concurrent requests from one user can't both pass the limits
+        synchronized (this)
+        {
+            List<QueryHandle> mine = _handles.values().stream().filter(h -> h._user.equals(user)).collect(Collectors.toList());
+            long active = mine.stream().filter(h -> !h.getStatus().isDone()).count();
+            if (active >= MAX_ACTIVE_PER_USER)
+                throw new ApiUsageException("Too many queries are already running (" + active + "); cancel one or wait for it to complete");
+
+            mine.stream()
+                .filter(h -> h.getStatus().isDone())
+                .sorted(Comparator.comparingLong(h -> h._lastAccess))
+                .limit(Math.max(0, mine.size() + 1 - MAX_RETAINED_PER_USER))
+                .forEach(this::remove);
+
+            if (_spoolBytes.get() >= MAX_SPOOL_BYTES)
+                throw new ApiUsageException("Too many query results are being kept on the server; try again later");
+
+            _handles.put(handle._id, handle);
+            _queue.add(handle);
+        }
+        dispatch();
+
+        return handle;
+    }
+
+    // Start the oldest queued queries whose users are under MAX_RUNNING_PER_USER, while there are free threads
+    private synchronized void dispatch()
+    {
+        Iterator<QueryHandle> it = _queue.iterator();
+        while (_running < POOL_SIZE && it.hasNext())
+        {
+            QueryHandle handle = it.next();
+            if (handle.getStatus() != Status.QUEUED)
+            {
+                it.remove();
+                continue;
+            }
+
+            int running = _runningByUser.getOrDefault(handle._user, 0);
+            if (running >= MAX_RUNNING_PER_USER)
+                continue;
+
+            it.remove();
+            _runningByUser.put(handle._user, running + 1);
+            _running++;
+            _runner.execute(() -> {
+                try
+                {
+                    handle.run();
+                }
+                finally
+                {
+                    finished(handle);
+                }
+            });
+        }
+    }
+
+    private void finished(QueryHandle handle)
+    {
+        synchronized (this)
+        {
+            _running--;
+            int running = _runningByUser.getOrDefault(handle._user, 0) - 1;
+            if (running > 0)
+                _runningByUser.put(handle._user, running);
+            else
+                _runningByUser.remove(handle._user);
+        }
+        dispatch();
+    }
+
+    /** Look up a handle the user submitted (or any handle, for site admins) in this container */
+    public @NotNull QueryHandle getHandle(User user, Container c, String id)
+    {
+        QueryHandle handle = null == id ? null : _handles.get(id);
+        if (null == handle || !handle._container.equals(c))
+            throw new NotFoundException("Query handle not found: " + id);
+        if (!handle._user.equals(user) && !user.hasSiteAdminPermission())
+            throw new UnauthorizedException("This query was submitted by another user");
+
+        handle.touch();
+        return handle;
+    }
+
+    /** Every handle that hasn't been discarded, for the admin console */
+    public Collection<QueryHandle> getHandles()
+    {
+        return new ArrayList<>(_handles.values());
+    }
+
+    private void reap()
+    {
+        long now = System.currentTimeMillis();
+
+        for (QueryHandle handle : _handles.values())
+        {
+            long idle = now - handle._lastAccess;
+
+            if (!handle.getStatus().isDone() && idle > IDLE_TIMEOUT)
+            {
+                LOG.info("Cancelling abandoned query " + handle._id + ": " + handle._description);
+                handle.cancel();
+            }
+            else if (handle.getStatus().isDone() && idle > RETENTION)
+            {
+                remove(handle);
+            }
+        }
+    }
+
+    private void remove(QueryHandle handle)
+    {
+        _handles.remove(handle._id);
+        handle.discard();
+    }
+
+    public static class QueryHandle
+    {
+        private final String _id = GUID.makeGUID();
+        private final User _user;
+        private final Container _container;
+        private final String _description;
+        private final TableSelector _selector;
+        private final List<FieldKey> _fieldKeys = new ArrayList<>();
+        private final JdbcType[] _types;
+        private final String _sql;
+        private final Object _environment;
+        private final long _submitted = System.currentTimeMillis();
+
+        private volatile long _lastAccess = _submitted;
+        private volatile Status _status = Status.QUEUED;
+        private volatile Thread _worker;
+
+        // Guarded by this
+        private SpillStore _rows;
+        private int _rowCount = 0;
+        private boolean _truncated = false;
+        private long _started;
+        private long _finished;
+        private String _error;
+        private boolean _discarded = false;
+
+        private QueryHandle(User user, Container c, String description, TableSelector selector, List<ColumnInfo> columns)
+        {
+            _user = user;
+            _container = c;
+            _description = description;
+            _selector = selector;
+            _types = new JdbcType[columns.size()];
+            for (int i = 0; i < columns.size(); i++)
+            {
+                _fieldKeys.add(columns.get(i).getFieldKey());
+                _types[i] = columns.get(i).getJdbcType();
+            }
+            _sql = selector.getSql().getSQL();
+
+            // Same as AsyncQueryRequest: the worker needs the request's user and container to resolve the query
+            QueryProfiler.getInstance().ensureListenerEnvironment();
+            _environment = QueryService.get().cloneEnvironment();
+        }
+
+        private void run()
+        {
+            synchronized (this)
+            {
+                if (_status != Status.QUEUED)
+                    return;
+                _status = Status.RUNNING;
+                _started = System.currentTimeMillis();
+                _worker = Thread.currentThread();
+            }
+
+            QueryService qs = QueryService.get();
+            qs.copyEnvironment(_environment);
+
+            try (Results results = _selector.getResults(false, false))
+            {
+                Map<FieldKey, Integer> fieldIndexMap = results.getFieldIndexMap();
+                int[] indexes = new int[_fieldKeys.size()];
+                for (int i = 0; i < indexes.length; i++)
+                {
+                    Integer index = fieldIndexMap.get(_fieldKeys.get(i));
+                    if (null == index)
+                        throw new IllegalStateException("Column not selected: " + _fieldKeys.get(i));
+                    indexes[i] = index;
+                }
+
+                synchronized (this)
+                {
+                    // Once discarded there's nothing left to close the spool, so don't create one
+                    if (!_discarded)
+                        _rows = new SpillStore(_types, new SpillStore.Counters());
+                }
+
+                while (results.next())
+                {
+                    if (_status != Status.RUNNING || System.currentTimeMillis() - _lastAccess > IDLE_TIMEOUT)
+                        break;
+
+                    Object[] row = new Object[indexes.length];
+                    for (int i = 0; i < indexes.length; i++)
+                    {
+                        Object value = results.getObject(indexes[i]);
+                        row[i] = null == value || value instanceof Serializable ? value : value.toString();
+                    }
+
+                    synchronized (this)
+                    {
+                        if (null == _rows)
+                            break;
+                        if (_rowCount >= MAX_ROWS || get()._spoolBytes.get() >= MAX_SPOOL_BYTES)
+                        {
+                            _truncated = true;
+                            break;
+                        }
+                        long before = _rows.getBytesWritten();
+                        _rows.append(row);
+                        get()._spoolBytes.addAndGet(_rows.getBytesWritten() - before);
+                        _rowCount++;
+                        notifyAll();
+                    }
+                }
+
+                finish(_status == Status.RUNNING && System.currentTimeMillis() - _lastAccess <= IDLE_TIMEOUT ? Status.COMPLETE : Status.CANCELLED, null);
+            }
+            catch (Throwable t)
+            {
+                if (_status == Status.CANCELLED)
+                {
+                    finish(Status.CANCELLED, null);
+                }
+                else
+                {
+                    LOG.warn("Async query " + _id + " failed", t);
+                    finish(Status.FAILED, null == t.getMessage() ? t.getClass().getSimpleName() : t.getMessage());
+                }
+            }
+            finally
+            {
+                _worker = null;
+                qs.clearEnvironment();
+            }
+        }
+
+        private synchronized void finish(Status status, @Nullable String error)
+        {
+            if (!_status.isDone())
+            {
+                _status = status;
+                _error = error;
+                _finished = System.currentTimeMillis();
+            }
+            notifyAll();
+        }
+
+        /** Stop the query; rows already read stay available */
+        public void cancel()
+        {
+            Thread worker;
+            synchronized (this)
+            {
+                if (_status.isDone())
+                    return;
+                _status = Status.CANCELLED;
+                _finished = System.currentTimeMillis();
+                worker = _worker;
+                notifyAll();
+            }
+
+            // The worker may be blocked in executeQuery() or the driver's fetch, where the flag isn't checked
+            if (null != worker)
+                ConnectionWrapper.cancelStatements(worker);
+        }
+
+        private synchronized void discard()
+        {
+            cancel();
+            _discarded = true;
+            if (null != _rows)
+            {
+                get()._spoolBytes.addAndGet(-_rows.getBytesWritten());
+                try
+                {
+                    _rows.close();
+                }
+                catch (IOException e)
+                {
+                    LOG.warn("Failed to delete query spool file", e);
+                }
+                _rows = null;
+            }
+        }
+
+        private void touch()
+        {
+            _lastAccess = System.currentTimeMillis();
+        }
+
+        public String getId()
+        {
+            return _id;
+        }
+
+        public Status getStatus()
+        {
+            return _status;
+        }
+
+        /** Wait up to timeout ms for at least needed rows to be available or the query to finish */
+        public synchronized void awaitRows(int needed, long timeout) throws InterruptedException
+        {
+            long end = System.currentTimeMillis() + timeout;
+            long remaining = timeout;
+
+            while (remaining > 0 && _rowCount < needed && !_status.isDone())
+            {
+                wait(remaining);
+                remaining = end - System.currentTimeMillis();
+            }
+        }
+
+        /** Rows read so far, starting at offset; maps are keyed by field key. Callers serving requests should limit maxRows to MAX_PAGE_ROWS. */
+        public synchronized List<Map<String, Object>> getRows(int offset, int maxRows)
+        {
+            List<Map<String, Object>> ret = new ArrayList<>();
+            if (null == _rows)
+                return ret;
+
+            int end = (int) Math.min(_rowCount, (long) offset + maxRows);
+            for (int i = Math.max(0, offset); i < end; i++)
+            {
+                Object[] row = _rows.get(i);
+                Map<String, Object> map = new LinkedHashMap<>();
+                for (int col = 0; col < row.length; col++)
+                    map.put(_fieldKeys.get(col).toString(), row[col]);
+                ret.add(map);
+            }
+
+            return ret;
+        }
+
+        /**
+         * The status followed by the rows starting at offset, read together so the rows are at least as recent as the
+         * status: a COMPLETE status means no rows were missed, and rowCount covers every row returned.
+         */
+        public synchronized Map<String, Object> toJSON(int offset, int maxRows)
+        {
+            Map<String, Object> ret = toJSON();
+            ret.put("offset", offset);
+            ret.put("rows", getRows(offset, maxRows));
+            return ret;
+        }
+
+        public synchronized Map<String, Object> toJSON()
+        {
+            Map<String, Object> ret = new LinkedHashMap<>();
+            ret.put("handle", _id);
+            ret.put("status", _status.name());
+            ret.put("rowCount", _rowCount);
+            ret.put("truncated", _truncated);
+            ret.put("complete", _status.isDone());
+            ret.put("description", _description);
+            ret.put("user", _user.getDisplayName(null));
+            ret.put("submitted", _submitted);
+            if (_started > 0)
+                ret.put("elapsed", (_finished > 0 ? _finished : System.currentTimeMillis()) - _started);
+            if (null != _error)
+                ret.put("error", _error);
+
+            // Execution statistics for this SQL from earlier runs (or this one, once complete)
+            QueryTracker tracker = QueryProfiler.getInstance().getTracker(_sql);
+            if (null != tracker)
+            {
+                Map<String, Object> stats = new LinkedHashMap<>();
+                stats.put("count", tracker.getCount());
+                stats.put("average", tracker.getAverage());
+                stats.put("max", tracker.getMax());
+                ret.put("queryStats", stats);
+            }
+
+            return ret;
+        }
+
+        public User getUser()
+        {
+            return _user;
+        }
+
+        public Container getContainer()
+        {
+            return _container;
+        }
+
+        public String getDescription()
+        {
+            return _description;
+        }
+
+        public String getSql()
+        {
+            return _sql;
+        }
+    }
+
+    public static class TestCase extends Assert
+    {
+        @Test
+        public void testSubmit() throws Exception
+        {
+            User user = TestContext.get().getUser();
+            TableInfo containers = CoreSchema.getInstance().getTableInfoContainers();
+            List<ColumnInfo> columns = List.of(containers.getColumn("RowId"), containers.getColumn("Name"));
+            TableSelector selector = new TableSelector(containers, columns, null, new Sort("RowId"));
+            long expected = new TableSelector(containers).getRowCount();
+
+            Container root = ContainerManager.getRoot();
+            QueryHandle handle = get().submit(user, root, "test", selector, columns);
+            handle.awaitRows(Integer.MAX_VALUE, TimeUnit.SECONDS.toMillis(30));
+
+            assertEquals(Status.COMPLETE, handle.getStatus());
+            assertEquals(expected, ((Number) handle.toJSON().get("rowCount")).longValue());
+            assertSame(handle, get().getHandle(user, root, handle.getId()));
+
+            Map<String, Object> json = handle.toJSON(1, 1);
+            assertEquals(Status.COMPLETE.name(), json.get("status"));
+            List<Map<String, Object>> page = (List<Map<String, Object>>) json.get("rows");
+            assertEquals(expected > 1 ? 1 : 0, page.size());
+            if (!page.isEmpty())
+                assertEquals(List.of("RowId", "Name"), new ArrayList<>(page.get(0).keySet()));
+
+            // Cancelling a finished query is a no-op and keeps its rows
+            handle.cancel();
+            assertEquals(Status.COMPLETE, handle.getStatus());
+            assertEquals(expected, handle.getRows(0, Integer.MAX_VALUE).size());
+
+            get().remove(handle);
+        }
+
+        @Test
+        public void testRetention() throws Exception
+        {
+            User user = TestContext.get().getUser();
+            Container root = ContainerManager.getRoot();
+            TableInfo containers = CoreSchema.getInstance().getTableInfoContainers();
+            List<ColumnInfo> columns = List.of(containers.getColumn("RowId"));
+
+            // Start from no finished results, so the first one submitted here is the first to go
+            get().getHandles().stream().filter(h -> h.getUser().equals(user) && h.getStatus().isDone()).forEach(get()::remove);
+
+            List<QueryHandle> handles = new ArrayList<>();
+            try
+            {
+                for (int i = 0; i <= MAX_RETAINED_PER_USER; i++)
+                {
+                    QueryHandle handle = get().submit(user, root, "test " + i, new TableSelector(containers, columns, null, null), columns);
+                    handle.awaitRows(Integer.MAX_VALUE, TimeUnit.SECONDS.toMillis(30));
+                    assertEquals(Status.COMPLETE, handle.getStatus());
+                    handles.add(handle);
+                }
+
+                // The first handle was read least recently, so it made room for the last one and its spool is gone
+                assertTrue(get().getHandles().stream().filter(h -> h.getUser().equals(user)).count() <= MAX_RETAINED_PER_USER);
+                assertFalse(get()._handles.containsKey(handles.get(0).getId()));
+                assertTrue(handles.get(0).getRows(0, 1).isEmpty());
+                assertTrue(get()._handles.containsKey(handles.get(handles.size() - 1).getId()));
+            }
+            finally
+            {
+                handles.forEach(get()::remove);
+            }
+        }
+    }
+}
@@ -81,11 +81,16 @@ import org.labkey.api.view.ActionURL;
 import org.labkey.api.view.NavTree;
 import org.labkey.api.view.WebPartFactory;
 import org.labkey.api.writer.ContainerUser;
+import org.labkey.query.analytics.AggregatesCountDistinctAnalyticsProvider;
 import org.labkey.query.analytics.AggregatesCountNonBlankAnalyticsProvider;
+import org.labkey.query.analytics.AggregatesLowerQuartileAnalyticsProvider;
 import org.labkey.query.analytics.AggregatesMaxAnalyticsProvider;
 import org.labkey.query.analytics.AggregatesMeanAnalyticsProvider;
+import org.labkey.query.analytics.AggregatesMedianAnalyticsProvider;
 import org.labkey.query.analytics.AggregatesMinAnalyticsProvider;
+import org.labkey.query.analytics.AggregatesStdDevAnalyticsProvider;
 import org.labkey.query.analytics.AggregatesSumAnalyticsProvider;
+import org.labkey.query.analytics.AggregatesUpperQuartileAnalyticsProvider;
 import org.labkey.query.analytics.RemoveColumnAnalyticsProvider;
 import org.labkey.query.analytics.SummaryStatisticsAnalyticsProvider;
 import org.labkey.query.audit.QueryExportAuditProvider;
@@ -94,7 +99,9 @@ import org.labkey.query.controllers.OlapController;
 import org.labkey.query.controllers.QueryController;
 import org.labkey.query.controllers.SqlController;
 import org.labkey.query.jdbc.QueryDriver;
+import org.labkey.query.olap.BitSetQueryImpl;
 import org.labkey.query.olap.MemberSet;
+import org.labkey.query.olap.OlapSnapshot;
 import org.labkey.query.olap.ServerManager;
 import org.labkey.query.olap.metadata.MetadataElementBase;
 import org.labkey.query.olap.rolap.RolapReader;
@@ -116,8 +123,10 @@ import org.labkey.query.reports.getdata.AggregateQueryDataTransform;
 import org.labkey.query.reports.getdata.FilterClauseBuilder;
 import org.labkey.query.reports.view.ReportAndDatasetChangeDigestEmailTemplate;
 import org.labkey.query.reports.view.ReportUIProvider;
+import org.labkey.query.sql.ParsedQueryCache;
 import org.labkey.query.sql.QNode;
 import org.labkey.query.sql.Query;
+import org.labkey.query.sql.QueryPivot;
 import org.labkey.query.sql.SqlParser;
 import org.labkey.query.view.InheritedQueryDataViewProvider;
 import org.labkey.query.view.QueryDataViewProvider;
@@ -182,6 +191,7 @@ public class QueryModule extends DefaultModule
 
         QueryService.get().addQueryListener(new CustomViewQueryChangeListener());
         QueryService.get().addQueryListener(new QuerySnapshotQueryChangeListener());
+        QueryService.get().addQueryListener(new ParsedQueryCache.QueryListener());
 
         ReportService.registerProvider(ReportServiceImpl.getInstance());
         ReportService.get().addUIProvider(new ReportUIProvider());
@@ -218,6 +228,9 @@ public class QueryModule extends DefaultModule
         AdminConsole.addExperimentalFeatureFlag(QueryServiceImpl.EXPERIMENTAL_LAST_MODIFIED, "Include Last-Modified header on query metadata requests",
                 "For schema, query, and view metadata requests include a Last-Modified header such that the browser can cache the response. " +
                 "The metadata is invalidated when performing actions such as creating a new List or modifying the columns on a custom view", false);
+        AdminConsole.addExperimentalFeatureFlag(QueryPivot.EXPERIMENTAL_PIVOT_VALUE_CACHE, "Cache PIVOT column lists",
+                "Reuse the pivot values discovered for a LabKey SQL PIVOT query for up to five minutes, instead of querying for them " +
+                "each time the query is run. Values added to the underlying data may not appear as columns until the cached list expires.", false);
     }
 
 
@@ -300,6 +313,11 @@ public class QueryModule extends DefaultModule
             analyticsProviderRegistry.registerProvider(new AggregatesMeanAnalyticsProvider());
             analyticsProviderRegistry.registerProvider(new AggregatesMinAnalyticsProvider());
             analyticsProviderRegistry.registerProvider(new AggregatesMaxAnalyticsProvider());
+            analyticsProviderRegistry.registerProvider(new AggregatesStdDevAnalyticsProvider());
+            analyticsProviderRegistry.registerProvider(new AggregatesMedianAnalyticsProvider());
+            analyticsProviderRegistry.registerProvider(new AggregatesLowerQuartileAnalyticsProvider());
+            analyticsProviderRegistry.registerProvider(new AggregatesUpperQuartileAnalyticsProvider());
+            analyticsProviderRegistry.registerProvider(new AggregatesCountDistinctAnalyticsProvider());
             analyticsProviderRegistry.registerProvider(new SummaryStatisticsAnalyticsProvider());
             analyticsProviderRegistry.registerProvider(new RemoveColumnAnalyticsProvider());
         }
@@ -312,6 +330,11 @@ public class QueryModule extends DefaultModule
             summaryStatisticRegistry.register(Aggregate.BaseType.COUNT);
             summaryStatisticRegistry.register(Aggregate.BaseType.MIN);
             summaryStatisticRegistry.register(Aggregate.BaseType.MAX);
+            summaryStatisticRegistry.register(Aggregate.ScanType.STDDEV);
+            summaryStatisticRegistry.register(Aggregate.ScanType.MEDIAN);
+            summaryStatisticRegistry.register(Aggregate.ScanType.Q1);
+            summaryStatisticRegistry.register(Aggregate.ScanType.Q3);
+            summaryStatisticRegistry.register(Aggregate.ScanType.COUNT_DISTINCT);
         }
 
         QueryManager.registerUsageMetrics(getName());
@@ -337,13 +360,16 @@ public class QueryModule extends DefaultModule
     public Set<Class> getIntegrationTests()
     {
         return Set.of(
+            AsyncQueryManager.TestCase.class,
             ModuleReportCache.TestCase.class,
             OlapController.TestCase.class,
+            ParsedQueryCache.TestCase.class,
             Query.QueryTestCase.class,
             QueryController.TestCase.class,
             QueryServiceImpl.TestCase.class,
             RolapReader.RolapTest.class,
             RolapTestCase.class,
+            RolapTestCase.PerfTestCase.class,
             ServerManager.TestCase.class
         );
     }
@@ -366,10 +392,13 @@ public class QueryModule extends DefaultModule
         return Set.of(
             AggregateQueryDataTransform.TestCase.class,
             AttachmentReport.TestCase.class,
+            BitSetQueryImpl.TestCase.class,
             FilterClauseBuilder.TestCase.class,
             JdbcType.TestCase.class,
             MemberSet.TestCase.class,
+            MemberSet.PerfTestCase.class,
             MetadataElementBase.TestCase.class,
+            OlapSnapshot.TestCase.class,
             QNode.TestCase.class,
             ReportsController.SerializationTest.class,
             SqlParser.SqlParserTestCase.class,
@@ -2580,23 +2580,7 @@ public class QueryServiceImpl implements QueryService
         }
         else
         {
-            CaseInsensitiveHashMap<ColumnInfo> aliases = new CaseInsensitiveHashMap<>();
-            ColumnInfo prev;
-            for (ColumnInfo column : allColumns)
-            {
-                if (null != (prev = aliases.put(column.getAlias(), column)))
-                {
-                    if (prev != column)
-                        ExceptionUtil.logExceptionToMothership(null, new Exception("Duplicate alias in column list: " + table.getSchema() + "." + table.getName() + "." + column.getFieldKey().toSQLString() + " as " + column.getAlias()));
-                    continue;
-                }
-                column.declareJoins(tableAlias, joins);
-                selectFrag.append(strComma);
-                selectFrag.append(column.getValueSql(tableAlias));
-                selectFrag.append(" AS ");
-                selectFrag.append(dialect.makeLegalIdentifier(column.getAlias()));
-                strComma = ",\n";
-            }
+            appendSelectColumns(selectFrag, table, allColumns, tableAlias, joins);
         }
 
         if (requiresExtraColumns)
@@ -2619,11 +2603,7 @@ public class QueryServiceImpl implements QueryService
         }
 
         SQLFragment fromFrag = new SQLFragment("FROM ");
-        Set<FieldKey> fieldKeySet = allColumns.stream()
-                .map(col -> col instanceof WrappedColumn ? ((WrappedColumn) col).getWrappedColumn() : col)
-                .map(ColumnInfo::getFieldKey)
-                .collect(Collectors.toSet());
-        SQLFragment getfromsql = table.getFromSQL(tableAlias, fieldKeySet);
+        SQLFragment getfromsql = table.getFromSQL(tableAlias, getFromFieldKeys(allColumns));
         fromFrag.append(getfromsql);
         fromFrag.append(" ");
 
@@ -2652,9 +2632,14 @@ public class QueryServiceImpl implements QueryService
             return selectFrag;
         }
 
-        SQLFragment nestedFrom = new SQLFragment();
-        nestedFrom.append("FROM (\n").append(selectFrag).append("\n").append(fromFrag).append(") x");
-        SQLFragment ret = dialect.limitRows(outerSelect, nestedFrom, filterFrag, orderBy, null, maxRows, offset);
+        SQLFragment ret = getLateJoinSelectSQL(table, tableAlias, allColumns, selectFrag, joins, outerSelect, filter, filterFrag, sort, orderBy, columnMap, maxRows, offset);
+
+        if (null == ret)
+        {
+            SQLFragment nestedFrom = new SQLFragment();
+            nestedFrom.append("FROM (\n").append(selectFrag).append("\n").append(fromFrag).append(") x");
+            ret = dialect.limitRows(outerSelect, nestedFrom, filterFrag, orderBy, null, maxRows, offset);
+        }
 
         if (AppProps.getInstance().isDevMode())
         {
@@ -2669,6 +2654,146 @@ public class QueryServiceImpl implements QueryService
     }
 
 
+    // Append each column's value and alias to the SELECT list, declaring the joins the columns need
+    private static void appendSelectColumns(SQLFragment selectFrag, TableInfo table, Collection<ColumnInfo> columns, String tableAlias, Map<String, SQLFragment> joins)
+    {
+        SqlDialect dialect = table.getSqlDialect();
+        CaseInsensitiveHashMap<ColumnInfo> aliases = new CaseInsensitiveHashMap<>();
+        String strComma = "\n";
+        ColumnInfo prev;
+
+        for (ColumnInfo column : columns)
+        {
+            if (null != (prev = aliases.put(column.getAlias(), column)))
+            {
+                if (prev != column)
+                    ExceptionUtil.logExceptionToMothership(null, new Exception("Duplicate alias in column list: " + table.getSchema() + "." + table.getName() + "." + column.getFieldKey().toSQLString() + " as " + column.getAlias()));
+                continue;
+            }
+            column.declareJoins(tableAlias, joins);
+            selectFrag.append(strComma);
+            selectFrag.append(column.getValueSql(tableAlias));
+            selectFrag.append(" AS ");
+            selectFrag.append(dialect.makeLegalIdentifier(column.getAlias()));
+            strComma = ",\n";
+        }
+    }
+
+
+    private static Set<FieldKey> getFromFieldKeys(Collection<ColumnInfo> columns)
+    {
+        return columns.stream()
+                .map(col -> col instanceof WrappedColumn ? ((WrappedColumn) col).getWrappedColumn() : col)
+                .map(ColumnInfo::getFieldKey)
+                .collect(Collectors.toSet());
+    }
+
+
+    /** Pages larger than this don't benefit enough from deferring lookup joins to pay for reading the base table twice */
+    private static final int LATE_JOIN_MAX_ROWS = 1000;
+
+    /**
+     * Late materialization of lookups for paged results. Lookups that are only displayed (not filtered or sorted on)
+     * are left out of the query that picks the page, then joined to the page's rows by primary key:
+     *
+     *   SELECT ... FROM (SELECT all columns FROM base
+     *       INNER JOIN (SELECT pk FROM (SELECT filter and sort columns FROM base + their joins) x WHERE ... ORDER BY ... LIMIT) _page_ ON pk
+     *       LEFT OUTER JOIN display lookups) x
+     *   ORDER BY ...
+     *
+     * so a grid with many lookups joins them for one page of rows rather than for every row that matches the filter.
+     * This is only done when every lookup is to-one (see LookupColumn.isToOne()), so deferring a join can't change which
+     * rows make up the page, and when it's likely to pay off: a small page, a base table with a primary key that isn't
+     * itself a LabKey SQL query (whose FROM we'd run twice), and at least one join that can be deferred.
+     *
+     * @return the SQL, or null to generate the usual single-level query
+     */
+    private static @Nullable SQLFragment getLateJoinSelectSQL(TableInfo table, String tableAlias, List<ColumnInfo> allColumns, SQLFragment selectFrag, Map<String, SQLFragment> joins,
+                                                              SQLFragment outerSelect, @Nullable Filter filter, @Nullable SQLFragment filterFrag, @Nullable Sort sort, @Nullable String orderBy,
+                                                              Map<FieldKey, ColumnInfo> columnMap, int maxRows, long offset)
+    {
+        if (maxRows <= 0 || maxRows > LATE_JOIN_MAX_ROWS || joins.isEmpty() || table instanceof QueryTableInfo)
+            return null;
+
+        List<ColumnInfo> pkColumns = table.getPkColumns();
+        if (pkColumns.isEmpty() || !allColumns.stream().allMatch(LookupColumn::isToOne))
+            return null;
+
+        // The page query needs the keys and every column the filter and sort use
+        Set<FieldKey> pageKeys = new HashSet<>();
+        pkColumns.forEach(pk -> pageKeys.add(pk.getFieldKey()));
+        if (null != filter)
+            pageKeys.addAll(filter.getWhereParamFieldKeys());
+        if (null != sort)
+        {
+            for (Sort.SortField sf : sort.getSortList())
+            {
+                pageKeys.add(sf.getFieldKey());
+                ColumnInfo col = columnMap.get(sf.getFieldKey());
+                if (null != col && null != col.getSortFieldKeys())
+                    pageKeys.addAll(col.getSortFieldKeys());
+            }
+        }
+
+        // Columns without joins cost nothing extra, so keep them in case a filter uses them without declaring them
+        List<ColumnInfo> pageColumns = new ArrayList<>();
+        for (ColumnInfo column : allColumns)
+        {
+            Map<String, SQLFragment> columnJoins = new LinkedHashMap<>();
+            column.declareJoins(tableAlias, columnJoins);
+            if (columnJoins.isEmpty() || pageKeys.contains(column.getFieldKey()))
+                pageColumns.add(column);
+        }
+        for (ColumnInfo pk : pkColumns)
+        {
+            if (!pageColumns.contains(pk))
+                pageColumns.add(pk);
+        }
+
+        Map<String, SQLFragment> pageJoins = new LinkedHashMap<>();
+        SQLFragment pageColumnsFrag = new SQLFragment("SELECT ");
+        appendSelectColumns(pageColumnsFrag, table, pageColumns, tableAlias, pageJoins);
+
+        // Nothing to defer
+        if (pageJoins.keySet().containsAll(joins.keySet()))
+            return null;
+
+        SqlDialect dialect = table.getSqlDialect();
+        SQLFragment pageSelect = new SQLFragment("SELECT ");
+        SQLFragment pageOn = new SQLFragment();
+        String strComma = "";
+        String strAnd = "";
+
+        for (ColumnInfo pk : pkColumns)
+        {
+            pageSelect.append(strComma).append(dialect.getColumnSelectName(pk.getAlias()));
+            pageOn.append(strAnd).append(pk.getValueSql(tableAlias)).append(" = _page_.").append(dialect.makeLegalIdentifier(pk.getAlias()));
+            strComma = ", ";
+            strAnd = " AND ";
+        }
+
+        SQLFragment pageFrom = new SQLFragment("FROM (\n").append(pageColumnsFrag).append("\nFROM ");
+        pageFrom.append(table.getFromSQL(tableAlias, getFromFieldKeys(pageColumns))).append(" ");
+        for (SQLFragment join : pageJoins.values())
+            pageFrom.append("\n").append(join);
+        pageFrom.append(") x");
+
+        SQLFragment page = dialect.limitRows(pageSelect, pageFrom, filterFrag, orderBy, null, maxRows, offset);
+
+        SQLFragment fromFrag = new SQLFragment("FROM ");
+        fromFrag.append(table.getFromSQL(tableAlias, getFromFieldKeys(allColumns))).append(" ");
+        fromFrag.append("\nINNER JOIN (\n").append(page).append("\n) _page_ ON ").append(pageOn);
+        for (SQLFragment join : joins.values())
+            fromFrag.append("\n").append(join);
+
+        SQLFragment nestedFrom = new SQLFragment();
+        nestedFrom.append("FROM (\n").append(selectFrag).append("\n").append(fromFrag).append(") x");
+
+        // The join doesn't preserve the page's order, so sort again
+        return dialect.limitRows(outerSelect, nestedFrom, null, orderBy, null, Table.ALL_ROWS, 0);
+    }
+
+
     private static Sort createDefaultSort(Collection<ColumnInfo> columns)
     {
         Sort sort = new Sort();
@@ -3269,6 +3394,57 @@ public class QueryServiceImpl implements QueryService
         }
 
 
+        @Test
+        public void testLateJoin()
+        {
+            TableInfo roleAssignments = DbSchema.get("core", DbSchemaType.Module).getTable("roleassignments");
+            FieldKey userName = FieldKey.fromParts("userid", "name");
+            Map<FieldKey, ColumnInfo> map = QueryService.get().getColumns(roleAssignments, Arrays.asList(
+                    FieldKey.fromParts("resourceid"), FieldKey.fromParts("userid"), FieldKey.fromParts("role"), userName));
+
+            // The user lookup is only displayed, so it's joined after the page is picked
+            SQLFragment sql = QueryService.get().getSelectSQL(roleAssignments, map.values(), null, new Sort("+role"), 10, 0, false);
+            assertTrue(sql.getSQL(), sql.getSQL().contains("_page_"));
+            assertTrue(new SqlSelector(roleAssignments.getSchema(), sql).getRowCount() <= 10);
+
+            // Sorting on the lookup needs its join to pick the page, so there's nothing to defer
+            sql = QueryService.get().getSelectSQL(roleAssignments, map.values(), null, new Sort("+role,+userid/name"), 10, 0, false);
+            assertFalse(sql.getSQL(), sql.getSQL().contains("_page_"));
+
+            sql = QueryService.get().getSelectSQL(roleAssignments, map.values(), null, new Sort("+role"), Table.ALL_ROWS, 0, false);
+            assertFalse(sql.getSQL(), sql.getSQL().contains("_page_"));
+
+            // A page from the late join path has the same rows, in the same order, as the same page from the usual
+            // query. The filter needs no join, the sort's user lookup is joined to pick the page, and the policy
+            // lookup is deferred. The sort ends with the primary key so the order is total.
+            FieldKey resourceClass = FieldKey.fromParts("resourceid", "resourceclass");
+            map = QueryService.get().getColumns(roleAssignments, Arrays.asList(
+                    FieldKey.fromParts("resourceid"), FieldKey.fromParts("userid"), FieldKey.fromParts("role"), userName, resourceClass));
+            SimpleFilter filter = new SimpleFilter(FieldKey.fromParts("role"), null, CompareType.NONBLANK);
+            Sort sort = new Sort("+userid/name,+role,+resourceid,+userid");
+
+            List<List<Object>> all = selectRows(roleAssignments, map, filter, sort, Table.ALL_ROWS, 0);
+            for (int offset : new int[]{0, 3})
+            {
+                sql = QueryService.get().getSelectSQL(roleAssignments, map.values(), filter, sort, 10, offset, false);
+                assertTrue(sql.getSQL(), sql.getSQL().contains("_page_"));
+                assertEquals(all.subList(Math.min(offset, all.size()), Math.min(offset + 10, all.size())), selectRows(roleAssignments, map, filter, sort, 10, offset));
+            }
+        }
+
+        private List<List<Object>> selectRows(TableInfo table, Map<FieldKey, ColumnInfo> columns, Filter filter, Sort sort, int maxRows, long offset)
+        {
+            SQLFragment sql = QueryService.get().getSelectSQL(table, columns.values(), filter, sort, maxRows, offset, false);
+            List<List<Object>> ret = new ArrayList<>();
+            for (Map<String, Object> row : new SqlSelector(table.getSchema(), sql).getMapArray())
+            {
+                Map<String, Object> values = new CaseInsensitiveHashMap<>(row);
+                ret.add(columns.values().stream().map(col -> values.get(col.getAlias())).collect(Collectors.toList()));
+            }
+            return ret;
+        }
+
+
         @Test
         public void testParameters() throws SQLException
         {
@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2021 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.query.analytics;
+
+import org.jetbrains.annotations.NotNull;
+import org.labkey.api.data.Aggregate;
+import org.labkey.api.data.ColumnInfo;
+import org.labkey.api.stats.BaseAggregatesAnalyticsProvider;
+
+public class AggregatesUpperQuartileAnalyticsProvider extends BaseAggregatesAnalyticsProvider
+{
+    @Override
+    public Aggregate.Type getAggregateType()
+    {
+        return Aggregate.ScanType.Q3;
+    }
+
+    @Override
+    public boolean isApplicable(@NotNull ColumnInfo col)
+    {
+        return isApplicableNonKey(col);
+    }
+
+    @Override
+    public Integer getSortOrder()
+    {
+        return 208;
+    }
+}
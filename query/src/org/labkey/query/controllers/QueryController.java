@@ -102,7 +102,9 @@ import org.labkey.api.util.StringExpression;
 import org.labkey.api.util.TestContext;
 import org.labkey.api.util.URLHelper;
 import org.labkey.api.util.XmlBeansUtil;
+import org.labkey.api.util.element.CsrfInput;
 import org.labkey.api.view.ActionURL;
+import org.labkey.api.view.DataView;
 import org.labkey.api.view.DetailsView;
 import org.labkey.api.view.HtmlView;
 import org.labkey.api.view.HttpView;
@@ -125,6 +127,7 @@ import org.labkey.data.xml.TablesDocument;
 import org.labkey.data.xml.TablesType;
 import org.labkey.data.xml.externalSchema.TemplateSchemaType;
 import org.labkey.data.xml.queryCustomView.FilterType;
+import org.labkey.query.AsyncQueryManager;
 import org.labkey.query.CustomViewImpl;
 import org.labkey.query.CustomViewUtil;
 import org.labkey.query.EditQueriesPermission;
@@ -193,6 +196,7 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.GZIPOutputStream;
 
 import static java.util.Objects.requireNonNull;
@@ -226,6 +230,7 @@ public class QueryController extends SpringActionController
     public static void registerAdminConsoleLinks()
     {
         AdminConsole.addLink(AdminConsole.SettingsLinkType.Diagnostics, "data sources", new ActionURL(DataSourceAdminAction.class, ContainerManager.getRoot()));
+        AdminConsole.addLink(AdminConsole.SettingsLinkType.Diagnostics, "running queries", new ActionURL(RunningQueriesAction.class, ContainerManager.getRoot()), AdminOperationsPermission.class);
     }
 
     public static class RemoteQueryConnectionUrls
@@ -685,6 +690,96 @@ public class QueryController extends SpringActionController
     }
 
 
+    // Lists queries submitted via submitQuery.api that are still running or whose results are still held
+    @AdminConsoleAction(AdminOperationsPermission.class)
+    public static class RunningQueriesAction extends FormViewAction<QueryHandleForm>
+    {
+        @Override
+        public void validateCommand(QueryHandleForm form, Errors errors)
+        {
+        }
+
+        @Override
+        public ModelAndView getView(QueryHandleForm form, boolean reshow, BindException errors)
+        {
+            StringBuilder sb = new StringBuilder();
+
+            sb.append("\n<div>Queries submitted for background execution. Cancelling a query stops it and releases its database connection; rows already read remain available to the client.</div><br/>\n");
+            sb.append("\n<table class=\"labkey-data-region\">\n");
+            sb.append("<tr class=\"labkey-show-borders\">");
+            sb.append("  <td class=\"labkey-column-header\">Status</td>");
+            sb.append("  <td class=\"labkey-column-header\">User</td>");
+            sb.append("  <td class=\"labkey-column-header\">Folder</td>");
+            sb.append("  <td class=\"labkey-column-header\">Query</td>");
+            sb.append("  <td class=\"labkey-column-header\">Rows</td>");
+            sb.append("  <td class=\"labkey-column-header\">Elapsed (ms)</td>");
+            sb.append("  <td class=\"labkey-column-header\">Previous Runs</td>");
+            sb.append("  <td class=\"labkey-column-header\">Average (ms)</td>");
+            sb.append("  <td class=\"labkey-column-header\">&nbsp;</td></tr>\n");
+
+            int rowCount = 0;
+            for (AsyncQueryManager.QueryHandle handle : AsyncQueryManager.get().getHandles())
+            {
+                Map<String, Object> status = handle.toJSON();
+                @SuppressWarnings("unchecked")
+                Map<String, Object> stats = (Map<String, Object>) status.get("queryStats");
+
+                sb.append("<tr class=\"").append(rowCount % 2 == 0 ? "labkey-alternate-row" : "labkey-row").append(" labkey-show-borders\">");
+                sb.append("<td>").append(PageFlowUtil.filter(status.get("status"))).append("</td>");
+                sb.append("<td>").append(PageFlowUtil.filter(status.get("user"))).append("</td>");
+                sb.append("<td>").append(PageFlowUtil.filter(handle.getContainer().getPath())).append("</td>");
+                sb.append("<td title=\"").append(PageFlowUtil.filter(handle.getSql())).append("\">").append(PageFlowUtil.filter(handle.getDescription())).append("</td>");
+                sb.append("<td>").append(status.get("rowCount")).append(Boolean.TRUE.equals(status.get("truncated")) ? " (truncated)" : "").append("</td>");
+                sb.append("<td>").append(Objects.toString(status.get("elapsed"), "")).append("</td>");
+                sb.append("<td>").append(null == stats ? "" : stats.get("count")).append("</td>");
+                sb.append("<td>").append(null == stats ? "" : stats.get("average")).append("</td>");
+                sb.append("<td>");
+
+                if (!handle.getStatus().isDone())
+                {
+                    sb.append("<form method=\"POST\">");
+                    sb.append(new CsrfInput(getViewContext()));
+                    sb.append("<input type=\"hidden\" name=\"handle\" value=\"").append(PageFlowUtil.filter(handle.getId())).append("\">");
+                    sb.append("<input type=\"submit\" value=\"Cancel\"></form>");
+                }
+
+                sb.append("</td></tr>\n");
+                rowCount++;
+            }
+
+            if (0 == rowCount)
+                sb.append("<tr><td colspan=9><em>No queries</em></td></tr>\n");
+
+            sb.append("</table>\n");
+
+            return new HtmlView(HtmlString.unsafe(sb.toString()));
+        }
+
+        @Override
+        public boolean handlePost(QueryHandleForm form, BindException errors)
+        {
+            for (AsyncQueryManager.QueryHandle handle : AsyncQueryManager.get().getHandles())
+            {
+                if (handle.getId().equals(form.getHandle()))
+                    handle.cancel();
+            }
+            return true;
+        }
+
+        @Override
+        public URLHelper getSuccessURL(QueryHandleForm form)
+        {
+            return new ActionURL(RunningQueriesAction.class, getContainer());
+        }
+
+        @Override
+        public void addNavTrail(NavTree root)
+        {
+            requireNonNull(urlProvider(AdminUrls.class)).addAdminNavTrail(root, "Running Queries", getClass(), getContainer());
+        }
+    }
+
+
     @RequiresPermission(ReadPermission.class)
     public static class BrowseAction extends SimpleViewAction<Object>
     {
@@ -3182,6 +3277,199 @@ public class QueryController extends SpringActionController
         }
     }
 
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public static class SubmitQueryForm extends APIQueryForm
+    {
+        private String _sql;
+        private Integer _maxRows;
+
+        public String getSql()
+        {
+            return _sql;
+        }
+
+        public void setSql(String sql)
+        {
+            _sql = sql;
+        }
+
+        public Integer getMaxRows()
+        {
+            return _maxRows;
+        }
+
+        public void setMaxRows(Integer maxRows)
+        {
+            _maxRows = maxRows;
+        }
+    }
+
+    /**
+     * Start a query (a saved query or view, or LabKey SQL) on a background thread and return a handle. Poll
+     * getQueryStatus.api and page through rows with getQueryResults.api while it runs; cancelQuery.api stops it.
+     */
+    @RequiresPermission(ReadPermission.class)
+    @Action(ActionType.SelectData.class)
+    public class SubmitQueryAction extends MutatingApiAction<SubmitQueryForm>
+    {
+        @Override
+        public ApiResponse execute(SubmitQueryForm form, BindException errors)
+        {
+            if (form.getSchema() == null)
+                throw new NotFoundException("Could not find schema: " + form.getSchemaName());
+
+            String sql = StringUtils.trimToNull(form.getSql());
+            QuerySettings settings = form.getQuerySettings();
+            String description;
+
+            if (null != sql)
+            {
+                settings = new TempQuerySettings(getViewContext(), sql, settings);
+                description = sql;
+            }
+            else if (null != form.getQueryName())
+            {
+                description = form.getSchemaName() + "." + form.getQueryName();
+            }
+            else
+            {
+                throw new ApiUsageException("Either 'sql' or 'queryName' is required");
+            }
+
+            settings.setAllowChooseView(false);
+            settings.setAllowCustomizeView(false);
+            if (null != form.getMaxRows() && form.getMaxRows() >= 0)
+            {
+                settings.setShowRows(ShowRows.PAGINATED);
+                settings.setMaxRows(form.getMaxRows());
+            }
+            else
+            {
+                settings.setShowRows(ShowRows.ALL);
+            }
+
+            QueryView view = new QueryView(form.getSchema(), settings, errors);
+            TableInfo t = view.getTable();
+            if (null == t)
+            {
+                List<QueryException> qpes = view.getParseErrors();
+                if (!qpes.isEmpty())
+                    throw qpes.get(0);
+                throw new NotFoundException(form.getQueryName());
+            }
+
+            DataView dataView = view.createDataView();
+            DataRegion rgn = dataView.getDataRegion();
+            RenderContext ctx = dataView.getRenderContext();
+            rgn.setAllowAsync(false);
+            rgn.prepareDisplayColumns(ctx.getContainer());
+
+            List<ColumnInfo> columns = new ArrayList<>();
+            for (DisplayColumn dc : view.getExportColumns(rgn.getDisplayColumns()))
+            {
+                ColumnInfo col = dc.getColumnInfo();
+                if (null != col && !columns.contains(col))
+                    columns.add(col);
+            }
+
+            AsyncQueryManager.QueryHandle handle = AsyncQueryManager.get().submit(getUser(), getContainer(), description, rgn.getResultsSelector(ctx), columns);
+
+            return new ApiSimpleResponse(handle.toJSON());
+        }
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public static class QueryHandleForm
+    {
+        private String _handle;
+        private int _offset = 0;
+        private int _maxRows = 1000;
+        private int _wait = 0;
+
+        public String getHandle()
+        {
+            return _handle;
+        }
+
+        public void setHandle(String handle)
+        {
+            _handle = handle;
+        }
+
+        public int getOffset()
+        {
+            return _offset;
+        }
+
+        public void setOffset(int offset)
+        {
+            _offset = offset;
+        }
+
+        public int getMaxRows()
+        {
+            return _maxRows;
+        }
+
+        public void setMaxRows(int maxRows)
+        {
+            _maxRows = maxRows;
+        }
+
+        /** Seconds to wait for the requested rows (or completion) before responding, at most 30 */
+        public int getWait()
+        {
+            return _wait;
+        }
+
+        public void setWait(int wait)
+        {
+            _wait = wait;
+        }
+    }
+
+    @RequiresPermission(ReadPermission.class)
+    public class GetQueryStatusAction extends ReadOnlyApiAction<QueryHandleForm>
+    {
+        @Override
+        public ApiResponse execute(QueryHandleForm form, BindException errors)
+        {
+            return new ApiSimpleResponse(AsyncQueryManager.get().getHandle(getUser(), getContainer(), form.getHandle()).toJSON());
+        }
+    }
+
+    @RequiresPermission(ReadPermission.class)
+    @Action(ActionType.SelectData.class)
+    public class GetQueryResultsAction extends ReadOnlyApiAction<QueryHandleForm>
+    {
+        @Override
+        public ApiResponse execute(QueryHandleForm form, BindException errors) throws Exception
+        {
+            if (form.getOffset() < 0 || form.getMaxRows() < 0)
+                throw new ApiUsageException("offset and maxRows must not be negative");
+
+            // Pages are built under the handle's lock, so keep them small; clients page on with offset + rows returned
+            int maxRows = Math.min(form.getMaxRows(), AsyncQueryManager.MAX_PAGE_ROWS);
+            AsyncQueryManager.QueryHandle handle = AsyncQueryManager.get().getHandle(getUser(), getContainer(), form.getHandle());
+            if (form.getWait() > 0)
+                handle.awaitRows((int) Math.min(Integer.MAX_VALUE, (long) form.getOffset() + maxRows), TimeUnit.SECONDS.toMillis(Math.min(form.getWait(), 30)));
+
+            return new ApiSimpleResponse(handle.toJSON(form.getOffset(), maxRows));
+        }
+    }
+
+    @RequiresPermission(ReadPermission.class)
+    public class CancelQueryAction extends MutatingApiAction<QueryHandleForm>
+    {
+        @Override
+        public ApiResponse execute(QueryHandleForm form, BindException errors)
+        {
+            AsyncQueryManager.QueryHandle handle = AsyncQueryManager.get().getHandle(getUser(), getContainer(), form.getHandle());
+            handle.cancel();
+            return new ApiSimpleResponse(handle.toJSON());
+        }
+    }
+
     public static class ContainerFilterQueryForm extends QueryForm
     {
         private String _containerFilter;
@@ -20,6 +20,8 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.junit.Assert;
+import org.junit.Test;
 import org.labkey.api.cache.Cache;
 import org.labkey.api.cache.CacheManager;
 import org.labkey.api.collections.CaseInsensitiveHashMap;
@@ -36,7 +38,9 @@ import org.labkey.api.security.User;
 import org.labkey.api.security.roles.ReaderRole;
 import org.labkey.api.security.roles.RoleManager;
 import org.labkey.api.util.CPUTimer;
+import org.labkey.api.util.ContextListener;
 import org.labkey.api.util.GUID;
+import org.labkey.api.util.ShutdownListener;
 import org.labkey.api.visualization.SQLGenerationException;
 import org.labkey.api.visualization.VisualizationService;
 import org.labkey.query.olap.metadata.CachedCube;
@@ -61,6 +65,7 @@ import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -70,7 +75,11 @@ import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
 import static org.labkey.query.olap.QubeQuery.OP;
@@ -101,10 +110,51 @@ public class BitSetQueryImpl
     private MeasureDef measure;
     private OlapConnection connection;
     private final String cachePrefix;
+    private final @Nullable OlapSnapshot.Members snapshot;   // on-disk copy of the results cache, if the schema keeps one
     private SqlDialect dialect = null;
     private final User serviceUser;
     private final User user;
     private IDataSourceHelper _dataSourceHelper; // configured based on the provided OlapSchemaDescriptor
+    private final int cellParallelism;
+
+    // Two-axis results with at least this many cells are worth splitting across threads
+    private static final int PARALLEL_CELL_THRESHOLD = 10_000;
+
+    // Shared by all queries; each query splits its rows into at most OlapSchemaDescriptor.getCellParallelism() blocks.
+    // Created on first use, so servers that never turn on parallel evaluation don't start the threads.
+    private static class CellPool
+    {
+        private static final ForkJoinPool INSTANCE = create();
+
+        private static ForkJoinPool create()
+        {
+            ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+            ContextListener.addShutdownListener(new ShutdownListener()
+            {
+                @Override
+                public String getName()
+                {
+                    return "OLAP cell evaluation pool";
+                }
+
+                @Override
+                public void shutdownPre()
+                {
+                    pool.shutdown();
+                }
+
+                @Override
+                public void shutdownStarted()
+                {
+                    pool.shutdownNow();
+                }
+            });
+            return pool;
+        }
+    }
+
+    // Caps how many heavy queries evaluate cells in parallel at once; the rest run serially rather than queue
+    private static final Semaphore PARALLEL_QUERIES = new Semaphore(Math.max(1, Runtime.getRuntime().availableProcessors() / 8));
 
     private MemberSet containerMembers = null;  // null == all
 
@@ -118,6 +168,7 @@ public class BitSetQueryImpl
         this.cube = qq.getCube();
 
         _dataSourceHelper = new SqlDataSourceHelper();
+        cellParallelism = sd.getCellParallelism();
 
         RolapCubeDef r = null;
         List<RolapCubeDef> defs = sd.getRolapCubeDefinitions();
@@ -137,6 +188,8 @@ public class BitSetQueryImpl
         String cubeId = cube.getUniqueName() +
                 ((cube instanceof CachedCube)?"@" + ((CachedCube)cube).getLongHashCode() : "");
         this.cachePrefix = "" + c.getRowId() + "/" + sd.getId() + "/" + cubeId + "/";
+        // only a CachedCube's hash tells us whether member ordinals in a snapshot still line up
+        this.snapshot = cube instanceof CachedCube ? OlapSnapshot.getMembers(c, sd, cube.getName(), cachePrefix) : null;
 
         initCube();
         initDistinctMeasure();
@@ -1028,6 +1081,14 @@ public class BitSetQueryImpl
             else
                 colMembers = axisMembers;
         }
+        // TWO-AXIS, simple case (no join level): every cell is an intersection of precomputed sets, evaluated in parallel
+        // for large results when the schema allows it
+        else if (joinLevel == countDistinctLevel && 0 != countFilterSet && 0 != countWhereSet && isParallelCandidate(rowsExpr, colsExpr))
+        {
+            rowMembers = new ArrayList<>();
+            colMembers = new ArrayList<>();
+            evaluateCellsInParallel(rowsExpr, colsExpr, countDistinctLevel, filterSet, allNullMember, rowMembers, colMembers, measureValues);
+        }
         // TWO-AXIS
         else
         {
@@ -1119,18 +1180,7 @@ public class BitSetQueryImpl
                         else
                         {
                             // simple case, just intersect everything and return the count
-                            if (null == filterSet)
-                            {
-                                count = MemberSet.countIntersect(rowMemberSet, colMemberSet);
-                                if (null != allNullMember && rowMemberSet.contains(allNullMember) && colMemberSet.contains(allNullMember))
-                                    count -= 1;
-                            }
-                            else
-                            {
-                                count = MemberSet.countIntersect(rowMemberSet, colMemberSet, filterSet);
-                                if (null != allNullMember && rowMemberSet.contains(allNullMember) && colMemberSet.contains(allNullMember) && filterSet.contains(allNullMember))
-                                    count -= 1;
-                            }
+                            count = countCell(rowMemberSet, colMemberSet, filterSet, allNullMember);
                         }
                     }
                     measureValues.add(count);
@@ -1143,6 +1193,123 @@ public class BitSetQueryImpl
     }
 
 
+    private static int countCell(MemberSet rowMemberSet, MemberSet colMemberSet, @Nullable MemberSet filterSet, @Nullable Member allNullMember)
+    {
+        int count;
+
+        if (null == filterSet)
+        {
+            count = MemberSet.countIntersect(rowMemberSet, colMemberSet);
+            if (null != allNullMember && rowMemberSet.contains(allNullMember) && colMemberSet.contains(allNullMember))
+                count -= 1;
+        }
+        else
+        {
+            count = MemberSet.countIntersect(rowMemberSet, colMemberSet, filterSet);
+            if (null != allNullMember && rowMemberSet.contains(allNullMember) && colMemberSet.contains(allNullMember) && filterSet.contains(allNullMember))
+                count -= 1;
+        }
+
+        return count;
+    }
+
+
+    private List<Member> axisMembers(Result axisExpr)
+    {
+        List<Member> members = new ArrayList<>();
+        for (Member m : axisExpr.getCollection())
+        {
+            if (m.isCalculated() && axisExpr.skipCalculated())
+                continue;
+            members.add(m);
+        }
+        return members;
+    }
+
+
+    private boolean isParallelCandidate(Result rowsExpr, Result colsExpr)
+    {
+        if (cellParallelism < 2)
+            return false;
+
+        long cells = (long)rowsExpr.getCollection().size() * colsExpr.getCollection().size();
+        return cells >= PARALLEL_CELL_THRESHOLD;
+    }
+
+
+    /*
+     * Same results as the serial two-axis loop for the simple case. Row and column member sets are fetched up front on this
+     * thread (that's where any SQL or results cache traffic happens); the pool threads only intersect and count those
+     * sets, which are read-only by then. Each block of rows writes its own slice of the counts array, so the cell set is
+     * assembled in the same order regardless of scheduling. If too many heavy queries are already running in parallel,
+     * this one runs on the calling thread instead.
+     */
+    private void evaluateCellsInParallel(Result rowsExpr, Result colsExpr, Level countDistinctLevel, @Nullable MemberSet filterSet, @Nullable Member allNullMember,
+                                         List<Member> rowMembers, List<Member> colMembers, List<Number> measureValues) throws SQLException
+    {
+        List<Member> rows = axisMembers(rowsExpr);
+        List<Member> cols = axisMembers(colsExpr);
+
+        rowMembers.addAll(rows);
+        // matches the serial loop, which only collects columns while visiting the first row
+        if (!rows.isEmpty())
+            colMembers.addAll(cols);
+
+        MemberSet[] rowSets = new MemberSet[rows.size()];
+        for (int r = 0; r < rowSets.length; r++)
+            rowSets[r] = _dataSourceHelper.membersQuery(countDistinctLevel, rows.get(r));
+        MemberSet[] colSets = new MemberSet[cols.size()];
+        for (int c = 0; c < colSets.length; c++)
+            colSets[c] = _dataSourceHelper.membersQuery(countDistinctLevel, cols.get(c));
+
+        for (int count : countCells(rowSets, colSets, filterSet, allNullMember, cellParallelism))
+            measureValues.add(count);
+    }
+
+
+    /* Counts of every row x column cell, in row-major order, split into at most parallelism blocks of rows */
+    static int[] countCells(MemberSet[] rowSets, MemberSet[] colSets, @Nullable MemberSet filterSet, @Nullable Member allNullMember, int parallelism)
+    {
+        int[] counts = new int[rowSets.length * colSets.length];
+        int blocks = Math.min(parallelism, rowSets.length);
+        int rowsPerBlock = (rowSets.length + blocks - 1) / Math.max(1, blocks);
+
+        if (blocks > 1 && PARALLEL_QUERIES.tryAcquire())
+        {
+            try
+            {
+                List<ForkJoinTask<?>> tasks = new ArrayList<>(blocks);
+                for (int start = 0; start < rowSets.length; start += rowsPerBlock)
+                {
+                    int from = start;
+                    int to = Math.min(rowSets.length, start + rowsPerBlock);
+                    tasks.add(CellPool.INSTANCE.submit(() -> countRows(rowSets, colSets, from, to, filterSet, allNullMember, counts)));
+                }
+                for (ForkJoinTask<?> task : tasks)
+                    task.join();
+            }
+            finally
+            {
+                PARALLEL_QUERIES.release();
+            }
+        }
+        else
+        {
+            countRows(rowSets, colSets, 0, rowSets.length, filterSet, allNullMember, counts);
+        }
+
+        return counts;
+    }
+
+
+    private static void countRows(MemberSet[] rowSets, MemberSet[] colSets, int from, int to, @Nullable MemberSet filterSet, @Nullable Member allNullMember, int[] counts)
+    {
+        for (int r = from; r < to; r++)
+            for (int c = 0; c < colSets.length; c++)
+                counts[r * colSets.length + c] = countCell(rowSets[r], colSets[c], filterSet, allNullMember);
+    }
+
+
     MemberSet filter(Level measureLevel, Result filterAxisResult, MemberSet containerMembers) throws SQLException
     {
         List<Result> list = new ArrayList<>();
@@ -1390,6 +1557,12 @@ public class BitSetQueryImpl
     {
         String key = cachePrefix + query;
         MemberSet m = _resultsCache.get(key);
+        if (null == m && null != snapshot)
+        {
+            m = snapshot.get(query, levelMap);
+            if (null != m)
+                _resultsCache.put(key, m);
+        }
         if (null == m)
             return null;
         return m.attach(levelMap);
@@ -1398,7 +1571,11 @@ public class BitSetQueryImpl
     void resultsCachePut(String query, MemberSet m)
     {
         String key = cachePrefix + query;
-        _resultsCache.put(key, m.detach());
+        // detach() seals the set, so it's immutable before other threads (or the snapshot's save) can see it
+        MemberSet detached = m.detach();
+        _resultsCache.put(key, detached);
+        if (null != snapshot)
+            snapshot.put(query, detached);
         if (_log.isTraceEnabled())
         {
             long size = m.getMemorySizeInBytes();
@@ -2558,14 +2735,17 @@ public class BitSetQueryImpl
     static public void invalidateCache(Container c)
     {
         _resultsCache.removeUsingFilter(new Cache.StringPrefixFilter(c.getRowId() + "/"));
+        OlapSnapshot.delete(c);
     }
     static public void invalidateCache(OlapSchemaDescriptor sd)
     {
         _resultsCache.clear();
+        OlapSnapshot.delete(null);
     }
     static public void invalidateCache()
     {
         _resultsCache.clear();
+        OlapSnapshot.delete(null);
     }
 
 
@@ -2581,4 +2761,45 @@ public class BitSetQueryImpl
     {
         _log.error(msg, x);
     }
+
+
+    public static class TestCase extends Assert
+    {
+        @Test
+        public void testParallelCountsMatchSerial() throws OlapException
+        {
+            List<Member> members = new ArrayList<>(MemberSet.l1.getMembers());
+            members.addAll(MemberSet.l2.getMembers());
+            Random random = new Random(42);
+            MemberSet[] rowSets = randomSets(random, members, 37);
+            MemberSet[] colSets = randomSets(random, members, 11);
+            Member allNullMember = members.get(0);
+
+            for (MemberSet filterSet : Arrays.asList(null, randomSets(random, members, 1)[0]))
+            {
+                int[] serial = countCells(rowSets, colSets, filterSet, allNullMember, 1);
+                for (int r = 0; r < rowSets.length; r++)
+                    for (int c = 0; c < colSets.length; c++)
+                        assertEquals(countCell(rowSets[r], colSets[c], filterSet, allNullMember), serial[r * colSets.length + c]);
+
+                // uneven blocks, and more blocks than rows
+                for (int parallelism : new int[]{2, 3, 8, 64})
+                    assertArrayEquals(serial, countCells(rowSets, colSets, filterSet, allNullMember, parallelism));
+            }
+        }
+
+        private static MemberSet[] randomSets(Random random, List<Member> members, int count)
+        {
+            MemberSet[] sets = new MemberSet[count];
+            for (int i = 0; i < count; i++)
+            {
+                sets[i] = new MemberSet();
+                for (Member m : members)
+                    if (random.nextBoolean())
+                        sets[i].add(m);
+                sets[i].seal();
+            }
+            return sets;
+        }
+    }
 }
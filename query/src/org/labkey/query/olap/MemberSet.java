@@ -16,19 +16,25 @@
 package org.labkey.query.olap;
 
 import org.apache.commons.collections4.iterators.IteratorChain;
+import org.apache.logging.log4j.LogManager;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.junit.Assert;
 import org.junit.Test;
+import org.labkey.api.collections.RoaringBitSet;
 import org.labkey.api.collections.SparseBitSet;
+import org.labkey.api.test.TestWhen;
 import org.olap4j.OlapException;
 import org.olap4j.metadata.Hierarchy;
 import org.olap4j.metadata.Level;
 import org.olap4j.metadata.Member;
 
+import java.io.DataOutput;
+import java.io.IOException;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
 import java.util.AbstractSet;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -39,6 +45,7 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 
 /**
@@ -138,6 +145,42 @@ public class MemberSet extends AbstractSet<Member>
     }
 
 
+    // Binary form used by OlapSnapshot: the number of levels, then each level's unique name and member ordinals.
+    // Levels are looked up by name again when the set is read back, so it can outlive the Level objects.
+    // The set must already be sealed; sealing here could modify a set that other threads are reading.
+
+    void writeTo(DataOutput out) throws IOException
+    {
+        for (LevelMemberSet s : levelMap.values())
+            if (!s._set.isSealed())
+                throw new IllegalStateException("MemberSet must be sealed before it's written");
+        out.writeInt(levelMap.size());
+        for (Map.Entry<String,LevelMemberSet> entry : levelMap.entrySet())
+        {
+            OlapSnapshot.writeString(out, entry.getKey());
+            entry.getValue()._set.writeTo(out);
+        }
+    }
+
+
+    /* returns null if the set refers to a level that isn't in levelNameMap */
+    static @Nullable MemberSet readFrom(ByteBuffer in, Map<String,Level> levelNameMap)
+    {
+        MemberSet read = new MemberSet();
+        int count = in.getInt();
+        for (int i = 0; i < count; i++)
+        {
+            String levelName = OlapSnapshot.readString(in);
+            RoaringBitSet set = RoaringBitSet.readFrom(in);
+            Level l = levelNameMap.get(levelName);
+            if (null == l)
+                return null;
+            read.levelMap.put(levelName, read.new LevelMemberSet(l, set));
+        }
+        return read;
+    }
+
+
     public MemberSet onlyFor(Level l)
     {
         LevelMemberSet s = levelMap.get(l.getUniqueName());
@@ -204,7 +247,7 @@ public class MemberSet extends AbstractSet<Member>
             return memberSets[0].size();
         String levelName = null;
 
-        ArrayList<SparseBitSet> sets = new ArrayList<>();
+        ArrayList<RoaringBitSet> sets = new ArrayList<>();
         for (MemberSet m : memberSets)
         {
             if (m.isEmpty())
@@ -223,9 +266,9 @@ public class MemberSet extends AbstractSet<Member>
             return sets.get(0).cardinality();
 
         if (sets.size() == 2)
-            return countIntersect(sets.get(0), sets.get(1));
+            return RoaringBitSet.andCardinality(sets.get(0), sets.get(1));
 
-        SparseBitSet intersection = sets.get(0).clone();
+        RoaringBitSet intersection = sets.get(0).clone();
         for (int s=1 ; s<sets.size() ; s++)
             intersection.and(sets.get(s));
         return intersection.cardinality();
@@ -481,21 +524,25 @@ public class MemberSet extends AbstractSet<Member>
 
 
 
-    /** inner implmentation for a members of a single level, with natural ordering/ordinality */
+    /**
+     * inner implmentation for a members of a single level, with natural ordering/ordinality.
+     * Member ordinals are kept in a RoaringBitSet, which picks an array, bitmap or run encoding for each block of 64K
+     * ordinals depending on how densely it's populated.
+     */
 
     private class LevelMemberSet implements Set<Member>
     {
         Level _level;
-        final SparseBitSet _set;
+        final RoaringBitSet _set;
 
         private LevelMemberSet(Level level)
         {
             _level = level;
-            _set = new SparseBitSet();
+            _set = new RoaringBitSet();
         }
 
 
-        private LevelMemberSet(Level level, SparseBitSet s)
+        private LevelMemberSet(Level level, RoaringBitSet s)
         {
             _level = level;
             _set = s;
@@ -505,7 +552,7 @@ public class MemberSet extends AbstractSet<Member>
         LevelMemberSet(Level level, Collection<Member> members)
         {
             _level = level;
-            _set = new SparseBitSet(members.size());
+            _set = new RoaringBitSet();
             for (Member m : members)
             {
                 if (!m.getLevel().getUniqueName().equals(_level.getUniqueName()))
@@ -537,7 +584,7 @@ public class MemberSet extends AbstractSet<Member>
 
         List<Member> getMembers() throws OlapException
         {
-            SparseBitSet s = _set;
+            RoaringBitSet s = _set;
             ArrayList<Member> list = new ArrayList<>(s.cardinality());
             List<Member> members = _level.getMembers();
             for( int i = s.nextSetBit(0); i >= 0; i = s.nextSetBit(i+1) )
@@ -936,4 +983,76 @@ public class MemberSet extends AbstractSet<Member>
             assertEquals(2, countIntersect(union,odd));
         }
     }
+
+
+    @TestWhen(TestWhen.When.PERFORMANCE)
+    public static class PerfTestCase extends Assert
+    {
+        /*
+         * Not a real benchmark, but keeps an eye on the relative cost of counting intersections at cohort scale. Level
+         * ordinals follow the level's sort order, so members of one study or site tend to be contiguous.
+         */
+        @Test
+        public void testCountIntersectTiming()
+        {
+            final int participants = 1_000_000;
+            Random random = new Random(42);
+            SparseBitSet[] sparse = new SparseBitSet[4];
+            RoaringBitSet[] roaring = new RoaringBitSet[4];
+            for (int s = 0; s < sparse.length; s++)
+            {
+                sparse[s] = new SparseBitSet();
+                roaring[s] = new RoaringBitSet();
+            }
+
+            for (int p = 0; p < participants; p++)
+            {
+                boolean[] in = {
+                    random.nextBoolean(),                     // gender: dense
+                    random.nextInt(100) < 2,                  // rare condition: sparse
+                    p >= 200_000 && p < 450_000,              // one study: a contiguous run
+                    (p / 1000) % 3 == 0 && random.nextInt(10) < 8  // visits: clustered
+                };
+                for (int s = 0; s < in.length; s++)
+                {
+                    if (in[s])
+                    {
+                        sparse[s].set(p);
+                        roaring[s].set(p);
+                    }
+                }
+            }
+            for (int s = 0; s < sparse.length; s++)
+            {
+                sparse[s].seal();
+                roaring[s].seal();
+            }
+
+            long sparseNanos = 0;
+            long roaringNanos = 0;
+            long sparseBytes = 0;
+            long roaringBytes = 0;
+            for (int s = 0; s < sparse.length; s++)
+            {
+                sparseBytes += sparse[s].getMemorySizeInBytes();
+                roaringBytes += roaring[s].getMemorySizeInBytes();
+
+                for (int t = s + 1; t < sparse.length; t++)
+                {
+                    long start = System.nanoTime();
+                    int expected = countIntersect(sparse[s], sparse[t]);
+                    sparseNanos += System.nanoTime() - start;
+
+                    start = System.nanoTime();
+                    int actual = RoaringBitSet.andCardinality(roaring[s], roaring[t]);
+                    roaringNanos += System.nanoTime() - start;
+
+                    assertEquals(expected, actual);
+                }
+            }
+
+            LogManager.getLogger(MemberSet.class).info(String.format("countIntersect over %,d participants: SparseBitSet %,d us (%,d KB), RoaringBitSet %,d us (%,d KB)",
+                    participants, sparseNanos / 1000, sparseBytes / 1024, roaringNanos / 1000, roaringBytes / 1024));
+        }
+    }
 }
@@ -77,6 +77,31 @@ public abstract class OlapSchemaDescriptor
         return (boolean)JdbcType.BOOLEAN.convert(s);
     }
 
+    /*
+     * Number of threads a single CountDistinct query may use to evaluate the cells of a large two-axis result. Defaults
+     * to 1 (serial); supply the "CellParallelism" annotation to raise it.
+     */
+    public int getCellParallelism()
+    {
+        String s = getSchemaAnnotations().get("CellParallelism");
+        if (null == s)
+            return 1;
+        Integer i = (Integer)JdbcType.INTEGER.convert(s);
+        return null == i ? 1 : Math.max(1, i);
+    }
+
+    /*
+     * Keep an on-disk snapshot of this schema's cubes and CountDistinct results, so they don't have to be rebuilt
+     * from SQL after a restart (see OlapSnapshot). Supply the "EnableSnapshot" annotation to turn it on.
+     */
+    public boolean usesSnapshot()
+    {
+        String s = getSchemaAnnotations().get("EnableSnapshot");
+        if (null == s)
+            return false;
+        return (boolean)JdbcType.BOOLEAN.convert(s);
+    }
+
     /* In the future we could support an annotation for this, for now return true if useMondrian is true */
     public boolean allowExecuteMDX()
     {
@@ -0,0 +1,1072 @@
+/*
+ * Copyright (c) 2021 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.query.olap;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+import org.junit.Assert;
+import org.junit.Test;
+import org.labkey.api.cache.CacheManager;
+import org.labkey.api.data.Container;
+import org.labkey.api.util.FileUtil;
+import org.labkey.api.util.HeartBeat;
+import org.labkey.api.util.JobRunner;
+import org.labkey.query.olap.metadata.CachedCube;
+import org.labkey.query.olap.metadata.RolapCachedCubeFactory;
+import org.labkey.query.olap.metadata.RolapCachedCubeFactory.MemberRows;
+import org.olap4j.OlapException;
+import org.olap4j.metadata.Level;
+import org.olap4j.metadata.Member;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Optional on-disk copy of what the CountDistinct API otherwise rebuilds from SQL after a restart or cache clear: the
+ * member rows of each hierarchy read by RolapCachedCubeFactory, and the MemberSets in BitSetQueryImpl's results cache.
+ * Turned on per schema with the "EnableSnapshot" annotation (see OlapSchemaDescriptor.usesSnapshot()).
+ *
+ * Each cube has two files per container in the server's temp directory. The .cube file is replayed in place of the
+ * hierarchy members queries the next time the cube is built. The .members file is memory-mapped and indexed on first
+ * use, and each MemberSet is decoded only when BitSetQueryImpl misses on it; new results are added by a background save.
+ *
+ * Files are checked against the cube definition (or, for results, the cube's hash) before they're used, are ignored once
+ * they're older than the matching in-memory cache would keep an entry, and are deleted by the same events that clear
+ * those caches (see ServerManager). Data changed outside of LabKey while the server is down isn't detected.
+ */
+public class OlapSnapshot
+{
+    private static final Logger LOG = LogManager.getLogger(OlapSnapshot.class);
+
+    private static final int CUBE_MAGIC = 0x4C4B4355;       // "LKCU"
+    private static final int MEMBERS_MAGIC = 0x4C4B4D53;    // "LKMS"
+    private static final int VERSION = 1;
+
+    // same as the TTLs of ServerManager's cube cache and BitSetQueryImpl's results cache
+    private static final long CUBE_MAX_AGE = 2 * CacheManager.DAY;
+    private static final long MEMBERS_MAX_AGE = CacheManager.DAY;
+
+    private static final long SAVE_DELAY = 30 * CacheManager.SECOND;
+    private static final int MAX_MEMBERS_BYTES = 1 << 30;
+
+    private static final Object LOCK = new Object();
+    private static final Map<String, Members> MEMBERS = new ConcurrentHashMap<>();
+    private static int _invalidations = 0;
+
+
+    static File getDirectory()
+    {
+        return new File(FileUtil.getTempDirectory(), "labkey_olap_snapshots");
+    }
+
+
+    private static File getFile(Container c, OlapSchemaDescriptor sd, String cubeName, String extension)
+    {
+        // The full identity is checked inside the file, the hash just keeps file names short and legal
+        String name = c.getRowId() + "_" + Integer.toHexString((sd.getId() + "/" + cubeName).hashCode());
+        return new File(getDirectory(), name + extension);
+    }
+
+
+    /** Delete the snapshots for a container, or all snapshots if c is null */
+    static void delete(@Nullable Container c)
+    {
+        delete(null == c ? "" : c.getRowId() + "_");
+    }
+
+
+    private static void delete(String prefix)
+    {
+        synchronized (LOCK)
+        {
+            _invalidations++;
+
+            for (Iterator<Map.Entry<String, Members>> it = MEMBERS.entrySet().iterator(); it.hasNext(); )
+            {
+                Map.Entry<String, Members> entry = it.next();
+                if (entry.getKey().startsWith(prefix))
+                {
+                    it.remove();
+                    entry.getValue().close();
+                }
+            }
+
+            File[] files = getDirectory().listFiles();
+            if (null != files)
+            {
+                for (File file : files)
+                    if (file.getName().startsWith(prefix) && !file.delete())
+                        LOG.warn("Unable to delete OLAP snapshot: " + file);
+            }
+        }
+    }
+
+
+    private static int getInvalidations()
+    {
+        synchronized (LOCK)
+        {
+            return _invalidations;
+        }
+    }
+
+
+    // Map a snapshot file if it exists, is recent enough, and has the expected header. The buffer is left just past the header.
+    private static @Nullable ByteBuffer map(File file, int magic, long maxAge, String identity)
+    {
+        if (!file.isFile())
+            return null;
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+        {
+            if (channel.size() > Integer.MAX_VALUE)
+                return null;
+
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (magic != buffer.getInt() || VERSION != buffer.getInt() || !identity.equals(readString(buffer)))
+                return null;
+            if (buffer.getLong() < HeartBeat.currentTimeMillis() - maxAge)
+                return null;
+            return buffer;
+        }
+        catch (IOException | RuntimeException x)
+        {
+            LOG.warn("Ignoring unreadable OLAP snapshot " + file + ": " + x.getMessage());
+            return null;
+        }
+    }
+
+
+    private static void writeHeader(DataOutput out, int magic, String identity, long created) throws IOException
+    {
+        out.writeInt(magic);
+        out.writeInt(VERSION);
+        writeString(out, identity);
+        out.writeLong(created);
+    }
+
+
+    /*
+     * Strings and values
+     */
+
+    static void writeString(DataOutput out, String s) throws IOException
+    {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+
+    static String readString(ByteBuffer in)
+    {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+
+    // The types JDBC drivers return for dimension keys and ordinals
+    private static void writeValue(DataOutput out, @Nullable Object value) throws IOException
+    {
+        if (null == value)
+        {
+            out.writeByte(0);
+        }
+        else if (value instanceof String)
+        {
+            out.writeByte(1);
+            writeString(out, (String)value);
+        }
+        else if (value instanceof Integer)
+        {
+            out.writeByte(2);
+            out.writeInt((Integer)value);
+        }
+        else if (value instanceof Long)
+        {
+            out.writeByte(3);
+            out.writeLong((Long)value);
+        }
+        else if (value instanceof Double)
+        {
+            out.writeByte(4);
+            out.writeDouble((Double)value);
+        }
+        else if (value instanceof Float)
+        {
+            out.writeByte(5);
+            out.writeFloat((Float)value);
+        }
+        else if (value instanceof Short)
+        {
+            out.writeByte(6);
+            out.writeShort((Short)value);
+        }
+        else if (value instanceof Boolean)
+        {
+            out.writeByte(7);
+            out.writeBoolean((Boolean)value);
+        }
+        else if (value instanceof BigDecimal)
+        {
+            out.writeByte(8);
+            writeString(out, value.toString());
+        }
+        else if (value instanceof Timestamp)
+        {
+            out.writeByte(9);
+            out.writeLong(((Timestamp)value).getTime());
+            out.writeInt(((Timestamp)value).getNanos());
+        }
+        else if (value instanceof java.sql.Date)
+        {
+            out.writeByte(10);
+            out.writeLong(((java.sql.Date)value).getTime());
+        }
+        else if (value instanceof Time)
+        {
+            out.writeByte(11);
+            out.writeLong(((Time)value).getTime());
+        }
+        else if (value instanceof Date)
+        {
+            out.writeByte(12);
+            out.writeLong(((Date)value).getTime());
+        }
+        else
+        {
+            throw new IOException("Unsupported value type: " + value.getClass().getName());
+        }
+    }
+
+
+    private static @Nullable Object readValue(ByteBuffer in)
+    {
+        byte type = in.get();
+        switch (type)
+        {
+            case 0: return null;
+            case 1: return readString(in);
+            case 2: return in.getInt();
+            case 3: return in.getLong();
+            case 4: return in.getDouble();
+            case 5: return in.getFloat();
+            case 6: return in.getShort();
+            case 7: return 0 != in.get();
+            case 8: return new BigDecimal(readString(in));
+            case 9:
+            {
+                Timestamp ts = new Timestamp(in.getLong());
+                ts.setNanos(in.getInt());
+                return ts;
+            }
+            case 10: return new java.sql.Date(in.getLong());
+            case 11: return new Time(in.getLong());
+            case 12: return new Date(in.getLong());
+            default:
+                throw new IllegalArgumentException("Unknown value type: " + type);
+        }
+    }
+
+
+    /*
+     * CUBES
+     *
+     * The .cube file holds, for each hierarchy in the order they're built, its unique name, members SQL and level
+     * count followed by its member rows. Each row is written as the first level whose values differ from the previous
+     * row's, then the name, key and ordinal of that level and every deeper level.
+     */
+
+    /** Opens the member rows of a hierarchy from the database */
+    public interface SqlRows
+    {
+        MemberRows open() throws SQLException;
+    }
+
+
+    /** Replays or records the member rows of a cube's hierarchies, see RolapCachedCubeFactory.createCachedCube() */
+    public static abstract class CubeSnapshot
+    {
+        public abstract MemberRows open(String hierarchyName, String sql, int levelCount, SqlRows fromSql) throws SQLException;
+    }
+
+
+    private static class StaleSnapshotException extends RuntimeException
+    {
+        StaleSnapshotException(String message)
+        {
+            super(message);
+        }
+    }
+
+
+    /** Build the cube from its snapshot if there's a usable one, otherwise from the database while recording a new snapshot */
+    static CachedCube createCachedCube(RolapCachedCubeFactory factory, Container c, OlapSchemaDescriptor sd) throws SQLException
+    {
+        String cubeName = factory.rolap.getName();
+        String identity = sd.getId() + "/" + cubeName;
+        File file = getFile(c, sd, cubeName, ".cube");
+        ByteBuffer buffer = map(file, CUBE_MAGIC, CUBE_MAX_AGE, identity);
+
+        if (null != buffer)
+        {
+            try
+            {
+                CubeReplayer replayer = new CubeReplayer(buffer);
+                CachedCube cube = factory.createCachedCube(replayer);
+                replayer.finish();
+                LOG.debug("Loaded cube from snapshot: " + file);
+                return cube;
+            }
+            catch (RuntimeException x)
+            {
+                LOG.warn("Ignoring OLAP snapshot " + file + ": " + x.getMessage());
+            }
+        }
+
+        int invalidations = getInvalidations();
+        CubeRecorder recorder = new CubeRecorder(file, identity);
+        try
+        {
+            CachedCube cube = factory.createCachedCube(recorder);
+            recorder.commit(invalidations);
+            return cube;
+        }
+        finally
+        {
+            recorder.abandon();
+        }
+    }
+
+
+    private static class CubeReplayer extends CubeSnapshot
+    {
+        private final ByteBuffer _in;
+
+        CubeReplayer(ByteBuffer in)
+        {
+            _in = in;
+        }
+
+        @Override
+        public MemberRows open(String hierarchyName, String sql, int levelCount, SqlRows fromSql)
+        {
+            if (1 != _in.get() || !hierarchyName.equals(readString(_in)) || !sql.equals(readString(_in)) || levelCount != _in.getInt())
+                throw new StaleSnapshotException("cube definition has changed at hierarchy " + hierarchyName);
+
+            return new MemberRows()
+            {
+                final String[] _names = new String[levelCount];
+                final Object[] _keys = new Object[levelCount];
+                final Object[] _ordinals = new Object[levelCount];
+
+                @Override
+                public boolean next()
+                {
+                    if (0 == _in.get())
+                        return false;
+
+                    for (int l = _in.get(); l < levelCount; l++)
+                    {
+                        _names[l] = readString(_in);
+                        _keys[l] = readValue(_in);
+                        _ordinals[l] = readValue(_in);
+                    }
+                    return true;
+                }
+
+                @Override
+                public String getName(int level)
+                {
+                    return _names[level];
+                }
+
+                @Override
+                public Object getKey(int level)
+                {
+                    return _keys[level];
+                }
+
+                @Override
+                public Object getOrdinal(int level)
+                {
+                    return _ordinals[level];
+                }
+
+                @Override
+                public void close()
+                {
+                }
+            };
+        }
+
+        void finish()
+        {
+            if (0 != _in.get())
+                throw new StaleSnapshotException("cube definition has fewer hierarchies");
+        }
+    }
+
+
+    private static class CubeRecorder extends CubeSnapshot
+    {
+        private final File _file;
+        private File _temp;
+        private DataOutputStream _out;   // null once writing has failed
+
+        CubeRecorder(File file, String identity)
+        {
+            _file = file;
+            try
+            {
+                File dir = file.getParentFile();
+                if (!dir.isDirectory() && !dir.mkdirs())
+                    throw new IOException("Could not create directory " + dir);
+                _temp = File.createTempFile(file.getName(), ".tmp", dir);
+                _out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(_temp)));
+                writeHeader(_out, CUBE_MAGIC, identity, HeartBeat.currentTimeMillis());
+            }
+            catch (IOException x)
+            {
+                failed(x);
+            }
+        }
+
+        // A snapshot is only an optimization, so give up on it without failing the cube
+        private void failed(IOException x)
+        {
+            LOG.warn("Unable to write OLAP snapshot " + _file + ": " + x.getMessage());
+            IOUtils.closeQuietly(_out);
+            _out = null;
+        }
+
+        @Override
+        public MemberRows open(String hierarchyName, String sql, int levelCount, SqlRows fromSql) throws SQLException
+        {
+            MemberRows rows = fromSql.open();
+
+            if (null == _out)
+                return rows;
+
+            try
+            {
+                _out.writeByte(1);
+                writeString(_out, hierarchyName);
+                writeString(_out, sql);
+                _out.writeInt(levelCount);
+            }
+            catch (IOException x)
+            {
+                failed(x);
+                return rows;
+            }
+
+            return new MemberRows()
+            {
+                final String[] _names = new String[levelCount];
+                final Object[] _keys = new Object[levelCount];
+                final Object[] _ordinals = new Object[levelCount];
+
+                @Override
+                public boolean next() throws SQLException
+                {
+                    if (!rows.next())
+                    {
+                        write(null);
+                        return false;
+                    }
+
+                    int from = levelCount;
+                    for (int l = 1; l < levelCount; l++)
+                    {
+                        String name = rows.getName(l);
+                        Object key = rows.getKey(l);
+                        Object ordinal = rows.getOrdinal(l);
+                        if (from == levelCount && !(name.equals(_names[l]) && Objects.equals(key, _keys[l]) && Objects.equals(ordinal, _ordinals[l])))
+                            from = l;
+                        _names[l] = name;
+                        _keys[l] = key;
+                        _ordinals[l] = ordinal;
+                    }
+
+                    write(from);
+                    return true;
+                }
+
+                private void write(@Nullable Integer from)
+                {
+                    if (null == _out)
+                        return;
+
+                    try
+                    {
+                        if (null == from)
+                        {
+                            _out.writeByte(0);
+                            return;
+                        }
+
+                        _out.writeByte(1);
+                        _out.writeByte(from);
+                        for (int l = from; l < levelCount; l++)
+                        {
+                            writeString(_out, _names[l]);
+                            writeValue(_out, _keys[l]);
+                            writeValue(_out, _ordinals[l]);
+                        }
+                    }
+                    catch (IOException x)
+                    {
+                        failed(x);
+                    }
+                }
+
+                @Override
+                public String getName(int level)
+                {
+                    return _names[level];
+                }
+
+                @Override
+                public Object getKey(int level)
+                {
+                    return _keys[level];
+                }
+
+                @Override
+                public Object getOrdinal(int level)
+                {
+                    return _ordinals[level];
+                }
+
+                @Override
+                public void close() throws SQLException
+                {
+                    rows.close();
+                }
+            };
+        }
+
+        // Publish the snapshot, unless the caches were cleared while we were reading from the database
+        void commit(int invalidations)
+        {
+            if (null == _out)
+                return;
+
+            try
+            {
+                _out.writeByte(0);
+                _out.close();
+                _out = null;
+
+                synchronized (LOCK)
+                {
+                    if (invalidations == _invalidations)
+                        Files.move(_temp.toPath(), _file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                }
+            }
+            catch (IOException x)
+            {
+                failed(x);
+            }
+        }
+
+        void abandon()
+        {
+            IOUtils.closeQuietly(_out);
+            _out = null;
+            if (null != _temp && _temp.exists() && !_temp.delete())
+                LOG.warn("Unable to delete " + _temp);
+        }
+    }
+
+
+    /*
+     * COUNT DISTINCT RESULTS
+     *
+     * The .members file holds a series of entries, each the results cache key (less the container/cube prefix), the
+     * length of the MemberSet that follows, and the MemberSet itself (see MemberSet.writeTo()).
+     */
+
+    /** Returns the results snapshot for a cube, or null if snapshots aren't turned on for its schema */
+    static @Nullable Members getMembers(Container c, OlapSchemaDescriptor sd, String cubeName, String identity)
+    {
+        if (!sd.usesSnapshot())
+            return null;
+
+        File file = getFile(c, sd, cubeName, ".members");
+        return MEMBERS.compute(file.getName(), (name, existing) ->
+        {
+            if (null != existing && existing._identity.equals(identity))
+                return existing;
+            // the cube has been rebuilt with different members, so the old results are no good
+            if (null != existing)
+                existing.close();
+            return new Members(file, identity);
+        });
+    }
+
+
+    static class Members
+    {
+        private final File _file;
+        private final String _identity;
+        private final Map<String, MemberSet> _pending = new LinkedHashMap<>();
+        private @Nullable Map<String, Integer> _index = null;    // key -> position of its MemberSet in _buffer
+        private @Nullable ByteBuffer _buffer = null;
+        private long _created;
+        private boolean _saveScheduled = false;
+        private boolean _closed = false;
+
+        Members(File file, String identity)
+        {
+            _file = file;
+            _identity = identity;
+        }
+
+        synchronized @Nullable MemberSet get(String key, Map<String, Level> levelMap)
+        {
+            if (_closed)
+                return null;
+
+            MemberSet pending = _pending.get(key);
+            if (null != pending)
+                return pending;
+
+            Integer position = getIndex().get(key);
+            if (null == position)
+                return null;
+
+            try
+            {
+                ByteBuffer in = _buffer.duplicate();
+                in.position(position);
+                return MemberSet.readFrom(in, levelMap);
+            }
+            catch (RuntimeException x)
+            {
+                LOG.warn("Ignoring unreadable OLAP snapshot " + _file + ": " + x.getMessage());
+                _index.clear();
+                _buffer = null;
+                return null;
+            }
+        }
+
+        /** The set must be sealed, since it's written later by a background thread while other threads may read it */
+        synchronized void put(String key, MemberSet set)
+        {
+            if (_closed)
+                return;
+
+            _pending.put(key, set);
+
+            if (!_saveScheduled)
+            {
+                _saveScheduled = true;
+                JobRunner.getDefault().execute(SAVE_DELAY, this::save);
+            }
+        }
+
+        synchronized void close()
+        {
+            _closed = true;
+            _pending.clear();
+            _index = null;
+            _buffer = null;
+        }
+
+        // Map and index the file the first time it's needed
+        private Map<String, Integer> getIndex()
+        {
+            if (null == _index)
+            {
+                _index = new HashMap<>();
+                _created = HeartBeat.currentTimeMillis();
+                _buffer = map(_file, MEMBERS_MAGIC, MEMBERS_MAX_AGE, _identity);
+
+                if (null != _buffer)
+                {
+                    try
+                    {
+                        _created = _buffer.getLong(_buffer.position() - 8);
+                        while (1 == _buffer.get())
+                        {
+                            String key = readString(_buffer);
+                            int length = _buffer.getInt();
+                            _index.put(key, _buffer.position());
+                            _buffer.position(_buffer.position() + length);
+                        }
+                    }
+                    catch (RuntimeException x)
+                    {
+                        LOG.warn("Ignoring unreadable OLAP snapshot " + _file + ": " + x.getMessage());
+                        _index.clear();
+                        _buffer = null;
+                    }
+                }
+            }
+            return _index;
+        }
+
+        // Rewrite the file with the current entries plus the pending ones; it's mapped again on next use
+        private synchronized void save()
+        {
+            _saveScheduled = false;
+            if (_closed || _pending.isEmpty())
+                return;
+
+            Map<String, Integer> index = getIndex();
+            File temp = null;
+
+            try
+            {
+                File dir = _file.getParentFile();
+                if (!dir.isDirectory() && !dir.mkdirs())
+                    throw new IOException("Could not create directory " + dir);
+                temp = File.createTempFile(_file.getName(), ".tmp", dir);
+
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp))))
+                {
+                    // keep the original creation time, so entries don't outlive the results cache TTL by being copied forward
+                    writeHeader(out, MEMBERS_MAGIC, _identity, _created);
+
+                    for (Map.Entry<String, Integer> entry : index.entrySet())
+                    {
+                        if (_pending.containsKey(entry.getKey()) || out.size() > MAX_MEMBERS_BYTES)
+                            continue;
+                        int position = entry.getValue();
+                        int length = _buffer.getInt(position - 4);
+                        byte[] bytes = new byte[length];
+                        ByteBuffer in = _buffer.duplicate();
+                        in.position(position);
+                        in.get(bytes);
+                        writeEntry(out, entry.getKey(), bytes, length);
+                    }
+
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    for (Map.Entry<String, MemberSet> entry : _pending.entrySet())
+                    {
+                        if (out.size() > MAX_MEMBERS_BYTES)
+                            break;
+                        bytes.reset();
+                        entry.getValue().writeTo(new DataOutputStream(bytes));
+                        writeEntry(out, entry.getKey(), bytes.toByteArray(), bytes.size());
+                    }
+
+                    out.writeByte(0);
+                }
+
+                Files.move(temp.toPath(), _file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (IOException x)
+            {
+                LOG.warn("Unable to save OLAP snapshot " + _file + ": " + x.getMessage());
+            }
+            finally
+            {
+                if (null != temp && temp.exists() && !temp.delete())
+                    LOG.warn("Unable to delete " + temp);
+                _pending.clear();
+                _index = null;
+                _buffer = null;
+            }
+        }
+
+        private static void writeEntry(DataOutputStream out, String key, byte[] bytes, int length) throws IOException
+        {
+            out.writeByte(1);
+            writeString(out, key);
+            out.writeInt(length);
+            out.write(bytes, 0, length);
+        }
+    }
+
+
+    public static class TestCase extends Assert
+    {
+        private static final String IDENTITY = "schema/cube";
+        private static final String HIERARCHY = "[Names]";
+        private static final String SQL = "SELECT names";
+
+        // level 1 name, key, ordinal, then the same for level 2
+        private static final Object[][] ROWS = {
+            {"Doe", "Doe", 1, "Doe, John", 10, 1},
+            {"Doe", "Doe", 1, "Doe, Jane", 11, 2},
+            {"Jones", "Jones", 2, "Jones, Davie", 12L, null}
+        };
+
+        private static MemberRows rows(Object[][] data)
+        {
+            return new MemberRows()
+            {
+                int _row = -1;
+
+                @Override
+                public boolean next()
+                {
+                    return ++_row < data.length;
+                }
+
+                @Override
+                public String getName(int level)
+                {
+                    return (String)data[_row][3 * (level - 1)];
+                }
+
+                @Override
+                public Object getKey(int level)
+                {
+                    return data[_row][3 * (level - 1) + 1];
+                }
+
+                @Override
+                public Object getOrdinal(int level)
+                {
+                    return data[_row][3 * (level - 1) + 2];
+                }
+
+                @Override
+                public void close()
+                {
+                }
+            };
+        }
+
+        private static void record(CubeRecorder recorder) throws SQLException
+        {
+            try (MemberRows rows = recorder.open(HIERARCHY, SQL, 3, () -> rows(ROWS)))
+            {
+                while (rows.next())
+                {
+                }
+            }
+        }
+
+        private static MemberSet createSet() throws OlapException
+        {
+            List<Member> members = MemberSet.l2.getMembers();
+            MemberSet set = new MemberSet(MemberSet.l1, MemberSet.l1.getMembers());
+            set.add(members.get(0));
+            set.add(members.get(2));
+            set.add(members.get(4));
+            set.seal();
+            return set;
+        }
+
+        private static Map<String, Level> levelMap()
+        {
+            return Map.of(MemberSet.l1.getUniqueName(), MemberSet.l1, MemberSet.l2.getUniqueName(), MemberSet.l2);
+        }
+
+        private static void assertSameMembers(MemberSet expected, MemberSet actual)
+        {
+            assertNotNull(actual);
+            assertEquals(expected.size(), actual.size());
+            assertEquals(expected.size(), MemberSet.countIntersect(expected, actual));
+        }
+
+        @Test
+        public void testCubeRecordReplay() throws Exception
+        {
+            File dir = FileUtil.createTempDirectory("olap_snapshot");
+            try
+            {
+                File file = new File(dir, "test.cube");
+                CubeRecorder recorder = new CubeRecorder(file, IDENTITY);
+                record(recorder);
+                recorder.commit(getInvalidations());
+                recorder.abandon();
+                assertTrue(file.isFile());
+
+                CubeReplayer replayer = new CubeReplayer(map(file, CUBE_MAGIC, CUBE_MAX_AGE, IDENTITY));
+                try (MemberRows rows = replayer.open(HIERARCHY, SQL, 3, () -> { throw new AssertionError("Replay shouldn't query the database"); }))
+                {
+                    for (Object[] row : ROWS)
+                    {
+                        assertTrue(rows.next());
+                        for (int level = 1; level < 3; level++)
+                        {
+                            assertEquals(row[3 * (level - 1)], rows.getName(level));
+                            assertEquals(row[3 * (level - 1) + 1], rows.getKey(level));
+                            assertEquals(row[3 * (level - 1) + 2], rows.getOrdinal(level));
+                        }
+                    }
+                    assertFalse(rows.next());
+                }
+                replayer.finish();
+
+                // A snapshot of another cube, or of a changed cube definition, isn't used
+                assertNull(map(file, CUBE_MAGIC, CUBE_MAX_AGE, "schema/other"));
+                try
+                {
+                    new CubeReplayer(map(file, CUBE_MAGIC, CUBE_MAX_AGE, IDENTITY)).open(HIERARCHY, "SELECT changed", 3, () -> rows(ROWS));
+                    fail("Expected a changed members query to make the snapshot stale");
+                }
+                catch (StaleSnapshotException x)
+                {
+                    // expected
+                }
+
+                // A recording that was under way when the caches were cleared isn't published
+                File stale = new File(dir, "stale.cube");
+                recorder = new CubeRecorder(stale, IDENTITY);
+                int invalidations = getInvalidations();
+                record(recorder);
+                synchronized (LOCK)
+                {
+                    _invalidations++;
+                }
+                recorder.commit(invalidations);
+                recorder.abandon();
+                assertFalse(stale.exists());
+            }
+            finally
+            {
+                FileUtil.deleteDir(dir);
+            }
+        }
+
+        @Test
+        public void testMemberSetRoundTrip() throws Exception
+        {
+            MemberSet set = createSet();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            set.writeTo(new DataOutputStream(bytes));
+
+            assertSameMembers(set, MemberSet.readFrom(ByteBuffer.wrap(bytes.toByteArray()), levelMap()));
+            assertNull("A set with a level the cube no longer has can't be used",
+                    MemberSet.readFrom(ByteBuffer.wrap(bytes.toByteArray()), Map.of(MemberSet.l1.getUniqueName(), MemberSet.l1)));
+
+            try
+            {
+                new MemberSet(MemberSet.l1, MemberSet.l1.getMembers()).writeTo(new DataOutputStream(new ByteArrayOutputStream()));
+                fail("Expected an unsealed set to be rejected");
+            }
+            catch (IllegalStateException x)
+            {
+                // expected
+            }
+        }
+
+        @Test
+        public void testMembers() throws Exception
+        {
+            File dir = FileUtil.createTempDirectory("olap_snapshot");
+            try
+            {
+                File file = new File(dir, "test.members");
+                MemberSet set = createSet();
+
+                Members members = new Members(file, IDENTITY);
+                members.put("query", set);
+                assertSame(set, members.get("query", levelMap()));
+                members.save();
+                assertTrue(file.isFile());
+
+                Members reopened = new Members(file, IDENTITY);
+                assertSameMembers(set, reopened.get("query", levelMap()));
+                assertNull(reopened.get("other query", levelMap()));
+                assertNull("Results for a rebuilt cube shouldn't be used", new Members(file, "schema/cube@2").get("query", levelMap()));
+
+                members.close();
+                assertNull(members.get("query", levelMap()));
+            }
+            finally
+            {
+                FileUtil.deleteDir(dir);
+            }
+        }
+
+        @Test
+        public void testDelete() throws Exception
+        {
+            // Container row ids are positive, so this prefix can't match a real snapshot
+            String prefix = "-1_";
+            File dir = getDirectory();
+            assertTrue(dir.isDirectory() || dir.mkdirs());
+            File file = new File(dir, prefix + "test.members");
+
+            Members members = new Members(file, IDENTITY);
+            MEMBERS.put(file.getName(), members);
+            members.put("query", createSet());
+            members.save();
+            assertTrue(file.isFile());
+
+            delete(prefix);
+            assertFalse(file.exists());
+            assertFalse(MEMBERS.containsKey(file.getName()));
+            assertNull(members.get("query", levelMap()));
+        }
+
+        @Test
+        public void testValues() throws IOException
+        {
+            Object[] values = new Object[] {null, "a\u00e9b", 1, 2L, 3.5, 4.5f, (short)6, true, new BigDecimal("7.25"),
+                    new Timestamp(1234567890123L), new java.sql.Date(1234567890000L), new Time(3600000L), new Date(42L)};
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            for (Object value : values)
+                writeValue(out, value);
+
+            ByteBuffer in = ByteBuffer.wrap(bytes.toByteArray());
+            for (Object value : values)
+            {
+                Object read = readValue(in);
+                assertEquals(value, read);
+                if (null != value)
+                    assertEquals(value.getClass(), read.getClass());
+            }
+            assertFalse(in.hasRemaining());
+
+            try
+            {
+                writeValue(out, new Object());
+                fail("Expected unsupported type to be rejected");
+            }
+            catch (IOException x)
+            {
+                // expected
+            }
+        }
+    }
+}
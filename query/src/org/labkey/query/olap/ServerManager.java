@@ -304,7 +304,10 @@ public class ServerManager
             try
             {
                 QuerySchema startSchema = null != schema ? schema : DefaultSchema.get(user, c).getSchema("core");
-                return new RolapCachedCubeFactory((RolapCubeDef) src, startSchema).createCachedCube();
+                RolapCachedCubeFactory factory = new RolapCachedCubeFactory((RolapCubeDef) src, startSchema);
+                if (d.usesSnapshot())
+                    return OlapSnapshot.createCachedCube(factory, c, d);
+                return factory.createCachedCube();
             }
             catch (SQLException x)
             {
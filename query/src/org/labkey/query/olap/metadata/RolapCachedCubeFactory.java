@@ -20,9 +20,11 @@ import org.jetbrains.annotations.Nullable;
 import org.labkey.api.collections.CaseInsensitiveHashMap;
 import org.labkey.api.collections.CaseInsensitiveTreeMap;
 import org.labkey.api.data.JdbcType;
+import org.labkey.api.data.RuntimeSQLException;
 import org.labkey.api.query.QueryParseException;
 import org.labkey.api.query.QuerySchema;
 import org.labkey.api.query.QueryService;
+import org.labkey.query.olap.OlapSnapshot;
 import org.labkey.query.olap.rolap.RolapCubeDef;
 import org.olap4j.metadata.Dimension;
 import org.olap4j.metadata.Level;
@@ -32,6 +34,7 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.List;
 
 import static org.labkey.query.olap.rolap.RolapCubeDef.DimensionDef;
 import static org.labkey.query.olap.rolap.RolapCubeDef.HierarchyDef;
@@ -59,6 +62,83 @@ public class RolapCachedCubeFactory
     }
 
 
+    /**
+     * The rows generateHierarchyMembers() turns into members, sorted as the hierarchy's members query sorts them.
+     * Level 0 is the (All) level and has no values.
+     */
+    public interface MemberRows extends AutoCloseable
+    {
+        boolean next() throws SQLException;
+        String getName(int level);
+        Object getKey(int level);
+        Object getOrdinal(int level);
+
+        @Override
+        void close() throws SQLException;
+    }
+
+
+    private class SqlMemberRows implements MemberRows
+    {
+        private final List<LevelDef> levelDefs;
+        private final ResultSet rs;
+
+        SqlMemberRows(String sql, List<LevelDef> levelDefs) throws SQLException
+        {
+            this.levelDefs = levelDefs;
+            this.rs = QueryService.get().select(schema, sql, null, true, false);
+
+            // just checks that the key columns have the declared types
+            for (int l = 1; l < levelDefs.size(); l++)
+                levelDefs.get(l).computeKeyType(rs);
+        }
+
+        @Override
+        public boolean next() throws SQLException
+        {
+            return rs.next();
+        }
+
+        @Override
+        public String getName(int level)
+        {
+            return levelDefs.get(level).getMembeNameFromResult(rs);
+        }
+
+        @Override
+        public Object getKey(int level)
+        {
+            try
+            {
+                return levelDefs.get(level).getKeyValue(rs);
+            }
+            catch (SQLException x)
+            {
+                throw new RuntimeSQLException(x);
+            }
+        }
+
+        @Override
+        public Object getOrdinal(int level)
+        {
+            try
+            {
+                return levelDefs.get(level).getOrindalValue(rs);
+            }
+            catch (SQLException x)
+            {
+                throw new RuntimeSQLException(x);
+            }
+        }
+
+        @Override
+        public void close() throws SQLException
+        {
+            rs.close();
+        }
+    }
+
+
     /**
      * Not much to see here, just loop through the dimensions and hierarchies to load members
      *
@@ -66,6 +146,16 @@ public class RolapCachedCubeFactory
      * @throws SQLException
      */
     public CachedCube createCachedCube() throws SQLException
+    {
+        return createCachedCube(null);
+    }
+
+
+    /**
+     * @param snapshot if not null, member rows are replayed from or recorded to this snapshot instead of
+     *                 just being read from the database
+     */
+    public CachedCube createCachedCube(@Nullable OlapSnapshot.CubeSnapshot snapshot) throws SQLException
     {
         CachedCube cube = new CachedCube(rolap.getName());
 
@@ -93,7 +183,7 @@ public class RolapCachedCubeFactory
                     h.levels.add(l);
                 }
 
-                generateHierarchyMembers(cube, hdef, h);
+                generateHierarchyMembers(cube, hdef, h, snapshot);
                 h.levels.seal();
             }
             d.hierarchies.seal();
@@ -135,7 +225,7 @@ public class RolapCachedCubeFactory
      * creating new members.  We remember the members before the break, and don't need
      * to look them up, or create them.
      */
-    void generateHierarchyMembers(CachedCube cube, HierarchyDef hdef, CachedCube._Hierarchy h) throws SQLException
+    void generateHierarchyMembers(CachedCube cube, HierarchyDef hdef, CachedCube._Hierarchy h, @Nullable OlapSnapshot.CubeSnapshot snapshot) throws SQLException
     {
         CachedCube._Level allLevel = (CachedCube._Level)h.getLevels().get(0);
         CachedCube._Member allMember = new CachedCube._Member(cube, allLevel, Member.Type.ALL);
@@ -166,24 +256,22 @@ public class RolapCachedCubeFactory
 
         CaseInsensitiveHashMap<CachedCube._Member> uniqueNameMap = new CaseInsensitiveHashMap<>();
 
+        // jdbcType for all key columns
+        for (int l = 1; l < levelCount; l++)
+            levelList.get(l).jdbcType = levelDefList.get(l).getJdbcType();
+
         String hierarchySql = rolap.getMembersSQL(hdef);
-        try (ResultSet rs = QueryService.get().select(schema, hierarchySql, null, true, false))
+        try (MemberRows rows = null == snapshot ?
+                new SqlMemberRows(hierarchySql, levelDefList) :
+                snapshot.open(h.getUniqueName(), hierarchySql, levelCount, () -> new SqlMemberRows(hierarchySql, levelDefList)))
         {
-            // compute jdbcType for all key columns
-            for (int l = 1; l < levelCount; l++)
-            {
-                CachedCube._Level level = levelList.get(l);
-                LevelDef ldef = levelDefList.get(l);
-                level.jdbcType = ldef.computeKeyType(rs);
-            }
-
-            while (rs.next())
+            while (rows.next())
             {
                 // find first level where value is different than in the previous row
                 int breakLevel = 0;
                 for (int l = 1; l < levelCount; l++)
                 {
-                    String name = levelDefList.get(l).getMembeNameFromResult(rs);
+                    String name = rows.getName(l);
                     namesCurrent.set(l, name);
                     if (breakLevel == 0 && !StringUtils.equalsIgnoreCase(namesCurrent.get(l), namesPrevious.get(l)))
                         breakLevel = l;
@@ -220,10 +308,10 @@ public class RolapCachedCubeFactory
                     // need to create a new member! yeah
 
                     m = new CachedCube._Member(cube, level, parent, name, levelDef.isLeaf());
-                    m.keyValue = (Comparable)levelDef.getKeyValue(rs);
+                    m.keyValue = (Comparable)rows.getKey(l);
                     if (m.keyValue instanceof String)
                         m.keyValue = cube.intern((String)m.keyValue);
-                    m.ordinalValue = (Comparable)levelDef.getOrindalValue(rs);
+                    m.ordinalValue = (Comparable)rows.getOrdinal(l);
 
                     uniqueNameMap.put(uniqueName, m);
                     membersCurrent.set(l, m);
@@ -239,6 +327,10 @@ public class RolapCachedCubeFactory
         {
             throw x;
         }
+        catch (RuntimeSQLException x)
+        {
+            throw x.getSQLException();
+        }
 
         // add #NOTNULL members
         CachedCube._Member parent = (CachedCube._Member)levelList.get(0).getMembers().get(0);
@@ -15,6 +15,7 @@
  */
 package org.labkey.query.olap.rolap;
 
+import org.apache.logging.log4j.LogManager;
 import org.json.JSONObject;
 import org.junit.AfterClass;
 import org.junit.Assert;
@@ -30,6 +31,7 @@ import org.labkey.api.module.Module;
 import org.labkey.api.module.ModuleLoader;
 import org.labkey.api.query.UserSchema;
 import org.labkey.api.security.User;
+import org.labkey.api.test.TestWhen;
 import org.labkey.api.util.JunitUtil;
 import org.labkey.api.util.ResultSetUtil;
 import org.labkey.api.util.TestContext;
@@ -984,4 +986,54 @@ public class RolapTestCase extends Assert
         assertNull( cs.get("[Assay].[PDQ]") );
         assertFalse( cs.containsKey("[Assay].[PDQ]") );
     }
+
+
+    @TestWhen(TestWhen.When.PERFORMANCE)
+    public static class PerfTestCase extends Assert
+    {
+        @BeforeClass
+        public static void init()
+        {
+            RolapTestCase.init();
+        }
+
+
+        @AfterClass
+        public static void reset()
+        {
+            RolapTestCase.reset();
+        }
+
+
+        /* Times count-distinct queries with the results cache cleared each time, so every cell is recomputed from MemberSets */
+        @Test
+        public void testCountDistinctTiming() throws Exception
+        {
+            RolapTestCase test = new RolapTestCase();
+            String json =
+                    "{\n" +
+                    "\"onRows\":{\"level\":\"[Participant.Species].[Species]\"},\n" +
+                    "\"countDistinctLevel\":\"[Participant].[Participant]\",\n" +
+                    "\"showEmpty\":true,\n" +
+                    "\"countFilter\":\n" +
+                    "[\n" +
+                    "    {\"level\":\"[Participant].[Participant]\", \"membersQuery\":{\"level\":\"[Participant.Gender].[Gender]\", \"members\":[\"[Participant.Gender].[Female]\"]}}\n" +
+                    "]\n" +
+                    "}";
+
+            // warm up the cube and the JIT
+            Map<String,Integer> expected = test.oneAxisQuery(json);
+
+            final int iterations = 50;
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+            {
+                BitSetQueryImpl.invalidateCache(getContainer());
+                assertEquals(expected, test.oneAxisQuery(json));
+            }
+            long elapsed = System.nanoTime() - start;
+
+            LogManager.getLogger(RolapTestCase.class).info(String.format("JunitCube count distinct: %,d us per query", elapsed / iterations / 1000));
+        }
+    }
 }
@@ -59,6 +59,8 @@ public class AggregateBuilder
         Aggregate.Type type = registry != null ? registry.getByName(_type) : null;
         if (type == null)
             throw new IllegalArgumentException("Invalid aggregate type: '" + _type + "'.");
+        if (type.isComputedFromScan())
+            throw new IllegalArgumentException("Aggregate type '" + _type + "' can't be used in a LabKey SQL aggregate.");
 
         return new Aggregate(_fieldKey, type, _label, _distinct);
     }
@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2021 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.query.sql;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+import org.labkey.api.cache.Cache;
+import org.labkey.api.cache.CacheManager;
+import org.labkey.api.data.ColumnInfo;
+import org.labkey.api.data.DbSchema;
+import org.labkey.api.data.DbScope;
+import org.labkey.api.data.MaterializedQueryHelper;
+import org.labkey.api.data.QueryResultCache;
+import org.labkey.api.data.SQLFragment;
+import org.labkey.api.data.TableInfo;
+import org.labkey.api.data.UpdateableTableInfo;
+import org.labkey.data.xml.MaterializeType;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Materialized LabKey SQL queries. A query whose metadata includes a materialize element is stored in a temp table by
+ * MaterializedQueryHelper, and reads use that table until it's out of date. Helpers are shared by generated SQL, so
+ * users only share materialized results when they would have run exactly the same SQL (same containers, same
+ * permission filters).
+ *
+ * Results are out of date when a table the query reads from is written through Table, TableInsertDataIterator or a
+ * QueryUpdateService (see QueryResultCache.getChangeToken()), or when they're older than maxAge. Writes made with
+ * SqlExecutor or directly in the database, and changes to lookup targets (which aren't source tables), aren't seen
+ * by the change tokens, so maxAge is required as the bound on how stale results can get. With key and version
+ * columns, results for a query that reads from a single table are refreshed incrementally when that table changes.
+ * Changes to joined tables and maxAge expiration always rebuild, since the version column can't reflect them.
+ */
+class MaterializedQueryCache
+{
+    private static final Logger LOG = LogManager.getLogger(MaterializedQueryCache.class);
+    private static final Cache<String, MaterializedQueryHelper> HELPERS = CacheManager.getCache(200, CacheManager.DAY, "Materialized queries");
+    private static final Set<String> WARNED = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @return the FROM clause for the query's materialized results, or null if this query can't be materialized and
+     * should be run as usual
+     */
+    static @Nullable SQLFragment getFromSql(QueryTableInfo table, SQLFragment select, String alias, MaterializeType config)
+    {
+        // Parameter values are bound when the outer query runs, so they aren't part of the SQL we'd materialize
+        if (!table.getNamedParameters().isEmpty())
+            return null;
+
+        // Change tokens miss raw SQL writes and lookup targets, so only maxAge guarantees the results are ever refreshed
+        if (!config.isSetMaxAge() || config.getMaxAge() <= 0)
+        {
+            if (WARNED.add(table.getName()))
+                LOG.warn("Not materializing " + table.getName() + ": materialize requires a positive maxAge");
+            return null;
+        }
+
+        Collection<TableInfo> tracked = getChangeTrackedTables(table._relation._query.getSourceTables());
+
+        DbScope scope = table.getSchema().getScope();
+        MaterializedQueryHelper helper = HELPERS.get(getCacheKey(scope, select), null, (key, arg) ->
+        {
+            MaterializedQueryHelper.Builder builder = new MaterializedQueryHelper.Builder("query", scope, select);
+
+            builder.maxTimeToCache(TimeUnit.SECONDS.toMillis(config.getMaxAge()));
+            // Tracked changes refresh the results before maxAge. With a single source table, the version column is the
+            // version of that table's row. With joins it can't speak for every table, so any change rebuilds.
+            if (null != tracked)
+            {
+                boolean versioned = tracked.size() == 1;
+                for (TableInfo source : tracked)
+                    builder.addTableInvalidCheck(() -> QueryResultCache.get().getChangeToken(List.of(source)), versioned);
+            }
+
+            if (null != config.getKeyColumn() && null != config.getVersionColumn())
+            {
+                ColumnInfo keyCol = table.getColumn(config.getKeyColumn());
+                ColumnInfo versionCol = table.getColumn(config.getVersionColumn());
+
+                if (null == keyCol || null == versionCol)
+                {
+                    LOG.warn("Materialized query " + table.getName() + " doesn't have columns " + config.getKeyColumn() + " and " + config.getVersionColumn() + "; results will be rebuilt instead of refreshed");
+                }
+                else
+                {
+                    String keyAlias = scope.getSqlDialect().makeLegalIdentifier(keyCol.getAlias());
+                    builder.incremental(keyCol.getAlias(), versionCol.getAlias());
+                    builder.addIndex("CREATE INDEX \"IX_${NAME}\" ON " + DbSchema.getTemp().getName() + ".\"${NAME}\" (" + keyAlias + ")");
+                }
+            }
+
+            return builder.build();
+        });
+
+        return helper.getFromSql(alias, null);
+    }
+
+    // The schema tables to watch for changes, or null if any source table can't be watched
+    static @Nullable Collection<TableInfo> getChangeTrackedTables(Collection<TableInfo> sources)
+    {
+        List<TableInfo> ret = new ArrayList<>();
+
+        for (TableInfo source : sources)
+        {
+            if (null == source.getNotificationKey() && source instanceof UpdateableTableInfo)
+                source = ((UpdateableTableInfo) source).getSchemaTableInfo();
+
+            if (null == source || null == source.getNotificationKey())
+                return null;
+
+            ret.add(source);
+        }
+
+        return ret.isEmpty() ? null : ret;
+    }
+
+    private static String getCacheKey(DbScope scope, SQLFragment select)
+    {
+        StringBuilder key = new StringBuilder(scope.getDataSourceName()).append('|').append(select.getSQL());
+
+        for (Object param : select.getParams())
+        {
+            key.append('|');
+
+            if (null != param)
+                key.append(param.getClass().getSimpleName()).append(':');
+
+            key.append(param);
+        }
+
+        return key.toString();
+    }
+}
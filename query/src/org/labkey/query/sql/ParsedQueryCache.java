@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2021 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.query.sql;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.junit.Assert;
+import org.junit.Test;
+import org.labkey.api.cache.Cache;
+import org.labkey.api.cache.CacheManager;
+import org.labkey.api.data.Container;
+import org.labkey.api.data.ContainerFilter;
+import org.labkey.api.data.ContainerManager;
+import org.labkey.api.data.CoreSchema;
+import org.labkey.api.data.DbSchema;
+import org.labkey.api.query.QueryChangeListener;
+import org.labkey.api.query.QueryParseException;
+import org.labkey.api.query.SchemaKey;
+import org.labkey.api.security.User;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Caches the output of SqlParser.parseQuery() (the QNode tree, declared PARAMETERS and warnings) by container, data
+ * source and LabKey SQL text, so rendering a saved query doesn't re-run the ANTLR parse and tree conversion each time.
+ *
+ * Only the parse is cached. Resolving tables and columns depends on the user, container filter and current metadata, so
+ * Query still does that on every call, and every caller gets its own copy of the tree since resolution annotates QNodes.
+ * Parses that fail or that substitute a module property value (which can change without notice) aren't cached.
+ */
+public class ParsedQueryCache
+{
+    private static final Cache<String, ParsedQuery> PARSED_QUERIES = CacheManager.getStringKeyCache(5000, CacheManager.DAY, "Parsed LabKey SQL");
+
+    static class ParsedQuery
+    {
+        private final @Nullable QNode _root;
+        private final List<QParameter> _parameters;
+        private final List<QueryParseException> _warnings;
+
+        private ParsedQuery(@Nullable QNode root, List<QParameter> parameters, List<QueryParseException> warnings)
+        {
+            _root = root;
+            _parameters = parameters;
+            _warnings = warnings;
+        }
+
+        private ParsedQuery copy()
+        {
+            ArrayList<QParameter> parameters = new ArrayList<>(_parameters.size());
+            for (QParameter parameter : _parameters)
+                parameters.add((QParameter) parameter.copyTree());
+
+            return new ParsedQuery(null == _root ? null : _root.copyTree(), parameters, _warnings);
+        }
+
+        @Nullable QNode getRoot()
+        {
+            return _root;
+        }
+
+        ArrayList<QParameter> getParameters()
+        {
+            return new ArrayList<>(_parameters);
+        }
+    }
+
+    private static String getKey(@Nullable Container c, DbSchema schema, String sql)
+    {
+        return (null == c ? "" : c.getId()) + "/" + schema.getScope().getDataSourceName() + "/" + sql;
+    }
+
+    /**
+     * Parse LabKey SQL as SqlParser.parseQuery() would, reusing a cached parse when possible. Errors and warnings are added
+     * to the supplied lists; the returned tree belongs to the caller.
+     */
+    static @NotNull ParsedQuery parse(DbSchema schema, @Nullable Container c, String sql, List<? super QueryParseException> errors, List<QueryParseException> warnings)
+    {
+        String key = getKey(c, schema, sql);
+        ParsedQuery cached = PARSED_QUERIES.get(key);
+
+        if (null != cached)
+        {
+            warnings.addAll(cached._warnings);
+            return cached.copy();
+        }
+
+        SqlParser parser = new SqlParser(schema.getSqlDialect(), c);
+        List<QueryParseException> parseWarnings = new ArrayList<>();
+        int errorCount = errors.size();
+        parser.parseQuery(sql, errors, parseWarnings);
+        warnings.addAll(parseWarnings);
+
+        ParsedQuery parsed = new ParsedQuery(parser.getRoot(), parser.getParameters(), Collections.unmodifiableList(parseWarnings));
+
+        // Keep a pristine copy; the caller is about to resolve (and annotate) this one
+        if (errors.size() == errorCount && null != parsed.getRoot() && !parser.usesModuleProperty())
+            PARSED_QUERIES.put(key, parsed.copy());
+
+        return parsed;
+    }
+
+    private static void clear(@Nullable Container c)
+    {
+        if (null != c)
+            PARSED_QUERIES.removeUsingFilter(new Cache.StringPrefixFilter(c.getId() + "/"));
+    }
+
+    /**
+     * Entries are keyed by SQL text, so edited queries never see a stale parse; this just drops a container's entries when
+     * its queries change so replaced text doesn't linger until it ages out.
+     */
+    public static class QueryListener implements QueryChangeListener
+    {
+        @Override
+        public void queryCreated(User user, Container container, ContainerFilter scope, SchemaKey schema, @NotNull Collection<String> queries)
+        {
+        }
+
+        @Override
+        public void queryChanged(User user, Container container, ContainerFilter scope, SchemaKey schema, @NotNull QueryProperty property, @NotNull Collection<QueryPropertyChange> changes)
+        {
+            clear(container);
+        }
+
+        @Override
+        public void queryDeleted(User user, Container container, ContainerFilter scope, SchemaKey schema, @NotNull Collection<String> queries)
+        {
+            clear(container);
+        }
+
+        @Override
+        public Collection<String> queryDependents(User user, Container container, ContainerFilter scope, SchemaKey schema, @NotNull Collection<String> queries)
+        {
+            return Collections.emptyList();
+        }
+    }
+
+    public static class TestCase extends Assert
+    {
+        @Test
+        public void testCopies()
+        {
+            DbSchema schema = CoreSchema.getInstance().getSchema();
+            Container c = ContainerManager.getSharedContainer();
+            String sql = "PARAMETERS (X INTEGER DEFAULT 1) SELECT a.RowId, a.Name FROM core.Containers a WHERE a.RowId > X";
+            PARSED_QUERIES.remove(getKey(c, schema, sql));
+
+            List<QueryParseException> errors = new ArrayList<>();
+            ParsedQuery first = parse(schema, c, sql, errors, new ArrayList<>());
+            ParsedQuery second = parse(schema, c, sql, errors, new ArrayList<>());
+
+            assertTrue(errors.isEmpty());
+            assertNotNull(PARSED_QUERIES.get(getKey(c, schema, sql)));
+            assertNotSame("Each caller should get its own tree", first.getRoot(), second.getRoot());
+            assertEquals(SqlParser.toPrefixString(first.getRoot()), SqlParser.toPrefixString(second.getRoot()));
+            assertEquals(1, second.getParameters().size());
+            assertNotSame(first.getParameters().get(0), second.getParameters().get(0));
+
+            parse(schema, c, "SELECT FROM WHERE", errors, new ArrayList<>());
+            assertFalse(errors.isEmpty());
+            assertNull("Failed parses shouldn't be cached", PARSED_QUERIES.get(getKey(c, schema, "SELECT FROM WHERE")));
+        }
+    }
+}
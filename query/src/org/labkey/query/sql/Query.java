@@ -54,6 +54,7 @@ import org.labkey.api.exp.property.DomainProperty;
 import org.labkey.api.exp.property.Lookup;
 import org.labkey.api.iterator.CloseableIterator;
 import org.labkey.api.query.AliasManager;
+import org.labkey.api.query.BatchValidationException;
 import org.labkey.api.query.DefaultSchema;
 import org.labkey.api.query.FieldKey;
 import org.labkey.api.query.QueryAction;
@@ -73,6 +74,8 @@ import org.labkey.api.reader.DataLoader;
 import org.labkey.api.reader.DataLoaderService;
 import org.labkey.api.reader.JSONDataLoader;
 import org.labkey.api.security.User;
+import org.labkey.api.settings.AppProps;
+import org.labkey.api.settings.ExperimentalFeatureService;
 import org.labkey.api.test.TestWhen;
 import org.labkey.api.util.ConfigurationException;
 import org.labkey.api.util.DateUtil;
@@ -150,6 +153,8 @@ public class Query
 	String _querySource;
     ArrayList<QParameter> _parameters;
     private final Set<SchemaKey> _resolvedTables = new HashSet<>();
+    // tables this query reads from, including those of the queries it references
+    private final Set<TableInfo> _sourceTables = new HashSet<>();
 
     // for displaying dependency graph in UI
     private final HashSetValuedHashMap<QueryService.DependencyObject, QueryService.DependencyObject> _dependencies = new HashSetValuedHashMap<>();
@@ -290,13 +295,12 @@ public class Query
                 parseError(_parseErrors, "Schema is not available, check configuration: " + getSchema().getName(), null);
                 return;
             }
-            SqlParser parser = new SqlParser(getSchema().getDbSchema().getSqlDialect(), getSchema().getContainer());
-            parser.parseQuery(queryText, _parseErrors, _parseWarnings);
+            ParsedQueryCache.ParsedQuery parsed = ParsedQueryCache.parse(getSchema().getDbSchema(), getSchema().getContainer(), queryText, _parseErrors, _parseWarnings);
             if (!_parseErrors.isEmpty())
                 return;
-            _parameters = parser.getParameters();
+            _parameters = parsed.getParameters();
 
-			QNode root = parser.getRoot();
+			QNode root = parsed.getRoot();
             QueryRelation relation = createQueryRelation(this, root, false, skipSuggestedColumns);
 
             if (relation == null)
@@ -746,7 +750,10 @@ public class Query
             {
                 TableInfo tinfo = ret.getTableInfo();
                 if (tinfo != null)
+                {
                     _resolvedTables.add(SchemaKey.fromParts(tinfo.getSchema().getName(), tinfo.getName()));
+                    _sourceTables.add(tinfo);
+                }
             }
         }
         catch (QueryNotFoundException qnfe)
@@ -821,6 +828,13 @@ public class Query
     }
 
 
+    /** Tables read by this query and the queries it references; tables only reached through lookups aren't included */
+    public Set<TableInfo> getSourceTables()
+    {
+        return _sourceTables;
+    }
+
+
     private QueryRelation _resolveTable(
             QuerySchema currentSchema, QNode node, FieldKey key, String alias,
             // OUT parameters
@@ -972,6 +986,7 @@ public class Query
 
             // merge dependencies
             _dependencies.putAll(query._dependencies);
+            _sourceTables.addAll(query._sourceTables);
 
             // and add this dependency
             if (trackDependency)
@@ -1828,6 +1843,8 @@ public class Query
 
         // UNDONE: should work since R.seven and seven are the same
         new FailTest("SELECT R.seven, twelve, COUNT(*) as C FROM R GROUP BY seven, twelve PIVOT C BY seven IN (0, 1, 2, 3, 4, 5, 6)"),
+        // more than QueryPivot.MAX_PIVOT_VALUES pivot values (Rsize * Rsize)
+        new FailTest("SELECT seven, K, COUNT(*) AS C FROM (SELECT a.seven, CONCAT(CONCAT(CAST(a.rowid AS VARCHAR), '_'), CAST(b.rowid AS VARCHAR)) AS K FROM R a, R b) X GROUP BY seven, K PIVOT C BY K"),
 
         new FailTest("SELECT A.Name FROM core.Modules A FULL JOIN core.Modules B ON B.Name=C.Name FULL JOIN core.Modules C ON A.Name=C.Name"), // Missing from-clause entry
 
@@ -2127,6 +2144,93 @@ public class Query
             }
 
             testDuplicateColumns(user, c);
+            testMaterialized(user, c);
+            testPivotValueCache(user, c);
+        }
+
+        // Cached pivot column lists pick up new values as soon as the source table changes
+        private void testPivotValueCache(User user, Container c) throws Exception
+        {
+            String sql = "SELECT seven, twelve, COUNT(*) AS C FROM R GROUP BY seven, twelve PIVOT C BY seven";
+            TableInfo r = lists.getTable("R");
+            assertNotNull(r);
+
+            boolean enabled = AppProps.getInstance().isExperimentalFeatureEnabled(QueryPivot.EXPERIMENTAL_PIVOT_VALUE_CACHE);
+            ExperimentalFeatureService.get().setFeatureEnabled(QueryPivot.EXPERIMENTAL_PIVOT_VALUE_CACHE, true, user);
+            try
+            {
+                int columns = pivotColumnCount(sql);
+                assertEquals("Should be served from the cache", columns, pivotColumnCount(sql));
+
+                BatchValidationException errors = new BatchValidationException();
+                List<Map<String, Object>> inserted = r.getUpdateService().insertRows(user, c, List.of(CaseInsensitiveHashMap.of("seven", 42)), errors, null, null);
+                if (errors.hasErrors())
+                    throw errors;
+                assertEquals("New pivot value should add a column", columns + 1, pivotColumnCount(sql));
+
+                r.getUpdateService().deleteRows(user, c, List.of(CaseInsensitiveHashMap.of("rowid", inserted.get(0).get("rowid"))), null, null);
+                assertEquals("Deleted pivot value should remove its column", columns, pivotColumnCount(sql));
+            }
+            finally
+            {
+                ExperimentalFeatureService.get().setFeatureEnabled(QueryPivot.EXPERIMENTAL_PIVOT_VALUE_CACHE, enabled, user);
+            }
+        }
+
+        private int pivotColumnCount(String sql) throws SQLException
+        {
+            try (CachedResultSet rs = resultset(sql, null))
+            {
+                return rs.getMetaData().getColumnCount();
+            }
+        }
+
+        // A query with <materialize> metadata reads from a temp table, whichever getFromSQL() variant is used
+        private void testMaterialized(User user, Container c) throws SQLException
+        {
+            String name = GUID.makeHash();
+            QueryDefinition query = QueryService.get().createQueryDef(user, c, SchemaKey.fromParts("lists"), name);
+            query.setSql("SELECT rowid, d, seven FROM R");
+            query.setMetadataXml("<tables xmlns=\"http://labkey.org/data/xml\"><table tableName=\"" + name + "\" tableDbType=\"NOT_IN_DB\">" +
+                    "<materialize maxAge=\"3600\"/></table></tables>");
+            ArrayList<QueryException> qerrors = new ArrayList<>();
+            TableInfo t = query.getTable(query.getSchema(), qerrors, false, true);
+            assertNotNull("Table not found", t);
+            if (!qerrors.isEmpty())
+                throw qerrors.get(0);
+
+            String tempPrefix = "\"" + DbSchema.getTemp().getName() + "\".";
+            SQLFragment all = t.getFromSQL("x");
+            assertTrue(all.getSQL(), all.getSQL().startsWith(tempPrefix));
+
+            // QuerySelect's column subset variant shares the table with all columns
+            SQLFragment subset = t.getFromSQL("x", Set.of(FieldKey.fromParts("d")));
+            assertEquals(all.getSQL(), subset.getSQL());
+
+            try (Results rs = QueryService.get().select(t, t.getColumns(), null, null))
+            {
+                assertEquals(Rsize, rs.getSize());
+            }
+
+            // Without the metadata, the query runs as usual
+            QueryDefinition plain = QueryService.get().createQueryDef(user, c, SchemaKey.fromParts("lists"), GUID.makeHash());
+            plain.setSql("SELECT rowid, d, seven FROM R");
+            TableInfo p = plain.getTable(plain.getSchema(), qerrors, false, true);
+            assertNotNull(p);
+            assertFalse(p.getFromSQL("x").getSQL().contains(tempPrefix));
+
+            // Without maxAge it isn't materialized either, and a column subset selects only those columns
+            QueryDefinition noMaxAge = QueryService.get().createQueryDef(user, c, SchemaKey.fromParts("lists"), GUID.makeHash());
+            noMaxAge.setSql("SELECT rowid, d, seven FROM R");
+            noMaxAge.setMetadataXml("<tables xmlns=\"http://labkey.org/data/xml\"><table tableName=\"" + noMaxAge.getName() + "\" tableDbType=\"NOT_IN_DB\">" +
+                    "<materialize/></table></tables>");
+            TableInfo n = noMaxAge.getTable(noMaxAge.getSchema(), qerrors, false, true);
+            assertNotNull(n);
+            SQLFragment nAll = n.getFromSQL("x");
+            SQLFragment nSubset = n.getFromSQL("x", Set.of(FieldKey.fromParts("d")));
+            assertFalse(nAll.getSQL().contains(tempPrefix));
+            assertFalse(nSubset.getSQL().contains(tempPrefix));
+            assertTrue(nSubset.getSQL().length() < nAll.getSQL().length());
         }
 
         // Duplicate column names are supported. Introduced as an option for #35424; made the default behavior for #42081.
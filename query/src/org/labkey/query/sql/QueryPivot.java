@@ -18,6 +18,8 @@ package org.labkey.query.sql;
 import org.apache.commons.beanutils.ConvertUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.jetbrains.annotations.NotNull;
+import org.labkey.api.cache.BlockingCache;
+import org.labkey.api.cache.CacheManager;
 import org.labkey.api.collections.CaseInsensitiveMapWrapper;
 import org.labkey.api.collections.NamedObjectList;
 import org.labkey.api.data.*;
@@ -29,6 +31,7 @@ import org.labkey.api.query.QueryException;
 import org.labkey.api.query.QueryParseException;
 import org.labkey.api.query.QueryService;
 import org.labkey.api.query.UserSchema;
+import org.labkey.api.settings.AppProps;
 import org.labkey.api.util.StringExpression;
 import org.labkey.api.view.UnauthorizedException;
 import org.labkey.data.xml.ColumnType;
@@ -38,6 +41,7 @@ import org.springframework.dao.DataIntegrityViolationException;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
@@ -74,6 +78,30 @@ public class QueryPivot extends QueryRelation
 
     QueryRelation _inQuery;
 
+    public static final String EXPERIMENTAL_PIVOT_VALUE_CACHE = "queryPivotValueCache";
+
+    // Each pivot value adds a CASE expression per aggregate to the generated SQL, so refuse to pivot on more than this
+    public static final int MAX_PIVOT_VALUES = 1000;
+
+    // Pivot column lists keyed by data source, the SQL that computes them, and the change token of the source tables.
+    // Generated SQL includes the user's container filter and any lookups, so edited queries and different scopes get their
+    // own entries, and a write to any source table gives the next render a new key. Changes to tables without change
+    // tracking are only picked up when an entry expires. Blocking, so concurrent renders of the same pivot share one query.
+    private static final BlockingCache<String, PivotValueList> PIVOT_VALUES = CacheManager.getBlockingStringKeyCache(1000, 5 * CacheManager.MINUTE, "Query pivot values", null);
+
+    // Column names and raw values as selected, before wrapping in IConstant (those are QNodes, so every query gets its own)
+    private static class PivotValueList
+    {
+        final JdbcType _type;
+        final List<String> _names = new ArrayList<>();
+        final List<Object> _values = new ArrayList<>();
+
+        PivotValueList(JdbcType type)
+        {
+            _type = type;
+        }
+    }
+
 
     public QueryPivot(Query query, QuerySelect from, QQuery root)
     {
@@ -191,6 +219,8 @@ public class QueryPivot extends QueryRelation
                 else
                     pivotValues.put(name, constant);
             }
+            if (pivotValues.size() > MAX_PIVOT_VALUES)
+                parseError(getTooManyValuesMessage(pivotValues.size()), inList);
             _pivotValues = pivotValues;
         }
     }
@@ -303,24 +333,45 @@ public class QueryPivot extends QueryRelation
             for (Object p : sqlPivotValues.getParams())
                 if (p instanceof QueryService.ParameterDecl)
                     throw new QueryService.NamedParameterNotProvided(((QueryService.ParameterDecl) p).getName());
-            try (ResultSet rs = new SqlSelector(getSchema().getDbSchema(), sqlPivotValues).getResultSet())
+
+            DbSchema schema = getSchema().getDbSchema();
+            final SQLFragment sql = sqlPivotValues;
+            PivotValueList list;
+            if (AppProps.getInstance().isExperimentalFeatureEnabled(EXPERIMENTAL_PIVOT_VALUE_CACHE))
             {
-                JdbcType type = JdbcType.valueOf(rs.getMetaData().getColumnType(1));
-                int columnCount = rs.getMetaData().getColumnCount();
-                while (rs.next())
-                {
-                    Object value = rs.getObject(1);
-                    IConstant wrap = wrapConstant(value, type, rs.wasNull());
-                    String name = columnCount > 1 ? toName(rs.getString(2)) : toName(wrap);
-                    // CONSIDER: error on name collision
-                    _pivotValues.put(name, wrap);
-                }
+                Collection<TableInfo> sources = MaterializedQueryCache.getChangeTrackedTables(_query.getSourceTables());
+                String token = null == sources ? null : QueryResultCache.get().getChangeToken(sources);
+                String key = schema.getScope().getDataSourceName() + "\n" + sql.getSQL() + "\n" + sql.getParams() + "\n" + defaultString(token);
+                list = PIVOT_VALUES.get(key, null, (k, argument) -> selectPivotValues(schema, sql));
+            }
+            else
+            {
+                list = selectPivotValues(schema, sql);
+            }
+
+            if (list._values.size() > MAX_PIVOT_VALUES)
+            {
+                parseError(getTooManyValuesMessage(list._values.size()), null);
+                return _pivotValues;
+            }
+
+            for (int i = 0; i < list._values.size(); i++)
+            {
+                Object value = list._values.get(i);
+                IConstant wrap = wrapConstant(value, list._type, null == value);
+                String name = null != list._names.get(i) ? list._names.get(i) : toName(wrap);
+                // CONSIDER: error on name collision
+                _pivotValues.put(name, wrap);
             }
         }
         catch (QueryService.NamedParameterNotProvided npnp)
         {
             parseError("When used with parameterized query, PIVOT requires an explicit values list", null);
         }
+        catch (RuntimeSQLException x)
+        {
+            throw x.getSQLException();
+        }
         catch (DataIntegrityViolationException x)
         {
             // catch data error generating column list
@@ -338,6 +389,35 @@ public class QueryPivot extends QueryRelation
     }
 
 
+    private static String getTooManyValuesMessage(int count)
+    {
+        return "PIVOT has " + count + " pivot values, more than the limit of " + MAX_PIVOT_VALUES +
+                ". Use an IN list or subquery to choose the values to pivot on.";
+    }
+
+
+    private static PivotValueList selectPivotValues(DbSchema schema, SQLFragment sqlPivotValues)
+    {
+        try (ResultSet rs = new SqlSelector(schema, sqlPivotValues).getResultSet())
+        {
+            PivotValueList list = new PivotValueList(JdbcType.valueOf(rs.getMetaData().getColumnType(1)));
+            int columnCount = rs.getMetaData().getColumnCount();
+            while (rs.next())
+            {
+                Object value = rs.getObject(1);
+                list._values.add(rs.wasNull() ? null : value);
+                // an explicit values subquery can name the columns, otherwise the name is derived from the value
+                list._names.add(columnCount > 1 ? defaultString(rs.getString(2), "NULL") : null);
+            }
+            return list;
+        }
+        catch (SQLException x)
+        {
+            throw new RuntimeSQLException(x);
+        }
+    }
+
+
     String toName(IConstant c)
     {
         if (c instanceof QNull)
@@ -409,6 +489,8 @@ public class QueryPivot extends QueryRelation
             parseError("Could not compute pivot column list", null);
             return null;
         }
+        if (!getParseErrors().isEmpty())
+            return null;
         return qti;
     }
 
@@ -1270,19 +1270,35 @@ public class QuerySelect extends QueryRelation implements Cloneable
             public SQLFragment getFromSQL(String alias)
             {
                 SQLFragment f = new SQLFragment();
+                SQLFragment materialized = getMaterializedFromSQL(getSqlAllColumns(), alias);
+                if (null != materialized)
+                    return materialized;
+                f.append("(").append(_sqlAllColumns).append(") ").append(alias);
+                return f;
+            }
+
+            private SQLFragment getSqlAllColumns()
+            {
                 if (_sqlAllColumns == null)
                 {
                     markAllSelected(_query);
                     _sqlAllColumns = getSql();
                 }
-                f.append("(").append(_sqlAllColumns).append(") ").append(alias);
-                return f;
+                return _sqlAllColumns;
             }
 
             @NotNull
             @Override
             public SQLFragment getFromSQL(String alias, Set<FieldKey> selectedFieldKeys)
             {
+                // Materialized results always have every column, so one table serves all column subsets. If the
+                // results can't be materialized, select only the columns asked for as usual.
+                if (isMaterialized())
+                {
+                    SQLFragment materialized = getMaterializedFromSQL(getSqlAllColumns(), alias);
+                    if (null != materialized)
+                        return materialized;
+                }
                 if (null != selectedFieldKeys && !selectedFieldKeys.isEmpty())
                 {
                     Set<String> names = selectedFieldKeys.stream()
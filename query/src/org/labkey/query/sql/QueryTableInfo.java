@@ -17,6 +17,7 @@
 package org.labkey.query.sql;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.labkey.api.data.AbstractTableInfo;
 import org.labkey.api.data.ColumnInfo;
 import org.labkey.api.data.ContainerFilter;
@@ -24,6 +25,8 @@ import org.labkey.api.data.ContainerFilterable;
 import org.labkey.api.data.HasResolvedTables;
 import org.labkey.api.data.SQLFragment;
 import org.labkey.api.query.FieldKey;
+import org.labkey.api.query.QueryException;
+import org.labkey.api.query.QuerySchema;
 import org.labkey.api.query.QueryService;
 import org.labkey.api.query.SchemaKey;
 import org.labkey.api.query.UserSchema;
@@ -31,6 +34,8 @@ import org.labkey.api.security.UserPrincipal;
 import org.labkey.api.security.permissions.Permission;
 import org.labkey.api.security.permissions.ReadPermission;
 import org.labkey.api.util.MemTracker;
+import org.labkey.data.xml.MaterializeType;
+import org.labkey.data.xml.TableType;
 
 import java.util.Collection;
 import java.util.Collections;
@@ -41,6 +46,7 @@ import java.util.TreeMap;
 public class QueryTableInfo extends AbstractTableInfo implements ContainerFilterable, HasResolvedTables
 {
     QueryRelation _relation;
+    private MaterializeType _materialize = null;
 
 
     public QueryTableInfo(QueryRelation relation, String name)
@@ -66,11 +72,39 @@ public class QueryTableInfo extends AbstractTableInfo implements ContainerFilter
     {
         SQLFragment f = new SQLFragment();
         SQLFragment sql = _relation.getSql();
+
+        SQLFragment materialized = getMaterializedFromSQL(sql, alias);
+        if (null != materialized)
+            return materialized;
+
         f.append("(").append(sql).append(") ").append(alias);
         return f;
     }
 
 
+    protected boolean isMaterialized()
+    {
+        return null != _materialize;
+    }
+
+
+    /** The FROM clause for this query's materialized results, or null if it isn't materialized */
+    protected @Nullable SQLFragment getMaterializedFromSQL(SQLFragment sql, String alias)
+    {
+        return null == _materialize ? null : MaterializedQueryCache.getFromSql(this, sql, alias, _materialize);
+    }
+
+
+    @Override
+    protected void loadAllButCustomizerFromXML(QuerySchema schema, @Nullable TableType xmlTable, Collection<QueryException> errors)
+    {
+        super.loadAllButCustomizerFromXML(schema, xmlTable, errors);
+
+        if (null != xmlTable && xmlTable.isSetMaterialize())
+            _materialize = xmlTable.getMaterialize();
+    }
+
+
     @Override
     public @NotNull Collection<QueryService.ParameterDecl> getNamedParameters()
     {
@@ -103,6 +103,7 @@ public class SqlParser
     ArrayList<QParameter> _parameters;
     final SqlDialect _dialect;
     Container _container = null;
+    boolean _usesModuleProperty = false;   // Result depends on a module property value, not just the SQL text
 
     final static SoftPool<_SqlParser> _parserPool = new SoftPool<>();
 
@@ -349,6 +350,12 @@ public class SqlParser
         return null==_parameters ? new ArrayList<QParameter>(0) : _parameters;
     }
 
+
+    boolean usesModuleProperty()
+    {
+        return _usesModuleProperty;
+    }
+
     
     public QExpr parseExpr(String str, List<? super QueryParseException> errors)
     {
@@ -1284,6 +1291,8 @@ public class SqlParser
 
     private QFieldKey substituteModuleProperty(String moduleName, String propertyName)
     {
+        _usesModuleProperty = true;
+
         if (StringUtils.isEmpty(moduleName) || StringUtils.isEmpty(propertyName))
         {
             _parseErrors.add(new QueryParseException("Expected two strings arguments to escape function: moduleProperty()", null, -1, -1));
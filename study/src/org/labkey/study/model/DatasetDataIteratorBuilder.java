@@ -423,7 +423,7 @@ public class DatasetDataIteratorBuilder implements DataIteratorBuilder
             // no point if required columns are missing
             if (null != indexPTID && null != indexVisit)
             {
-                ScrollableDataIterator scrollable = DataIteratorUtil.wrapScrollable(ret);
+                ScrollableDataIterator scrollable = DataIteratorUtil.wrapScrollable(ret, context);
                 _datasetDefinition.checkForDuplicates(scrollable, indexLSID,
                         indexPTID, null == indexVisit ? -1 : indexVisit, null == indexKeyProperty ? -1 : indexKeyProperty, null == indexReplace ? -1 : indexReplace,
                         context, null,
@@ -50,6 +50,7 @@ import org.labkey.api.dataiterator.DataIteratorContext;
 import org.labkey.api.dataiterator.DataIteratorUtil;
 import org.labkey.api.dataiterator.DetailedAuditLogDataIterator;
 import org.labkey.api.dataiterator.ListofMapsDataIterator;
+import org.labkey.api.dataiterator.ParallelDataIterator;
 import org.labkey.api.dataiterator.Pump;
 import org.labkey.api.dataiterator.StandardDataIteratorBuilder;
 import org.labkey.api.exceptions.OptimisticConflictException;
@@ -3471,6 +3472,8 @@ public class StudyManager
         context.setAllowImportLookupByAlternateKey(importLookupByAlternateKey);
         Map<Enum, Object> options = new HashMap<>();
         options.put(DetailedAuditLogDataIterator.AuditConfigs.AuditBehavior, auditBehaviorType);
+        // Bulk file import: convert and validate on several threads (lookup remapping and other database stages stay serial)
+        options.put(QueryUpdateService.ConfigParameters.ParallelWorkers, ParallelDataIterator.BULK_IMPORT_WORKERS);
 
         if (logger != null)
         {